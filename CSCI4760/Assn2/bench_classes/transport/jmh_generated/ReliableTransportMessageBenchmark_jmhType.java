@@ -0,0 +1,4 @@
+package transport.jmh_generated;
+public class ReliableTransportMessageBenchmark_jmhType extends ReliableTransportMessageBenchmark_jmhType_B3 {
+}
+
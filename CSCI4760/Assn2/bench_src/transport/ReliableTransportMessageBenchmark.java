@@ -0,0 +1,152 @@
+/**
+ * ReliableTransportMessageBenchmark.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-packet CPU cost of the text message format as
+ * {@link ReliableTransportMessage} implements it: building a message,
+ * encoding it, parsing it back and checking its sum, and the padding helpers
+ * every field goes through. <br>
+ * Run with <code>make bench</code>, which adds JMH's gc profiler so each
+ * result comes with the bytes allocated per operation. Each benchmark is run
+ * for a payload that is padded (10), one of exactly
+ * {@link ReliableTransportMessage#PAYLOAD_LEN} (30) and one near a full
+ * Ethernet frame (1400).
+ *
+ * @author Elliott Tanner
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReliableTransportMessageBenchmark {
+
+    // region fields
+    /**
+     * Payload length in chars; public for JMH to set.
+     */
+    @Param({ "10", "30", "1400" })
+    public int			payloadSize;
+
+    private InetAddress		srcIP;
+
+    private InetAddress		destIP;
+
+    private int			port		= ReliableSender.DATA_RECEIVE_PORT;
+
+    private int			sequenceNo	= 42;
+
+    private String		payload;
+
+    private ReliableTransportMessage message;
+
+    private byte[]		encoding;
+    // endregion fields
+
+    /**
+     * Builds the message the benchmarks work on.
+     *
+     * @throws UnknownHostException
+     */
+    @Setup
+    public void setUp() throws UnknownHostException {
+	this.srcIP = InetAddress.getByName("172.17.152.46");
+	this.destIP = InetAddress.getByName("172.17.152.60");
+	char[] chars = new char[this.payloadSize];
+	Arrays.fill(chars, 'x');
+	this.payload = new String(chars);
+	this.message = newMessage();
+	this.encoding = this.message.getBuffer().clone();
+	if (ReliableTransportMessage.reconstitute(this.encoding) == null) {
+	    throw new IllegalStateException("benchmark message does not decode");
+	}
+    }
+
+    private ReliableTransportMessage newMessage() {
+	return new ReliableTransportMessage(this.srcIP, this.destIP,
+					    ReliableSender.DATA_TRANSMIT_PORT,
+					    ReliableSender.DATA_RECEIVE_PORT,
+					    ReliableTransportMessage.DATA,
+					    this.sequenceNo, this.payload);
+    }
+
+    /**
+     * Constructs a message, which pads the payload and encodes it.
+     */
+    @Benchmark
+    public ReliableTransportMessage construct() {
+	return newMessage();
+    }
+
+    /**
+     * Encodes an existing message again.
+     */
+    @Benchmark
+    public byte[] encode() {
+	this.message.encode();
+	return this.message.getBuffer();
+    }
+
+    /**
+     * Parses and verifies an encoded message.
+     */
+    @Benchmark
+    public ReliableTransportMessage reconstitute() {
+	return ReliableTransportMessage.reconstitute(this.encoding);
+    }
+
+    /**
+     * Sums the encoded message the way a receiver verifies it.
+     */
+    @Benchmark
+    public int computedChecksum() {
+	return this.message.getComputedChecksum();
+    }
+
+    /**
+     * Pads a port number, the widest integer field.
+     */
+    @Benchmark
+    public char[] leftPaddedInt() {
+	return ReliableTransportMessage.leftPaddedInt(this.port, 5);
+    }
+
+    /**
+     * Pads an address to its 15 character field.
+     */
+    @Benchmark
+    public String leftPaddedIP() {
+	return ReliableTransportMessage.leftPaddedIP(this.srcIP, 15);
+    }
+
+    /**
+     * Pads the payload to {@link ReliableTransportMessage#PAYLOAD_LEN}, or
+     * copies it if it is longer.
+     */
+    @Benchmark
+    public char[] rightPaddedString() {
+	return ReliableTransportMessage.rightPaddedString(this.payload);
+    }
+}
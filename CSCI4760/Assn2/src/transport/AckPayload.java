@@ -0,0 +1,224 @@
+/**
+ * AckPayload.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable reader and writer for the payload of an ACK or NAK. <br>
+ * The payload is a list of fields, each a one byte tag, a one byte length
+ * and that many bytes of value, so a receiver can skip fields it does not
+ * know. An empty payload is valid and carries no fields. <br>
+ * <code>
+ * 'S' Selective acknowledgment (SACK) blocks: up to {@link #MAX_SACK_BLOCKS}
+ * pairs of 32-bit sequence numbers in network byte order, the first and last
+ * packet of a run the receiver holds beyond its cumulative ACK <br>
+ * 'W' Advertised receive window: an unsigned 16-bit count, in network byte
+ * order, of the packets after the cumulative ACK the receiver has room for
+ * <br>
+ * </code> <br>
+ * Like {@link MessageView}, nothing here allocates after construction.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class AckPayload {
+
+    // region fields
+    /**
+     * Tag of the SACK field.
+     */
+    public static final byte	SACK		= 'S';
+
+    /**
+     * Tag of the receive window field.
+     */
+    public static final byte	WINDOW		= 'W';
+
+    /**
+     * Returned by {@link #getWindow()} when no window is held.
+     */
+    public static final int	NO_WINDOW	= -1;
+
+    /**
+     * Largest window the field carries.
+     */
+    public static final int	MAX_WINDOW	= 0xFFFF;
+
+    /**
+     * Most SACK blocks one ACK carries. Runs past the last one are reported
+     * once the earlier holes are filled.
+     */
+    public static final int	MAX_SACK_BLOCKS	= 4;
+
+    /**
+     * Longest payload {@link #encode(ByteBuffer)} writes.
+     */
+    public static final int	MAX_LENGTH	= 2 + MAX_SACK_BLOCKS * 8 + 4;
+
+    private final int[]		sackStart	= new int[MAX_SACK_BLOCKS];
+
+    private final int[]		sackEnd		= new int[MAX_SACK_BLOCKS];
+
+    private int			sackCount	= 0;
+
+    private int			window		= NO_WINDOW;
+    // endregion fields
+
+    /**
+     * Forgets every field, leaving an empty payload.
+     */
+    public void clear() {
+	this.sackCount = 0;
+	this.window = NO_WINDOW;
+    }
+
+    /**
+     * Adds the run of sequence numbers from 'start' to 'end', inclusive.
+     *
+     * @param start
+     *            first sequence number of the run
+     * @param end
+     *            last sequence number of the run
+     * @return false if {@link #MAX_SACK_BLOCKS} blocks are already held and
+     *         the run was not added
+     */
+    public boolean addSack(int start, int end) {
+	if (this.sackCount == MAX_SACK_BLOCKS) {
+	    return false;
+	}
+	this.sackStart[this.sackCount] = start;
+	this.sackEnd[this.sackCount] = end;
+	this.sackCount++;
+	return true;
+    }
+
+    /**
+     * Writes the fields into 'destination' from its position, which is
+     * advanced past them. Writes nothing if there are no fields.
+     *
+     * @param destination
+     *            buffer with at least {@link #MAX_LENGTH} bytes remaining
+     */
+    public void encode(ByteBuffer destination) {
+	if (this.window != NO_WINDOW) {
+	    destination.put(WINDOW);
+	    destination.put((byte) 2);
+	    destination.putShort((short) this.window);
+	}
+	if (this.sackCount == 0) {
+	    return;
+	}
+	destination.put(SACK);
+	destination.put((byte) (this.sackCount * 8));
+	for (int i = 0; i < this.sackCount; i++) {
+	    destination.putInt(this.sackStart[i]);
+	    destination.putInt(this.sackEnd[i]);
+	}
+    }
+
+    /**
+     * Reads the fields from the payload of 'message', replacing any held.
+     * Unknown fields are skipped.
+     *
+     * @param message
+     *            a decoded ACK or NAK
+     * @return false if the payload is not a well-formed list of fields; no
+     *         fields are held then
+     */
+    public boolean decode(MessageView message) {
+	clear();
+	ByteBuffer buffer = message.getBuffer();
+	int at = message.getPayloadOffset();
+	int end = at + message.getPayloadLength();
+
+	while (at < end) {
+	    if (end - at < 2) {
+		clear();
+		return false;
+	    }
+	    byte tag = buffer.get(at);
+	    int length = buffer.get(at + 1) & 0xFF;
+	    at += 2;
+	    if (end - at < length) {
+		clear();
+		return false;
+	    }
+
+	    if (tag == SACK) {
+		if (length % 8 != 0 || length / 8 > MAX_SACK_BLOCKS) {
+		    clear();
+		    return false;
+		}
+		for (int i = 0; i < length; i += 8) {
+		    addSack(buffer.getInt(at + i), buffer.getInt(at + i + 4));
+		}
+	    } else if (tag == WINDOW) {
+		if (length != 2) {
+		    clear();
+		    return false;
+		}
+		this.window = buffer.getShort(at) & 0xFFFF;
+	    }
+	    at += length;
+	}
+
+	return true;
+    }
+
+    // region getters
+
+    /**
+     * Returns the number of SACK blocks held.
+     */
+    public int getSackCount() {
+	return this.sackCount;
+    }
+
+    /**
+     * Returns the advertised receive window, in packets, or
+     * {@link #NO_WINDOW} if the payload carried none.
+     */
+    public int getWindow() {
+	return this.window;
+    }
+
+    /**
+     * Returns the first sequence number of SACK block 'index'.
+     *
+     * @param index
+     *            0 to {@link #getSackCount()} - 1
+     */
+    public int getSackStart(int index) {
+	return this.sackStart[index];
+    }
+
+    /**
+     * Returns the last sequence number of SACK block 'index'.
+     *
+     * @param index
+     *            0 to {@link #getSackCount()} - 1
+     */
+    public int getSackEnd(int index) {
+	return this.sackEnd[index];
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param window
+     *            packets after the cumulative ACK there is room for; larger
+     *            values are sent as {@link #MAX_WINDOW}, and
+     *            {@link #NO_WINDOW} leaves the field out
+     */
+    public void setWindow(int window) {
+	this.window = window == NO_WINDOW ? NO_WINDOW
+	    : Math.max(0, Math.min(window, MAX_WINDOW));
+    }
+
+    // endregion setters
+}
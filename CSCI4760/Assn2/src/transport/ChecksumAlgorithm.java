@@ -0,0 +1,164 @@
+/**
+ * ChecksumAlgorithm.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * The integrity checks a {@link BinaryWireCodec} datagram can carry. The
+ * algorithm is named in the datagram by {@link #getId()}, so each sender
+ * picks its own and receivers verify whatever arrives. <br>
+ * Every algorithm covers the whole datagram before the checksum field,
+ * however long the payload.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public enum ChecksumAlgorithm {
+
+    /**
+     * Unsigned sum of the bytes. Cheap, but blind to reordered bytes and to
+     * errors that cancel out. Id 0, so datagrams from before the algorithm
+     * was chosen still verify.
+     */
+    SUM("sum", 0) {
+	public int compute(ByteBuffer buffer, int offset, int length) {
+	    int sum = 0;
+	    for (int i = offset; i < offset + length; i++) {
+		sum += buffer.get(i) & 0xFF;
+	    }
+	    return sum;
+	}
+    },
+
+    /**
+     * CRC-32C (Castagnoli), computed by the JDK with the processor's CRC
+     * instructions where it has them. Catches all burst errors up to 32 bits
+     * and any reordering.
+     */
+    CRC32C("crc32c", 1) {
+	public int compute(ByteBuffer buffer, int offset, int length) {
+	    CRC32C crc = CRC.get();
+	    crc.reset();
+	    if (buffer.hasArray()) {
+		crc.update(buffer.array(), buffer.arrayOffset() + offset, length);
+	    } else {
+		ByteBuffer range = buffer.duplicate();
+		range.limit(offset + length);
+		range.position(offset);
+		crc.update(range);
+	    }
+	    return (int) crc.getValue();
+	}
+    },
+
+    /**
+     * The 16-bit ones' complement Internet checksum of RFC 1071, as used by
+     * IP, UDP and TCP. Summed 32 bits at a time and folded.
+     */
+    INTERNET("internet", 2) {
+	public int compute(ByteBuffer buffer, int offset, int length) {
+	    long sum = 0;
+	    int end = offset + length;
+	    int i = offset;
+	    for (; i + 8 <= end; i += 8) {
+		long words = buffer.getLong(i);
+		sum += (words >>> 32) + (words & 0xFFFFFFFFL);
+	    }
+	    for (; i + 2 <= end; i += 2) {
+		sum += buffer.getShort(i) & 0xFFFF;
+	    }
+	    if (i < end) {
+		sum += (buffer.get(i) & 0xFF) << 8;// pad the odd byte
+	    }
+	    while ((sum >>> 16) != 0) {
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+	    }
+	    return (int) (~sum & 0xFFFF);
+	}
+    };
+
+    private static final ThreadLocal<CRC32C> CRC = new ThreadLocal<CRC32C>() {
+	protected CRC32C initialValue() {
+	    return new CRC32C();
+	}
+    };
+
+    private final String shortName;
+
+    private final int id;
+
+    private ChecksumAlgorithm(String shortName, int id) {
+	this.shortName = shortName;
+	this.id = id;
+    }
+
+    /**
+     * Computes the checksum of 'length' bytes of 'buffer' from absolute
+     * index 'offset', in network byte order. The buffer's position and limit
+     * are not changed. Does not allocate.
+     *
+     * @param buffer
+     *            bytes to check
+     * @param offset
+     *            index of the first byte
+     * @param length
+     *            number of bytes
+     * @return the checksum
+     */
+    public abstract int compute(ByteBuffer buffer, int offset, int length);
+
+    /**
+     * Looks up an algorithm by its short name ("sum", "crc32c", "internet")
+     * or its constant name.
+     *
+     * @param name
+     *            name of the algorithm, case insensitive
+     * @return the matching algorithm
+     * @throws IllegalArgumentException
+     *             if no algorithm has that name
+     */
+    public static ChecksumAlgorithm forName(String name)
+	throws IllegalArgumentException {
+	for (ChecksumAlgorithm algorithm : values()) {
+	    if (algorithm.shortName.equalsIgnoreCase(name)
+		|| algorithm.name().equalsIgnoreCase(name)) {
+		return algorithm;
+	    }
+	}
+	throw new IllegalArgumentException("Unknown checksum: " + name);
+    }
+
+    /**
+     * Looks up an algorithm by the id carried in datagrams.
+     *
+     * @param id
+     *            the id
+     * @return the matching algorithm, or null if there is none
+     */
+    public static ChecksumAlgorithm forId(int id) {
+	for (ChecksumAlgorithm algorithm : values()) {
+	    if (algorithm.id == id) {
+		return algorithm;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Returns the id that names the algorithm in a datagram.
+     */
+    public int getId() {
+	return this.id;
+    }
+
+    /**
+     * Returns the short name used on the command line.
+     */
+    public String getShortName() {
+	return this.shortName;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * CongestionController.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+/**
+ * Congestion window for the windowed senders, after RFC 5681, counted in
+ * packets rather than bytes. <br>
+ * <code>
+ * slow start (cwnd &lt; ssthresh): cwnd += 1 per ACKed packet <br>
+ * congestion avoidance: cwnd += 1/cwnd per ACKed packet <br>
+ * loss signalled by a NAK: ssthresh = max(flight/2, 2), cwnd = ssthresh <br>
+ * retransmission timeout: ssthresh = max(flight/2, 2), cwnd = 1 <br>
+ * </code> <br>
+ * The window never grows past the configured window size. The controller
+ * also sets the pacing interval, so that a window's worth of packets is
+ * spread over a round trip instead of leaving in one burst.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class CongestionController {
+
+    // region fields
+    /**
+     * Congestion window a transfer starts with, in packets.
+     */
+    public static final int	INITIAL_WINDOW	= 2;
+
+    /**
+     * Smallest slow start threshold, in packets.
+     */
+    public static final int	MIN_SSTHRESH	= 2;
+
+    /**
+     * Pacing rate as a multiple of cwnd/SRTT during slow start, so pacing
+     * does not hold back the doubling of the window.
+     */
+    private static final double	SLOW_START_GAIN	= 2.0;
+
+    /**
+     * Pacing rate as a multiple of cwnd/SRTT during congestion avoidance.
+     */
+    private static final double	AVOIDANCE_GAIN	= 1.25;
+
+    private final int		maxWindow;
+
+    private double		cwnd;
+
+    private int			ssthresh;
+
+    private long		lossEvents	= 0;
+
+    private long		timeouts	= 0;
+    // endregion fields
+
+    /**
+     * @param maxWindow
+     *            largest window the sender allows, in packets
+     */
+    public CongestionController(int maxWindow) {
+	this.maxWindow = maxWindow;
+	this.cwnd = Math.min(INITIAL_WINDOW, maxWindow);
+	this.ssthresh = maxWindow;
+    }
+
+    /**
+     * Opens the window for newly acknowledged packets.
+     *
+     * @param acked
+     *            number of packets that just left the window
+     */
+    public void onAck(int acked) {
+	for (int i = 0; i < acked && this.cwnd < this.maxWindow; i++) {
+	    if (this.cwnd < this.ssthresh) {
+		this.cwnd += 1;
+	    } else {
+		this.cwnd += 1 / this.cwnd;
+	    }
+	}
+	this.cwnd = Math.min(this.cwnd, this.maxWindow);
+    }
+
+    /**
+     * Reacts to a newly detected loss: halves the threshold and shrinks the
+     * window. Callers report at most one loss per window of data.
+     *
+     * @param flightSize
+     *            number of packets in flight when the loss was detected
+     * @param timeout
+     *            true if the retransmission timer detected the loss, false
+     *            for a NAK
+     */
+    public void onLoss(int flightSize, boolean timeout) {
+	this.lossEvents++;
+	this.ssthresh = Math.max(flightSize / 2, MIN_SSTHRESH);
+	if (timeout) {
+	    this.timeouts++;
+	    this.cwnd = 1;
+	} else {
+	    this.cwnd = Math.min(this.ssthresh, this.maxWindow);
+	}
+    }
+
+    /**
+     * Collapses the window after a timeout of data already covered by an
+     * earlier loss, leaving the threshold alone.
+     */
+    public void onRepeatedTimeout() {
+	this.timeouts++;
+	this.cwnd = 1;
+    }
+
+    /**
+     * Returns the time to leave between two new packets, so that the window
+     * is spread over a round trip.
+     *
+     * @param srtt
+     *            smoothed round-trip time in nanoseconds, or 0 if unknown
+     * @return the interval in nanoseconds; 0 before the first RTT sample
+     */
+    public long getPacingInterval(long srtt) {
+	double gain = isSlowStart() ? SLOW_START_GAIN : AVOIDANCE_GAIN;
+	return (long) (srtt / (this.cwnd * gain));
+    }
+
+    // region getters
+
+    /**
+     * Returns the congestion window in packets, including the fraction
+     * grown during congestion avoidance.
+     */
+    public double getCwnd() {
+	return this.cwnd;
+    }
+
+    /**
+     * Returns the number of packets the window allows in flight, at least 1.
+     */
+    public int getWindow() {
+	return Math.max(1, (int) this.cwnd);
+    }
+
+    /**
+     * Returns the slow start threshold in packets.
+     */
+    public int getSsthresh() {
+	return this.ssthresh;
+    }
+
+    /**
+     * Returns the number of losses the window was reduced for.
+     */
+    public long getLossEvents() {
+	return this.lossEvents;
+    }
+
+    /**
+     * Returns the number of retransmission timeouts, repeated ones included.
+     */
+    public long getTimeouts() {
+	return this.timeouts;
+    }
+
+    /**
+     * Returns true while the window is below the slow start threshold.
+     */
+    public boolean isSlowStart() {
+	return this.cwnd < this.ssthresh;
+    }
+
+    // endregion getters
+}
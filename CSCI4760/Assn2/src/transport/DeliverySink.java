@@ -0,0 +1,29 @@
+/**
+ * DeliverySink.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+
+/**
+ * Receives the messages a {@link ReceiverProtocol} releases, one at a time and
+ * strictly in sequence order.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public interface DeliverySink {
+
+    /**
+     * Consumes the next in-order message. The END message is delivered too,
+     * after every DATA message before it. 'message' is only valid during the
+     * call; copy the payload out of {@link MessageView#getBuffer()} to keep
+     * it.
+     *
+     * @param message
+     *            the message being released
+     * @throws IOException
+     */
+    void deliver(MessageView message) throws IOException;
+}
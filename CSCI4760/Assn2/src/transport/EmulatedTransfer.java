@@ -0,0 +1,337 @@
+/**
+ * EmulatedTransfer.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a {@link SenderProtocol} against a {@link ReceiverProtocol} through a
+ * {@link NetworkEmulator}, with no sockets and no wall-clock waiting. <br>
+ * Packets go through the real encode, decode and protocol code; only the
+ * network and the clock are simulated, so a run is reproducible from its
+ * seed. Each payload is filled with bytes derived from its index, and the
+ * receiver checks every byte it is handed, so corruption that slips past a
+ * checksum or data delivered out of order is counted rather than missed.
+ * <br>
+ * Usage: <code>java transport.EmulatedTransfer [options]</code>, where the
+ * options are those of {@link TransportConfig} and
+ * {@link ImpairmentProfile} (applied to both directions), plus
+ * <code>--packets=N</code> and <code>--seed=N</code>.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class EmulatedTransfer {
+
+    // region fields
+    private static final long	DEFAULT_PACKETS	= 100000;
+
+    private final NetworkEmulator emulator;
+
+    private final NetworkEmulator.Link dataLink;
+
+    private final NetworkEmulator.Link ackLink;
+
+    private final SenderProtocol sender;
+
+    private final ReceiverProtocol receiver;
+
+    private final MessageView	dataView	= new MessageView();
+
+    private final MessageView	ackView		= new MessageView();
+
+    private final ByteBuffer	payload;
+
+    private long		packetsSent	= 0;
+
+    private long		packetsDelivered = 0;
+
+    private long		bytesDelivered	= 0;
+
+    private long		deliveryErrors	= 0;
+
+    private long		wallTime	= 0;
+    // endregion fields
+
+    /**
+     * Sets up a transfer over a path impaired by 'forward' for data and
+     * 'reverse' for ACKs.
+     *
+     * @param config
+     *            transfer settings shared by both ends
+     * @param forward
+     *            impairments on the way to the receiver
+     * @param reverse
+     *            impairments on the way back to the sender
+     * @param seed
+     *            seed of the emulator
+     * @throws IOException
+     */
+    public EmulatedTransfer(TransportConfig config, ImpairmentProfile forward,
+			    ImpairmentProfile reverse, long seed)
+	throws IOException {
+	config.validate();
+	InetAddress senderIP = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+	InetAddress receiverIP = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+	this.emulator = new NetworkEmulator(seed);
+	this.payload = ByteBuffer.allocate(config.getPayloadSize());
+
+	this.dataLink = this.emulator.createLink(forward, new PacketSink() {
+		public void transmit(byte[] buffer, int offset, int length)
+		    throws IOException {
+		    int result = dataView.decode(ByteBuffer.wrap(buffer, offset, length));
+		    if (result == MessageView.OK || result == MessageView.BAD_CHECKSUM) {
+			receiver.onMessage(dataView, result == MessageView.OK,
+					   emulator.getTime());
+		    }
+		}
+	    });
+	this.ackLink = this.emulator.createLink(reverse, new PacketSink() {
+		public void transmit(byte[] buffer, int offset, int length)
+		    throws IOException {
+		    if (ackView.decode(ByteBuffer.wrap(buffer, offset, length))
+			== MessageView.OK) {
+			sender.onResponse(ackView, emulator.getTime());
+		    }
+		}
+	    });
+
+	this.sender = new SenderProtocol(this.dataLink, senderIP, receiverIP,
+					 ReliableReceiver.DATA_TRANSMIT_PORT,
+					 ReliableSender.DATA_RECEIVE_PORT, config,
+					 new RttEstimator(config));
+	this.receiver = new ReceiverProtocol(this.ackLink, new DeliverySink() {
+		public void deliver(MessageView message) {
+		    if (message.getOpCode() == ReliableTransportMessage.DATA) {
+			check(message);
+		    }
+		}
+	    }, receiverIP, senderIP, ReliableReceiver.ACK_SEND_PORT,
+	    ReliableSender.ACK_RECEIVE_PORT, config);
+    }
+
+    /**
+     * Runs the command line transfer and prints its statistics.
+     *
+     * @param args
+     *            transfer and impairment settings, e.g. --mode=sr
+     *            --window=64 --codec=binary --loss=2 --delay=10
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+	TransportConfig config = new TransportConfig();
+	ImpairmentProfile profile = new ImpairmentProfile();
+	long packets = DEFAULT_PACKETS;
+	long seed = 1;
+
+	for (String arg : args) {
+	    int split = arg.indexOf('=');
+	    if (!arg.startsWith("--") || split < 0) {
+		throw new IllegalArgumentException("Expected --name=value: " + arg);
+	    }
+	    String name = arg.substring(2, split);
+	    String value = arg.substring(split + 1);
+	    if (name.equals("packets")) {
+		packets = Long.parseLong(value);
+	    } else if (name.equals("seed")) {
+		seed = Long.parseLong(value);
+	    } else if (ImpairmentProfile.isOption(name)) {
+		profile.set(name, value);
+	    } else {
+		config.set(name, value);
+	    }
+	}
+
+	EmulatedTransfer transfer =
+	    new EmulatedTransfer(config, profile, profile, seed);
+	boolean finished = transfer.run(packets, NetworkEmulator.NO_EVENT);
+	double seconds = transfer.getTime() / 1e9;
+
+	System.out.println("FINISHED=" + finished
+			   + " PACKETS=" + transfer.getPacketsDelivered()
+			   + " ERRORS=" + transfer.getDeliveryErrors());
+	//a perfect link takes no virtual time at all
+	System.out.println("VIRTUAL TIME=" + seconds + " s GOODPUT="
+			   + (seconds > 0 ? transfer.getBytesDelivered() / seconds / 1e6
+			      + " MB/s" : "unlimited"));
+	System.out.println("RETRANSMISSIONS="
+			   + transfer.getSender().getRetransmissions()
+			   + " LOST=" + transfer.getDataLink().getLost() + "/"
+			   + transfer.getAckLink().getLost()
+			   + " QUEUE DROPS=" + transfer.getDataLink().getQueueDrops()
+			   + " CORRUPTED=" + transfer.getDataLink().getCorrupted());
+	System.out.println("WALL TIME=" + transfer.getWallTime() / 1e9
+			   + " s RATE=" + (transfer.getDataLink().getSent()
+					   + transfer.getAckLink().getSent())
+			   * 1e9 / transfer.getWallTime() + " packets/s");
+    }
+
+    /**
+     * Sends 'packets' DATA packets and the END packet, and runs the emulator
+     * until all are acknowledged or the virtual clock passes 'timeLimit'.
+     *
+     * @param packets
+     *            number of DATA packets
+     * @param timeLimit
+     *            virtual time in nanoseconds to give up at, or
+     *            {@link NetworkEmulator#NO_EVENT} for no limit
+     * @return true if every packet was acknowledged and the END delivered
+     * @throws IOException
+     */
+    public boolean run(long packets, long timeLimit) throws IOException {
+	long started = System.nanoTime();
+	boolean endSent = false;
+
+	try {
+	    while (!(endSent && this.sender.isIdle())) {
+		long now = this.emulator.getTime();
+		while (!endSent && this.sender.isWindowOpen()
+		       && now >= this.sender.getSendTime()) {
+		    if (this.packetsSent == packets) {
+			this.payload.clear().limit(0);
+			this.sender.send(ReliableTransportMessage.END, this.payload, now);
+			endSent = true;
+		    } else {
+			fill(this.packetsSent++);
+			this.sender.send(ReliableTransportMessage.DATA, this.payload,
+					 now);
+		    }
+		}
+
+		long next = Math.min(this.emulator.getNextEventTime(),
+				     Math.min(this.sender.getDeadline(),
+					      this.receiver.getDeadline()));
+		if (!endSent && this.sender.isWindowOpen()) {
+		    next = Math.min(next, this.sender.getSendTime());
+		}
+		if (next == NetworkEmulator.NO_EVENT) {
+		    throw new IllegalStateException("transfer stalled with nothing in flight");
+		}
+		if (next > timeLimit) {
+		    this.emulator.advanceTo(timeLimit);
+		    return false;
+		}
+
+		this.emulator.step(next);
+		//delayed ACKs fall due on the receiver's timer
+		this.receiver.onTimer(this.emulator.getTime());
+		this.sender.onTimer(this.emulator.getTime());
+	    }
+	} finally {
+	    this.wallTime += System.nanoTime() - started;
+	}
+
+	return this.receiver.isFinished();
+    }
+
+    /**
+     * Fills the payload buffer with the bytes of packet 'index'.
+     */
+    private void fill(long index) {
+	this.payload.clear();
+	for (int i = 0; i < this.payload.limit(); i++) {
+	    this.payload.put(i, contentOf(index, i));
+	}
+    }
+
+    /**
+     * Checks a delivered payload against the bytes its index should carry.
+     */
+    private void check(MessageView message) {
+	ByteBuffer buffer = message.getBuffer();
+	int offset = message.getPayloadOffset();
+	boolean ok = message.getPayloadLength() == this.payload.capacity();
+	for (int i = 0; ok && i < message.getPayloadLength(); i++) {
+	    ok = buffer.get(offset + i) == contentOf(this.packetsDelivered, i);
+	}
+	if (!ok) {
+	    this.deliveryErrors++;
+	}
+	this.packetsDelivered++;
+	this.bytesDelivered += message.getPayloadLength();
+    }
+
+    private static byte contentOf(long index, int position) {
+	return (byte) (index * 31 + position);
+    }
+
+    // region getters
+
+    /**
+     * Returns the link carrying ACKs back to the sender.
+     */
+    public NetworkEmulator.Link getAckLink() {
+	return this.ackLink;
+    }
+
+    /**
+     * Returns the number of payload bytes delivered in order.
+     */
+    public long getBytesDelivered() {
+	return this.bytesDelivered;
+    }
+
+    /**
+     * Returns the link carrying data to the receiver.
+     */
+    public NetworkEmulator.Link getDataLink() {
+	return this.dataLink;
+    }
+
+    /**
+     * Returns the number of delivered payloads that were not the expected
+     * bytes; 0 unless the checksum let damage through.
+     */
+    public long getDeliveryErrors() {
+	return this.deliveryErrors;
+    }
+
+    /**
+     * Returns the emulator, e.g. to read its clock.
+     */
+    public NetworkEmulator getEmulator() {
+	return this.emulator;
+    }
+
+    /**
+     * Returns the number of DATA packets delivered in order.
+     */
+    public long getPacketsDelivered() {
+	return this.packetsDelivered;
+    }
+
+    /**
+     * Returns the receiving protocol.
+     */
+    public ReceiverProtocol getReceiver() {
+	return this.receiver;
+    }
+
+    /**
+     * Returns the sending protocol.
+     */
+    public SenderProtocol getSender() {
+	return this.sender;
+    }
+
+    /**
+     * Returns the virtual time the transfer has taken, in nanoseconds.
+     */
+    public long getTime() {
+	return this.emulator.getTime();
+    }
+
+    /**
+     * Returns the real time spent in {@link #run(long, long)}, in
+     * nanoseconds.
+     */
+    public long getWallTime() {
+	return this.wallTime;
+    }
+
+    // endregion getters
+}
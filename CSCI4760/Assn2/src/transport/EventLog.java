@@ -0,0 +1,360 @@
+/**
+ * EventLog.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands log lines from the packet path to a background writer, so sending
+ * and receiving never wait for a terminal or a file. <br>
+ * An event is a constant text plus an optional detail string and an
+ * optional number, e.g. <code>log(LogLevel.DEBUG, "ACK RECEIVED: ", seqNo)</code>;
+ * they are joined into a line only on the writer thread, so logging a
+ * packet allocates nothing. Events go into a bounded ring buffer of
+ * preallocated slots; a producer claims a slot with one compare-and-set and
+ * never blocks, and when the writer falls behind and the ring is full the
+ * event is dropped and counted instead. The writer prints whatever has
+ * accumulated as one batch and flushes once per batch. <br>
+ * Events below the log's level cost a field read and a comparison, and no
+ * writer thread is started until the first event is let through.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class EventLog {
+
+    // region fields
+    /**
+     * Events the ring holds by default.
+     */
+    public static final int	DEFAULT_CAPACITY = 4096;
+
+    private static final long	NO_VALUE	= Long.MIN_VALUE;
+
+    /**
+     * Longest the writer sleeps when there is nothing to write.
+     */
+    private static final long	IDLE_WAIT	= TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Characters the writer collects before printing them.
+     */
+    private static final int	BATCH_CHARS	= 8192;
+
+    private final PrintWriter	out;
+
+    private final int		mask;
+
+    private final LogLevel[]	levels;
+
+    private final String[]	texts;
+
+    private final String[]	details;
+
+    private final long[]	values;
+
+    /**
+     * For each slot, 1 + the sequence number of the event written into it
+     * once it may be read.
+     */
+    private final AtomicLongArray published;
+
+    private final AtomicLong	tail		= new AtomicLong();
+
+    private final AtomicLong	dropped		= new AtomicLong();
+
+    private final StringBuilder	batch		= new StringBuilder();
+
+    private volatile long	head		= 0;
+
+    private volatile long	written		= 0;
+
+    private volatile LogLevel	level;
+
+    private volatile Thread	writer		= null;
+
+    private volatile boolean	closed		= false;
+
+    private long		droppedReported	= 0;
+    // endregion fields
+
+    /**
+     * Creates a log with a ring of {@link #DEFAULT_CAPACITY} events.
+     *
+     * @param out
+     *            where lines are written; only the writer thread uses it
+     * @param level
+     *            most detailed level let through
+     */
+    public EventLog(PrintWriter out, LogLevel level) {
+	this(out, level, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param out
+     *            where lines are written; only the writer thread uses it
+     * @param level
+     *            most detailed level let through
+     * @param capacity
+     *            events the ring holds, rounded up to a power of two
+     * @throws IllegalArgumentException
+     *             if 'capacity' is less than 1 or more than 2^30
+     */
+    public EventLog(PrintWriter out, LogLevel level, int capacity)
+	throws IllegalArgumentException {
+	if (capacity < 1 || capacity > 1 << 30) {
+	    throw new IllegalArgumentException("capacity must be 1-2^30, got "
+					       + capacity);
+	}
+	int size = Integer.highestOneBit(capacity);
+	if (size < capacity) {
+	    size <<= 1;
+	}
+	this.out = out;
+	this.level = level;
+	this.mask = size - 1;
+	this.levels = new LogLevel[size];
+	this.texts = new String[size];
+	this.details = new String[size];
+	this.values = new long[size];
+	this.published = new AtomicLongArray(size);
+    }
+
+    /**
+     * Returns true if events at 'level' are let through. Callers that build
+     * a string to log should check this first.
+     *
+     * @param level
+     *            level of an event
+     */
+    public boolean isEnabled(LogLevel level) {
+	return level != LogLevel.OFF && this.level.includes(level);
+    }
+
+    /**
+     * Logs 'text' as a line.
+     *
+     * @param level
+     *            level of the event
+     * @param text
+     *            the line
+     * @return false if the event was filtered out or dropped
+     */
+    public boolean log(LogLevel level, String text) {
+	return isEnabled(level) && offer(level, text, null, NO_VALUE);
+    }
+
+    /**
+     * Logs 'text' followed by 'value' as a line.
+     *
+     * @param level
+     *            level of the event
+     * @param text
+     *            start of the line
+     * @param value
+     *            number the line ends with
+     * @return false if the event was filtered out or dropped
+     */
+    public boolean log(LogLevel level, String text, long value) {
+	return isEnabled(level) && offer(level, text, null, value);
+    }
+
+    /**
+     * Logs 'text' followed by 'detail' as a line.
+     *
+     * @param level
+     *            level of the event
+     * @param text
+     *            start of the line
+     * @param detail
+     *            rest of the line
+     * @return false if the event was filtered out or dropped
+     */
+    public boolean log(LogLevel level, String text, String detail) {
+	return isEnabled(level) && offer(level, text, detail, NO_VALUE);
+    }
+
+    /**
+     * Claims the next slot, fills it and publishes it to the writer.
+     *
+     * @return false if the ring was full or the log closed
+     */
+    private boolean offer(LogLevel level, String text, String detail,
+			  long value) {
+	long seq;
+	do {
+	    seq = this.tail.get();
+	    if (this.closed || seq - this.head > this.mask) {
+		this.dropped.incrementAndGet();
+		return false;
+	    }
+	} while (!this.tail.compareAndSet(seq, seq + 1));
+
+	int slot = (int) seq & this.mask;
+	this.levels[slot] = level;
+	this.texts[slot] = text;
+	this.details[slot] = detail;
+	this.values[slot] = value;
+	this.published.lazySet(slot, seq + 1);
+
+	if (this.writer == null) {
+	    startWriter();
+	}
+	return true;
+    }
+
+    /**
+     * Starts the writer thread unless another producer already has.
+     */
+    private synchronized void startWriter() {
+	if (this.writer != null) {
+	    return;
+	}
+	Thread writer = new Thread(new Runnable() {
+		public void run() {
+		    write();
+		}
+	    }, "event log");
+	writer.setDaemon(true);
+	this.writer = writer;
+	writer.start();
+    }
+
+    /**
+     * Writer thread: prints published events until the log is closed and
+     * every event has been printed.
+     */
+    private void write() {
+	while (true) {
+	    boolean closing = this.closed;
+	    if (drain() == 0) {
+		if (closing) {
+		    return;
+		}
+		LockSupport.parkNanos(IDLE_WAIT);
+	    }
+	}
+    }
+
+    /**
+     * Prints every event published in order from the head, and a note of
+     * any events dropped since the last note.
+     *
+     * @return the number of events printed
+     */
+    private int drain() {
+	int count = 0;
+	long seq = this.head;
+	while (this.published.get((int) seq & this.mask) == seq + 1) {
+	    int slot = (int) seq & this.mask;
+	    this.batch.append(this.texts[slot]);
+	    if (this.details[slot] != null) {
+		this.batch.append(this.details[slot]);
+	    }
+	    if (this.values[slot] != NO_VALUE) {
+		this.batch.append(this.values[slot]);
+	    }
+	    this.batch.append(System.lineSeparator());
+	    this.texts[slot] = null;
+	    this.details[slot] = null;
+	    this.head = ++seq;//frees the slot
+	    count++;
+	    if (this.batch.length() >= BATCH_CHARS) {
+		print();
+	    }
+	}
+
+	long dropped = this.dropped.get();
+	if (dropped > this.droppedReported) {
+	    this.batch.append("(" + (dropped - this.droppedReported)
+			      + " log events dropped)" + System.lineSeparator());
+	    this.droppedReported = dropped;
+	}
+	if (this.batch.length() > 0) {
+	    print();
+	    this.out.flush();
+	}
+	this.written = seq;
+	return count;
+    }
+
+    /**
+     * Writes out and empties the batch.
+     */
+    private void print() {
+	this.out.append(this.batch);
+	this.batch.setLength(0);
+    }
+
+    /**
+     * Waits until every event logged so far has been written and flushed.
+     * Returns at once if no event was ever let through.
+     */
+    public void flush() {
+	long target = this.tail.get();
+	while (this.written < target && this.writer != null
+	       && this.writer.isAlive()) {
+	    LockSupport.parkNanos(IDLE_WAIT / 10);
+	}
+    }
+
+    /**
+     * Writes every event logged so far and stops the writer thread. Later
+     * events are dropped. The underlying writer is flushed, not closed.
+     */
+    public void close() {
+	this.closed = true;
+	Thread writer = this.writer;
+	if (writer != null) {
+	    boolean interrupted = false;
+	    while (writer.isAlive()) {
+		try {
+		    writer.join();
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		}
+	    }
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	this.out.flush();
+    }
+
+    // region getters
+
+    /**
+     * Returns the number of events dropped because the ring was full or the
+     * log closed.
+     */
+    public long getDropped() {
+	return this.dropped.get();
+    }
+
+    /**
+     * Returns the most detailed level let through.
+     */
+    public LogLevel getLevel() {
+	return this.level;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param level
+     *            most detailed level let through from now on
+     */
+    public void setLevel(LogLevel level) {
+	this.level = level;
+    }
+
+    // endregion setters
+}
@@ -0,0 +1,113 @@
+/**
+ * FileSink.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Writes the payload of every delivered DATA message to a file with
+ * positional {@link FileChannel} writes, straight from the buffer the message
+ * was decoded in. <br>
+ * The file is grown ahead of the data, {@link #PREALLOCATE} bytes at a time
+ * or to the expected size if one is given, so the file system is not asked
+ * to extend it on every write. {@link #close()} trims it to the bytes
+ * actually written.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class FileSink implements DeliverySink {
+
+    // region fields
+    /**
+     * Bytes the file is grown by when a write would pass its end.
+     */
+    public static final long	PREALLOCATE	= 64L << 20;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel	channel;
+
+    private long		allocated;
+
+    private long		position	= 0;
+    // endregion fields
+
+    /**
+     * Creates or truncates 'path'.
+     *
+     * @param path
+     *            file receiving the data
+     * @param expectedSize
+     *            bytes the transfer is expected to carry, or 0 if unknown
+     * @throws IOException
+     */
+    public FileSink(Path path, long expectedSize) throws IOException {
+	this.file = new RandomAccessFile(path.toFile(), "rw");
+	this.channel = this.file.getChannel();
+	this.allocated = Math.max(expectedSize, 0);
+	this.file.setLength(this.allocated);
+    }
+
+    /**
+     * Writes the payload of 'message' after the data written so far. Only
+     * DATA messages carry file data; the END message is ignored. The
+     * message buffer's position and limit are restored afterwards.
+     *
+     * @param message
+     *            the next message in order
+     * @throws IOException
+     */
+    public void deliver(MessageView message) throws IOException {
+	if (message.getOpCode() != ReliableTransportMessage.DATA) {
+	    return;
+	}
+
+	int length = message.getPayloadLength();
+	if (this.position + length > this.allocated) {
+	    this.allocated = this.position + length + PREALLOCATE;
+	    this.file.setLength(this.allocated);
+	}
+
+	ByteBuffer buffer = message.getBuffer();
+	int position = buffer.position();
+	int limit = buffer.limit();
+	buffer.limit(message.getPayloadOffset() + length);
+	buffer.position(message.getPayloadOffset());
+	try {
+	    while (buffer.hasRemaining()) {
+		this.position += this.channel.write(buffer, this.position);
+	    }
+	} finally {
+	    buffer.limit(limit);
+	    buffer.position(position);
+	}
+    }
+
+    /**
+     * Trims the file to the bytes written and closes it.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+	this.channel.truncate(this.position);
+	this.file.close();
+    }
+
+    // region getters
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getPosition() {
+	return this.position;
+    }
+
+    // endregion getters
+}
@@ -0,0 +1,383 @@
+/**
+ * ImpairmentProfile.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a simulated or relayed link mistreats the datagrams crossing it:
+ * limited bandwidth and queue, fixed delay plus random jitter, and random
+ * loss, duplication, reordering and corruption. The defaults describe a
+ * perfect link. <br>
+ * Settings can be given on the command line as <code>--name=value</code>,
+ * e.g. <code>--loss=2 --delay=20 --bandwidth=100</code>. Times are in
+ * milliseconds (fractions allowed), rates in percent, bandwidth in megabits
+ * per second and the queue in bytes. <code>--profile=name</code> starts
+ * from one of the named {@link #PROFILES}, which later options adjust.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class ImpairmentProfile {
+
+    // region fields
+    /**
+     * Names of the options {@link #set(String, String)} understands.
+     */
+    public static final String[] OPTIONS = { "profile", "bandwidth", "queue",
+					     "delay", "jitter", "loss",
+					     "duplicate", "reorder",
+					     "reorder-depth", "corrupt" };
+
+    /**
+     * Names of the profiles {@link #forName(String)} knows, from best to
+     * worst. They stand in for the reliable, semi-reliable and unreliable
+     * ports of the course relay.
+     */
+    public static final String[] PROFILES = { "perfect", "reliable",
+					      "semi-reliable", "unreliable" };
+
+    private long		bandwidth	= 0;
+
+    private long		queueLimit	= 0;
+
+    private long		delay		= 0;
+
+    private long		jitter		= 0;
+
+    private double		loss		= 0;
+
+    private double		duplicate	= 0;
+
+    private double		reorder		= 0;
+
+    private int			reorderDepth	= 1;
+
+    private double		corrupt		= 0;
+    // endregion fields
+
+    /**
+     * Returns a new profile with the settings of the named profile:
+     * <ul>
+     * <li>perfect: no impairments at all</li>
+     * <li>reliable: 1 ms of delay, nothing lost</li>
+     * <li>semi-reliable: 5 ms of delay and 1 ms of jitter; 1% lost, 1%
+     * corrupted and 1% reordered by 2</li>
+     * <li>unreliable: 10 ms of delay and 5 ms of jitter; 5% lost, 3%
+     * corrupted, 1% duplicated and 5% reordered by 3</li>
+     * </ul>
+     *
+     * @param name
+     *            one of the {@link #PROFILES}
+     * @return the profile, which the caller may change
+     * @throws IllegalArgumentException
+     *             if there is no profile called 'name'
+     */
+    public static ImpairmentProfile forName(String name)
+	throws IllegalArgumentException {
+	ImpairmentProfile profile = new ImpairmentProfile();
+	if (name.equals("perfect")) {
+	    return profile;
+	} else if (name.equals("reliable")) {
+	    profile.set("delay", "1");
+	} else if (name.equals("semi-reliable")) {
+	    profile.set("delay", "5");
+	    profile.set("jitter", "1");
+	    profile.set("loss", "1");
+	    profile.set("corrupt", "1");
+	    profile.set("reorder", "1");
+	    profile.set("reorder-depth", "2");
+	} else if (name.equals("unreliable")) {
+	    profile.set("delay", "10");
+	    profile.set("jitter", "5");
+	    profile.set("loss", "5");
+	    profile.set("corrupt", "3");
+	    profile.set("duplicate", "1");
+	    profile.set("reorder", "5");
+	    profile.set("reorder-depth", "3");
+	} else {
+	    throw new IllegalArgumentException("Unknown profile: " + name);
+	}
+	return profile;
+    }
+
+    /**
+     * Returns true if 'name' is one of the {@link #OPTIONS}.
+     *
+     * @param name
+     *            option name, without the leading dashes
+     */
+    public static boolean isOption(String name) {
+	for (String option : OPTIONS) {
+	    if (option.equals(name)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Sets the option called 'name' from its string form.
+     *
+     * @param name
+     *            option name, without the leading dashes
+     * @param value
+     *            option value
+     * @throws IllegalArgumentException
+     *             if the option is unknown or the value is invalid
+     */
+    public void set(String name, String value) throws IllegalArgumentException {
+	if (name.equals("profile")) {
+	    copy(forName(value));
+	} else if (name.equals("bandwidth")) {
+	    setBandwidth((long) (Double.parseDouble(value) * 1000000));
+	} else if (name.equals("queue")) {
+	    setQueueLimit(Long.parseLong(value));
+	} else if (name.equals("delay")) {
+	    setDelay(millisToNanos(value));
+	} else if (name.equals("jitter")) {
+	    setJitter(millisToNanos(value));
+	} else if (name.equals("loss")) {
+	    setLoss(Double.parseDouble(value) / 100);
+	} else if (name.equals("duplicate")) {
+	    setDuplicate(Double.parseDouble(value) / 100);
+	} else if (name.equals("reorder")) {
+	    setReorder(Double.parseDouble(value) / 100);
+	} else if (name.equals("reorder-depth")) {
+	    setReorderDepth(Integer.parseInt(value));
+	} else if (name.equals("corrupt")) {
+	    setCorrupt(Double.parseDouble(value) / 100);
+	} else {
+	    throw new IllegalArgumentException("Unknown impairment: " + name);
+	}
+    }
+
+    /**
+     * Replaces every setting with those of 'other'.
+     */
+    private void copy(ImpairmentProfile other) {
+	this.bandwidth = other.bandwidth;
+	this.queueLimit = other.queueLimit;
+	this.delay = other.delay;
+	this.jitter = other.jitter;
+	this.loss = other.loss;
+	this.duplicate = other.duplicate;
+	this.reorder = other.reorder;
+	this.reorderDepth = other.reorderDepth;
+	this.corrupt = other.corrupt;
+    }
+
+    private static long millisToNanos(String millis) {
+	return (long) (Double.parseDouble(millis) * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if 'rate' is not a probability
+     */
+    private static double checkRate(String name, double rate)
+	throws IllegalArgumentException {
+	if (rate < 0 || rate > 1) {
+	    throw new IllegalArgumentException(name + " must be 0-100%, got "
+					       + rate * 100 + "%");
+	}
+	return rate;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if 'value' is negative
+     */
+    private static long checkNotNegative(String name, long value)
+	throws IllegalArgumentException {
+	if (value < 0) {
+	    throw new IllegalArgumentException(name + " must not be negative, got "
+					       + value);
+	}
+	return value;
+    }
+
+    /**
+     * Returns the nanoseconds 'length' bytes take to serialize onto the link,
+     * 0 if bandwidth is unlimited.
+     *
+     * @param length
+     *            number of bytes
+     */
+    public long getTransmissionTime(long length) {
+	if (this.bandwidth == 0) {
+	    return 0;
+	}
+	return length * 8L * TimeUnit.SECONDS.toNanos(1) / this.bandwidth;
+    }
+
+    // region getters
+
+    /**
+     * Returns the link rate in bits per second, 0 for unlimited.
+     */
+    public long getBandwidth() {
+	return this.bandwidth;
+    }
+
+    /**
+     * Returns the probability that a datagram has a bit flipped.
+     */
+    public double getCorrupt() {
+	return this.corrupt;
+    }
+
+    /**
+     * Returns the fixed one-way delay in nanoseconds.
+     */
+    public long getDelay() {
+	return this.delay;
+    }
+
+    /**
+     * Returns the probability that a datagram is delivered twice.
+     */
+    public double getDuplicate() {
+	return this.duplicate;
+    }
+
+    /**
+     * Returns the largest random delay added on top of {@link #getDelay()},
+     * in nanoseconds.
+     */
+    public long getJitter() {
+	return this.jitter;
+    }
+
+    /**
+     * Returns the probability that a datagram is dropped.
+     */
+    public double getLoss() {
+	return this.loss;
+    }
+
+    /**
+     * Returns the most bytes that may wait for the link before new datagrams
+     * are dropped, 0 for unlimited. Only matters with limited bandwidth.
+     */
+    public long getQueueLimit() {
+	return this.queueLimit;
+    }
+
+    /**
+     * Returns the probability that a datagram is held back.
+     */
+    public double getReorder() {
+	return this.reorder;
+    }
+
+    /**
+     * Returns how many later datagrams overtake one that is held back.
+     */
+    public int getReorderDepth() {
+	return this.reorderDepth;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param bandwidth
+     *            link rate in bits per second, 0 for unlimited
+     * @throws IllegalArgumentException
+     *             if 'bandwidth' is negative
+     */
+    public void setBandwidth(long bandwidth) throws IllegalArgumentException {
+	this.bandwidth = checkNotNegative("bandwidth", bandwidth);
+    }
+
+    /**
+     * @param corrupt
+     *            probability that a datagram has a bit flipped
+     * @throws IllegalArgumentException
+     *             if 'corrupt' is not between 0 and 1
+     */
+    public void setCorrupt(double corrupt) throws IllegalArgumentException {
+	this.corrupt = checkRate("corrupt", corrupt);
+    }
+
+    /**
+     * @param delay
+     *            fixed one-way delay in nanoseconds
+     * @throws IllegalArgumentException
+     *             if 'delay' is negative
+     */
+    public void setDelay(long delay) throws IllegalArgumentException {
+	this.delay = checkNotNegative("delay", delay);
+    }
+
+    /**
+     * @param duplicate
+     *            probability that a datagram is delivered twice
+     * @throws IllegalArgumentException
+     *             if 'duplicate' is not between 0 and 1
+     */
+    public void setDuplicate(double duplicate) throws IllegalArgumentException {
+	this.duplicate = checkRate("duplicate", duplicate);
+    }
+
+    /**
+     * @param jitter
+     *            largest random extra delay in nanoseconds
+     * @throws IllegalArgumentException
+     *             if 'jitter' is negative
+     */
+    public void setJitter(long jitter) throws IllegalArgumentException {
+	this.jitter = checkNotNegative("jitter", jitter);
+    }
+
+    /**
+     * @param loss
+     *            probability that a datagram is dropped
+     * @throws IllegalArgumentException
+     *             if 'loss' is not between 0 and 1
+     */
+    public void setLoss(double loss) throws IllegalArgumentException {
+	this.loss = checkRate("loss", loss);
+    }
+
+    /**
+     * @param queueLimit
+     *            most bytes that may wait for the link, 0 for unlimited
+     * @throws IllegalArgumentException
+     *             if 'queueLimit' is negative
+     */
+    public void setQueueLimit(long queueLimit) throws IllegalArgumentException {
+	this.queueLimit = checkNotNegative("queue", queueLimit);
+    }
+
+    /**
+     * @param reorder
+     *            probability that a datagram is held back until
+     *            {@link #getReorderDepth()} later ones have passed it
+     * @throws IllegalArgumentException
+     *             if 'reorder' is not between 0 and 1
+     */
+    public void setReorder(double reorder) throws IllegalArgumentException {
+	this.reorder = checkRate("reorder", reorder);
+    }
+
+    /**
+     * @param reorderDepth
+     *            how many later datagrams overtake one that is held back
+     * @throws IllegalArgumentException
+     *             if 'reorderDepth' is less than 1
+     */
+    public void setReorderDepth(int reorderDepth) throws IllegalArgumentException {
+	if (reorderDepth < 1) {
+	    throw new IllegalArgumentException("reorder depth must be at least 1, got "
+					       + reorderDepth);
+	}
+	this.reorderDepth = reorderDepth;
+    }
+
+    // endregion setters
+}
@@ -0,0 +1,164 @@
+/**
+ * LatencyHistogram.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets, the layout HdrHistogram uses:
+ * values below {@value #SUB_BUCKETS} ns get a bucket each, and every power
+ * of two above that is split into {@value #SUB_BUCKETS}/2 equal buckets, so
+ * a percentile is never off by more than 1/64 (about 1.6%) of its value.
+ * <br>
+ * Unlike a {@link LatencyRecorder} the memory is fixed, about 19 KB, however
+ * many values are recorded, and recording is a few atomic increments, so a
+ * transfer can record into it from one thread while another reads it.
+ * Values above {@link #MAX_TRACKABLE} are counted as that.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class LatencyHistogram {
+
+    // region fields
+    /**
+     * Largest value told apart from larger ones, in nanoseconds.
+     */
+    public static final long	MAX_TRACKABLE	= TimeUnit.HOURS.toNanos(1);
+
+    private static final int	SUB_BITS	= 7;
+
+    private static final int	SUB_BUCKETS	= 1 << SUB_BITS;
+
+    private static final int	HALF		= SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts =
+	new AtomicLongArray(indexOf(MAX_TRACKABLE) + 1);
+
+    private final AtomicLong	count		= new AtomicLong();
+
+    private final AtomicLong	sum		= new AtomicLong();
+
+    private final AtomicLong	max		= new AtomicLong();
+    // endregion fields
+
+    /**
+     * Adds one value.
+     *
+     * @param nanos
+     *            latency in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+	long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE);
+	this.counts.incrementAndGet(indexOf(value));
+	this.count.incrementAndGet();
+	this.sum.addAndGet(value);
+	long seen = this.max.get();
+	while (value > seen && !this.max.compareAndSet(seen, value)) {
+	    seen = this.max.get();
+	}
+    }
+
+    /**
+     * Forgets every value. Values recorded while this runs may be partly
+     * kept.
+     */
+    public void clear() {
+	for (int i = 0; i < this.counts.length(); i++) {
+	    this.counts.set(i, 0);
+	}
+	this.count.set(0);
+	this.sum.set(0);
+	this.max.set(0);
+    }
+
+    /**
+     * Returns the value that 'fraction' of all values are at or below, as
+     * the largest value its bucket holds (never more than the largest value
+     * recorded).
+     *
+     * @param fraction
+     *            0 (the smallest) to 1 (the largest)
+     * @return the percentile in nanoseconds, 0 if nothing was recorded
+     * @throws IllegalArgumentException
+     *             if 'fraction' is not between 0 and 1
+     */
+    public long getPercentile(double fraction) throws IllegalArgumentException {
+	if (fraction < 0 || fraction > 1) {
+	    throw new IllegalArgumentException("fraction must be 0-1, got "
+					       + fraction);
+	}
+
+	//total the buckets rather than trust 'count', which may be ahead
+	long total = 0;
+	for (int i = 0; i < this.counts.length(); i++) {
+	    total += this.counts.get(i);
+	}
+	if (total == 0) {
+	    return 0;
+	}
+
+	long rank = Math.max((long) Math.ceil(fraction * total), 1);
+	long seen = 0;
+	for (int i = 0; i < this.counts.length(); i++) {
+	    seen += this.counts.get(i);
+	    if (seen >= rank) {
+		return Math.min(highestIn(i), getMax());
+	    }
+	}
+	return getMax();
+    }
+
+    /**
+     * Returns the bucket 'value' is counted in.
+     */
+    private static int indexOf(long value) {
+	if (value < SUB_BUCKETS) {
+	    return (int) value;
+	}
+	int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+	return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * Returns the largest value counted in bucket 'index'.
+     */
+    private static long highestIn(int index) {
+	if (index < SUB_BUCKETS) {
+	    return index;
+	}
+	int shift = (index - SUB_BUCKETS) / HALF + 1;
+	long sub = (index - SUB_BUCKETS) % HALF + HALF;
+	return ((sub + 1) << shift) - 1;
+    }
+
+    // region getters
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+	return this.count.get();
+    }
+
+    /**
+     * Returns the largest value recorded in nanoseconds, 0 if none.
+     */
+    public long getMax() {
+	return this.max.get();
+    }
+
+    /**
+     * Returns the mean value in nanoseconds, 0 if none.
+     */
+    public double getMean() {
+	long count = this.count.get();
+	return count == 0 ? 0 : (double) this.sum.get() / count;
+    }
+
+    // endregion getters
+}
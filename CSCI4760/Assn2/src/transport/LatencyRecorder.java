@@ -0,0 +1,104 @@
+/**
+ * LatencyRecorder.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples and reports exact percentiles over them. <br>
+ * Samples are kept in a growing array, 8 bytes each, and sorted only when a
+ * statistic is asked for, so recording costs an array store and allocates
+ * only when the array doubles.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class LatencyRecorder {
+
+    // region fields
+    private long[]		samples		= new long[1024];
+
+    private int			count		= 0;
+
+    private boolean		sorted		= true;
+
+    private long		sum		= 0;
+    // endregion fields
+
+    /**
+     * Adds one sample.
+     *
+     * @param nanos
+     *            latency in nanoseconds
+     */
+    public void record(long nanos) {
+	if (this.count == this.samples.length) {
+	    this.samples = Arrays.copyOf(this.samples, this.count * 2);
+	}
+	this.samples[this.count++] = nanos;
+	this.sum += nanos;
+	this.sorted = false;
+    }
+
+    /**
+     * Forgets every sample.
+     */
+    public void clear() {
+	this.count = 0;
+	this.sum = 0;
+	this.sorted = true;
+    }
+
+    /**
+     * Returns the sample that 'fraction' of all samples are at or below
+     * (nearest rank), e.g. 0.99 for the 99th percentile.
+     *
+     * @param fraction
+     *            0 (the smallest) to 1 (the largest)
+     * @return the percentile in nanoseconds, 0 if there are no samples
+     * @throws IllegalArgumentException
+     *             if 'fraction' is not between 0 and 1
+     */
+    public long getPercentile(double fraction) throws IllegalArgumentException {
+	if (fraction < 0 || fraction > 1) {
+	    throw new IllegalArgumentException("fraction must be 0-1, got "
+					       + fraction);
+	}
+	if (this.count == 0) {
+	    return 0;
+	}
+	if (!this.sorted) {
+	    Arrays.sort(this.samples, 0, this.count);
+	    this.sorted = true;
+	}
+	int rank = (int) Math.ceil(fraction * this.count);
+	return this.samples[Math.max(rank, 1) - 1];
+    }
+
+    // region getters
+
+    /**
+     * Returns the number of samples.
+     */
+    public int getCount() {
+	return this.count;
+    }
+
+    /**
+     * Returns the largest sample in nanoseconds, 0 if there are none.
+     */
+    public long getMax() {
+	return getPercentile(1);
+    }
+
+    /**
+     * Returns the mean sample in nanoseconds, 0 if there are none.
+     */
+    public double getMean() {
+	return this.count == 0 ? 0 : (double) this.sum / this.count;
+    }
+
+    // endregion getters
+}
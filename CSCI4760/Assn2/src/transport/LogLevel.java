@@ -0,0 +1,64 @@
+/**
+ * LogLevel.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+/**
+ * How much an {@link EventLog} lets through, from nothing to every packet's
+ * details. Each level includes the ones before it.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public enum LogLevel {
+
+    /**
+     * Nothing is logged.
+     */
+    OFF,
+
+    /**
+     * Damaged and rejected packets.
+     */
+    ERROR,
+
+    /**
+     * Resends, give-ups and session events such as the handshake and close.
+     */
+    INFO,
+
+    /**
+     * Everything, including each packet's ACK, checksum and sequence
+     * checks, socket details and timeouts.
+     */
+    DEBUG;
+
+    /**
+     * Looks up a level by name.
+     *
+     * @param name
+     *            name of the level, case insensitive
+     * @return the matching level
+     * @throws IllegalArgumentException
+     *             if no level has that name
+     */
+    public static LogLevel forName(String name) throws IllegalArgumentException {
+	for (LogLevel level : values()) {
+	    if (level.name().equalsIgnoreCase(name)) {
+		return level;
+	    }
+	}
+	throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    /**
+     * Returns true if a log set to this level lets 'level' through.
+     *
+     * @param level
+     *            level of an event; never {@link #OFF}
+     */
+    public boolean includes(LogLevel level) {
+	return level.ordinal() <= ordinal();
+    }
+}
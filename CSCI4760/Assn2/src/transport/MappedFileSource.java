@@ -0,0 +1,143 @@
+/**
+ * MappedFileSource.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file as a series of payloads sliced straight out of a memory
+ * mapping, so the bytes are never decoded to characters or copied before
+ * they are encoded into a packet. <br>
+ * A single mapping is limited to 2 GB, so the file is mapped a region of at
+ * most {@link #REGION_SIZE} bytes at a time. A payload never straddles two
+ * regions: the next region is mapped from the start of the first payload
+ * that does not fit in the current one. <br>
+ * {@link #next()} returns the same buffer every time, moved over the next
+ * payload, so reading allocates nothing except when a new region is mapped.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class MappedFileSource {
+
+    // region fields
+    /**
+     * Largest part of the file mapped at once.
+     */
+    public static final int	REGION_SIZE	= 1 << 28;
+
+    private final FileChannel	channel;
+
+    private final long		size;
+
+    private final int		payloadSize;
+
+    private final int		regionSize;
+
+    private MappedByteBuffer	region		= null;
+
+    private long		regionStart	= 0;
+
+    private long		position	= 0;
+    // endregion fields
+
+    /**
+     * Opens 'path' for reading.
+     *
+     * @param path
+     *            file to send
+     * @param payloadSize
+     *            largest number of bytes {@link #next()} returns
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if 'payloadSize' is less than 1 or more than
+     *             {@link #REGION_SIZE}
+     */
+    public MappedFileSource(Path path, int payloadSize) throws IOException,
+							   IllegalArgumentException {
+	this(path, payloadSize, REGION_SIZE);
+    }
+
+    /**
+     * Opens 'path' for reading, mapping at most 'regionSize' bytes at a
+     * time. For tests.
+     */
+    MappedFileSource(Path path, int payloadSize, int regionSize)
+	throws IOException, IllegalArgumentException {
+	if (payloadSize < 1 || payloadSize > regionSize) {
+	    throw new IllegalArgumentException("payload must be 1-" + regionSize
+					       + " bytes, got " + payloadSize);
+	}
+	this.channel = FileChannel.open(path, StandardOpenOption.READ);
+	this.size = this.channel.size();
+	this.payloadSize = payloadSize;
+	this.regionSize = regionSize;
+    }
+
+    /**
+     * Returns the next payload: up to the payload size, shorter only at the
+     * end of the file. The buffer is valid until the next call and must not
+     * be written to.
+     *
+     * @return the payload between the buffer's position and limit, or null
+     *         at the end of the file
+     * @throws IOException
+     */
+    public ByteBuffer next() throws IOException {
+	if (this.position >= this.size) {
+	    return null;
+	}
+
+	int length = (int) Math.min(this.payloadSize, this.size - this.position);
+	if (this.region == null
+	    || this.position + length > this.regionStart + this.region.capacity()) {
+	    this.regionStart = this.position;
+	    this.region = this.channel.map(FileChannel.MapMode.READ_ONLY,
+					   this.regionStart,
+					   Math.min(this.regionSize,
+						    this.size - this.regionStart));
+	}
+
+	int offset = (int) (this.position - this.regionStart);
+	this.region.limit(offset + length);
+	this.region.position(offset);
+	this.position += length;
+
+	return this.region;
+    }
+
+    /**
+     * Closes the file. The mappings stay valid until they are collected.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+	this.region = null;
+	this.channel.close();
+    }
+
+    // region getters
+
+    /**
+     * Returns the number of bytes returned so far.
+     */
+    public long getPosition() {
+	return this.position;
+    }
+
+    /**
+     * Returns the size of the file in bytes.
+     */
+    public long getSize() {
+	return this.size;
+    }
+
+    // endregion getters
+}
@@ -0,0 +1,410 @@
+/**
+ * MessageView.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable, allocation-free view of one transport message. <br>
+ * {@link #decode(ByteBuffer)} parses a received datagram in place: the header
+ * fields are copied into this view and the payload is left where it is in the
+ * datagram buffer. {@link #encode(WireCodec, ByteBuffer, ByteBuffer)} writes
+ * the header fields set on this view, plus a payload, into a caller-supplied
+ * buffer. Neither allocates, so a sender or receiver can keep one view per
+ * direction and reuse it for every packet. <br>
+ * Problems are reported as result codes rather than exceptions.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class MessageView {
+
+    // region fields
+    /**
+     * Decode result: the datagram is intact.
+     */
+    public static final int	OK		= 0;
+
+    /**
+     * Decode result: the datagram is shorter than its format requires.
+     */
+    public static final int	TRUNCATED	= 1;
+
+    /**
+     * Decode result: the datagram is in an unknown format or version.
+     */
+    public static final int	BAD_VERSION	= 2;
+
+    /**
+     * Decode result: a header field could not be parsed.
+     */
+    public static final int	BAD_FIELD	= 3;
+
+    /**
+     * Decode result: the checksum does not match the contents.
+     */
+    public static final int	BAD_CHECKSUM	= 4;
+
+    /**
+     * Longest address any codec carries (IPv6).
+     */
+    public static final int	MAX_ADDRESS_LEN	= 16;
+
+    private static final Charset PAYLOAD_CHARSET = Charset.forName("ISO-8859-1");
+
+    private char		opCode;
+
+    private int			sequenceNo;
+
+    private int			srcPort;
+
+    private int			destPort;
+
+    private final byte[]	srcAddress	= new byte[MAX_ADDRESS_LEN];
+
+    private int			srcAddressLength;
+
+    private final byte[]	destAddress	= new byte[MAX_ADDRESS_LEN];
+
+    private int			destAddressLength;
+
+    private ByteBuffer		buffer		= null;
+
+    private int			datagramOffset;
+
+    private int			datagramLength;
+
+    private int			payloadOffset;
+
+    private int			payloadLength;
+
+    private WireCodec		codec		= null;
+    // endregion fields
+
+    /**
+     * Returns a short description of a decode result code, for logging.
+     *
+     * @param result
+     *            one of the decode result codes
+     * @return its name
+     */
+    public static String describe(int result) {
+	switch (result) {
+	case OK:
+	    return "OK";
+	case TRUNCATED:
+	    return "TRUNCATED";
+	case BAD_VERSION:
+	    return "BAD_VERSION";
+	case BAD_FIELD:
+	    return "BAD_FIELD";
+	case BAD_CHECKSUM:
+	    return "BAD_CHECKSUM";
+	default:
+	    return "UNKNOWN(" + result + ")";
+	}
+    }
+
+    /**
+     * Parses the datagram between the position and limit of 'datagram', in
+     * whichever format it was sent. The buffer's position and limit are not
+     * changed, and the view refers to it until the next decode.
+     *
+     * @param datagram
+     *            received datagram
+     * @return {@link #OK} or one of the failure codes
+     */
+    public int decode(ByteBuffer datagram) {
+	return WireCodecs.detect(datagram).decode(datagram, this);
+    }
+
+    /**
+     * Writes the header fields of this view and the bytes between the
+     * position and limit of 'payload' into 'destination', starting at its
+     * position. 'payload' is not consumed; the position of 'destination' is
+     * advanced past the datagram.
+     *
+     * @param codec
+     *            format to write
+     * @param payload
+     *            message body
+     * @param destination
+     *            buffer receiving the datagram
+     * @throws IllegalArgumentException
+     *             if a field cannot be represented by 'codec'
+     */
+    public void encode(WireCodec codec, ByteBuffer payload, ByteBuffer destination)
+	throws IllegalArgumentException {
+	codec.encode(this, payload, destination);
+    }
+
+    /**
+     * Copies the header fields of 'message' into this view. Allocates, so
+     * meant for setting up a template once rather than per packet.
+     *
+     * @param message
+     *            the message to copy
+     */
+    public void setHeader(ReliableTransportMessage message) {
+	setSourceAddress(message.getSourceIP());
+	setDestAddress(message.getDestIP());
+	setSrcPort(message.getSrcPort());
+	setDestPort(message.getDestPort());
+	setOpCode(message.getOpCode());
+	setSequenceNo(message.getSequenceNo());
+    }
+
+    /**
+     * Builds a {@link ReliableTransportMessage} from the decoded fields and
+     * payload. Allocates; meant for callers that want the object API.
+     *
+     * @return the message, or null if an address is invalid
+     */
+    public ReliableTransportMessage toMessage() {
+	try {
+	    InetAddress srcIP = InetAddress.getByAddress(copyOf(this.srcAddress,
+								this.srcAddressLength));
+	    InetAddress destIP = InetAddress.getByAddress(copyOf(this.destAddress,
+								 this.destAddressLength));
+	    byte[] payloadBytes = new byte[this.payloadLength];
+	    for (int i = 0; i < payloadBytes.length; i++) {
+		payloadBytes[i] = this.buffer.get(this.payloadOffset + i);
+	    }
+	    String payload = new String(payloadBytes, PAYLOAD_CHARSET);
+	    return new ReliableTransportMessage(srcIP, destIP, this.srcPort,
+						this.destPort, this.opCode,
+						this.sequenceNo, payload);
+	} catch (UnknownHostException uhe) {
+	    return null;
+	}
+    }
+
+    private static byte[] copyOf(byte[] source, int length) {
+	byte[] copy = new byte[length];
+	System.arraycopy(source, 0, copy, 0, length);
+	return copy;
+    }
+
+    // region getters
+
+    /**
+     * Returns the buffer the view was last decoded from.
+     */
+    public ByteBuffer getBuffer() {
+	return this.buffer;
+    }
+
+    /**
+     * Returns the codec the view was last decoded with.
+     */
+    public WireCodec getCodec() {
+	return this.codec;
+    }
+
+    /**
+     * Returns the index in {@link #getBuffer()} of the datagram's first byte.
+     */
+    public int getDatagramOffset() {
+	return this.datagramOffset;
+    }
+
+    /**
+     * Returns the length of the decoded datagram.
+     */
+    public int getDatagramLength() {
+	return this.datagramLength;
+    }
+
+    /**
+     * Returns the destination address; only the first
+     * {@link #getDestAddressLength()} bytes are valid. Do not modify.
+     */
+    public byte[] getDestAddress() {
+	return this.destAddress;
+    }
+
+    /**
+     * Returns 4 for an IPv4 destination, 16 for IPv6.
+     */
+    public int getDestAddressLength() {
+	return this.destAddressLength;
+    }
+
+    /**
+     * Returns the destination port number.
+     */
+    public int getDestPort() {
+	return this.destPort;
+    }
+
+    /**
+     * Returns the op code.
+     */
+    public char getOpCode() {
+	return this.opCode;
+    }
+
+    /**
+     * Returns the index in {@link #getBuffer()} of the payload's first byte.
+     */
+    public int getPayloadOffset() {
+	return this.payloadOffset;
+    }
+
+    /**
+     * Returns the payload length in bytes.
+     */
+    public int getPayloadLength() {
+	return this.payloadLength;
+    }
+
+    /**
+     * Returns the sequence number.
+     */
+    public int getSequenceNo() {
+	return this.sequenceNo;
+    }
+
+    /**
+     * Returns the source address; only the first
+     * {@link #getSourceAddressLength()} bytes are valid. Do not modify.
+     */
+    public byte[] getSourceAddress() {
+	return this.srcAddress;
+    }
+
+    /**
+     * Returns 4 for an IPv4 source, 16 for IPv6.
+     */
+    public int getSourceAddressLength() {
+	return this.srcAddressLength;
+    }
+
+    /**
+     * Returns the source port number.
+     */
+    public int getSrcPort() {
+	return this.srcPort;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param address
+     *            destination address, 4 or 16 bytes
+     */
+    public void setDestAddress(byte[] address) {
+	System.arraycopy(address, 0, this.destAddress, 0, address.length);
+	this.destAddressLength = address.length;
+    }
+
+    /**
+     * @param address
+     *            destination address
+     */
+    public void setDestAddress(InetAddress address) {
+	setDestAddress(address.getAddress());
+    }
+
+    /**
+     * @param destPort
+     *            destination port number
+     */
+    public void setDestPort(int destPort) {
+	this.destPort = destPort;
+    }
+
+    /**
+     * @param opCode
+     *            operation code
+     */
+    public void setOpCode(char opCode) {
+	this.opCode = opCode;
+    }
+
+    /**
+     * Records the datagram being decoded. For codecs.
+     *
+     * @param buffer
+     *            buffer holding the datagram
+     * @param codec
+     *            codec decoding it
+     */
+    void setDatagram(ByteBuffer buffer, WireCodec codec) {
+	this.buffer = buffer;
+	this.datagramOffset = buffer.position();
+	this.datagramLength = buffer.remaining();
+	this.codec = codec;
+    }
+
+    /**
+     * Records where the payload lies in the buffer being decoded. For codecs.
+     *
+     * @param offset
+     *            index of the payload's first byte
+     * @param length
+     *            payload length in bytes
+     */
+    void setPayload(int offset, int length) {
+	this.payloadOffset = offset;
+	this.payloadLength = length;
+    }
+
+    /**
+     * @param sequenceNo
+     *            sequence number
+     */
+    public void setSequenceNo(int sequenceNo) {
+	this.sequenceNo = sequenceNo;
+    }
+
+    /**
+     * @param address
+     *            source address, 4 or 16 bytes
+     */
+    public void setSourceAddress(byte[] address) {
+	System.arraycopy(address, 0, this.srcAddress, 0, address.length);
+	this.srcAddressLength = address.length;
+    }
+
+    /**
+     * @param address
+     *            source address
+     */
+    public void setSourceAddress(InetAddress address) {
+	setSourceAddress(address.getAddress());
+    }
+
+    /**
+     * @param srcPort
+     *            source port number
+     */
+    public void setSrcPort(int srcPort) {
+	this.srcPort = srcPort;
+    }
+
+    /**
+     * Sets the length of an address field without copying, for codecs that
+     * parse straight into {@link #getSourceAddress()}.
+     */
+    void setSourceAddressLength(int length) {
+	this.srcAddressLength = length;
+    }
+
+    /**
+     * Sets the length of an address field without copying, for codecs that
+     * parse straight into {@link #getDestAddress()}.
+     */
+    void setDestAddressLength(int length) {
+	this.destAddressLength = length;
+    }
+
+    // endregion setters
+}
@@ -0,0 +1,623 @@
+/**
+ * MultiSessionReceiver.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Receives transfers from many {@link ReliableSender}s at once on a single
+ * non-blocking {@link DatagramChannel} driven by a {@link Selector}. <br>
+ * Packets are demultiplexed into sessions by the source address and port
+ * stamped in their header, which survive the relay. Each session has its own
+ * {@link ReceiverProtocol}, so sequence state, the reassembly window and the
+ * delivery sink are per sender. ACKs are sent from the same event loop and
+ * channel, either back to the address each packet came from or, if an ACK
+ * route is given, to the relay, addressed to the port the sender listens
+ * on. Delayed ACKs are flushed by the same loop, which never sleeps past
+ * the earliest one due. <br>
+ * A session opened with a SYN runs with the settings agreed in answer to
+ * its offer (see {@link SessionParameters}), so senders with different
+ * settings can share the receiver; any other session runs with the
+ * receiver's own settings. <br>
+ * Damaged packets cannot be trusted to name their session, so they are
+ * dropped and the sender's timer recovers them. Sessions that stay idle for
+ * {@link #getIdleTimeout()} are closed. A session whose END has been
+ * delivered is closed once it has been silent for {@link #getLinger()}, so
+ * that a resent END is still answered; a SYN or a first DATA packet from the
+ * same address and port in the meantime starts a new session at once, as
+ * the port has been reused for another transfer.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class MultiSessionReceiver {
+
+    // region fields
+    /**
+     * Default time a session may stay silent before it is dropped (ms).
+     */
+    public static final long	DEFAULT_IDLE_TIMEOUT	= 30000;
+
+    /**
+     * Default time a finished session is kept after its last packet (ms).
+     */
+    public static final long	DEFAULT_LINGER		= 5000;
+
+    /**
+     * Longest the event loop waits in {@link Selector#select(long)} (ms), so
+     * idle sessions are swept even when no packets arrive.
+     */
+    private static final long	SWEEP_INTERVAL		= 1000;
+
+    public static PrintWriter	error			= null;
+
+    private final DatagramChannel channel;
+
+    private final Selector	selector;
+
+    private final SocketAddress	ackRoute;
+
+    private final TransportConfig config;
+
+    private final SessionListener listener;
+
+    private final Map<SessionKey, Session> sessions =
+	new HashMap<SessionKey, Session>();
+
+    private final SessionKey	probe			= new SessionKey();
+
+    private final ByteBuffer	datagramBytes;
+
+    private final ByteBuffer	ackBytes;
+
+    private final MessageView	view			= new MessageView();
+
+    private final EventLog	errorLog;
+
+    private final TransportMetrics metrics		= new TransportMetrics("receiver");
+
+    private long		idleTimeout		= DEFAULT_IDLE_TIMEOUT;
+
+    private long		linger			= DEFAULT_LINGER;
+
+    private long		lastSweep		= System.nanoTime();
+
+    private long		dropped			= 0;
+
+    private volatile boolean	running			= false;
+    // endregion fields
+
+    /**
+     * Binds the receiving channel.
+     *
+     * @param bindAddress
+     *            local address and port to receive data on
+     * @param ackRoute
+     *            where every ACK is sent (the relay), or null to answer each
+     *            packet at the address it came from
+     * @param config
+     *            settings every sender must share
+     * @param listener
+     *            told about sessions starting and ending
+     * @throws IOException
+     *             if the channel cannot be opened or bound
+     */
+    public MultiSessionReceiver(SocketAddress bindAddress,
+				SocketAddress ackRoute, TransportConfig config,
+				SessionListener listener) throws IOException {
+	config.validate();
+	this.config = config;
+	this.ackRoute = ackRoute;
+	this.listener = listener;
+	this.errorLog = error != null
+	    ? new EventLog(error, config.getLogLevel())
+	    : new EventLog(new PrintWriter(Writer.nullWriter()), LogLevel.OFF);
+
+	this.datagramBytes = ByteBuffer.allocate(TransportConfig.MAX_DATAGRAM_LEN);
+	//a session may agree on any codec
+	this.ackBytes = ByteBuffer.allocate(TransportConfig.MAX_DATAGRAM_LEN);
+
+	this.selector = Selector.open();
+	this.channel = DatagramChannel.open();
+	this.channel.configureBlocking(false);
+	this.channel.socket().bind(bindAddress);
+	this.channel.register(this.selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Receives every sender's transfer into its own file,
+     * <code>rcv_&lt;address&gt;_&lt;port&gt;_&lt;n&gt;.txt</code> for the
+     * n-th session started, until killed.
+     *
+     * @param args
+     *            transfer settings, e.g. --mode=sr --window=16
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+	error = new PrintWriter(new File("rcv_error_out.txt"));
+
+	TransportConfig config = TransportConfig.parse(args);
+	MultiSessionReceiver receiver =
+	    new MultiSessionReceiver(new InetSocketAddress(InetAddress.getByName(config.getLocal()),
+							   ReliableReceiver.DATA_RECEIVE_PORT),
+				     new InetSocketAddress(InetAddress.getByName(config.getRelay()),
+							   config.getRelayPort()),
+				     config, new FileSessionListener());
+	receiver.getMetrics().publish(config);
+	receiver.run();
+    }
+
+    /**
+     * Runs the event loop until {@link #stop()} is called.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+	this.running = true;
+	while (this.running) {
+	    poll(SWEEP_INTERVAL);
+	}
+    }
+
+    /**
+     * Makes {@link #run()} return. May be called from any thread.
+     */
+    public void stop() {
+	this.running = false;
+	this.selector.wakeup();
+    }
+
+    /**
+     * Waits up to 'timeoutMillis' for packets, handles every packet that has
+     * arrived, sends the delayed ACKs that are due and drops idle sessions.
+     * Returns early if a delayed ACK falls due first.
+     *
+     * @param timeoutMillis
+     *            longest time to wait for the first packet; 0 waits forever
+     * @return number of packets handled
+     * @throws IOException
+     */
+    public int poll(long timeoutMillis) throws IOException {
+	int handled = 0;
+
+	long now = System.nanoTime();
+	long ackDeadline = flushAcks(now);
+	if (ackDeadline != ReceiverProtocol.NO_DEADLINE) {
+	    //round up, or the ACK would be a millisecond early and wait again
+	    long wait = Math.max(1, (ackDeadline - now + 999999) / 1000000);
+	    timeoutMillis = timeoutMillis == 0 ? wait
+		: Math.min(timeoutMillis, wait);
+	}
+
+	if (this.selector.select(timeoutMillis) > 0) {
+	    this.selector.selectedKeys().clear();
+	    SocketAddress from;
+	    while ((from = receiveDatagram()) != null) {
+		onDatagram(from);
+		handled++;
+	    }
+	}
+
+	now = System.nanoTime();
+	flushAcks(now);
+	if (now - this.lastSweep >= SWEEP_INTERVAL * 1000000L) {
+	    sweep(now);
+	    this.lastSweep = now;
+	}
+
+	return handled;
+    }
+
+    /**
+     * Reads one datagram into the receive buffer.
+     *
+     * @return the address it came from, or null if none is waiting
+     */
+    private SocketAddress receiveDatagram() throws IOException {
+	this.datagramBytes.clear();
+	SocketAddress from = this.channel.receive(this.datagramBytes);
+	this.datagramBytes.flip();
+	return from;
+    }
+
+    /**
+     * Finds or starts the session a datagram belongs to and hands the
+     * datagram to its protocol.
+     *
+     * @param from
+     *            address the datagram came from
+     */
+    private void onDatagram(SocketAddress from) throws IOException {
+	int result = this.view.decode(this.datagramBytes);
+	if (result != MessageView.OK) {
+	    this.dropped++;
+	    this.metrics.countReceived();
+	    this.metrics.countChecksumFailure();
+	    if (this.errorLog.isEnabled(LogLevel.ERROR)) {
+		this.errorLog.log(LogLevel.ERROR, "Dropped packet from " + from
+				  + ": ", MessageView.describe(result));
+	    }
+	    return;
+	}
+
+	this.probe.set(this.view);
+	Session session = this.sessions.get(this.probe);
+	if (session != null && session.protocol.isFinished()
+	    && startsSession(this.view)) {
+	    //the sender's port was reused for a new transfer
+	    this.sessions.remove(session.key);
+	    session.end();
+	    session = null;
+	}
+	if (session == null) {
+	    session = new Session(this.probe.copy(), this.view);
+	    this.sessions.put(session.key, session);
+	} else if (this.view.getOpCode() == ReliableTransportMessage.SYN) {
+	    //a path MTU probe may have started the session before the SYN
+	    session.accept(this.view);
+	}
+
+	session.replyTo = from;
+	session.lastHeard = System.nanoTime();
+	session.protocol.onMessage(this.view, true);
+    }
+
+    /**
+     * Returns true if 'message' can only open a transfer: a SYN, or DATA
+     * with the first sequence number.
+     */
+    private static boolean startsSession(MessageView message) {
+	char opCode = message.getOpCode();
+	return opCode == ReliableTransportMessage.SYN
+	    || (opCode == ReliableTransportMessage.DATA
+		&& message.getSequenceNo() == 0);
+    }
+
+    /**
+     * Sends every session's delayed ACK that is due.
+     *
+     * @return the earliest delayed ACK still to come, or
+     *         {@link ReceiverProtocol#NO_DEADLINE} if none is
+     */
+    private long flushAcks(long now) throws IOException {
+	long earliest = ReceiverProtocol.NO_DEADLINE;
+	for (Session session : this.sessions.values()) {
+	    session.protocol.onTimer(now);
+	    earliest = Math.min(earliest, session.protocol.getDeadline());
+	}
+	return earliest;
+    }
+
+    /**
+     * Drops sessions that have been silent for longer than the idle timeout,
+     * or finished ones silent for longer than the linger time.
+     */
+    private void sweep(long now) throws IOException {
+	long idleLimit = this.idleTimeout * 1000000L;
+	long lingerLimit = this.linger * 1000000L;
+	Iterator<Session> it = this.sessions.values().iterator();
+	while (it.hasNext()) {
+	    Session session = it.next();
+	    long limit = session.protocol.isFinished() ? lingerLimit : idleLimit;
+	    if (now - session.lastHeard >= limit) {
+		it.remove();
+		session.end();
+	    }
+	}
+    }
+
+    /**
+     * Ends every open session and closes the channel.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+	for (Session session : this.sessions.values()) {
+	    session.end();
+	}
+	this.sessions.clear();
+	this.selector.close();
+	this.channel.close();
+	this.errorLog.close();
+    }
+
+    // region getters
+
+    /**
+     * Returns the local address the channel is bound to.
+     */
+    public SocketAddress getLocalAddress() {
+	return this.channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Returns the number of damaged or unreadable packets dropped.
+     */
+    public long getDropped() {
+	return this.dropped;
+    }
+
+    /**
+     * Returns the counters of every session together.
+     */
+    public TransportMetrics getMetrics() {
+	return this.metrics;
+    }
+
+    /**
+     * Returns the time a session may stay silent before it is dropped (ms).
+     */
+    public long getIdleTimeout() {
+	return this.idleTimeout;
+    }
+
+    /**
+     * Returns the time a finished session is kept after its last packet, to
+     * answer a resent END (ms).
+     */
+    public long getLinger() {
+	return this.linger;
+    }
+
+    /**
+     * Returns the number of open sessions.
+     */
+    public int getSessionCount() {
+	return this.sessions.size();
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param idleTimeout
+     *            time a session may stay silent before it is dropped (ms)
+     */
+    public void setIdleTimeout(long idleTimeout) {
+	this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @param linger
+     *            time a finished session is kept after its last packet (ms)
+     */
+    public void setLinger(long linger) {
+	this.linger = linger;
+    }
+
+    // endregion setters
+
+    /**
+     * One sender's transfer: its protocol state and where its ACKs go.
+     */
+    private class Session implements PacketSink {
+
+	private final SessionKey	key;
+
+	private final InetAddress	srcIP;
+
+	private final InetAddress	localIP;
+
+	private final DeliverySink	sink;
+
+	private final int		ackPort;
+
+	private ReceiverProtocol	protocol;
+
+	private SessionParameters	handshake	= null;
+
+	private SocketAddress		replyTo;
+
+	private long			lastHeard;
+
+	/**
+	 * Starts a session for the sender of 'first', with the settings agreed
+	 * in answer to it if it is a SYN.
+	 */
+	Session(SessionKey key, MessageView first) throws IOException {
+	    this.key = key;
+	    this.srcIP = key.toInetAddress();
+	    this.localIP =
+		InetAddress.getByAddress(copyOf(first.getDestAddress(),
+						first.getDestAddressLength()));
+	    this.sink = listener.sessionStarted(this.srcIP, key.port);
+	    //a sender on the fixed data port listens for ACKs on the fixed ACK
+	    //port; any other (a SenderEngine session) on the port it sends from
+	    this.ackPort = key.port == ReliableReceiver.DATA_TRANSMIT_PORT
+		? ReliableReceiver.ACK_RECEIVE_PORT : key.port;
+	    this.protocol = newProtocol(config);
+	    if (first.getOpCode() == ReliableTransportMessage.SYN) {
+		accept(first);
+	    }
+	}
+
+	/**
+	 * Settles the session's settings with the offer in 'syn' and rebuilds
+	 * the protocol with them so that it answers the SYN. Ignored once
+	 * settings are agreed or data has arrived, as in
+	 * {@link ReliableReceiver}.
+	 */
+	void accept(MessageView syn) {
+	    if (this.handshake != null || this.protocol.getLastSeqNo() != -1
+		|| this.protocol.isFinished()) {
+		return;
+	    }
+	    SessionParameters offer = new SessionParameters();
+	    if (!offer.decode(syn)) {
+		errorLog.log(LogLevel.ERROR, "Bad session offer");
+		return;
+	    }
+	    SessionParameters answer;
+	    TransportConfig settings;
+	    try {
+		answer = offer.answer(config);
+		settings = answer.apply(config);
+	    } catch (IllegalArgumentException e) {
+		errorLog.log(LogLevel.ERROR, "Bad session offer: ",
+			     e.getMessage());
+		return;
+	    }
+	    this.handshake = answer;
+	    this.protocol = newProtocol(settings);
+	    this.protocol.setHandshake(answer);
+	}
+
+	private ReceiverProtocol newProtocol(TransportConfig settings) {
+	    ReceiverProtocol protocol =
+		new ReceiverProtocol(this, this.sink, this.localIP, this.srcIP,
+				     channel.socket().getLocalPort(),
+				     this.ackPort, settings);
+	    protocol.setMetrics(metrics);
+	    return protocol;
+	}
+
+	public void transmit(byte[] buffer, int offset, int length)
+	    throws IOException {
+	    ackBytes.clear();
+	    ackBytes.put(buffer, offset, length);
+	    ackBytes.flip();
+	    //a full socket buffer drops the ACK like the network would
+	    channel.send(ackBytes, ackRoute != null ? ackRoute : this.replyTo);
+	}
+
+	/**
+	 * Tells the listener the session is over.
+	 */
+	void end() throws IOException {
+	    listener.sessionEnded(this.srcIP, this.key.port,
+				  this.protocol.isFinished());
+	}
+    }
+
+    /**
+     * Writes each session's payload to its own file. The files are numbered
+     * in the order the sessions start, so a sender that reuses a port does
+     * not overwrite the transfer before it.
+     */
+    private static class FileSessionListener implements SessionListener {
+
+	private final Map<String, FileSink> files =
+	    new HashMap<String, FileSink>();
+
+	private final Map<String, String> names = new HashMap<String, String>();
+
+	private int started = 0;
+
+	public DeliverySink sessionStarted(InetAddress srcIP, int srcPort)
+	    throws IOException {
+	    String sender = sender(srcIP, srcPort);
+	    String name = "rcv_" + sender + "_" + (++this.started) + ".txt";
+	    System.out.println("NEW SESSION: " + name);
+	    FileSink out = new FileSink(Paths.get(name), 0);
+	    this.files.put(sender, out);
+	    this.names.put(sender, name);
+
+	    return out;
+	}
+
+	public void sessionEnded(InetAddress srcIP, int srcPort,
+				 boolean finished) throws IOException {
+	    String sender = sender(srcIP, srcPort);
+	    System.out.println("END SESSION: " + this.names.remove(sender)
+			       + (finished ? "" : " (incomplete)"));
+	    FileSink out = this.files.remove(sender);
+	    if (out != null) {
+		out.close();
+	    }
+	}
+
+	/**
+	 * Returns the address and port of a sender, which have at most one
+	 * session open at a time, as a file name part.
+	 */
+	private static String sender(InetAddress srcIP, int srcPort) {
+	    return srcIP.getHostAddress().replace(':', '.') + "_" + srcPort;
+	}
+    }
+
+    private static byte[] copyOf(byte[] source, int length) {
+	byte[] copy = new byte[length];
+	System.arraycopy(source, 0, copy, 0, length);
+	return copy;
+    }
+
+    /**
+     * Source address and port of a session. A single instance is refilled
+     * from each packet to look sessions up without allocating.
+     */
+    private static class SessionKey {
+
+	private final byte[]	address	= new byte[MessageView.MAX_ADDRESS_LEN];
+
+	private int		addressLength;
+
+	private int		port;
+
+	/**
+	 * Refills this key from the source fields of 'message'.
+	 */
+	void set(MessageView message) {
+	    this.addressLength = message.getSourceAddressLength();
+	    System.arraycopy(message.getSourceAddress(), 0, this.address, 0,
+			     this.addressLength);
+	    this.port = message.getSrcPort();
+	}
+
+	SessionKey copy() {
+	    SessionKey copy = new SessionKey();
+	    System.arraycopy(this.address, 0, copy.address, 0, this.addressLength);
+	    copy.addressLength = this.addressLength;
+	    copy.port = this.port;
+	    return copy;
+	}
+
+	InetAddress toInetAddress() throws UnknownHostException {
+	    return InetAddress.getByAddress(copyOf(this.address, this.addressLength));
+	}
+
+	@Override
+	public int hashCode() {
+	    int hash = this.port;
+	    for (int i = 0; i < this.addressLength; i++) {
+		hash = 31 * hash + this.address[i];
+	    }
+	    return hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+	    if (!(other instanceof SessionKey)) {
+		return false;
+	    }
+	    SessionKey key = (SessionKey) other;
+	    if (key.port != this.port || key.addressLength != this.addressLength) {
+		return false;
+	    }
+	    for (int i = 0; i < this.addressLength; i++) {
+		if (key.address[i] != this.address[i]) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+}
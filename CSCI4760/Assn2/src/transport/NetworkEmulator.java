@@ -0,0 +1,356 @@
+/**
+ * NetworkEmulator.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discrete-event network emulator with a virtual clock. <br>
+ * Each {@link Link} is a one-way {@link PacketSink} that copies the datagrams
+ * written to it, impairs them according to an {@link ImpairmentProfile} and
+ * schedules their arrival at another sink. {@link #step(long)} moves the
+ * clock to the next arrival and delivers it, so the protocols run against
+ * {@link #getTime()} instead of the wall clock and a whole transfer takes
+ * only as long as the CPU needs to encode, decode and handle its packets.
+ * <br>
+ * Every random choice comes from one seeded {@link Random}, so the same
+ * seed and the same traffic always give the same run. Datagrams in flight
+ * are pooled, so a steady stream allocates nothing.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class NetworkEmulator {
+
+    // region fields
+    /**
+     * Returned by {@link #getNextEventTime()} when nothing is in flight.
+     */
+    public static final long	NO_EVENT	= Long.MAX_VALUE;
+
+    private final Random	random;
+
+    private final PriorityQueue<Packet> events	=
+	new PriorityQueue<Packet>(64, new Comparator<Packet>() {
+		public int compare(Packet a, Packet b) {
+		    if (a.time != b.time) {
+			return a.time < b.time ? -1 : 1;
+		    }
+		    return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+		}
+	    });
+
+    private final ArrayDeque<Packet> free	= new ArrayDeque<Packet>();
+
+    private long		now		= 0;
+
+    private long		order		= 0;
+    // endregion fields
+
+    /**
+     * Creates an emulator whose clock starts at 0.
+     *
+     * @param seed
+     *            seed of every random choice
+     */
+    public NetworkEmulator(long seed) {
+	this.random = new Random(seed);
+    }
+
+    /**
+     * Creates a one-way link to 'destination'. Datagrams arrive by a call to
+     * {@link PacketSink#transmit(byte[], int, int)} on 'destination' from
+     * inside {@link #step(long)}; the array is reused once that returns.
+     *
+     * @param profile
+     *            how the link treats datagrams; read on every datagram, so
+     *            changes take effect at once
+     * @param destination
+     *            where datagrams arrive
+     * @return the link, to be written to by the sending side
+     */
+    public Link createLink(ImpairmentProfile profile, PacketSink destination) {
+	return new Link(profile, destination);
+    }
+
+    /**
+     * Delivers the next datagram if it arrives no later than 'until', moving
+     * the clock to its arrival time. Otherwise moves the clock to 'until'.
+     *
+     * @param until
+     *            latest time to move the clock to, or {@link #NO_EVENT} to
+     *            deliver the next datagram whenever it arrives
+     * @return true if a datagram was delivered
+     * @throws IOException
+     *             if the destination throws it
+     */
+    public boolean step(long until) throws IOException {
+	Packet packet = this.events.peek();
+	if (packet == null || packet.time > until) {
+	    advanceTo(until);
+	    return false;
+	}
+
+	this.events.poll();
+	this.now = packet.time;
+	Link link = packet.link;
+	if (packet.holding > 0) {
+	    link.held.remove(packet);
+	}
+	link.delivered++;
+	try {
+	    link.destination.transmit(packet.data, 0, packet.length);
+	} finally {
+	    packet.link = null;
+	    this.free.push(packet);
+	}
+	return true;
+    }
+
+    /**
+     * Moves the clock forward to 'time' without delivering anything. Does
+     * nothing if 'time' is {@link #NO_EVENT} or in the past.
+     *
+     * @param time
+     *            the new time in nanoseconds
+     */
+    public void advanceTo(long time) {
+	if (time != NO_EVENT && time > this.now) {
+	    this.now = time;
+	}
+    }
+
+    /**
+     * Takes a packet from the pool, with room for 'length' bytes.
+     */
+    private Packet obtain(int length) {
+	Packet packet = this.free.poll();
+	if (packet == null) {
+	    packet = new Packet();
+	}
+	if (packet.data.length < length) {
+	    packet.data = new byte[length];
+	}
+	return packet;
+    }
+
+    // region getters
+
+    /**
+     * Returns the time of the next arrival, or {@link #NO_EVENT}.
+     */
+    public long getNextEventTime() {
+	Packet packet = this.events.peek();
+	return packet == null ? NO_EVENT : packet.time;
+    }
+
+    /**
+     * Returns the virtual time in nanoseconds.
+     */
+    public long getTime() {
+	return this.now;
+    }
+
+    /**
+     * Returns the number of datagrams in flight on every link.
+     */
+    public int getInFlight() {
+	return this.events.size();
+    }
+
+    // endregion getters
+
+    /**
+     * A datagram in flight.
+     */
+    private static class Packet {
+
+	byte[]	data	= new byte[0];
+
+	int	length;
+
+	long	time;
+
+	long	order;
+
+	int	holding;
+
+	Link	link;
+    }
+
+    /**
+     * One direction of an emulated path. Datagrams queue for the link's
+     * bandwidth, wait out the delay and jitter, and may be dropped,
+     * corrupted, duplicated or held back on the way.
+     */
+    public class Link implements PacketSink {
+
+	private final ImpairmentProfile profile;
+
+	private final PacketSink	destination;
+
+	private final ArrayList<Packet>	held	= new ArrayList<Packet>();
+
+	private long			busyUntil = 0;
+
+	private long			sent	= 0;
+
+	private long			delivered = 0;
+
+	private long			lost	= 0;
+
+	private long			queueDrops = 0;
+
+	private long			corrupted = 0;
+
+	private long			duplicated = 0;
+
+	private long			reordered = 0;
+
+	private Link(ImpairmentProfile profile, PacketSink destination) {
+	    this.profile = profile;
+	    this.destination = destination;
+	}
+
+	/**
+	 * Puts a copy of the datagram on the link at the current time.
+	 */
+	public void transmit(byte[] buffer, int offset, int length) {
+	    this.sent++;
+	    if (random.nextDouble() < this.profile.getLoss()) {
+		this.lost++;
+		return;
+	    }
+
+	    long start = Math.max(now, this.busyUntil);
+	    long transmission = this.profile.getTransmissionTime(length);
+	    if (this.profile.getQueueLimit() > 0
+		&& start - now + transmission
+		> this.profile.getTransmissionTime(this.profile.getQueueLimit())) {
+		//the queue ahead of it, plus itself, would not fit
+		this.queueDrops++;
+		return;
+	    }
+	    this.busyUntil = start + transmission;
+
+	    schedule(buffer, offset, length);
+	    if (random.nextDouble() < this.profile.getDuplicate()) {
+		this.duplicated++;
+		schedule(buffer, offset, length);
+	    }
+	}
+
+	/**
+	 * Copies a datagram that has made it onto the link and schedules its
+	 * arrival.
+	 */
+	private void schedule(byte[] buffer, int offset, int length) {
+	    Packet packet = obtain(length);
+	    System.arraycopy(buffer, offset, packet.data, 0, length);
+	    packet.length = length;
+	    packet.link = this;
+	    packet.holding = 0;
+	    packet.time = this.busyUntil + this.profile.getDelay();
+	    if (this.profile.getJitter() > 0) {
+		packet.time += (long) (random.nextDouble() * this.profile.getJitter());
+	    }
+	    packet.order = order++;
+
+	    if (length > 0 && random.nextDouble() < this.profile.getCorrupt()) {
+		this.corrupted++;
+		packet.data[random.nextInt(length)] ^= 1 << random.nextInt(8);
+	    }
+
+	    release(packet);
+
+	    if (random.nextDouble() < this.profile.getReorder()) {
+		//held until enough later datagrams pass it, or one more delay
+		this.reordered++;
+		packet.holding = this.profile.getReorderDepth();
+		packet.time += Math.max(this.profile.getDelay(), 1);
+		this.held.add(packet);
+	    }
+	    events.add(packet);
+	}
+
+	/**
+	 * Counts 'passing' past every held datagram and lets those that have
+	 * been passed often enough arrive just behind it.
+	 */
+	private void release(Packet passing) {
+	    for (int i = this.held.size() - 1; i >= 0; i--) {
+		Packet packet = this.held.get(i);
+		if (--packet.holding > 0) {
+		    continue;
+		}
+		this.held.remove(i);
+		if (packet.time > passing.time) {
+		    events.remove(packet);
+		    packet.time = passing.time;
+		    packet.order = order++;
+		    events.add(packet);
+		}
+	    }
+	}
+
+	// region getters
+
+	/**
+	 * Returns the number of datagrams that had a bit flipped.
+	 */
+	public long getCorrupted() {
+	    return this.corrupted;
+	}
+
+	/**
+	 * Returns the number of datagrams that arrived, duplicates included.
+	 */
+	public long getDelivered() {
+	    return this.delivered;
+	}
+
+	/**
+	 * Returns the number of datagrams delivered twice.
+	 */
+	public long getDuplicated() {
+	    return this.duplicated;
+	}
+
+	/**
+	 * Returns the number of datagrams dropped at random.
+	 */
+	public long getLost() {
+	    return this.lost;
+	}
+
+	/**
+	 * Returns the number of datagrams dropped because the queue was full.
+	 */
+	public long getQueueDrops() {
+	    return this.queueDrops;
+	}
+
+	/**
+	 * Returns the number of datagrams held back.
+	 */
+	public long getReordered() {
+	    return this.reordered;
+	}
+
+	/**
+	 * Returns the number of datagrams written to the link.
+	 */
+	public long getSent() {
+	    return this.sent;
+	}
+
+	// endregion getters
+    }
+}
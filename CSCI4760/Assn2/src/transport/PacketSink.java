@@ -0,0 +1,31 @@
+/**
+ * PacketSink.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+
+/**
+ * Somewhere an encoded {@link ReliableTransportMessage} can be written to,
+ * usually a UDP socket pointed at the relay.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public interface PacketSink {
+
+    /**
+     * Transmits 'length' bytes of 'buffer', starting at 'offset', as a single
+     * datagram.
+     *
+     * @param buffer
+     *            encoded message
+     * @param offset
+     *            index of the first byte to send
+     * @param length
+     *            number of bytes to send
+     * @throws IOException
+     */
+    void transmit(byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,277 @@
+/**
+ * PathMtuProber.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the largest payload the path to the receiver carries, by binary
+ * search with {@link ReliableTransportMessage#PROBE} packets. The receiver
+ * echoes every probe it gets; a probe size that is echoed is kept as the new
+ * lower bound, and one that goes unanswered {@link #ATTEMPTS} times becomes
+ * the new upper bound. <br>
+ * Java cannot set the IP don't-fragment bit, so a probe that is fragmented
+ * and reassembled still counts as carried. The upper bound should therefore
+ * start at what the outgoing interface carries in one frame, see
+ * {@link #maxPayloadFor(InetAddress, WireCodec)}; the search then finds any
+ * smaller limit further along the path. <br>
+ * Like {@link SenderProtocol}, the prober never blocks: the caller passes the
+ * current time into every event and waits for echoes until
+ * {@link #getDeadline()}.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class PathMtuProber {
+
+    // region fields
+    /**
+     * Number of times a probe size is tried before it is judged too large.
+     */
+    public static final int	ATTEMPTS	= 3;
+
+    private static final int	IPV4_HEADER_LEN	= 20;
+
+    private static final int	IPV6_HEADER_LEN	= 40;
+
+    private static final int	UDP_HEADER_LEN	= 8;
+
+    private static final byte	FILLER		= '.';
+
+    private final PacketSink	sink;
+
+    private final MessageView	header		= new MessageView();
+
+    private final WireCodec	codec;
+
+    private final RttEstimator	rtt;
+
+    private final ByteBuffer	payload;
+
+    private final ByteBuffer	datagram;
+
+    private int			low;
+
+    private int			high;
+
+    private int			candidate;
+
+    private int			attempts	= 0;
+
+    private int			seqNo		= -1;
+
+    private long		deadline	= SenderProtocol.NO_DEADLINE;
+
+    private boolean		done		= false;
+
+    private int			probesSent	= 0;
+    // endregion fields
+
+    /**
+     * Creates a prober that searches payload sizes from 'minPayload' (assumed
+     * to get through) to 'maxPayload'.
+     *
+     * @param sink
+     *            where encoded probes are written
+     * @param srcIP
+     *            source IP address written into each probe
+     * @param destIP
+     *            destination IP address written into each probe
+     * @param srcPort
+     *            source UDP port written into each probe
+     * @param destPort
+     *            destination UDP port written into each probe
+     * @param codec
+     *            format the transfer will use
+     * @param rtt
+     *            estimator whose RTO times each probe
+     * @param minPayload
+     *            payload size known to get through
+     * @param maxPayload
+     *            largest payload size worth trying
+     */
+    public PathMtuProber(PacketSink sink, InetAddress srcIP,
+			 InetAddress destIP, int srcPort, int destPort,
+			 WireCodec codec, RttEstimator rtt, int minPayload,
+			 int maxPayload) {
+	this.sink = sink;
+	this.header.setSourceAddress(srcIP);
+	this.header.setDestAddress(destIP);
+	this.header.setSrcPort(srcPort);
+	this.header.setDestPort(destPort);
+	this.header.setOpCode(ReliableTransportMessage.PROBE);
+	this.codec = codec;
+	this.rtt = rtt;
+	this.low = minPayload;
+	this.high = Math.max(minPayload, maxPayload);
+
+	this.payload = ByteBuffer.allocate(this.high);
+	for (int i = 0; i < this.high; i++) {
+	    this.payload.put(i, FILLER);
+	}
+	this.datagram = ByteBuffer.allocate(codec.getMaxLength(this.high));
+    }
+
+    /**
+     * Returns the largest payload that fits in one frame of the interface
+     * 'localIP' is bound to, after the IP and UDP headers and the codec's
+     * own overhead.
+     *
+     * @param localIP
+     *            local address the transfer is sent from
+     * @param codec
+     *            format the transfer will use
+     * @return the largest payload size, or the largest that fits in any
+     *         datagram if the interface MTU is unknown
+     * @throws SocketException
+     */
+    public static int maxPayloadFor(InetAddress localIP, WireCodec codec)
+	throws SocketException {
+	int overhead = codec.getMaxLength(0);
+	int limit = TransportConfig.MAX_DATAGRAM_LEN - overhead;
+
+	NetworkInterface nif = NetworkInterface.getByInetAddress(localIP);
+	int mtu = nif == null ? -1 : nif.getMTU();
+	if (mtu <= 0) {
+	    return limit;
+	}
+
+	int ipHeader = localIP instanceof Inet6Address ? IPV6_HEADER_LEN
+	    : IPV4_HEADER_LEN;
+	return Math.min(limit, mtu - ipHeader - UDP_HEADER_LEN - overhead);
+    }
+
+    /**
+     * Sends the first probe, or finishes at once if there is nothing to
+     * search.
+     *
+     * @param now
+     *            current time in nanoseconds
+     * @throws IOException
+     */
+    public void start(long now) throws IOException {
+	next(now);
+    }
+
+    /**
+     * Handles a response to a probe.
+     *
+     * @param opCode
+     *            op code of the response
+     * @param seqNo
+     *            sequence number carried by the response
+     * @param now
+     *            current time in nanoseconds
+     * @return true if the response echoed the current probe
+     * @throws IOException
+     */
+    public boolean onResponse(char opCode, int seqNo, long now)
+	throws IOException {
+	if (this.done || opCode != ReliableTransportMessage.PROBE
+	    || seqNo != this.seqNo) {
+	    return false;// stale echo or not a probe at all
+	}
+
+	this.low = this.candidate;
+	next(now);
+	return true;
+    }
+
+    /**
+     * Resends the current probe if its timer has expired, or gives up on its
+     * size after {@link #ATTEMPTS} tries.
+     *
+     * @param now
+     *            current time in nanoseconds
+     * @return true if a probe timed out
+     * @throws IOException
+     */
+    public boolean onTimer(long now) throws IOException {
+	if (this.done || now < this.deadline) {
+	    return false;
+	}
+
+	if (this.attempts < ATTEMPTS) {
+	    transmit(now);
+	} else {
+	    this.high = this.candidate - 1;
+	    next(now);
+	}
+	return true;
+    }
+
+    /**
+     * Probes the middle of the remaining range, or finishes once it is empty.
+     */
+    private void next(long now) throws IOException {
+	if (this.low >= this.high) {
+	    this.done = true;
+	    this.deadline = SenderProtocol.NO_DEADLINE;
+	    return;
+	}
+
+	this.candidate = (this.low + this.high + 1) / 2;
+	this.seqNo = this.codec.getSequenceNumbers().next(this.seqNo);
+	this.attempts = 0;
+
+	this.payload.clear();
+	this.payload.limit(this.candidate);
+	this.datagram.clear();
+	this.header.setSequenceNo(this.seqNo);
+	this.header.encode(this.codec, this.payload, this.datagram);
+	this.datagram.flip();
+
+	transmit(now);
+    }
+
+    /**
+     * Sends the current probe and starts its timer.
+     */
+    private void transmit(long now) throws IOException {
+	this.sink.transmit(this.datagram.array(), 0, this.datagram.limit());
+	this.attempts++;
+	this.probesSent++;
+	this.deadline = now + this.rtt.getRto();
+    }
+
+    // region getters
+
+    /**
+     * Returns the time (nanoseconds) at which the current probe times out, or
+     * {@link SenderProtocol#NO_DEADLINE} once the search is over.
+     */
+    public long getDeadline() {
+	return this.deadline;
+    }
+
+    /**
+     * Returns the largest payload size known to get through. Final once
+     * {@link #isDone()}.
+     */
+    public int getPayloadSize() {
+	return this.low;
+    }
+
+    /**
+     * Returns the number of probe packets sent, including resends.
+     */
+    public int getProbesSent() {
+	return this.probesSent;
+    }
+
+    /**
+     * Returns true once the search has finished.
+     */
+    public boolean isDone() {
+	return this.done;
+    }
+
+    // endregion getters
+}
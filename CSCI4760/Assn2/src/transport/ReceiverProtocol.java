@@ -0,0 +1,527 @@
+/**
+ * ReceiverProtocol.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiving half of the transport protocol. <br>
+ * In stop-and-wait and Go-Back-N mode only the next packet in sequence is
+ * accepted, and every packet is answered with the highest sequence number
+ * received in order. <br>
+ * In Selective Repeat mode packets that arrive early are held in a
+ * reassembly window the size of the sender's window and released as soon as
+ * the gap in front of them is filled. Every ACK still carries the highest
+ * sequence number received in order, and its payload lists the runs of
+ * packets held beyond it as SACK blocks (see {@link AckPayload}), so the
+ * sender learns exactly which packets are missing. <br>
+ * Every ACK and NAK also advertises a receive window: the window size less
+ * the packets the application has been handed but not yet consumed (see
+ * {@link #setBacklog(int)}). A sender that respects it stops when the
+ * application falls behind instead of overrunning it, and the receiver
+ * sends an unprompted window update once the window has opened again by
+ * half. <br>
+ * With delayed ACKs (see {@link TransportConfig#getAckEvery()}) the windowed
+ * modes acknowledge in-order DATA packets together: once every
+ * {@link TransportConfig#getAckEvery()} packets, or when the ACK timer runs
+ * out {@link TransportConfig#getAckDelay()} after the first of them, since
+ * every ACK is cumulative. Out-of-order packets, duplicates, packets that
+ * fill a gap, END and damaged packets are still answered at once, carrying
+ * anything held back. The caller runs the timer: {@link #onTimer(long)}
+ * must be called once {@link #getDeadline()} has passed. <br>
+ * Messages arrive and leave as {@link MessageView}s. Buffered messages are
+ * copied into preallocated slots and ACKs are encoded into reusable buffers,
+ * so the steady-state path allocates nothing. <br>
+ * Every message, ACK, NAK and discarded packet is counted in its
+ * {@link TransportMetrics}.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class ReceiverProtocol {
+
+    // region fields
+    /**
+     * Returned by {@link #getDeadline()} when no ACK is held back.
+     */
+    public static final long	NO_DEADLINE	= Long.MAX_VALUE;
+
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
+
+    private static final int	MAX_PAYLOAD	=
+	Math.max(AckPayload.MAX_LENGTH, SessionParameters.MAX_LENGTH);
+
+    private final PacketSink	ackSink;
+
+    private final DeliverySink	deliverySink;
+
+    private final MessageView	ackHeader	= new MessageView();
+
+    private final ByteBuffer	ackBuffer;
+
+    private final AckPayload	ackPayload	= new AckPayload();
+
+    private final ByteBuffer	payloadBuffer	= ByteBuffer.allocate(MAX_PAYLOAD);
+
+    private final MessageView	released	= new MessageView();
+
+    private final boolean	selectiveRepeat;
+
+    private final WireCodec	codec;
+
+    private final SequenceNumbers sequence;
+
+    private final ByteBuffer[]	reassembly;
+
+    private final boolean[]	present;
+
+    private final int		windowSize;
+
+    private final int		ackEvery;
+
+    private final long		ackDelay;
+
+    private int			head		= 0;
+
+    private int			buffered	= 0;
+
+    private int			lastSeqNo	= -1;
+
+    private int			backlog		= 0;
+
+    private int			advertised;
+
+    private int			unacked		= 0;
+
+    private long		ackDeadline	= NO_DEADLINE;
+
+    private boolean		finished	= false;
+
+    private SessionParameters	handshake	= null;
+
+    private TransportMetrics	metrics		= new TransportMetrics("receiver");
+    // endregion fields
+
+    /**
+     * Creates a receiver whose ACKs are stamped with the given addresses and
+     * written to 'ackSink'.
+     *
+     * @param ackSink
+     *            where encoded ACKs and NAKs are written
+     * @param deliverySink
+     *            where accepted messages are released, in order
+     * @param srcIP
+     *            source IP address written into each ACK
+     * @param destIP
+     *            destination IP address written into each ACK
+     * @param srcPort
+     *            source UDP port written into each ACK
+     * @param destPort
+     *            destination UDP port written into each ACK
+     * @param config
+     *            mode and window size, which must match the sender's, and
+     *            the codec ACKs are encoded with
+     */
+    public ReceiverProtocol(PacketSink ackSink, DeliverySink deliverySink,
+			    InetAddress srcIP, InetAddress destIP, int srcPort,
+			    int destPort, TransportConfig config) {
+	this.ackSink = ackSink;
+	this.deliverySink = deliverySink;
+	this.ackHeader.setSourceAddress(srcIP);
+	this.ackHeader.setDestAddress(destIP);
+	this.ackHeader.setSrcPort(srcPort);
+	this.ackHeader.setDestPort(destPort);
+	this.selectiveRepeat = config.getMode() == TransportMode.SELECTIVE_REPEAT;
+	this.codec = config.getCodec();
+	this.sequence = this.codec.getSequenceNumbers();
+	this.ackBuffer = ByteBuffer.allocate(this.codec
+					    .getMaxLength(MAX_PAYLOAD));
+
+	this.windowSize = config.getWindowSize();
+	this.advertised = this.windowSize;
+	//stop-and-wait sends nothing more until its packet is acknowledged
+	this.ackEvery = config.getMode() == TransportMode.STOP_AND_WAIT
+	    ? 1 : config.getAckEvery();
+	this.ackDelay = TimeUnit.MILLISECONDS.toNanos(config.getAckDelay());
+
+	int reassemblySize = this.selectiveRepeat ? this.windowSize : 0;
+	this.reassembly = new ByteBuffer[reassemblySize];
+	this.present = new boolean[reassemblySize];
+	for (int i = 0; i < reassemblySize; i++) {
+	    this.reassembly[i] = ByteBuffer.allocate(this.codec
+						     .getMaxLength(config.getPayloadSize()));
+	}
+    }
+
+    /**
+     * Handles one received message now, as
+     * {@link #onMessage(MessageView, boolean, long)} does.
+     *
+     * @param message
+     *            the message received; only read when 'checksumOk'
+     * @param checksumOk
+     *            true when the message decoded intact
+     * @return true if 'message' was accepted (delivered or buffered)
+     * @throws IOException
+     */
+    public boolean onMessage(MessageView message, boolean checksumOk)
+	throws IOException {
+	return onMessage(message, checksumOk, System.nanoTime());
+    }
+
+    /**
+     * Handles one received message: acknowledges it, at once or with the
+     * next delayed ACK, and releases every message that is now in order to
+     * the delivery sink. Damaged messages are answered with a NAK carrying
+     * the highest in-order sequence number. Path MTU probes are echoed back,
+     * and SYNs answered with the agreed settings (see
+     * {@link #setHandshake(SessionParameters)}), without touching the
+     * sequence state.
+     *
+     * @param message
+     *            the message received; only read when 'checksumOk'
+     * @param checksumOk
+     *            true when the message decoded intact
+     * @param now
+     *            current time in nanoseconds
+     * @return true if 'message' was accepted (delivered or buffered)
+     * @throws IOException
+     */
+    public boolean onMessage(MessageView message, boolean checksumOk,
+			     long now) throws IOException {
+	this.metrics.countReceived();
+	if (!checksumOk) {
+	    this.metrics.countChecksumFailure();
+	    sendAck(ReliableTransportMessage.NAK, this.lastSeqNo);
+	    return false;
+	}
+
+	if (message.getOpCode() == ReliableTransportMessage.PROBE) {
+	    sendAck(ReliableTransportMessage.PROBE, message.getSequenceNo());
+	    return false;
+	}
+
+	if (message.getOpCode() == ReliableTransportMessage.SYN) {
+	    //the sender missed the answer, or this is the first SYN
+	    if (this.handshake != null) {
+		sendAck(ReliableTransportMessage.SYN_ACK, message.getSequenceNo());
+	    } else {
+		this.metrics.countOutOfOrderDrop();//too late to agree on settings
+	    }
+	    return false;
+	}
+
+	if (this.selectiveRepeat) {
+	    return onSelectiveMessage(message, now);
+	}
+
+	int seqNo = message.getSequenceNo();
+	boolean inOrder =
+	    seqNo == this.sequence.next(this.lastSeqNo);
+
+	if (inOrder) {
+	    this.lastSeqNo = seqNo;
+	    deliver(message);
+	} else {
+	    this.metrics.countOutOfOrderDrop();
+	}
+	if (inOrder && message.getOpCode() == ReliableTransportMessage.DATA) {
+	    ackInOrder(now);
+	} else {
+	    sendAck(ReliableTransportMessage.ACK, this.lastSeqNo);
+	}
+
+	return inOrder;
+    }
+
+    /**
+     * Buffers 'message' if it falls inside the reassembly window and answers
+     * with the cumulative ACK and SACK blocks. Messages from the previous
+     * window are answered too, because the sender evidently missed the ACK.
+     *
+     * @param message
+     *            an intact message
+     * @param now
+     *            current time in nanoseconds
+     * @return true if 'message' was new and inside the window
+     * @throws IOException
+     */
+    private boolean onSelectiveMessage(MessageView message, long now)
+	throws IOException {
+	int seqNo = message.getSequenceNo();
+	int expected = this.sequence.next(this.lastSeqNo);
+	long offset = this.sequence.distance(expected, seqNo);
+	//in order with no gap behind it to report
+	boolean inOrder = offset == 0 && this.buffered == 0
+	    && message.getOpCode() == ReliableTransportMessage.DATA;
+
+	if (offset >= this.reassembly.length) {
+	    //already delivered: the sender missed the ACK, so repeat it
+	    if (this.sequence.distance(seqNo, this.lastSeqNo)
+		< this.reassembly.length) {
+		sendAck(ReliableTransportMessage.ACK, this.lastSeqNo);
+	    } else {
+		this.metrics.countOutOfOrderDrop();//beyond the window
+	    }
+	    return false;
+	}
+
+	int slot = (this.head + (int) offset) % this.reassembly.length;
+	boolean isNew = !this.present[slot];
+	if (isNew) {
+	    store(slot, message);
+	}
+
+	while (this.present[this.head]) {
+	    //the copy was intact when stored, so it decodes cleanly again
+	    this.released.decode(this.reassembly[this.head]);
+	    this.present[this.head] = false;
+	    this.buffered--;
+	    this.head = (this.head + 1) % this.reassembly.length;
+	    this.lastSeqNo = this.released.getSequenceNo();
+	    deliver(this.released);
+	}
+	if (inOrder) {
+	    ackInOrder(now);
+	} else {
+	    sendAck(ReliableTransportMessage.ACK, this.lastSeqNo);
+	}
+
+	return isNew;
+    }
+
+    /**
+     * Acknowledges an in-order DATA packet: at once if it is the
+     * {@link TransportConfig#getAckEvery()}th held back, otherwise by
+     * starting the ACK timer if it is not running.
+     */
+    private void ackInOrder(long now) throws IOException {
+	this.unacked++;
+	if (this.unacked >= this.ackEvery) {
+	    sendAck(ReliableTransportMessage.ACK, this.lastSeqNo);
+	} else if (this.ackDeadline == NO_DEADLINE) {
+	    this.ackDeadline = now + this.ackDelay;
+	}
+    }
+
+    /**
+     * Sends the ACK held back for in-order packets if the ACK timer has run
+     * out.
+     *
+     * @param now
+     *            current time in nanoseconds
+     * @return true if an ACK was sent
+     * @throws IOException
+     */
+    public boolean onTimer(long now) throws IOException {
+	if (now < this.ackDeadline) {
+	    return false;
+	}
+	sendAck(ReliableTransportMessage.ACK, this.lastSeqNo);
+	return true;
+    }
+
+    /**
+     * Copies the datagram behind 'message' into reassembly slot 'slot'.
+     */
+    private void store(int slot, MessageView message) {
+	int length = message.getDatagramLength();
+	if (this.reassembly[slot].capacity() < length) {
+	    this.reassembly[slot] = ByteBuffer.allocate(length);
+	}
+
+	ByteBuffer copy = this.reassembly[slot];
+	copy.clear();
+	ByteBuffer source = message.getBuffer();
+	for (int i = 0; i < length; i++) {
+	    copy.put(source.get(message.getDatagramOffset() + i));
+	}
+	copy.flip();
+	this.present[slot] = true;
+	this.buffered++;
+    }
+
+    /**
+     * Hands 'message' to the delivery sink and notes the END of the transfer.
+     *
+     * @param message
+     *            the next message in order
+     * @throws IOException
+     */
+    private void deliver(MessageView message) throws IOException {
+	if (message.getOpCode() == ReliableTransportMessage.END) {
+	    this.finished = true;
+	}
+	this.deliverySink.deliver(message);
+    }
+
+    /**
+     * Fills {@link #ackPayload} with the runs of buffered packets, oldest
+     * first.
+     * The slot at the head is always empty, since it would have been
+     * released otherwise.
+     */
+    private void collectSackBlocks() {
+	int expected = this.sequence.next(this.lastSeqNo);
+	int found = 0;
+	int runStart = -1;
+
+	for (int i = 1; i <= this.reassembly.length && found < this.buffered; i++) {
+	    boolean held = i < this.reassembly.length
+		&& this.present[(this.head + i) % this.reassembly.length];
+	    if (held) {
+		found++;
+		if (runStart < 0) {
+		    runStart = i;
+		}
+	    }
+	    if (runStart >= 0 && (!held || found == this.buffered)) {
+		int runEnd = held ? i : i - 1;
+		if (!this.ackPayload.addSack(this.sequence.add(expected, runStart),
+				       this.sequence.add(expected, runEnd))) {
+		    return;
+		}
+		runStart = -1;
+	    }
+	}
+    }
+
+    /**
+     * Sends an ACK or NAK carrying 'seqNo' and the receive window. In
+     * Selective Repeat mode ACKs and NAKs also carry the SACK blocks. A
+     * SYN-ACK carries the session's settings instead, and a PROBE nothing.
+     *
+     * @param opCode
+     *            {@link ReliableTransportMessage#ACK},
+     *            {@link ReliableTransportMessage#NAK},
+     *            {@link ReliableTransportMessage#SYN_ACK} or
+     *            {@link ReliableTransportMessage#PROBE}
+     * @param seqNo
+     *            sequence number to acknowledge
+     * @throws IOException
+     */
+    private void sendAck(char opCode, int seqNo) throws IOException {
+	if (opCode == ReliableTransportMessage.NAK) {
+	    this.metrics.countNak();
+	}
+	boolean ack = opCode == ReliableTransportMessage.ACK
+	    || opCode == ReliableTransportMessage.NAK;
+	if (ack) {
+	    //cumulative, so it covers every packet held back
+	    this.unacked = 0;
+	    this.ackDeadline = NO_DEADLINE;
+	}
+	this.ackHeader.setOpCode(opCode);
+	this.ackHeader.setSequenceNo(seqNo);
+	this.ackBuffer.clear();
+
+	if (ack) {
+	    this.ackPayload.clear();
+	    if (this.selectiveRepeat && this.buffered > 0) {
+		collectSackBlocks();
+	    }
+	    this.advertised = getWindow();
+	    this.ackPayload.setWindow(this.advertised);
+	    this.payloadBuffer.clear();
+	    this.ackPayload.encode(this.payloadBuffer);
+	    this.payloadBuffer.flip();
+	    this.ackHeader.encode(this.codec, this.payloadBuffer, this.ackBuffer);
+	} else if (opCode == ReliableTransportMessage.SYN_ACK) {
+	    this.payloadBuffer.clear();
+	    this.handshake.encode(this.payloadBuffer);
+	    this.payloadBuffer.flip();
+	    this.ackHeader.encode(this.codec, this.payloadBuffer, this.ackBuffer);
+	} else {
+	    this.ackHeader.encode(this.codec, EMPTY_PAYLOAD, this.ackBuffer);
+	}
+	this.ackSink.transmit(this.ackBuffer.array(), 0, this.ackBuffer.position());
+	this.metrics.countSent();
+    }
+
+    // region getters
+
+    /**
+     * Returns the time (nanoseconds) at which the ACK held back for in-order
+     * packets is due, or {@link #NO_DEADLINE} if none is.
+     */
+    public long getDeadline() {
+	return this.ackDeadline;
+    }
+
+    /**
+     * Returns the highest sequence number received in order, or -1 if none.
+     */
+    public int getLastSeqNo() {
+	return this.lastSeqNo;
+    }
+
+    /**
+     * Returns the receive window the next ACK advertises: the window size
+     * less the backlog, in packets.
+     */
+    public int getWindow() {
+	return Math.max(0, this.windowSize - this.backlog);
+    }
+
+    /**
+     * Returns the counters this receiver records into.
+     */
+    public TransportMetrics getMetrics() {
+	return this.metrics;
+    }
+
+    /**
+     * Returns true once the END message has been delivered.
+     */
+    public boolean isFinished() {
+	return this.finished;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param handshake
+     *            the settings this receiver was built with, as agreed in
+     *            answer to the sender's SYN; every SYN is answered with them.
+     *            Null, the default, ignores SYNs.
+     */
+    public void setHandshake(SessionParameters handshake) {
+	this.handshake = handshake;
+    }
+
+    /**
+     * Tells the receiver how many packets' worth of delivered data the
+     * application has yet to consume, which shrinks the advertised window.
+     * If that opens the window by at least half its size since it was last
+     * advertised, a window update (a repeat of the last ACK) is sent at once
+     * so a sender waiting on a closed window does not have to probe.
+     *
+     * @param backlog
+     *            packets delivered but not yet consumed
+     * @throws IOException
+     */
+    public void setBacklog(int backlog) throws IOException {
+	this.backlog = Math.max(0, backlog);
+	if (getWindow() - this.advertised >= Math.max(1, this.windowSize / 2)) {
+	    sendAck(ReliableTransportMessage.ACK, this.lastSeqNo);
+	}
+    }
+
+    /**
+     * @param metrics
+     *            where to count from now on, e.g. one shared by every
+     *            session of a {@link MultiSessionReceiver}
+     */
+    public void setMetrics(TransportMetrics metrics) {
+	this.metrics = metrics;
+    }
+
+    // endregion setters
+}
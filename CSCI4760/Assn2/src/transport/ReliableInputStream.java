@@ -0,0 +1,233 @@
+/**
+ * ReliableInputStream.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Reads the bytes a remote {@link ReliableOutputStream} writes, as an
+ * {@link InputStream} or a {@link ReadableByteChannel}, through its own
+ * {@link ReliableReceiver}. <br>
+ * There is no background thread: a read that finds nothing buffered
+ * receives packets on the calling thread until the receiver releases
+ * in-order data, and returns end of stream once the END packet has been
+ * delivered. Packets released together (a Selective Repeat gap being
+ * filled) are buffered until read, and the receiver advertises a receive
+ * window that shrinks by one packet for every payload's worth buffered, so
+ * a windowed sender stops instead of sending more than will be read. Reads
+ * that free half the window send a window update at once.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class ReliableInputStream extends InputStream implements
+						     ReadableByteChannel {
+
+    // region fields
+    private final ReliableReceiver receiver;
+
+    private byte[]		pending		= new byte[8192];
+
+    private int			readIndex	= 0;
+
+    private int			writeIndex	= 0;
+
+    private boolean		finished	= false;
+
+    private boolean		open		= true;
+    // endregion fields
+
+    /**
+     * Binds a receiver for 'config'. The output file in 'config' is not
+     * used.
+     *
+     * @param config
+     *            transfer settings; must match the sender's
+     * @throws IOException
+     *             if the receiver's sockets cannot be bound
+     */
+    public ReliableInputStream(TransportConfig config) throws IOException {
+	this.receiver = new ReliableReceiver(config, new DeliverySink() {
+		public void deliver(MessageView message) throws IOException {
+		    if (message.getOpCode() == ReliableTransportMessage.DATA) {
+			append(message.getBuffer().array(),
+			       message.getPayloadOffset(),
+			       message.getPayloadLength());
+			updateBacklog();
+		    } else if (message.getOpCode() == ReliableTransportMessage.END) {
+			finished = true;
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Adds released payload bytes after those not yet read.
+     */
+    private void append(byte[] bytes, int offset, int length) {
+	if (this.pending.length - this.writeIndex < length) {
+	    int buffered = this.writeIndex - this.readIndex;
+	    if (this.pending.length - buffered < length) {
+		this.pending = Arrays.copyOf(this.pending,
+					     Math.max(this.pending.length * 2,
+						      buffered + length));
+	    }
+	    System.arraycopy(this.pending, this.readIndex, this.pending, 0,
+			     buffered);
+	    this.readIndex = 0;
+	    this.writeIndex = buffered;
+	}
+	System.arraycopy(bytes, offset, this.pending, this.writeIndex, length);
+	this.writeIndex += length;
+    }
+
+    /**
+     * Tells the receiver how many packets' worth of data is buffered.
+     */
+    private void updateBacklog() throws IOException {
+	int buffered = this.writeIndex - this.readIndex;
+	int payloadSize = this.receiver.getPayloadSize();//agreed in a handshake
+	this.receiver.setBacklog((buffered + payloadSize - 1) / payloadSize);
+    }
+
+    /**
+     * Receives packets until some data is buffered or the transfer has
+     * ended.
+     *
+     * @return false at the end of the stream
+     * @throws SocketTimeoutException
+     *             if a timeout is set and no packet arrived in time
+     */
+    private boolean fill() throws IOException {
+	ensureOpen();
+	while (this.readIndex == this.writeIndex && !this.finished) {
+	    this.receiver.receive();
+	}
+	return this.readIndex < this.writeIndex;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+	if (!fill()) {
+	    return -1;
+	}
+	int b = this.pending[this.readIndex++] & 0xff;
+	updateBacklog();
+	return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int offset, int length)
+	throws IOException {
+	Objects.checkFromIndexSize(offset, length, bytes.length);
+	if (length == 0) {
+	    return 0;
+	}
+	if (!fill()) {
+	    return -1;
+	}
+	int count = Math.min(length, this.writeIndex - this.readIndex);
+	System.arraycopy(this.pending, this.readIndex, bytes, offset, count);
+	this.readIndex += count;
+	updateBacklog();
+	return count;
+    }
+
+    /**
+     * Reads as many buffered bytes as fit in 'destination', blocking only
+     * while none are buffered.
+     *
+     * @param destination
+     *            where the bytes go
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException
+     *             if the stream is closed or a timeout expired
+     */
+    public synchronized int read(ByteBuffer destination) throws IOException {
+	if (!destination.hasRemaining()) {
+	    return 0;
+	}
+	if (!fill()) {
+	    return -1;
+	}
+	int count = Math.min(destination.remaining(),
+			     this.writeIndex - this.readIndex);
+	destination.put(this.pending, this.readIndex, count);
+	this.readIndex += count;
+	updateBacklog();
+	return count;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without receiving.
+     */
+    @Override
+    public synchronized int available() throws IOException {
+	ensureOpen();
+	return this.writeIndex - this.readIndex;
+    }
+
+    /**
+     * Closes the receiver's sockets and its output. Does nothing if already
+     * closed.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+	if (this.open) {
+	    this.open = false;
+	    this.receiver.close();
+	}
+    }
+
+    /**
+     * @throws ClosedChannelException
+     *             if the stream is closed
+     */
+    private void ensureOpen() throws ClosedChannelException {
+	if (!this.open) {
+	    throw new ClosedChannelException();
+	}
+    }
+
+    // region getters
+
+    /**
+     * Returns the receiver the stream reads through.
+     */
+    public ReliableReceiver getReceiver() {
+	return this.receiver;
+    }
+
+    public synchronized boolean isOpen() {
+	return this.open;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param timeout
+     *            longest a read waits for a packet before throwing
+     *            {@link SocketTimeoutException}, in milliseconds; 0 waits
+     *            forever
+     * @throws SocketException
+     */
+    public void setTimeout(int timeout) throws SocketException {
+	this.receiver.setTimeout(timeout);
+    }
+
+    // endregion setters
+}
@@ -0,0 +1,219 @@
+/**
+ * ReliableOutputStream.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * Writes bytes to a remote {@link ReliableInputStream} through a
+ * {@link ReliableSender}, as an {@link OutputStream} or a
+ * {@link WritableByteChannel}. <br>
+ * Writes of any size are gathered into packets of the sender's payload
+ * size; whole packets in a large write are sent straight out of the
+ * caller's array or buffer without being copied here first. A write blocks
+ * while the sender's window is full (or, in stop-and-wait mode, until each
+ * packet is acknowledged), so a slow receiver slows the writer down. <br>
+ * {@link #flush()} sends whatever is gathered as a short packet and waits
+ * until everything written has been acknowledged; {@link #close()} does the
+ * same, ends the transfer with an END packet and releases the sender's
+ * sockets.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class ReliableOutputStream extends OutputStream implements
+						       WritableByteChannel {
+
+    // region fields
+    private final ReliableSender sender;
+
+    private final ByteBuffer	packet;
+
+    private boolean		open		= true;
+    // endregion fields
+
+    /**
+     * Binds a new sender for 'config' and writes through it to the relay in
+     * 'config', after settling the session's settings with the receiver if
+     * 'config' asks for a handshake.
+     *
+     * @param config
+     *            transfer settings; must match the receiver's unless they
+     *            are settled in a handshake
+     * @throws IOException
+     *             if the sender's sockets cannot be bound or the handshake
+     *             fails
+     */
+    public ReliableOutputStream(TransportConfig config) throws IOException {
+	this(open(config));
+    }
+
+    /**
+     * Binds a sender for 'config' and runs the handshake if asked to.
+     */
+    private static ReliableSender open(TransportConfig config)
+	throws IOException {
+	ReliableSender sender =
+	    new ReliableSender(InetAddress.getByName(config.getRelay()), config);
+	if (config.isHandshake()) {
+	    try {
+		sender.handshake();
+	    } catch (IOException e) {
+		sender.disconnect();
+		throw e;
+	    }
+	}
+	return sender;
+    }
+
+    /**
+     * Writes through 'sender', which the stream takes over: closing the
+     * stream closes the sender.
+     *
+     * @param sender
+     *            a sender nothing has been sent through yet
+     */
+    public ReliableOutputStream(ReliableSender sender) {
+	this.sender = sender;
+	this.packet = ByteBuffer.allocate(sender.getPayloadSize());
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+	ensureOpen();
+	this.packet.put((byte) b);
+	if (!this.packet.hasRemaining()) {
+	    sendPacket();
+	}
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+	Objects.checkFromIndexSize(offset, length, bytes.length);
+	write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Writes every byte remaining in 'source', blocking as long as the
+     * sender's window stays full.
+     *
+     * @param source
+     *            bytes to send; its position ends at its limit
+     * @return the number of bytes written
+     * @throws IOException
+     *             if the stream is closed or the transfer failed
+     */
+    public synchronized int write(ByteBuffer source) throws IOException {
+	ensureOpen();
+	int written = source.remaining();
+	int limit = source.limit();
+	try {
+	    //top up the packet already started
+	    if (this.packet.position() > 0) {
+		source.limit(source.position()
+			     + Math.min(source.remaining(), this.packet.remaining()));
+		this.packet.put(source);
+		source.limit(limit);
+		if (!this.packet.hasRemaining()) {
+		    sendPacket();
+		}
+	    }
+
+	    //whole packets go straight from 'source'
+	    int payloadSize = this.packet.capacity();
+	    while (source.remaining() >= payloadSize) {
+		source.limit(source.position() + payloadSize);
+		this.sender.send(source);
+		source.position(source.limit());
+		source.limit(limit);
+	    }
+
+	    this.packet.put(source);
+	} finally {
+	    source.limit(limit);
+	}
+	return written;
+    }
+
+    /**
+     * Sends any gathered bytes as a short packet and waits until everything
+     * written so far has been acknowledged. Flushing after every small
+     * write sends many short packets.
+     *
+     * @throws IOException
+     *             if the stream is closed or the transfer failed
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+	ensureOpen();
+	if (this.packet.position() > 0) {
+	    sendPacket();
+	}
+	this.sender.flush();
+    }
+
+    /**
+     * Sends any gathered bytes, ends the transfer and releases the sender's
+     * sockets. Does nothing if already closed.
+     *
+     * @throws IOException
+     *             if the transfer failed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+	if (!this.open) {
+	    return;
+	}
+	this.open = false;
+	try {
+	    if (this.packet.position() > 0) {
+		sendPacket();
+	    }
+	    this.sender.close();
+	} finally {
+	    this.sender.disconnect();
+	}
+    }
+
+    /**
+     * Sends the gathered bytes as one packet.
+     */
+    private void sendPacket() throws IOException {
+	this.packet.flip();
+	this.sender.send(this.packet);
+	this.packet.clear();
+    }
+
+    /**
+     * @throws ClosedChannelException
+     *             if the stream is closed
+     */
+    private void ensureOpen() throws ClosedChannelException {
+	if (!this.open) {
+	    throw new ClosedChannelException();
+	}
+    }
+
+    // region getters
+
+    /**
+     * Returns the sender the stream writes through.
+     */
+    public ReliableSender getSender() {
+	return this.sender;
+    }
+
+    public synchronized boolean isOpen() {
+	return this.open;
+    }
+
+    // endregion getters
+}
@@ -7,15 +7,23 @@ package transport;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 
 /**
- * Receives packets sent by a ReliableSender
+ * Receives packets sent by a ReliableSender. In stop-and-wait and Go-Back-N
+ * mode only the next packet in sequence is accepted and every ACK carries the
+ * highest in-order sequence number. In Selective Repeat mode early packets are
+ * buffered and reported as SACK blocks until the gap before them is filled.
+ * The data is printed to standard out, or written to a {@link FileSink} when
+ * an output file is configured. Progress and errors go through
+ * {@link EventLog}s, so a slow terminal or file does not slow the transfer.
  * 
  * @author Elliott Tanner
  * 
@@ -30,19 +38,28 @@ public class ReliableReceiver {
     public static final int	ACK_SEND_PORT		= 2018; //rellpack
     public static final int	DATA_RECEIVE_PORT	= 2017; //bootclient
     public static final int	RELAY_PORT		= 2021; 
-    //public static final int     RELAY_PORT_2            = 56697; //reliable
-    //public static final int     RELAY_PORT_2            = 59381; //semi-reliable 
-    //public static final int     RELAY_PORT_2            = 49856; //unreliable
-    public static final int     RELAY_PORT_2            = 36675; //unreliable
     public static final int	PAYLOAD_LEN		= 30;
     
     public static PrintWriter   error                   = null;
-    private static String       relayIP                 = "172.17.152.60"; 
-    private static String       localIP                 = "172.17.152.46";
     
     private DatagramSocket	sendingSocket		= null;
     private DatagramSocket	ackSocket		= null;
     private int                 lastSeqNo               = -1;
+    private TransportConfig     config;
+    private ReceiverProtocol    protocol                = null;
+    private byte                buffer[]                = new byte[TransportConfig.MAX_DATAGRAM_LEN];
+    private DatagramPacket      datagram                = new DatagramPacket(buffer, buffer.length);
+    private ByteBuffer          datagramBytes           = ByteBuffer.wrap(buffer);
+    private MessageView         view                    = new MessageView();
+    private DatagramPacket      ackDatagram             = new DatagramPacket(new byte[0], 0);
+    private FileSink            fileSink                = null;
+    private EventLog            log                     = null;
+    private EventLog            errorLog                = null;
+    private TransportMetrics    metrics                 = new TransportMetrics("receiver");
+    private DeliverySink        deliverySink            = null;
+    private SessionParameters   handshake               = null;
+    private int                 timeout                 = 0;
+    private int                 soTimeout               = 0;
     // endregion fields
 
     
@@ -51,44 +68,151 @@ public class ReliableReceiver {
      * Initialize sending socket and ACK socket. ACK socket will send to relay
      * host.
      * 
-     * @throws SocketException
+     * @throws IOException
+     */
+    public ReliableReceiver() throws IOException {
+	this(new TransportConfig());
+    }
+
+    /**
+     * Initialize sending socket and ACK socket. ACK socket will send to relay
+     * host.
+     * 
+     * @param config transfer settings; must match the sender's
+     * @throws IOException if a host cannot be resolved, a socket cannot be
+     *         bound or the output file cannot be created
      */
-    public ReliableReceiver() throws SocketException {
+    public ReliableReceiver(TransportConfig config) throws IOException {
+	this(config, null);
+    }
 
+    /**
+     * Initialize sending socket and ACK socket. ACK socket will send to relay
+     * host. Messages are released, in order, to 'deliverySink' instead of
+     * the output file or standard out.
+     * 
+     * @param config transfer settings; must match the sender's
+     * @param deliverySink where DATA and END messages are released, or null
+     *        for the output file (or standard out) in 'config'
+     * @throws IOException if a host cannot be resolved, a socket cannot be
+     *         bound or the output file cannot be created
+     */
+    public ReliableReceiver(TransportConfig config, DeliverySink deliverySink)
+	throws IOException {
 
+	config.validate();
+	this.config = config;
+	//'error' is written by a background thread from now on
+	this.errorLog = error != null
+	    ? new EventLog(error, config.getLogLevel())
+	    : new EventLog(new PrintWriter(Writer.nullWriter()), LogLevel.OFF);
 	
+	//resolve the hosts before anything is opened
+	InetAddress localIP = InetAddress.getByName(config.getLocal());
+	InetAddress relayIP = InetAddress.getByName(config.getRelay());
+
 	try {
+	    if (deliverySink != null) {
+		//standard out is the application's
+		this.log = new EventLog(new PrintWriter(System.out), LogLevel.OFF);
+	    } else if (config.getOutput() != null) {
+		//no console output per packet when the data goes to a file
+		this.fileSink = new FileSink(Paths.get(config.getOutput()), 0);
+		this.log = new EventLog(new PrintWriter(System.out), LogLevel.OFF);
+		deliverySink = this.fileSink;
+	    } else {
+		this.log = new EventLog(new PrintWriter(System.out),
+					config.getLogLevel());
+		deliverySink = new DeliverySink() {
+			public void deliver(MessageView message) {
+			    if (message.getOpCode() == ReliableTransportMessage.DATA) {
+				System.out.write(message.getBuffer().array(),
+						 message.getPayloadOffset(),
+						 message.getPayloadLength());
+			    }
+			}
+		    };
+	    }
+
 	    //try to initialize both sendingSocket and ackSocket
 
 	    //create a sending socket with local port DATA_RECEIVE_PORT
-	    this.sendingSocket = new DatagramSocket(DATA_RECEIVE_PORT,InetAddress.getByName(localIP));
-	    this.ackSocket = new DatagramSocket(ACK_SEND_PORT,InetAddress.getByName(localIP));
+	    this.sendingSocket = new DatagramSocket(DATA_RECEIVE_PORT, localIP);
+	    this.ackSocket = new DatagramSocket(ACK_SEND_PORT, localIP);
 	    
-	    //this.sendingSocket.connect(InetAddress.getByName(relayIP),RELAY_PORT_2);
-	    this.ackSocket.connect(InetAddress.getByName(relayIP),RELAY_PORT);
+	    this.ackSocket.connect(relayIP, config.getRelayPort());
+
+	    this.deliverySink = deliverySink;
+	    this.protocol = newProtocol(config);
 	
-	} catch (UnknownHostException e) {
-	    error.println("ERROR!!!");
-	    e.printStackTrace();
+	} catch (IOException | RuntimeException e) {
+	    //the caller gets no receiver to close
+	    release();
+	    throw e;
+	}
+
+    }
+
+    /**
+     * Closes whatever a failed constructor had opened, ignoring errors.
+     */
+    private void release() {
+	if (this.sendingSocket != null) {
+	    this.sendingSocket.close();
 	}
+	if (this.ackSocket != null) {
+	    this.ackSocket.close();
+	}
+	if (this.log != null) {
+	    this.log.close();
+	}
+	this.errorLog.close();
+	if (this.fileSink != null) {
+	    try {
+		this.fileSink.close();
+	    } catch (IOException e) {
+		//the constructor's exception is the one to report
+	    }
+	}
+    }
 
+    /**
+     * Builds the protocol that ACKs and delivers messages with 'config'.
+     */
+    private ReceiverProtocol newProtocol(TransportConfig config) {
+	ReceiverProtocol protocol = new ReceiverProtocol(new PacketSink() {
+		public void transmit(byte[] buffer, int offset, int length)
+		    throws IOException {
+		    ackDatagram.setData(buffer, offset, length);
+		    ackSocket.send(ackDatagram);
+		}
+	    }, this.deliverySink, this.sendingSocket.getLocalAddress(),
+	    this.sendingSocket.getLocalAddress(), ACK_SEND_PORT,
+	    ACK_RECEIVE_PORT, config);
+	protocol.setMetrics(this.metrics);
+	return protocol;
     }
 
     /**
      * 
-     * @param args
+     * @param args transfer settings, e.g. --mode=gbn --window=16
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
 	
 	error = new PrintWriter(new File("rcv_error_out.txt"));
 	
-	ReliableReceiver receiver = new ReliableReceiver();
+	TransportConfig config = TransportConfig.parse(args);
+	ReliableReceiver receiver = new ReliableReceiver(config);
+	receiver.getMetrics().publish(config);
 	while (true) {
 	    try {
 		if (receiver.receive() == ReliableTransportMessage.END) {
 		    System.out.println("\n**************************************************\nFOUND END!!!");
 		    System.out.println("GOODBYE!");
+		    receiver.getMetrics().stopReporting();
+		    System.out.println(receiver.getMetrics().getSnapshot());
+		    receiver.close();
 		    break;
 		}
 	    } catch (Exception e) {
@@ -99,17 +223,136 @@ public class ReliableReceiver {
     }
 
     /**
-     * Receives packet, sends ACK or NAK, and prints contents to standard out.
+     * Closes the sockets, writes out the logs and, if the data went to a
+     * file, trims and closes the file.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+	this.sendingSocket.close();
+	this.ackSocket.close();
+	this.log.close();
+	this.errorLog.close();
+	if (this.fileSink != null) {
+	    this.fileSink.close();
+	}
+    }
+
+    /**
+     * Returns the counters of this receiver.
+     */
+    public TransportMetrics getMetrics() {
+	return this.metrics;
+    }
+
+    /**
+     * @param timeout how long {@link #receive()} waits for a packet before
+     *        throwing {@link SocketTimeoutException}, in
+     *        milliseconds; 0 waits forever
+     * @throws SocketException
+     */
+    public void setTimeout(int timeout) throws SocketException {
+	this.sendingSocket.setSoTimeout(timeout);
+	this.timeout = timeout;
+	this.soTimeout = timeout;
+    }
+
+    /**
+     * Receives the next datagram, sending the delayed ACK whenever it falls
+     * due while waiting.
+     * 
+     * @throws SocketTimeoutException if nothing arrives within the timeout
+     *         set by {@link #setTimeout(int)}
+     */
+    private void awaitDatagram() throws IOException {
+	long limit = this.timeout == 0 ? ReceiverProtocol.NO_DEADLINE
+	    : System.nanoTime() + this.timeout * 1000000L;
+	while (true) {
+	    long now = System.nanoTime();
+	    long deadline = Math.min(limit, this.protocol.getDeadline());
+	    //round up, or the ACK would be a millisecond early and wait again
+	    int wait = deadline == ReceiverProtocol.NO_DEADLINE ? 0
+		: (int) Math.max(1, (deadline - now + 999999) / 1000000);
+	    if (wait != this.soTimeout) {
+		this.sendingSocket.setSoTimeout(wait);
+		this.soTimeout = wait;
+	    }
+	    try {
+		this.sendingSocket.receive(this.datagram);
+		return;
+	    } catch (SocketTimeoutException e) {
+		now = System.nanoTime();
+		this.protocol.onTimer(now);
+		if (now >= limit) {
+		    throw e;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Agrees on the session's settings with the offer in the SYN just
+     * received, and rebuilds the protocol with them so that it answers the
+     * SYN. Later SYNs get the same answer; a SYN after data has arrived is
+     * ignored.
+     */
+    private void accept() {
+	if (this.handshake != null || this.protocol.getLastSeqNo() != -1
+	    || this.protocol.isFinished()) {
+	    return;
+	}
+	SessionParameters offer = new SessionParameters();
+	if (!offer.decode(this.view)) {
+	    this.errorLog.log(LogLevel.ERROR, "Bad session offer");
+	    return;
+	}
+	SessionParameters answer;
+	try {
+	    answer = offer.answer(this.config);
+	    this.config = answer.apply(this.config);
+	} catch (IllegalArgumentException e) {
+	    this.errorLog.log(LogLevel.ERROR, "Bad session offer: ",
+			      e.getMessage());
+	    return;
+	}
+	this.handshake = answer;
+	this.protocol = newProtocol(this.config);
+	this.protocol.setHandshake(answer);
+	this.log.log(LogLevel.INFO, "HANDSHAKE: ", answer.toString());
+    }
+
+    /**
+     * Returns the largest payload the sender uses, in bytes: the configured
+     * one, or the one agreed in the handshake.
+     */
+    public int getPayloadSize() {
+	return this.config.getPayloadSize();
+    }
+
+    /**
+     * Tells the receiver how much delivered data the application has yet to
+     * consume, which it subtracts from the receive window it advertises.
      * 
-     * @return packet opCode
+     * @param packets packets' worth of data delivered but not yet consumed
+     * @throws IOException if a window update could not be sent
+     */
+    public void setBacklog(int packets) throws IOException {
+	this.protocol.setBacklog(packets);
+    }
+
+    /**
+     * Receives packet, sends ACK or NAK, and prints contents to standard out
+     * (or writes them to the output file). Contents are written only once
+     * every earlier packet has been written.
+     * 
+     * @return packet opCode; END only once the END packet has been delivered
      * @throws IOException
      */
     public char receive() throws IOException {
-	byte buffer[] = new byte[1024];
 	char opcode = ReliableTransportMessage.NAK;
-	DatagramPacket datagram = new DatagramPacket(buffer, 1024);
 	
-	this.sendingSocket.receive(datagram);
+	this.datagram.setLength(this.buffer.length);
+	awaitDatagram();
 	/*
 	try{
 	    this.sendingSocket.receive(datagram);
@@ -124,115 +367,56 @@ public class ReliableReceiver {
 	    }*/
 	
 
-	StringBuffer msgBuffer = new StringBuffer(datagram.getLength());
-	
-	for (int i = 0; i < datagram.getLength(); i++) {
-	    char nextChar = new String(datagram.getData(),"US-ASCII").charAt(i);
-	    msgBuffer.append(nextChar);
-	}
-	
-	try{
-	    ReliableTransportMessage message = ReliableTransportMessage
-		.reconstitute(buffer);
-	    
+	//decode in place; no copies of the datagram are made
+	this.datagramBytes.clear();
+	this.datagramBytes.limit(this.datagram.getLength());
+	int result = this.view.decode(this.datagramBytes);
 	
+	boolean messageOk = (result == MessageView.OK);
+	this.log.log(LogLevel.DEBUG, "\t\t\tVALID CHECKSUM = ",
+		     String.valueOf(messageOk));
 	
-	    boolean messageOk = validateChecksum(message);
-	    System.out.println("\t\t\tVALID CHECKSUM = " + messageOk);
-	    
-	    //System.out.println(message.getSequenceNo());
-	
-	    int expected = (lastSeqNo+1) % 100;
-	    
-	    boolean sequenceNoOk = (expected == message.getSequenceNo());
-	    
-	    System.out.println("\t\t\tSEQOK = " + sequenceNoOk);
-	    
-	    //if it's the next sequence, increment the sequence number
-	    if(messageOk && sequenceNoOk){
-		lastSeqNo ++;
-		lastSeqNo %= 100;//make sure seqNo wraps around from 99 to 0
-	    }
+	if (messageOk && this.view.getOpCode() == ReliableTransportMessage.SYN) {
+	    accept();
+	}
 
-	
-	    sendAck(messageOk);
-	
-	
-	    if(messageOk){
-		if(sequenceNoOk){
-		    System.out.print(message.getPayload());
-		}else{
-		    error.println("\n******************************************");
-		    error.println("\t\t\tLast ok sequence no = " + lastSeqNo + "\n\n");
-		}
-	    }else{
-		error.println(message.getPayload());
-	    }
-	    
-	    opcode = message.getOpCode();
-	    
-	}//try
-	catch (NullPointerException npe){
-	    error.println("NPE! opcode will default to NAK");
+	boolean sequenceNoOk = false;
+	if (messageOk || result == MessageView.BAD_CHECKSUM) {
+	    //ACKs and delivers (prints) every message that is now in order
+	    sequenceNoOk = this.protocol.onMessage(this.view, messageOk);
+	    lastSeqNo = this.protocol.getLastSeqNo();
 	    
+	    this.log.log(LogLevel.DEBUG, "\t\t\tSEQOK = ",
+			 String.valueOf(sequenceNoOk));
 	}
-	return opcode;
-    }
-
-    /**
-     * Sends an ACK or NAK
-     * 
-     * @param isOk
-     *            true when message is acceptable
-     * @throws IOException
-     */
-    private void sendAck(boolean isOk) throws IOException {
-	char opcode = ReliableTransportMessage.NAK;
-	if (isOk) {
-	    opcode = ReliableTransportMessage.ACK;
+	
+	if(messageOk){
+	    if(!sequenceNoOk){
+		this.errorLog.log(LogLevel.ERROR,
+				  "\n******************************************");
+		this.errorLog.log(LogLevel.ERROR, "\t\t\tLast ok sequence no = ",
+				  lastSeqNo);
+		this.errorLog.log(LogLevel.ERROR, "\n");
+	    }
 	    
-	    /*lastSeqNo ++;
-	    if(lastSeqNo==100){
-		lastSeqNo = 0;
-		}*/
+	    opcode = this.view.getOpCode();
+	    if (opcode == ReliableTransportMessage.END
+		&& !this.protocol.isFinished()) {
+		opcode = ReliableTransportMessage.DATA;//END arrived before a gap was filled
+	    }
 	}else{
-	    //System.out.println("RESENDING!");
+	    if (result != MessageView.BAD_CHECKSUM) {
+		//never reached the protocol, which counts the rest
+		this.metrics.countReceived();
+		this.metrics.countChecksumFailure();
+	    }
+	    this.errorLog.log(LogLevel.ERROR,
+			      "Bad message, opcode will default to NAK: ",
+			      MessageView.describe(result));
 	}
 	
-
-	
-	//this.ackSocket.connect(InetAddress.getByName(relayIP),RELAY_PORT);
-	
-	
-	
-	
-	ReliableTransportMessage message = new ReliableTransportMessage(this.sendingSocket.getLocalAddress(),
-									this.sendingSocket.getLocalAddress(),
-									ACK_SEND_PORT,
-									ACK_RECEIVE_PORT, 
-									opcode, lastSeqNo, "");
-	
-
-
-	DatagramPacket datagram = new DatagramPacket(message.getBuffer(),
-						     message.getBuffer().length);
-
-	
-	this.ackSocket.send(datagram);
-	//this.sendingSocket.send(datagram);
-    }
-
-
-
-    /**
-     * @param message The ReliableTransportMessage to validate.
-     * @return true when the checksum is correct
-     */
-    private boolean validateChecksum(ReliableTransportMessage message){
-	return (message.getComputedChecksum() == message.getStoredChecksum());
+	return opcode;
     }
 
-    
-
 
 }
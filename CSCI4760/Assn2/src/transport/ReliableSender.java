@@ -4,19 +4,37 @@
  */
 package transport;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Transmits a file via a Relayer to a remote {@link ReliableReceiver}, using a
- * stop-and-wait protocol with error checking.
+ * stop-and-wait protocol with error checking, or a Go-Back-N or Selective
+ * Repeat sliding window when started with <code>--mode=gbn</code> or
+ * <code>--mode=sr</code>. The file is sent in chunks of
+ * <code>--payload</code> bytes, or of the largest size the path carries when
+ * started with <code>--probe-mtu=true</code>. The windowed modes run
+ * congestion control and pacing unless started with
+ * <code>--congestion=false</code>, and never overrun the receive window
+ * the receiver advertises. Lost packets are resent in a loop as
+ * the {@link RetryPolicy} allows: at once on a NAK or, in the windowed
+ * modes, on <code>--dup-acks</code> duplicate ACKs, and otherwise when the
+ * retransmission timer runs out. The transfer fails with an
+ * {@link IOException} once a DATA packet runs out of attempts.
  * 
  * @author Elliott Tanner
  * 
@@ -25,29 +43,49 @@ public class ReliableSender {
 
     // region fields
 
-    public static final int PAYLOAD_LEN = 30;
+    public static final int PAYLOAD_LEN = ReliableTransportMessage.PAYLOAD_LEN;
     public static final int DATA_TRANSMIT_PORT	= 2015;
     public static final int ACK_RECEIVE_PORT	= 2016;
     public static final int DATA_RECEIVE_PORT	= 2017;
     public static final int RELAY_PORT		= 2021;
-    //public static final int     RELAY_PORT_2            = 56697; //reliable
-    //public static final int     RELAY_PORT_2            = 59381; //semi-reliable 
-    //public static final int     RELAY_PORT_2            = 49856; //unreliable 
-    public static final int     RELAY_PORT_2            = 36675; //unreliable 
-    private static String relayIP = "172.17.152.60";
-    private static String localIP = "172.17.152.46";
-    private static int runningSequenceNo = 0;
-    private static final int TIMEOUT            = 1000;
+    private int runningSequenceNo = 0;
+    private static final int MAX_CLOSE_ATTEMPTS = 20;
+    private static final int MAX_SYN_ATTEMPTS = 10;
+    private static final Charset PAYLOAD_CHARSET = Charset.forName("ISO-8859-1");
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
+    private static final long MIN_SOCKET_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
     private DatagramSocket sendingSocket	= null;
     private DatagramSocket ackSocket            = null;
-    private boolean debug =false;
-    private int closeFailCount = 0;
+    private DatagramChannel ackChannel          = null;
+    private EventLog log;
+    private boolean ownsLog = true;
+    private LatencyRecorder latency = null;
+    private long resends = 0;
+    private TransportMetrics metrics = new TransportMetrics("sender");
+    private RetryPolicy retry;
+    private RetryListener retryListener = null;
+    private boolean closing = false;
+    private TransportConfig config;
+    private RttEstimator rtt;
+    private boolean resending = false;
+    private boolean nakReceived = false;
+    private int payloadSize;
+    private MessageView dataHeader = new MessageView();
+    private ByteBuffer dataBytes;
+    private SenderProtocol protocol = null;
+    private byte responseBuffer[] = new byte[TransportConfig.MAX_DATAGRAM_LEN];
+    private DatagramPacket responseDatagram =
+	new DatagramPacket(this.responseBuffer, this.responseBuffer.length);
+    private ByteBuffer responseBytes = ByteBuffer.wrap(this.responseBuffer);
+    private MessageView responseView = new MessageView();
+    private AckPayload ackPayload = new AckPayload();
+    private DatagramPacket dataDatagram = new DatagramPacket(new byte[0], 0);
     
     // endregion fields
 
 
     /**
-     * Initializes sending socket
+     * Initializes sending socket for a stop-and-wait transfer
      * 
      * @param destIP
      * @throws SocketException
@@ -55,62 +93,197 @@ public class ReliableSender {
      */
     public ReliableSender(InetAddress destIP) throws SocketException,
 						     UnknownHostException {
+	this(destIP, new TransportConfig());
+    }
 
-	if(debug){
-	    System.out.println("NEW SENDER!");
-	}
-	this.sendingSocket = new DatagramSocket(DATA_TRANSMIT_PORT, InetAddress.getByName(localIP));
-	this.ackSocket = new DatagramSocket(ACK_RECEIVE_PORT,InetAddress.getByName(localIP));
+    /**
+     * Initializes sending socket
+     * 
+     * @param destIP
+     * @param config transfer settings (mode and window size)
+     * @throws SocketException
+     * @throws UnknownHostException
+     */
+    public ReliableSender(InetAddress destIP, TransportConfig config)
+	throws SocketException, UnknownHostException {
+
+	config.validate();
+	this.config = config;
+	this.log = new EventLog(new PrintWriter(System.out), config.getLogLevel());
+	this.log.log(LogLevel.DEBUG, "NEW SENDER!");
+
+	InetAddress localIP = InetAddress.getByName(config.getLocal());
+	this.sendingSocket = new DatagramSocket(DATA_TRANSMIT_PORT, localIP);
+	this.ackSocket = bind(ACK_RECEIVE_PORT, localIP);
+	this.ackChannel = this.ackSocket.getChannel();
 	//this.connect(destIP, DATA_RECEIVE_PORT);
-	
 
-	this.sendingSocket.setSoTimeout(TIMEOUT);
-	this.ackSocket.setSoTimeout(TIMEOUT);
-	this.connect(destIP, RELAY_PORT);
-	//this.ackSocket.connect(destIP,RELAY_PORT_2);
+	setUp(destIP, config.getRelayPort());
 	
-	if(debug){
-	    System.out.println("END NEW SENDER");
+	this.log.log(LogLevel.DEBUG, "END NEW SENDER");
+    }
+
+    /**
+     * Initializes a sender for one of many transfers running at once, as a
+     * {@link SenderEngine} does. A single socket on an ephemeral port sends
+     * the data and receives the ACKs, so no fixed port is taken; the
+     * receiver must answer at the port the data came from.
+     * 
+     * @param destination where the data goes: the relay, or the receiver
+     * @param config transfer settings
+     * @param log where the progress lines go; shared, so
+     *        {@link #disconnect()} leaves it open
+     * @throws SocketException
+     * @throws UnknownHostException
+     */
+    public ReliableSender(InetSocketAddress destination, TransportConfig config,
+			  EventLog log)
+	throws SocketException, UnknownHostException {
+
+	config.validate();
+	this.config = config;
+	this.log = log;
+	this.ownsLog = false;
+
+	InetAddress localIP = InetAddress.getByName(config.getLocal());
+	this.sendingSocket = bind(0, localIP);
+	this.ackSocket = this.sendingSocket;
+	this.ackChannel = this.ackSocket.getChannel();
+
+	setUp(destination.getAddress(), destination.getPort());
+    }
+
+    /**
+     * Binds a socket backed by a {@link DatagramChannel}, which reads with a
+     * timeout like any other but can also be polled for queued ACKs; see
+     * {@link #drainAcks()}.
+     */
+    private static DatagramSocket bind(int port, InetAddress localIP)
+	throws SocketException {
+	DatagramChannel channel = null;
+	try {
+	    channel = DatagramChannel.open();
+	    channel.bind(new InetSocketAddress(localIP, port));
+	    return channel.socket();
+	} catch (IOException e) {
+	    if (channel != null) {
+		try {
+		    channel.close();
+		} catch (IOException ignored) {
+		    //already failing
+		}
+	    }
+	    if (e instanceof SocketException) {
+		throw (SocketException) e;
+	    }
+	    SocketException failure = new SocketException(e.getMessage());
+	    failure.initCause(e);
+	    throw failure;
+	}
+    }
+
+    /**
+     * Connects the bound sockets to 'destIP', 'destPort' and builds the
+     * timers and, in the windowed modes, the window protocol.
+     */
+    private void setUp(InetAddress destIP, int destPort)
+	throws SocketException {
+	this.rtt = new RttEstimator(this.config);
+	this.retry = new RetryPolicy(this.config);
+	this.payloadSize = this.config.getPayloadSize();
+
+	this.sendingSocket.setSoTimeout(getCurrentRto());
+	this.ackSocket.setSoTimeout(getCurrentRto());
+	this.connect(destIP, destPort);
+
+	this.dataHeader.setSourceAddress(this.sendingSocket.getLocalAddress());
+	this.dataHeader.setDestAddress(this.sendingSocket.getLocalAddress());
+	this.dataHeader.setSrcPort(this.sendingSocket.getLocalPort());
+	this.dataHeader.setDestPort(DATA_RECEIVE_PORT);
+	this.dataBytes = ByteBuffer.allocate(this.config.getCodec()
+					     .getMaxLength(this.payloadSize));
+	newProtocol();
+    }
+
+    /**
+     * Builds the window protocol for {@link #config} in the windowed modes;
+     * none in stop-and-wait mode.
+     */
+    private void newProtocol() {
+	this.protocol = null;
+	if (this.config.getMode() != TransportMode.STOP_AND_WAIT) {
+	    this.protocol = new SenderProtocol(new PacketSink() {
+		    public void transmit(byte[] buffer, int offset, int length)
+			throws IOException {
+			dataDatagram.setData(buffer, offset, length);
+			sendingSocket.send(dataDatagram);
+		    }
+		}, this.sendingSocket.getLocalAddress(),
+		this.sendingSocket.getLocalAddress(),
+		this.sendingSocket.getLocalPort(), DATA_RECEIVE_PORT,
+		this.config, this.rtt);
+	    this.protocol.setMetrics(this.metrics);
+	    this.protocol.setRetryPolicy(this.retry);
+	    this.protocol.setLatencyRecorder(this.latency);
 	}
     }
 
     /**
      * Open file and send to remote receiver
      * 
-     * @param args
+     * @param args transfer settings, e.g. --mode=gbn --window=16
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
 
-	
-	FileReader fileReader = new FileReader("divine_comedy2.txt");
-	BufferedReader in = new BufferedReader(fileReader);
-
-
+	TransportConfig config = TransportConfig.parse(args);
 	
 	ReliableSender sender =
-	    new ReliableSender(InetAddress.getByName(relayIP));
-	
+	    new ReliableSender(InetAddress.getByName(config.getRelay()), config);
+	sender.getMetrics().publish(config);
 	
+	if (config.isProbeMtu()) {
+	    System.out.println("PATH MTU: payload " + sender.probePathMtu()
+			       + " bytes");
+	}
+	if (config.isHandshake()) {
+	    TransportConfig session = sender.handshake();
+	    System.out.println("SESSION: mode " + session.getMode().getShortName()
+			       + ", window " + session.getWindowSize()
+			       + ", payload " + session.getPayloadSize()
+			       + " bytes, " + session.getCodec().getName()
+			       + " codec, " + session.getChecksum().getShortName()
+			       + " checksum");
+	}
 	
+	//payloads are sliced straight out of the mapped file
+	MappedFileSource in =
+	    new MappedFileSource(Paths.get(config.getInput()),
+				 sender.getPayloadSize());
 	while (true) {
-	    char buffer[] = new char[PAYLOAD_LEN];
-	    int readIndex = in.read(buffer, 0, PAYLOAD_LEN);
-	    String fileString = new String(buffer);
+	    ByteBuffer payload = in.next();
 	    
-	    if (readIndex == -1) {
+	    if (payload == null) {
 		sender.close();
+		sender.getLog().flush();//its lines go first
 		System.out.println("SENDER: CLOSED!");
 		break;
 	    }
 
-	    sender.singleSend(fileString, runningSequenceNo);
-	    runningSequenceNo++;
-	    if (runningSequenceNo > 99) {
-		runningSequenceNo = 0;
-	    }
+	    //a short last chunk is not padded
+	    sender.send(payload);
 	}
 	in.close();
+	sender.getMetrics().stopReporting();
+	System.out.println(sender.getMetrics().getSnapshot());
+
+	CongestionController congestion = sender.getCongestionController();
+	if (congestion != null) {
+	    System.out.println("SENDER: CWND=" + congestion.getCwnd()
+			       + " SSTHRESH=" + congestion.getSsthresh()
+			       + " LOSSES=" + congestion.getLossEvents()
+			       + " TIMEOUTS=" + congestion.getTimeouts());
+	}
 
     }
 
@@ -126,6 +299,437 @@ public class ReliableSender {
 	this.sendingSocket.connect(remoteIP, remotePort);
     }
 
+    /**
+     * Closes both sockets, freeing their ports, and writes out the log
+     * unless it is shared. Call after {@link #close()}.
+     */
+    public void disconnect() {
+	this.sendingSocket.close();
+	this.ackSocket.close();
+	if (this.ownsLog) {
+	    this.log.close();
+	}
+    }
+
+    /**
+     * Searches for the largest payload the path to the receiver carries,
+     * starting from the configured payload size, and uses it for every later
+     * packet. Call before the first {@link #send(String)}.
+     * 
+     * @return the payload size found
+     * @throws IOException
+     */
+    public int probePathMtu() throws IOException {
+	PathMtuProber prober =
+	    new PathMtuProber(new PacketSink() {
+		    public void transmit(byte[] buffer, int offset, int length)
+			throws IOException {
+			dataDatagram.setData(buffer, offset, length);
+			sendingSocket.send(dataDatagram);
+		    }
+		}, this.sendingSocket.getLocalAddress(),
+		this.sendingSocket.getLocalAddress(),
+		this.sendingSocket.getLocalPort(), DATA_RECEIVE_PORT,
+		this.config.getCodec(), this.rtt, this.payloadSize,
+		PathMtuProber.maxPayloadFor(this.sendingSocket.getLocalAddress(),
+					    this.config.getCodec()));
+
+	prober.start(System.nanoTime());
+	while (!prober.isDone()) {
+	    long wait = prober.getDeadline() - System.nanoTime();
+	    if (wait > 0) {
+		this.ackSocket.setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+		this.responseDatagram.setLength(this.responseBuffer.length);
+		try {
+		    this.ackSocket.receive(this.responseDatagram);
+		    this.responseBytes.clear();
+		    this.responseBytes.limit(this.responseDatagram.getLength());
+		    if (this.responseView.decode(this.responseBytes) == MessageView.OK) {
+			prober.onResponse(this.responseView.getOpCode(),
+					  this.responseView.getSequenceNo(),
+					  System.nanoTime());
+		    }
+		} catch (SocketTimeoutException ste) {
+		    this.log.log(LogLevel.DEBUG, "PROBE TIMEOUT!");
+		}
+	    }
+	    prober.onTimer(System.nanoTime());
+	}
+
+	this.payloadSize = prober.getPayloadSize();
+	return this.payloadSize;
+    }
+
+    /**
+     * Settles the session's mode, window size, payload size, codec and
+     * checksum with the receiver and uses them for every later packet,
+     * allowing in the RTO for the ACK delay the receiver announces. Sends
+     * a SYN offering the current settings (see {@link SessionParameters})
+     * and waits for the SYN-ACK, resending the SYN on each timeout as the
+     * retry policy allows and at most {@link #MAX_SYN_ATTEMPTS} times; the
+     * retry listener is told if it gives up. Call
+     * before the first {@link #send(String)}, after {@link #probePathMtu()}
+     * if the path is probed.
+     * 
+     * @return the settings the session runs with
+     * @throws IOException if the receiver does not answer, or answers with
+     *         settings the offer did not allow
+     */
+    public TransportConfig handshake() throws IOException {
+	SessionParameters offer = SessionParameters.offer(this.config);
+	offer.setPayloadSize(this.payloadSize);
+	ByteBuffer body = ByteBuffer.allocate(SessionParameters.MAX_LENGTH);
+	offer.encode(body);
+	body.flip();
+
+	SessionParameters answer = new SessionParameters();
+	int attempts = 0;
+	while (true) {
+	    long sentAt = System.nanoTime();
+	    transmit(ReliableTransportMessage.SYN, 0, body);
+	    attempts++;
+	    long timeout = attempts == 1 ? this.rtt.getRto()
+		: this.retry.getTimeout(this.rtt.getRto());
+	    if (awaitSynAck(sentAt + timeout, answer)) {
+		if (attempts == 1) {
+		    this.rtt.sample(System.nanoTime() - sentAt);
+		}
+		break;
+	    }
+	    this.rtt.backoff();
+	    if (!mayRetry(ReliableTransportMessage.SYN, attempts)) {
+		giveUp(ReliableTransportMessage.SYN, 0, attempts);//throws
+	    }
+	    this.log.log(LogLevel.INFO, "***RESEND SYN***");
+	}
+
+	if (answer.getMode() != this.config.getMode()
+	    || answer.getWindowSize() > offer.getWindowSize()
+	    || answer.getPayloadSize() > offer.getPayloadSize()
+	    || answer.getCodecCount() != 1 || answer.getChecksumCount() != 1) {
+	    throw new IOException("Handshake answer outside the offer: "
+				  + answer);
+	}
+	try {
+	    this.config = answer.apply(this.config);
+	} catch (IllegalArgumentException e) {
+	    throw new IOException("Bad handshake answer: " + answer, e);
+	}
+	this.payloadSize = this.config.getPayloadSize();
+	if (answer.getAckDelay() >= 0) {
+	    //the receiver's delayed ACKs, not this end's settings
+	    this.rtt.setAckDelay(TimeUnit.MILLISECONDS
+				 .toNanos(answer.getAckDelay()));
+	}
+	newProtocol();
+	this.log.log(LogLevel.INFO, "HANDSHAKE: ", answer.toString());
+	return this.config;
+    }
+
+    /**
+     * Waits until 'deadline' for a SYN-ACK and reads its settings into
+     * 'answer'. Anything else that arrives is dropped.
+     * 
+     * @return false if none arrived in time
+     */
+    private boolean awaitSynAck(long deadline, SessionParameters answer)
+	throws IOException {
+	while (true) {
+	    long wait = deadline - System.nanoTime();
+	    if (wait <= 0) {
+		return false;
+	    }
+	    this.ackSocket.setSoTimeout(toMillis(wait));
+	    this.responseDatagram.setLength(this.responseBuffer.length);
+	    try {
+		this.ackSocket.receive(this.responseDatagram);
+	    } catch (SocketTimeoutException ste) {
+		this.log.log(LogLevel.DEBUG, "SYN TIMEOUT!");
+		return false;
+	    }
+	    this.metrics.countReceived();
+	    this.responseBytes.clear();
+	    this.responseBytes.limit(this.responseDatagram.getLength());
+	    if (this.responseView.decode(this.responseBytes) != MessageView.OK) {
+		this.metrics.countChecksumFailure();
+	    } else if (this.responseView.getOpCode() == ReliableTransportMessage.SYN_ACK
+		       && answer.decode(this.responseView)) {
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * Returns the largest payload a DATA packet carries, in bytes.
+     */
+    public int getPayloadSize() {
+	return this.payloadSize;
+    }
+
+    /**
+     * Returns the congestion controller of the windowed modes, for watching
+     * cwnd, ssthresh and loss events; null in stop-and-wait mode or with
+     * congestion control off.
+     */
+    public CongestionController getCongestionController() {
+	if (this.protocol == null) {
+	    return null;
+	}
+	return this.protocol.getCongestionController();
+    }
+
+    /**
+     * Returns the number of packets sent again after a timeout or NAK.
+     */
+    public long getRetransmissions() {
+	if (this.protocol == null) {
+	    return this.resends;
+	}
+	return this.protocol.getRetransmissions();
+    }
+
+    /**
+     * Returns the counters and histograms of this sender, in every mode.
+     */
+    public TransportMetrics getMetrics() {
+	return this.metrics;
+    }
+
+    /**
+     * Records, for each packet sent from here on, the time from its first
+     * transmission until it is acknowledged, retransmissions included.
+     * 
+     * @param latency where to record, or null to stop recording
+     */
+    public void setLatencyRecorder(LatencyRecorder latency) {
+	this.latency = latency;
+	if (this.protocol != null) {
+	    this.protocol.setLatencyRecorder(latency);
+	}
+    }
+
+    /**
+     * @param retryListener told when the retry policy gives up on a packet,
+     *        or null
+     */
+    public void setRetryListener(RetryListener retryListener) {
+	this.retryListener = retryListener;
+    }
+
+    /**
+     * Returns the log the per-packet progress lines go to, written to
+     * standard out by a background thread.
+     */
+    public EventLog getLog() {
+	return this.log;
+    }
+
+    /**
+     * Sends the next packet, its payload's characters as ISO-8859-1 bytes.
+     * 
+     * @param payload
+     * @throws IOException
+     */
+    public void send(String payload) throws IOException {
+	send(ByteBuffer.wrap(payload.getBytes(PAYLOAD_CHARSET)));
+    }
+
+    /**
+     * Sends the next packet. In stop-and-wait mode this waits for its ACK; in
+     * the windowed modes it only waits while the window is full or the
+     * pacing interval has not passed. The bytes between the position and
+     * limit of 'payload' are encoded before this returns, so the caller may
+     * reuse it.
+     * 
+     * @param payload
+     * @throws IOException
+     */
+    public void send(ByteBuffer payload) throws IOException {
+	if (this.protocol == null) {
+	    long started = System.nanoTime();
+	    singleSend(payload, runningSequenceNo);
+	    long elapsed = System.nanoTime() - started;
+	    this.metrics.recordAckLatency(elapsed);
+	    if (this.latency != null) {
+		this.latency.record(elapsed);
+	    }
+	    runningSequenceNo =
+		this.config.getCodec().getSequenceNumbers().next(runningSequenceNo);
+	    return;
+	}
+
+	drainAcks();
+	while (true) {
+	    if (!this.protocol.isWindowOpen()) {
+		pump(SenderProtocol.NO_DEADLINE);
+		continue;
+	    }
+
+	    long pace = this.protocol.getSendTime() - System.nanoTime();
+	    if (pace >= MIN_SOCKET_WAIT) {
+		pump(this.protocol.getSendTime());//read ACKs meanwhile
+	    } else {
+		if (pace > 0) {
+		    //too short for a socket timeout
+		    LockSupport.parkNanos(pace);
+		}
+		break;
+	    }
+	}
+	this.protocol.send(ReliableTransportMessage.DATA, payload,
+			   System.nanoTime());
+    }
+
+    /**
+     * Blocks until every packet sent so far has been acknowledged. Does
+     * nothing in stop-and-wait mode, where each send is already acknowledged.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+	if (this.protocol == null) {
+	    return;
+	}
+
+	while (!this.protocol.isIdle()) {
+	    pump(SenderProtocol.NO_DEADLINE);
+	}
+    }
+
+    /**
+     * Waits for one ACK, until the retransmission timer expires or until
+     * 'until', then lets the window protocol react to whichever happened
+     * first.
+     * 
+     * @param until latest time to wait to, from System.nanoTime()
+     * @return false if the oldest packet was the END and the retry policy
+     *         gave up on it
+     * @throws IOException if the oldest packet was DATA and the retry policy
+     *         gave up on it
+     */
+    private boolean pump(long until) throws IOException {
+	long wait = Math.min(this.protocol.getDeadline(), until)
+	    - System.nanoTime();
+
+	if (wait > 0) {
+	    //round up so the socket does not wake just before the deadline
+	    long waitMillis = TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+	    this.ackSocket.setSoTimeout((int) Math.min(waitMillis, getCurrentRto()));
+	    this.responseDatagram.setLength(this.responseBuffer.length);
+
+	    try {
+		this.ackSocket.receive(this.responseDatagram);
+		this.responseBytes.clear();
+		this.responseBytes.limit(this.responseDatagram.getLength());
+		onResponse();
+	    } catch (SocketTimeoutException ste) {
+		this.log.log(LogLevel.DEBUG, "TIMEOUT!");
+	    }
+	}
+
+	long now = System.nanoTime();
+	if (now >= this.protocol.getDeadline() && !this.protocol.isIdle()
+	    && !this.protocol.isProbing()) {
+	    //the oldest packet has been sent once plus once per timeout
+	    int attempts = this.protocol.getConsecutiveTimeouts() + 1;
+	    char opCode = this.closing ? ReliableTransportMessage.END
+		: ReliableTransportMessage.DATA;
+	    if (!mayRetry(opCode, attempts)) {
+		giveUp(opCode, this.protocol.getBase(), attempts);
+		return false;
+	    }
+	}
+
+	if (this.protocol.onTimer(now)
+	    && this.log.isEnabled(LogLevel.DEBUG)) {
+	    this.log.log(LogLevel.DEBUG, "***RESEND*** with "
+			 + this.protocol.getInFlight() + " packets in flight, window "
+			 + this.protocol.getWindow());
+	}
+	return true;
+    }
+
+    /**
+     * Hands every ACK already queued on the socket to the window protocol
+     * without waiting for more. While the window is open the sender only
+     * writes, so without this the ACKs would sit unread until it closes,
+     * holding back the window, the RTT samples and the pacing rate.
+     * 
+     * @throws IOException
+     */
+    private void drainAcks() throws IOException {
+	this.ackChannel.configureBlocking(false);
+	try {
+	    while (true) {
+		this.responseBytes.clear();
+		SocketAddress from = this.ackChannel.receive(this.responseBytes);
+		if (from == null) {
+		    return;
+		}
+		this.responseBytes.flip();
+		onResponse();
+	    }
+	} finally {
+	    //the socket's timed reads need blocking mode
+	    this.ackChannel.configureBlocking(true);
+	}
+    }
+
+    /**
+     * Decodes the response in {@link #responseBytes} and passes it to the
+     * window protocol, or counts it as damaged.
+     * 
+     * @throws IOException if a resend it triggers fails
+     */
+    private void onResponse() throws IOException {
+	if (this.responseView.decode(this.responseBytes) == MessageView.OK) {
+	    this.protocol.onResponse(this.responseView, System.nanoTime());
+	} else {
+	    this.metrics.countReceived();
+	    this.metrics.countChecksumFailure();
+	}
+    }
+
+    /**
+     * Returns true if a packet sent 'attempts' times without an answer may
+     * be sent again: the retry policy allows it and, for END, fewer than
+     * {@link #MAX_CLOSE_ATTEMPTS} or, for SYN, fewer than
+     * {@link #MAX_SYN_ATTEMPTS} were made.
+     */
+    private boolean mayRetry(char opCode, int attempts) {
+	if (opCode == ReliableTransportMessage.END
+	    && attempts >= MAX_CLOSE_ATTEMPTS) {
+	    return false;
+	}
+	if (opCode == ReliableTransportMessage.SYN
+	    && attempts >= MAX_SYN_ATTEMPTS) {
+	    return false;
+	}
+	return this.retry.shouldRetry(attempts);
+    }
+
+    /**
+     * Tells the retry listener a packet was given up on, then fails the
+     * transfer if it was DATA or a SYN.
+     * 
+     * @throws IOException if 'opCode' is DATA or SYN
+     */
+    private void giveUp(char opCode, int seqNo, int attempts)
+	throws IOException {
+	this.log.log(LogLevel.INFO, "***GIVING UP*** after attempts: ", attempts);
+	if (this.retryListener != null) {
+	    this.retryListener.gaveUp(opCode, seqNo, attempts);
+	}
+	if (opCode == ReliableTransportMessage.DATA) {
+	    throw new IOException("No ACK for DATA packet " + seqNo + " after "
+				  + attempts + " attempts");
+	}
+	if (opCode == ReliableTransportMessage.SYN) {
+	    throw new IOException("No answer to the handshake after "
+				  + attempts + " attempts");
+	}
+    }
+
     /**
      * Sends a single packet with sequence number 'seqNo' and receives ACK
      * 
@@ -134,17 +738,29 @@ public class ReliableSender {
      * @throws IOException
      */
     public void singleSend(String payload, int seqNo) throws IOException {
+	singleSend(ByteBuffer.wrap(payload.getBytes(PAYLOAD_CHARSET)), seqNo);
+    }
+
+    /**
+     * Sends a single packet with sequence number 'seqNo' and receives ACK.
+     * 'payload' is not consumed, so it can be resent.
+     * 
+     * @param payload
+     * @param seqNo
+     * @throws IOException
+     */
+    public void singleSend(ByteBuffer payload, int seqNo) throws IOException {
 	
-	if(debug){
-	    System.out.println("SENDER: PAYLOAD=\t" + payload);
-	    System.out.println("SENDER: LOCAL ADD=" +
-			       this.sendingSocket.getLocalAddress());
-	    System.out.println("SENDER: REMOTE ADD=" +
-			       this.sendingSocket.getLocalAddress());
-	    System.out.println("SENDER: LOCAL P=" +
-			       this.sendingSocket.getLocalPort());
-	    System.out.println("SENDER: REMOTE P=" +
-			       DATA_RECEIVE_PORT);
+	if(this.log.isEnabled(LogLevel.DEBUG)){
+	    this.log.log(LogLevel.DEBUG, "SENDER: PAYLOAD=\t" + payload.remaining()
+			 + " bytes");
+	    this.log.log(LogLevel.DEBUG, "SENDER: LOCAL ADD=",
+			 this.sendingSocket.getLocalAddress().toString());
+	    this.log.log(LogLevel.DEBUG, "SENDER: REMOTE ADD=",
+			 this.sendingSocket.getLocalAddress().toString());
+	    this.log.log(LogLevel.DEBUG, "SENDER: LOCAL P=",
+			 this.sendingSocket.getLocalPort());
+	    this.log.log(LogLevel.DEBUG, "SENDER: REMOTE P=", DATA_RECEIVE_PORT);
 	}
 	
 	/*
@@ -162,140 +778,251 @@ public class ReliableSender {
 
 
 	
-	ReliableTransportMessage message = 
-	    new ReliableTransportMessage(this.sendingSocket.getLocalAddress(),
-					 this.sendingSocket.getLocalAddress(),
-					 this.sendingSocket.getLocalPort(),
-					 DATA_RECEIVE_PORT, 
-					 ReliableTransportMessage.DATA,
-					 seqNo, payload);
-	
-	
+	sendUntilAcked(ReliableTransportMessage.DATA, seqNo, payload);
+	this.log.log(LogLevel.DEBUG, "OK!");
+    }
 
-	DatagramPacket datagram = new DatagramPacket(message.getBuffer(),
-						     message.getBuffer().length);
-	this.sendingSocket.send(datagram);
-	
-	
-	if (waitForAck()) {
-	    System.out.println("OK!");
-	}else{
-	    System.out.println("***RESEND!!!!***\n" + message.getPayload());
-	    singleSend(payload, seqNo);
+    /**
+     * Sends a packet and waits for its ACK, resending it in a loop for as
+     * long as the retry policy allows.
+     * 
+     * @param opCode
+     * @param seqNo
+     * @param body not consumed, so it can be resent
+     * @return true if the packet was acknowledged, false if it was END and
+     *         the retry policy gave up on it
+     * @throws IOException if it was DATA and the retry policy gave up on it
+     */
+    private boolean sendUntilAcked(char opCode, int seqNo, ByteBuffer body)
+	throws IOException {
+	int attempts = 0;
+	while (true) {
+	    transmit(opCode, seqNo, body);
+	    attempts++;
+	    if (timedWaitForAck(seqNo, System.nanoTime())) {
+		return true;
+	    }
+	    if (!mayRetry(opCode, attempts)) {
+		giveUp(opCode, seqNo, attempts);
+		return false;
+	    }
+
+	    if (opCode == ReliableTransportMessage.END) {
+		this.log.log(LogLevel.INFO, "***RESEND CLOSE PACKET***");
+	    } else {
+		this.log.log(LogLevel.INFO, "***RESEND!!!!*** ", seqNo);
+	    }
+	    this.resends++;
+	    this.metrics.countRetransmit();
+	    if (this.nakReceived) {
+		this.metrics.countFastRetransmit();
+	    }
 	}
-	
     }
 
     /**
-     * Listens for an ACK/NAK and returns true if response is an ACK.
+     * Encodes one packet at its exact length and sends it.
      * 
+     * @param opCode
+     * @param seqNo
+     * @param body
+     * @throws IOException
+     */
+    private void transmit(char opCode, int seqNo, ByteBuffer body)
+	throws IOException {
+	int maxLength = this.config.getCodec().getMaxLength(body.remaining());
+	if (this.dataBytes.capacity() < maxLength) {
+	    this.dataBytes = ByteBuffer.allocate(maxLength);
+	}
+
+	this.dataBytes.clear();
+	this.dataHeader.setOpCode(opCode);
+	this.dataHeader.setSequenceNo(seqNo);
+	this.dataHeader.encode(this.config.getCodec(), body, this.dataBytes);
+	this.dataDatagram.setData(this.dataBytes.array(), 0,
+				  this.dataBytes.position());
+	this.sendingSocket.send(this.dataDatagram);
+	this.metrics.countSent();
+    }
+
+    /**
+     * Waits up to the current RTO for an ACK to packet 'seqNo', sent at
+     * 'sentAt', plus the retry policy's jitter if it is a resend. The round
+     * trip is sampled only if the packet was not a resend (Karn's rule); a
+     * timeout backs the RTO off. A NAK does not, since the packet arrived
+     * damaged rather than late, and the caller resends it at once.
+     * 
+     * @param seqNo sequence number of the packet sent
+     * @param sentAt time the packet was sent, from System.nanoTime()
      * @return true if response is an ACK and no timeout thrown
      * @throws IOException
      */
-    private boolean waitForAck() throws IOException {
-	byte buffer[] = new byte[PAYLOAD_LEN];
-	DatagramPacket responseDatagram = new DatagramPacket(buffer, PAYLOAD_LEN);
+    private boolean timedWaitForAck(int seqNo, long sentAt) throws IOException {
+	long timeout = this.resending ? this.retry.getTimeout(this.rtt.getRto())
+	    : this.rtt.getRto();
 
-	//this.sendingSocket.receive(responseDatagram);
-	
-	try{
-	    
-	    this.ackSocket.receive(responseDatagram);
-	}catch (SocketTimeoutException ste){
-	    if(debug){
-		System.out.println("TIMEOUT!");
+	if (waitForAck(seqNo, sentAt + timeout)) {
+	    if (!this.resending) {
+		long sample = System.nanoTime() - sentAt;
+		this.rtt.sample(sample);
+		this.metrics.recordRtt(sample);
 	    }
-	    return false;//timeout thrown
+	    this.resending = false;
+	    return true;
 	}
-	
 
-	StringBuffer msgBuffer = new StringBuffer(responseDatagram.getLength());
-	System.out.println("\t\t\tWaiting...");
-	for (int i = 0; i < responseDatagram.getLength(); i++) {
-	    msgBuffer.append((char) responseDatagram.getData()[i]);
+	if (!this.nakReceived) {
+	    this.rtt.backoff();
 	}
-	
-	
-	boolean isOkAck = false;
-	try{
-	    System.out.println("\t\t\tTRYING");
-	    
-	    ReliableTransportMessage response = ReliableTransportMessage
-		.reconstitute(buffer);
+	this.resending = true;
+	return false;
+    }
 
-	    
-	    boolean isAck = (response.getOpCode() == ReliableTransportMessage.ACK);
+    /**
+     * Returns the current retransmission timeout in milliseconds, rounded up.
+     */
+    public int getCurrentRto() {
+	return toMillis(this.rtt.getRto());
+    }
 
-	      
-	    if(isAck){
-		System.out.println("\t\t\tISACK = YES");
-	    }else{
-		System.out.println("\t\t\tISACK = NO!");
-	    }
-	    
+    /**
+     * Converts 'nanos' to milliseconds, rounded up.
+     */
+    private static int toMillis(long nanos) {
+	return (int) TimeUnit.NANOSECONDS.toMillis(nanos
+						   + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
 
+    /**
+     * Returns the round-trip estimator behind {@link #getCurrentRto()}.
+     */
+    public RttEstimator getRttEstimator() {
+	return this.rtt;
+    }
 
+    /**
+     * Listens for an ACK/NAK to packet 'seqNo' until 'deadline' and returns
+     * true if response is an ACK. Responses are decoded in place into
+     * {@link #responseView} and their payload read into {@link #ackPayload}.
+     * An ACK or NAK for another packet, e.g. a late duplicate ACK for the
+     * previous one, is ignored and the wait goes on.
+     * 
+     * @param seqNo sequence number of the packet sent
+     * @param deadline end of the wait, from System.nanoTime()
+     * @return true if response is an intact ACK for 'seqNo' and no timeout
+     *         thrown
+     * @throws IOException
+     */
+    private boolean waitForAck(int seqNo, long deadline) throws IOException {
+	this.nakReceived = false;
+	SequenceNumbers sequence = this.config.getCodec().getSequenceNumbers();
 
+	while (true) {
+	    long remaining = deadline - System.nanoTime();
+	    if (remaining <= 0) {
+		this.log.log(LogLevel.DEBUG, "TIMEOUT!");
+		this.metrics.countTimeout();
+		return false;
+	    }
+	    this.ackSocket.setSoTimeout(toMillis(remaining));
+	    this.responseDatagram.setLength(this.responseBuffer.length);
+	
+	    try{
+	    
+		this.ackSocket.receive(this.responseDatagram);
+	    }catch (SocketTimeoutException ste){
+		this.log.log(LogLevel.DEBUG, "TIMEOUT!");
+		this.metrics.countTimeout();
+		return false;//timeout thrown
+	    }
+	    this.metrics.countReceived();
+	
 
-	    boolean sumOk = validateSum(response);
-	    	  	    
+	    this.log.log(LogLevel.DEBUG, "\t\t\tWaiting...");
+	
+	    this.responseBytes.clear();
+	    this.responseBytes.limit(this.responseDatagram.getLength());
+	    int result = this.responseView.decode(this.responseBytes);
+	    
+	    boolean sumOk = result == MessageView.OK;
+			    
 	    if(sumOk){
-		System.out.println("\t\t\tSUMOK = YES");
+		this.log.log(LogLevel.DEBUG, "\t\t\tSUMOK = YES");
 	    }else{
-		System.out.println("\t\t\tSUMOK = NO!");
+		this.log.log(LogLevel.DEBUG, "\t\t\tSUMOK = NO! ",
+			     MessageView.describe(result));
+		this.metrics.countChecksumFailure();
+		return false;
 	    }
-	    
-	    
-	    boolean seqOk = runningSequenceNo==response.getSequenceNo();
-	    
-	    
 
 
+	    char opCode = this.responseView.getOpCode();
+	    boolean isAck = (opCode == ReliableTransportMessage.ACK);
+	    //a NAK carries the last packet received in order, the one before
+	    boolean seqOk = isAck ? this.responseView.getSequenceNo() == seqNo
+		: sequence.next(this.responseView.getSequenceNo()) == seqNo;
+
 	    if(seqOk){
-		System.out.println("\t\t\tSEQOK = YES");
+		this.log.log(LogLevel.DEBUG, "\t\t\tSEQOK = YES");
 	    }else{
-		System.out.println("\t\t\tSEQOK = NO!");
+		this.log.log(LogLevel.DEBUG, "\t\t\tSEQOK = NO! STALE ",
+			     this.responseView.getSequenceNo());
+		continue;//keep waiting for the ACK to this packet
 	    }
-	    
 
-	    isOkAck = isAck && sumOk;
-	    
-	    
-	    System.out.println("\t\tACK RECEIVED: " + response.getSequenceNo());
-	    
-	}catch (NullPointerException npe){
-	    System.out.println("\t\t\tNOPE");
-	    return false;
-	}
-	//System.out.println(response.getOpCode());
-	
-	return isOkAck;
-    }
+	      
+	    if(isAck){
+		this.log.log(LogLevel.DEBUG, "\t\t\tISACK = YES");
+	    }else{
+		this.log.log(LogLevel.DEBUG, "\t\t\tISACK = NO!");
+		if (opCode == ReliableTransportMessage.NAK) {
+		    this.metrics.countNak();
+		    this.nakReceived = true;
+		}
+		return false;
+	    }
 
 
+	    boolean payloadOk = this.ackPayload.decode(this.responseView);
+	    
+	    if(this.ackPayload.getSackCount() > 0){
+		this.log.log(LogLevel.DEBUG, "\t\t\tSACK BLOCKS = ",
+			     this.ackPayload.getSackCount());
+	    }
+	    
 
-    /**
-     * 
-     * @param message The ReliableTransportMessage to check
-     * @return true when calculated checksum is equal to stored checksum
-     */
-    private boolean validateSum(ReliableTransportMessage message){
+	    this.log.log(LogLevel.DEBUG, "\t\tACK RECEIVED: ",
+			 this.responseView.getSequenceNo());
 	
-
-	return message.getStoredChecksum() == message.getComputedChecksum();
-
+	    return payloadOk;
+	}
     }
     
     /**
-     * Sends a single packet with opcode END. If no ACK received after 20 attemps,
-     * terminate.
+     * Sends a single packet with opcode END. If no ACK received after 20 attemps
+     * (or fewer, if the retry policy says so), terminate. In the windowed modes
+     * the window is drained first and the END packet takes the next sequence
+     * number.
      * 
      * @throws IOException
      */
     public void close() throws IOException {
 	
 
-	System.out.println("CLOSING...");
+	this.log.log(LogLevel.INFO, "CLOSING...");
+	if (this.protocol != null) {
+	    flush();
+	    while (!this.protocol.isWindowOpen()) {
+		pump(SenderProtocol.NO_DEADLINE);//the receive window is closed
+	    }
+	    this.closing = true;
+	    this.protocol.send(ReliableTransportMessage.END, "", System.nanoTime());
+	    while (!this.protocol.isIdle() && pump(SenderProtocol.NO_DEADLINE)) {
+		//until acknowledged or given up on
+	    }
+	    this.log.log(LogLevel.INFO, "OK!");
+	    return;
+	}
 	/*
 	ReliableTransportMessage message = 
 	    new ReliableTransportMessage(this.sendingSocket.getLocalAddress(),
@@ -305,25 +1032,8 @@ public class ReliableSender {
 					 ReliableTransportMessage.END, 2,"");
 	*/
 
-	ReliableTransportMessage message = 
-	    new ReliableTransportMessage(this.sendingSocket.getLocalAddress(),
-					 this.sendingSocket.getLocalAddress(),
-					 this.sendingSocket.getLocalPort(),
-					 DATA_RECEIVE_PORT, 
-					 ReliableTransportMessage.END, runningSequenceNo,"");
-	DatagramPacket datagram = new DatagramPacket(message.getBuffer(),
-						     message.getBuffer().length);
-
-	this.sendingSocket.send(datagram);
-
-	
-	if (waitForAck() || (closeFailCount>20) ) {
-	    System.out.println("OK!");
-	}else{
-	    System.out.println("***RESEND CLOSE PACKET***");
-	    closeFailCount++;
-	    close();//try to close again
-	    
-	}
+	sendUntilAcked(ReliableTransportMessage.END, runningSequenceNo,
+		       EMPTY_PAYLOAD);
+	this.log.log(LogLevel.INFO, "OK!");
     }
 }
@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Represents a transport-level message that will be delivered via a possibly
@@ -24,8 +26,10 @@ import java.net.UnknownHostException;
  * 43-72 Payload, right-padded with blanks <br>
  * 73-77 Checksum, left-padded with blanks <br>
  * </code> <br>
- * Opcodes are D=DATA, A=ACK, N=NAK, E=END. <br>
- * The checksum is the sum of all the character codes of the first 73 chars.
+ * Opcodes are D=DATA, A=ACK, N=NAK, E=END, P=PROBE, S=SYN, Y=SYN-ACK. <br>
+ * The checksum is the sum of all the character codes before it. Payloads
+ * longer than {@link #PAYLOAD_LEN} chars are carried whole and push the
+ * checksum back; its sum is then taken modulo 100000 to fit the field.
  * 
  * @author Elliott Tanner
  * 
@@ -43,6 +47,11 @@ public class ReliableTransportMessage {
      */
     public static final int	BUFFER_LEN	= 78;
 
+    /**
+     * Length of the checksum trailer
+     */
+    public static final int	CHECKSUM_LEN	= 5;
+
     /**
      * Operation code for a data message
      */
@@ -62,12 +71,34 @@ public class ReliableTransportMessage {
      * Operation code for a negative acknowledgment
      */
     public static final char	NAK			= 78;
+
+    /**
+     * Operation code for a path MTU probe; the receiver echoes it back
+     */
+    public static final char	PROBE			= 80;
+
+    /**
+     * Operation code for a session offer; see {@link SessionParameters}
+     */
+    public static final char	SYN			= 83;
+
+    /**
+     * Operation code for the answer to a session offer
+     */
+    public static final char	SYN_ACK			= 89;
     /**
      * Maximum length of the text payload carried by this message. Shorter
      * payloads will be right-padded with blanks.
      */
     public static final int		PAYLOAD_LEN	= 30;
 
+    /**
+     * Number of distinct sequence numbers the two-character field can carry.
+     * Sequence numbers run 0-99 and then wrap back to 0. The binary format
+     * carries a full 32-bit sequence number; see {@link SequenceNumbers}.
+     */
+    public static final int		SEQUENCE_MODULUS = 100;
+
     private InetAddress			srcIP		= null;
 
     private InetAddress			destIP		= null;
@@ -91,8 +122,8 @@ public class ReliableTransportMessage {
 
     /**
      * Load this message with all of its fields. <br>
-     * If length of 'payload' is greater than {@link #PAYLOAD_LEN} truncate
-     * 'payload'. If the length of 'payload' is less than {@link #PAYLOAD_LEN}
+     * If the length of 'payload' is less than {@link #PAYLOAD_LEN} it is
+     * right-padded with blanks; longer payloads are kept whole.
      * 
      * @param srcIP
      *            source IP address as an InetAddress
@@ -143,91 +174,59 @@ public class ReliableTransportMessage {
     }
 
     /**
+     * Decodes a datagram received into a larger, zero-filled buffer, e.g. a
+     * {@link #BUFFER_LEN} or 1024 byte receive buffer. The trailing zero bytes
+     * are not part of the message, whose last byte is a checksum digit.
+     *
      * @param encodingBytes
      * @return a {@link ReliableTransportMessage} containing the data in
-     *         encodingBytes
+     *         encodingBytes, or null if they are not a valid, intact message
      */
     public static ReliableTransportMessage reconstitute(byte[] encodingBytes) {
-	ReliableTransportMessage message = null;
-	
-	try {
-	    char encodingChars[] = new char[encodingBytes.length];
-
-	    for (int byteIndex = 0; byteIndex < encodingBytes.length; byteIndex++) {
-		/*
-		 * convert the byte at 'byteIndex' in encodingBytes to a char
-		 * and place this char in encodingChars at 'byteIndex'
-		 */
-
-		encodingChars[byteIndex] = (char) encodingBytes[byteIndex];
-	    }//for (byteIndex...)
-
-
-
-	    String encodingString = new String(encodingChars);
-
-	    String sourceIPString = encodingString.substring(0, 15).trim();
-	    String sourcePortString = encodingString.substring(15, 20).trim();
-	    String destIPString = encodingString.substring(20, 35).trim();
-	    String destPortString = encodingString.substring(35, 40).trim();
-	    String opCodeString = encodingString.substring(40, 41).trim();
-	    String sequenceString = encodingString.substring(41, 43).trim();
-	    String payloadString = encodingString.substring(43, 73);
-	    String checksumString = encodingString.substring(73, 78).trim();
-	    InetAddress tempSrcIP = InetAddress.getByName(sourceIPString);
-	    InetAddress tempDestIP = InetAddress.getByName(destIPString);
-	    
-	    /*
-	    System.out.println("*************************************");
-	    System.out.println("*****************DATA****************");
-	    System.out.println("SOURCE IP  =\t" + sourceIPString);
-	    System.out.println("SOURCE PORT=\t" + sourcePortString);
-	    System.out.println("DEST IP    =\t" + destIPString);
-	    System.out.println("DEST PORT  =\t" + destPortString);
-	    System.out.println("OP CODE    =\t" + opCodeString);
-	    System.out.println("SEQ        =\t" + sequenceString);
-	    System.out.println("PAYLOAD    =\t" + payloadString);
-	    System.out.println("CHECKSUM   =\t" + checksumString);
-	    System.out.println("***************END DATA**************");
-	    System.out.println("*************************************");
-	    */
-
-	    
-	    int tempSrcPort = Integer.parseInt(sourcePortString);
-	    int tempDestPort = Integer.parseInt(destPortString);
-	    char tempOpCode = opCodeString.charAt(0);
-	    int tempSequence = Integer.parseInt(sequenceString);
-
-	    message = new ReliableTransportMessage(tempSrcIP, tempDestIP,
-						   tempSrcPort, tempDestPort, tempOpCode, tempSequence,
-						   payloadString);
-	    
-	    
-	    message.storedChecksum = Integer.parseInt(checksumString);
-	    
-	    if (message.getComputedChecksum() != message.storedChecksum) {
-		/*
-		  System.err.println("stored: " + message.storedChecksum);
-		System.err
-		    .println("computed: " + message.getComputedChecksum());
-		*/
-		throw new Exception("ERROR: Bad checksum!");
+	int length = encodingBytes.length;
+	while (length > 0 && encodingBytes[length - 1] == 0) {
+	    length--;
+	}
+	return reconstitute(encodingBytes, length);
+    }
+
+    /**
+     * Decodes the first 'length' bytes of 'encodingBytes'. With exact-length
+     * framing the payload runs up to the checksum, which is the last
+     * {@link #CHECKSUM_LEN} bytes, so 'length' must be the datagram length.
+     *
+     * @param encodingBytes
+     *            buffer holding the datagram from index 0
+     * @param length
+     *            number of bytes in the datagram
+     * @return a {@link ReliableTransportMessage} containing the data in
+     *         encodingBytes, or null if they are not a valid, intact message
+     */
+    public static ReliableTransportMessage reconstitute(byte[] encodingBytes,
+							int length) {
+	/*
+	 * parse the fields straight out of the bytes; a MessageView reports
+	 * problems as result codes, so no exceptions are thrown for bad input
+	 */
+	ByteBuffer encoding = ByteBuffer.wrap(encodingBytes, 0, length);
+	MessageView view = new MessageView();
+	int result = WireCodecs.TEXT.decode(encoding, view);
+
+	if (result != MessageView.OK) {
+	    if (error != null) {
+		error.println("ERROR: Issue reconstituting message");
+		error.println(MessageView.describe(result));
 	    }
-	    
-	    
-	}//try
-	catch (UnknownHostException e) {
-	    error.println("ERROR: Unknown host: " + e.getMessage());
-	    error.println(e.getMessage());
-	    return null;
-	}//catch unknown host 
-	catch (Exception e1) {
-	    error.println("ERROR: Issue reconstituting message");
-	    error.println(e1.getMessage());
-	    
 	    return null;
-	}//catch 
-	//end try-catch
+	}
+
+	ReliableTransportMessage message = view.toMessage();
+	if (message != null) {
+	    message.storedChecksum = TextWireCodec.parseNumber(encoding,
+							       length
+							       - CHECKSUM_LEN,
+							       CHECKSUM_LEN);
+	}
 
 	return message;
     }
@@ -251,30 +250,31 @@ public class ReliableTransportMessage {
 					       "'value' cannot be represented in 'width' chars.");
 	}
 
-	String paddedString = unpaddedString;
-	for (int i = unpaddedString.length(); i < width; i++) {
-	    paddedString = " " + paddedString;
-	}
+	char paddedChars[] = new char[width];
+	int padding = width - unpaddedString.length();
+	Arrays.fill(paddedChars, 0, padding, ' ');
+	unpaddedString.getChars(0, unpaddedString.length(), paddedChars, padding);
 	
-	return paddedString.toCharArray();
+	return paddedChars;
     }
 
     /**
+     * Returns 'payload' right-padded with blanks to {@link #PAYLOAD_LEN}
+     * chars. Longer payloads are returned whole.
+     * 
      * @param payload
-     * @return
+     * @return the padded payload
      */
     protected static char[] rightPaddedString(String payload) {
-	String unpaddedString = payload;
-	String paddedString = unpaddedString;
-	if (unpaddedString.length() > PAYLOAD_LEN) {
-	    paddedString = unpaddedString.substring(0, PAYLOAD_LEN - 1);
-	} else {
-	    for (int i = unpaddedString.length(); i < PAYLOAD_LEN; i++) {
-		paddedString += " ";
-	    }
+	if (payload.length() >= PAYLOAD_LEN) {
+	    return payload.toCharArray();
 	}
 
-	return paddedString.toCharArray();
+	char paddedChars[] = new char[PAYLOAD_LEN];
+	payload.getChars(0, payload.length(), paddedChars, 0);
+	Arrays.fill(paddedChars, payload.length(), PAYLOAD_LEN, ' ');
+
+	return paddedChars;
     }
 
     /**
@@ -284,14 +284,19 @@ public class ReliableTransportMessage {
      * @return
      */
     public static String leftPaddedIP(InetAddress value, int width) {
-	String padded = value.getHostAddress();
+	String unpadded = value.getHostAddress();
+	if (unpadded.length() >= width) {
+	    return unpadded;
+	}
 
-	while (padded.length() < width) {
+	StringBuilder padded = new StringBuilder(width);
+	for (int i = unpadded.length(); i < width; i++) {
 	    // add a space character to the left of the string
-	    padded = " " + padded;
+	    padded.append(' ');
 	}
+	padded.append(unpadded);
 
-	return padded;
+	return padded.toString();
 
     }
 
@@ -301,21 +306,21 @@ public class ReliableTransportMessage {
      * Encodes this ReliableTransportMessage into its buffer.
      */
     public void encode() {
-	String encodedString = "";
-	encodedString += leftPaddedIP(this.srcIP, 15); // 0-14
-	encodedString += new String(leftPaddedInt(this.srcPort, 5)); // 15-19
-	encodedString += leftPaddedIP(this.destIP, 15);// 20-34
-	encodedString += new String(leftPaddedInt(this.destPort, 5));// 35-39
-	encodedString += this.opCode;// 40
-	encodedString += new String(leftPaddedInt(this.sequenceNo, 2));// 41-42
-	encodedString += new String(rightPaddedString(this.payload));// 43-72
-	char encodedChars[] = encodedString.toCharArray();
+	StringBuilder encoded = new StringBuilder(BUFFER_LEN + this.payload.length());
+	encoded.append(leftPaddedIP(this.srcIP, 15)); // 0-14
+	encoded.append(leftPaddedInt(this.srcPort, 5)); // 15-19
+	encoded.append(leftPaddedIP(this.destIP, 15));// 20-34
+	encoded.append(leftPaddedInt(this.destPort, 5));// 35-39
+	encoded.append(this.opCode);// 40
+	encoded.append(leftPaddedInt(this.sequenceNo, 2));// 41-42
+	encoded.append(rightPaddedString(this.payload));// 43-72
 	int sum = 0;
-	for (char encodedChar : encodedChars) {
-	    sum += (int) encodedChar;
+	for (int i = 0; i < encoded.length(); i++) {
+	    sum += (int) encoded.charAt(i);
 	}
-	encodedString += new String(leftPaddedInt(sum, 5));// 73-77
-	this.buffer = encodedString.getBytes();
+	encoded.append(leftPaddedInt(TextWireCodec.foldChecksum(sum),
+				     CHECKSUM_LEN));// 73-77
+	this.buffer = encoded.toString().getBytes();
 
     }
 
@@ -353,17 +358,17 @@ public class ReliableTransportMessage {
     }
 
     /**
-     * Returns the sum of the first {@link #HEADER_LEN}+{@link #PAYLOAD_LEN}
-     * chars of buffer.
+     * Returns the sum of every char of buffer before the checksum, i.e. the
+     * first {@link #HEADER_LEN}+{@link #PAYLOAD_LEN} for a short payload.
      */
     protected int getComputedChecksum() {
 
 	int sum = 0;
-	for (int i = 0; i < HEADER_LEN + PAYLOAD_LEN; i++) {
+	for (int i = 0; i < this.buffer.length - CHECKSUM_LEN; i++) {
 	    sum += getChecksumTerm(i);
 	}
 
-	return sum;
+	return TextWireCodec.foldChecksum(sum);
 
     }
 
@@ -433,6 +438,16 @@ public class ReliableTransportMessage {
 	this.payload = newPayload;
     }
 
+    /**
+     * Records the checksum a decoder found in the received packet.
+     * 
+     * @param storedChecksum
+     *            checksum carried by the packet
+     */
+    void setStoredChecksum(int storedChecksum) {
+	this.storedChecksum = storedChecksum;
+    }
+
     // endregion setters
 
 }
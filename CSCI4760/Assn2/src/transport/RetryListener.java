@@ -0,0 +1,37 @@
+/**
+ * RetryListener.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+
+/**
+ * Told by a {@link ReliableSender} when its {@link RetryPolicy} runs out of
+ * attempts for a packet, e.g. to log the outage or release resources before
+ * the transfer fails.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public interface RetryListener {
+
+    /**
+     * Called once the last allowed attempt at a packet has gone unanswered.
+     * A DATA packet or handshake SYN that gives up fails the transfer with
+     * an {@link IOException} after this returns; an END packet does not,
+     * since its ACK is the one most likely to be lost for good when the
+     * receiver exits.
+     *
+     * @param opCode
+     *            {@link ReliableTransportMessage#DATA},
+     *            {@link ReliableTransportMessage#END} or
+     *            {@link ReliableTransportMessage#SYN}
+     * @param seqNo
+     *            sequence number of the packet
+     * @param attempts
+     *            number of times it was sent
+     * @throws IOException
+     */
+    void gaveUp(char opCode, int seqNo, int attempts) throws IOException;
+}
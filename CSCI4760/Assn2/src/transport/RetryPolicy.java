@@ -0,0 +1,114 @@
+/**
+ * RetryPolicy.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.util.Random;
+
+/**
+ * How long and how often a packet is retransmitted. <br>
+ * The wait before each retransmission is the current RTO, which the
+ * {@link RttEstimator} doubles on every timeout (up to its maximum), plus a
+ * random jitter of up to a fraction of it, so senders that lost packets at
+ * the same moment do not retransmit in lockstep. A packet is sent at most
+ * {@link #getMaxAttempts()} times, counting the first; 0 keeps trying for as
+ * long as the caller allows. <br>
+ * Callers retry in a loop, so however long an outage lasts it costs no
+ * memory.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class RetryPolicy {
+
+    // region fields
+    private final int		maxAttempts;
+
+    private final double	jitter;
+
+    private final Random	random;
+    // endregion fields
+
+    /**
+     * @param maxAttempts
+     *            most times a packet is sent, 0 for no limit
+     * @param jitter
+     *            largest random addition to a retransmission timeout, as a
+     *            fraction of it (0 - 1)
+     * @param random
+     *            source of the jitter
+     * @throws IllegalArgumentException
+     *             if 'maxAttempts' is negative or 'jitter' is not 0 - 1
+     */
+    public RetryPolicy(int maxAttempts, double jitter, Random random)
+	throws IllegalArgumentException {
+	if (maxAttempts < 0) {
+	    throw new IllegalArgumentException("max attempts must not be negative, got "
+					       + maxAttempts);
+	}
+	if (jitter < 0 || jitter > 1) {
+	    throw new IllegalArgumentException("jitter must be 0-1, got " + jitter);
+	}
+	this.maxAttempts = maxAttempts;
+	this.jitter = jitter;
+	this.random = random;
+    }
+
+    /**
+     * Creates the policy in 'config'.
+     *
+     * @param config
+     *            maximum attempts and retry jitter
+     */
+    public RetryPolicy(TransportConfig config) {
+	this(config.getMaxAttempts(), config.getRetryJitter() / 100.0,
+	     new Random());
+    }
+
+    /**
+     * Returns true if a packet that has been sent 'attempts' times, without
+     * an answer, may be sent again.
+     *
+     * @param attempts
+     *            number of times the packet has been sent
+     */
+    public boolean shouldRetry(int attempts) {
+	return this.maxAttempts == 0 || attempts < this.maxAttempts;
+    }
+
+    /**
+     * Returns how long to wait for the answer to a retransmission: 'rto'
+     * plus the jitter. Never less than 'rto', so jitter cannot cause a
+     * spurious retransmission.
+     *
+     * @param rto
+     *            current retransmission timeout, already backed off
+     * @return the timeout to use, in the units of 'rto'
+     */
+    public long getTimeout(long rto) {
+	if (this.jitter == 0) {
+	    return rto;
+	}
+	return rto + (long) (rto * this.jitter * this.random.nextDouble());
+    }
+
+    // region getters
+
+    /**
+     * Returns the largest random addition to a retransmission timeout, as a
+     * fraction of it.
+     */
+    public double getJitter() {
+	return this.jitter;
+    }
+
+    /**
+     * Returns the most times a packet is sent, 0 for no limit.
+     */
+    public int getMaxAttempts() {
+	return this.maxAttempts;
+    }
+
+    // endregion getters
+}
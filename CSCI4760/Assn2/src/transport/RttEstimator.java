@@ -0,0 +1,207 @@
+/**
+ * RttEstimator.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives the retransmission timeout (RTO) from measured round-trip times,
+ * following RFC 6298: <br>
+ * <code>
+ * first sample R: SRTT = R, RTTVAR = R/2 <br>
+ * later samples: RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R <br>
+ * RTO = SRTT + max(G, 4 RTTVAR) + ack delay, clamped to [min, max] <br>
+ * </code> <br>
+ * The ack delay is the longest a receiver holds back a delayed ACK. Packets
+ * acknowledged at once, which supply most of the samples, never show it, so
+ * without it the ACK to the first of a held back run arrives after the RTO.
+ * Each timeout doubles the RTO (up to the maximum) until the next sample.
+ * Callers apply Karn's rule: never sample a packet that was retransmitted,
+ * since its ACK could belong to either copy. All times are in nanoseconds.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class RttEstimator {
+
+    // region fields
+    /**
+     * Clock granularity G.
+     */
+    private static final long	GRANULARITY	= TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long		minRto;
+
+    private final long		maxRto;
+
+    private long		ackDelay;
+
+    private long		srtt		= 0;
+
+    private long		rttvar		= 0;
+
+    private long		rto;
+
+    private boolean		hasSample	= false;
+
+    private int			backoffs	= 0;
+
+    private long		samples		= 0;
+    // endregion fields
+
+    /**
+     * @param initialRto
+     *            RTO before the first sample
+     * @param minRto
+     *            smallest RTO ever used
+     * @param maxRto
+     *            largest RTO ever used, including after backoff
+     */
+    public RttEstimator(long initialRto, long minRto, long maxRto) {
+	this(initialRto, minRto, maxRto, 0);
+    }
+
+    /**
+     * @param initialRto
+     *            RTO before the first sample
+     * @param minRto
+     *            smallest RTO ever used
+     * @param maxRto
+     *            largest RTO ever used, including after backoff
+     * @param ackDelay
+     *            longest the receiver holds back an ACK, added to every RTO
+     *            computed from samples
+     */
+    public RttEstimator(long initialRto, long minRto, long maxRto,
+			long ackDelay) {
+	this.minRto = minRto;
+	this.maxRto = maxRto;
+	this.ackDelay = ackDelay;
+	this.rto = clamp(initialRto);
+    }
+
+    /**
+     * Creates an estimator with the RTO limits in 'config', and its ACK
+     * delay when the receiver holds ACKs back. That assumes the receiver
+     * runs with the same delayed ACK settings; after a handshake the sender
+     * uses the receiver's own instead (see {@link #setAckDelay(long)}).
+     *
+     * @param config
+     *            initial, minimum and maximum RTO and delayed ACK settings
+     */
+    public RttEstimator(TransportConfig config) {
+	this(TimeUnit.MILLISECONDS.toNanos(config.getInitialRto()),
+	     TimeUnit.MILLISECONDS.toNanos(config.getMinRto()),
+	     TimeUnit.MILLISECONDS.toNanos(config.getMaxRto()),
+	     config.getAckEvery() > 1
+	     && config.getMode() != TransportMode.STOP_AND_WAIT
+	     ? TimeUnit.MILLISECONDS.toNanos(config.getAckDelay()) : 0);
+    }
+
+    /**
+     * Folds a round-trip time measured on a packet that was sent only once
+     * into the smoothed estimates, and recomputes the RTO. Cancels any
+     * backoff.
+     *
+     * @param rtt
+     *            time from sending the packet to receiving its ACK
+     */
+    public void sample(long rtt) {
+	if (rtt < 0) {
+	    return;
+	}
+
+	if (!this.hasSample) {
+	    this.srtt = rtt;
+	    this.rttvar = rtt / 2;
+	    this.hasSample = true;
+	} else {
+	    this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - rtt)) / 4;
+	    this.srtt = (7 * this.srtt + rtt) / 8;
+	}
+	this.samples++;
+	this.backoffs = 0;
+	this.rto = clamp(this.srtt + Math.max(GRANULARITY, 4 * this.rttvar)
+			 + this.ackDelay);
+    }
+
+    /**
+     * Doubles the RTO after a timeout, up to the maximum.
+     */
+    public void backoff() {
+	this.backoffs++;
+	this.rto = clamp(this.rto > this.maxRto / 2 ? this.maxRto : 2 * this.rto);
+    }
+
+    private long clamp(long value) {
+	return Math.max(this.minRto, Math.min(this.maxRto, value));
+    }
+
+    // region getters
+
+    /**
+     * Returns the current retransmission timeout.
+     */
+    public long getRto() {
+	return this.rto;
+    }
+
+    /**
+     * Returns the smoothed round-trip time, or 0 before the first sample.
+     */
+    public long getSrtt() {
+	return this.srtt;
+    }
+
+    /**
+     * Returns the round-trip time variation, or 0 before the first sample.
+     */
+    public long getRttvar() {
+	return this.rttvar;
+    }
+
+    /**
+     * Returns the number of timeouts since the last sample.
+     */
+    public int getBackoffs() {
+	return this.backoffs;
+    }
+
+    /**
+     * Returns the number of samples taken.
+     */
+    public long getSamples() {
+	return this.samples;
+    }
+
+    /**
+     * Returns the ACK delay added to every RTO computed from samples.
+     */
+    public long getAckDelay() {
+	return this.ackDelay;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * Replaces the ACK delay, e.g. with the one the receiver announced in
+     * the handshake, and recomputes the RTO if it came from a sample and
+     * has not been backed off.
+     *
+     * @param ackDelay
+     *            longest the receiver holds back an ACK
+     */
+    public void setAckDelay(long ackDelay) {
+	this.ackDelay = ackDelay;
+	if (this.hasSample && this.backoffs == 0) {
+	    this.rto = clamp(this.srtt + Math.max(GRANULARITY, 4 * this.rttvar)
+			     + this.ackDelay);
+	}
+    }
+
+    // endregion setters
+}
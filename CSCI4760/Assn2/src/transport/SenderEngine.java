@@ -0,0 +1,309 @@
+/**
+ * SenderEngine.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent transfers at once, for pushing lots of small files
+ * to a {@link MultiSessionReceiver}. <br>
+ * Each transfer is a session of its own: a {@link ReliableSender} with its
+ * own sequence numbers, window, RTT estimate and metrics, on a single
+ * socket bound to an ephemeral port, which the receiver tells sessions
+ * apart by. Transfers are queued on a shared pool of
+ * {@link TransportConfig#getThreads()} threads, each running one transfer
+ * at a time with the blocking sender, so that many transfers cost a few
+ * threads. All sessions log to one {@link EventLog}. <br>
+ * {@link #submit(Path)} returns a {@link Future} per transfer, which yields
+ * the session's {@link TransportMetrics} once its END is acknowledged, or
+ * throws the {@link IOException} that failed it. <br>
+ * Usage: <code>java transport.SenderEngine [options] file...</code>, with
+ * the options of {@link TransportConfig}, e.g. <code>--threads=8</code>.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class SenderEngine {
+
+    // region fields
+    private final TransportConfig config;
+
+    private final InetSocketAddress destination;
+
+    private final ExecutorService executor;
+
+    private final boolean	ownsExecutor;
+
+    private final EventLog	log;
+    // endregion fields
+
+    /**
+     * Creates an engine that sends to the relay in 'config' on a pool of
+     * {@link TransportConfig#getThreads()} daemon threads.
+     *
+     * @param config
+     *            settings every transfer shares; must match the receiver's
+     * @throws IOException
+     *             if the relay's address cannot be resolved
+     */
+    public SenderEngine(TransportConfig config) throws IOException {
+	this(config, newPool(config.getThreads()), true);
+    }
+
+    /**
+     * Creates an engine that runs its transfers on 'executor', which is left
+     * running when the engine is closed.
+     *
+     * @param config
+     *            settings every transfer shares; must match the receiver's
+     * @param executor
+     *            runs each transfer as one task
+     * @throws IOException
+     *             if the relay's address cannot be resolved
+     */
+    public SenderEngine(TransportConfig config, ExecutorService executor)
+	throws IOException {
+	this(config, executor, false);
+    }
+
+    private SenderEngine(TransportConfig config, ExecutorService executor,
+			 boolean ownsExecutor) throws IOException {
+	config.validate();
+	this.config = config;
+	this.destination =
+	    new InetSocketAddress(InetAddress.getByName(config.getRelay()),
+				  config.getRelayPort());
+	this.executor = executor;
+	this.ownsExecutor = ownsExecutor;
+	this.log = new EventLog(new PrintWriter(System.out), config.getLogLevel());
+    }
+
+    /**
+     * Creates a pool of 'threads' daemon threads.
+     */
+    private static ExecutorService newPool(int threads) {
+	return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable task) {
+		    Thread thread = new Thread(task, "sender engine "
+					       + this.count.incrementAndGet());
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+    }
+
+    /**
+     * Sends each file named on the command line as its own transfer, all at
+     * once, and reports how each went.
+     *
+     * @param args
+     *            <code>--name=value</code> transfer settings, then the files
+     *            to send
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+	List<String> options = new ArrayList<String>();
+	List<String> files = new ArrayList<String>();
+	for (String arg : args) {
+	    (arg.startsWith("--") ? options : files).add(arg);
+	}
+	TransportConfig config =
+	    TransportConfig.parse(options.toArray(new String[0]));
+	if (files.isEmpty()) {
+	    files.add(config.getInput());
+	}
+
+	SenderEngine engine = new SenderEngine(config);
+	List<Future<TransportMetrics>> transfers =
+	    new ArrayList<Future<TransportMetrics>>();
+	for (String file : files) {
+	    transfers.add(engine.submit(Paths.get(file)));
+	}
+
+	int failed = 0;
+	for (int i = 0; i < files.size(); i++) {
+	    try {
+		TransportMetrics metrics = transfers.get(i).get();
+		engine.getLog().flush();//its lines go first
+		System.out.println("SENT: " + files.get(i) + " "
+				   + metrics.getSnapshot());
+	    } catch (ExecutionException e) {
+		engine.getLog().flush();
+		System.out.println("FAILED: " + files.get(i) + ": "
+				   + e.getCause());
+		failed++;
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		break;
+	    }
+	}
+	engine.close();
+	if (failed > 0) {
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * Queues the transfer of a file to the relay in the configuration.
+     *
+     * @param input
+     *            file to send
+     * @return the transfer's outcome
+     */
+    public Future<TransportMetrics> submit(Path input) {
+	return submit(input, this.destination);
+    }
+
+    /**
+     * Queues the transfer of a file.
+     *
+     * @param input
+     *            file to send
+     * @param destination
+     *            where the data goes: the relay, or the receiver itself
+     * @return the transfer's outcome
+     */
+    public Future<TransportMetrics> submit(final Path input,
+					   final InetSocketAddress destination) {
+	return this.executor.submit(new Callable<TransportMetrics>() {
+		public TransportMetrics call() throws IOException {
+		    ReliableSender sender = open(destination);
+		    try {
+			//payloads are sliced straight out of the mapped file
+			MappedFileSource in =
+			    new MappedFileSource(input, sender.getPayloadSize());
+			try {
+			    ByteBuffer payload;
+			    while ((payload = in.next()) != null) {
+				sender.send(payload);
+			    }
+			} finally {
+			    in.close();
+			}
+			sender.close();
+		    } finally {
+			sender.disconnect();
+		    }
+		    return sender.getMetrics();
+		}
+	    });
+    }
+
+    /**
+     * Queues the transfer of the bytes between the position and limit of
+     * 'data', which must not change until the transfer is done.
+     *
+     * @param data
+     *            bytes to send; its position and limit are not changed
+     * @param destination
+     *            where the data goes: the relay, or the receiver itself
+     * @return the transfer's outcome
+     */
+    public Future<TransportMetrics> submit(ByteBuffer data,
+					   final InetSocketAddress destination) {
+	final ByteBuffer source = data.duplicate();
+	return this.executor.submit(new Callable<TransportMetrics>() {
+		public TransportMetrics call() throws IOException {
+		    ReliableSender sender = open(destination);
+		    try {
+			int end = source.limit();
+			while (source.position() < end) {
+			    source.limit(Math.min(end, source.position()
+						  + sender.getPayloadSize()));
+			    sender.send(source);
+			    source.position(source.limit());
+			    source.limit(end);
+			}
+			sender.close();
+		    } finally {
+			sender.disconnect();
+		    }
+		    return sender.getMetrics();
+		}
+	    });
+    }
+
+    /**
+     * Binds a session's sender, probing the path and settling the session's
+     * settings with the receiver first if the configuration asks for it.
+     */
+    private ReliableSender open(InetSocketAddress destination)
+	throws IOException {
+	ReliableSender sender =
+	    new ReliableSender(destination, this.config, this.log);
+	try {
+	    if (this.config.isProbeMtu()) {
+		sender.probePathMtu();
+	    }
+	    if (this.config.isHandshake()) {
+		sender.handshake();
+	    }
+	} catch (IOException e) {
+	    sender.disconnect();
+	    throw e;
+	}
+	return sender;
+    }
+
+    /**
+     * If the engine made its own pool, waits for every queued transfer to
+     * finish and rejects later ones; then writes out the log.
+     *
+     * @throws IOException
+     *             if interrupted while waiting
+     */
+    public void close() throws IOException {
+	if (this.ownsExecutor) {
+	    this.executor.shutdown();
+	    try {
+		while (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+		    //transfers are bounded by the retry policy, if it has a limit
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new IOException("Interrupted closing the sender engine", e);
+	    }
+	}
+	this.log.close();
+    }
+
+    // region getters
+
+    /**
+     * Returns where transfers go unless told otherwise: the relay in the
+     * configuration.
+     */
+    public InetSocketAddress getDestination() {
+	return this.destination;
+    }
+
+    /**
+     * Returns the log every session's progress lines go to.
+     */
+    public EventLog getLog() {
+	return this.log;
+    }
+
+    // endregion getters
+}
@@ -0,0 +1,903 @@
+/**
+ * SenderProtocol.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending half of the windowed protocols. Keeps up to a window of encoded
+ * packets in flight. <br>
+ * In Go-Back-N mode the window slides on cumulative ACKs and every
+ * unacknowledged packet is resent when the single retransmission timer runs
+ * out. In Selective Repeat mode each packet is timed individually; ACKs
+ * carry the receiver's cumulative point plus SACK blocks listing what it
+ * holds beyond it, so only the holes are resent. <br>
+ * Timers run for the RTO of an {@link RttEstimator}, which is fed the round
+ * trip of every ACKed packet that was sent only once (Karn's rule) and backed
+ * off on every timeout; retransmissions wait that RTO plus the jitter of a
+ * {@link RetryPolicy}. <br>
+ * Unless disabled in the {@link TransportConfig}, a
+ * {@link CongestionController} limits the packets in flight to its
+ * congestion window, shrinks it once per window of data on a timeout or NAK,
+ * and paces new packets: callers should not send before
+ * {@link #getSendTime()}. After a timeout, Go-Back-N resends only as much of
+ * the window as the congestion window allows and the rest as ACKs open it
+ * again. <br>
+ * The window is also limited to the receive window the receiver advertises
+ * in its ACKs (see {@link AckPayload}). When that drops to zero with
+ * nothing in flight, a persist timer starts at the RTO and doubles up to
+ * the maximum RTO; each time it runs out the window lets one packet through
+ * as a probe, whose ACK tells the sender whether the receiver has room
+ * again. The probe is timed by the persist timer rather than the RTO: if it
+ * or its ACK is lost it is resent and the timer doubles, but the RTO is not
+ * backed off, the congestion window is not cut and the retry policy does
+ * not count it (see {@link #isProbing()}). <br>
+ * Losses are also recovered without waiting for a timer (fast
+ * retransmit). A NAK, or {@link TransportConfig#getDupAcks()} duplicate
+ * ACKs in a row, name the packet after the receiver's cumulative point as
+ * missing. That packet is resent at once; in Go-Back-N mode the packets
+ * after it are resent too, since the receiver dropped them. Each packet is
+ * resent this way at most once; if that copy is lost too, the timer
+ * recovers it. ACKs that change the advertised receive window are window
+ * updates, not duplicates. <br>
+ * The protocol never blocks or reads a clock itself: the caller passes the
+ * current time (from {@link System#nanoTime()}) into every event and waits
+ * for ACKs until {@link #getDeadline()}. <br>
+ * Each window slot owns a datagram buffer that packets are encoded into
+ * through a reusable {@link MessageView}, so sending with a
+ * {@link ByteBuffer} payload allocates nothing. <br>
+ * Every packet sent, response, retransmit, timeout and round trip is counted
+ * in its {@link TransportMetrics}.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class SenderProtocol {
+
+    // region fields
+    /**
+     * Returned by {@link #getDeadline()} when no timer is running.
+     */
+    public static final long	NO_DEADLINE	= Long.MAX_VALUE;
+
+    private static final Charset PAYLOAD_CHARSET = Charset.forName("ISO-8859-1");
+
+    private final PacketSink	sink;
+
+    private final MessageView	header		= new MessageView();
+
+    private final int		windowSize;
+
+    private final int		dupAckThreshold;
+
+    private final long		maxPersist;
+
+    private final boolean	selectiveRepeat;
+
+    private final WireCodec	codec;
+
+    private final SequenceNumbers sequence;
+
+    private final RttEstimator	rtt;
+
+    private RetryPolicy		retry;
+
+    private final CongestionController congestion;
+
+    private final AckPayload	ackPayload	= new AckPayload();
+
+    private final ByteBuffer[]	window;
+
+    private final boolean[]	acked;
+
+    private final long[]	deadlines;
+
+    private final long[]	sentAt;
+
+    private final boolean[]	retransmitted;
+
+    private int			head		= 0;
+
+    private int			sampleSlot	= -1;
+
+    private int			base		= 0;
+
+    private int			nextSeqNo	= 0;
+
+    private int			inFlight	= 0;
+
+    private long		deadline	= NO_DEADLINE;
+
+    private int			consecutiveTimeouts = 0;
+
+    private long		retransmissions	= 0;
+
+    private int			transmitted	= 0;
+
+    private long		acknowledged	= 0;
+
+    private long		recoveryPoint	= 0;
+
+    private long		nextSendTime	= 0;
+
+    private int			peerWindow;
+
+    private long		persistDeadline	= NO_DEADLINE;
+
+    private long		persistInterval	= 0;
+
+    private boolean		probeAllowed	= false;
+
+    private boolean		probing		= false;
+
+    private int			duplicateAcks	= 0;
+
+    private long		fastRetransmitIndex = -1;
+
+    private LatencyRecorder	latency		= null;
+
+    private TransportMetrics	metrics		= new TransportMetrics("sender");
+    // endregion fields
+
+    /**
+     * Creates a sender that stamps every packet with the given addresses and
+     * hands the encoded packets to 'sink'.
+     *
+     * @param sink
+     *            where encoded packets are written
+     * @param srcIP
+     *            source IP address written into each packet
+     * @param destIP
+     *            destination IP address written into each packet
+     * @param srcPort
+     *            source UDP port written into each packet
+     * @param destPort
+     *            destination UDP port written into each packet
+     * @param config
+     *            mode, window size, wire codec and whether congestion
+     *            control is on
+     * @param rtt
+     *            round-trip estimator that sets the retransmission timeout
+     */
+    public SenderProtocol(PacketSink sink, InetAddress srcIP,
+			  InetAddress destIP, int srcPort, int destPort,
+			  TransportConfig config, RttEstimator rtt) {
+	this.sink = sink;
+	this.header.setSourceAddress(srcIP);
+	this.header.setDestAddress(destIP);
+	this.header.setSrcPort(srcPort);
+	this.header.setDestPort(destPort);
+	this.windowSize = config.getWindowSize();
+	this.peerWindow = this.windowSize;
+	this.dupAckThreshold = config.getDupAcks();
+	this.maxPersist = TimeUnit.MILLISECONDS.toNanos(config.getMaxRto());
+	this.selectiveRepeat = config.getMode() == TransportMode.SELECTIVE_REPEAT;
+	this.codec = config.getCodec();
+	this.sequence = this.codec.getSequenceNumbers();
+	this.rtt = rtt;
+	this.retry = new RetryPolicy(config);
+	this.congestion = config.isCongestionControl()
+	    ? new CongestionController(this.windowSize) : null;
+	this.window = new ByteBuffer[this.windowSize];
+	for (int i = 0; i < this.window.length; i++) {
+	    this.window[i] = ByteBuffer.allocate(this.codec
+						 .getMaxLength(config.getPayloadSize()));
+	}
+	this.acked = new boolean[this.windowSize];
+	this.deadlines = new long[this.windowSize];
+	this.sentAt = new long[this.windowSize];
+	this.retransmitted = new boolean[this.windowSize];
+    }
+
+    /**
+     * Encodes and transmits a new packet with the next sequence number. The
+     * payload's characters are sent as ISO-8859-1 bytes.
+     *
+     * @param opCode
+     *            {@link ReliableTransportMessage#DATA} or
+     *            {@link ReliableTransportMessage#END}
+     * @param payload
+     *            body of the packet
+     * @param now
+     *            current time in nanoseconds
+     * @return the sequence number given to the packet
+     * @throws IOException
+     * @throws IllegalStateException
+     *             if the window is not open
+     */
+    public int send(char opCode, String payload, long now) throws IOException,
+								   IllegalStateException {
+	return send(opCode, ByteBuffer.wrap(payload.getBytes(PAYLOAD_CHARSET)), now);
+    }
+
+    /**
+     * Encodes and transmits a new packet with the next sequence number. The
+     * bytes between the position and limit of 'payload' are copied into the
+     * window, so the caller may reuse 'payload' as soon as this returns.
+     * Pacing is up to the caller: sending before {@link #getSendTime()} is
+     * allowed, but defeats it.
+     *
+     * @param opCode
+     *            {@link ReliableTransportMessage#DATA} or
+     *            {@link ReliableTransportMessage#END}
+     * @param payload
+     *            body of the packet
+     * @param now
+     *            current time in nanoseconds
+     * @return the sequence number given to the packet
+     * @throws IOException
+     * @throws IllegalStateException
+     *             if the window is not open
+     */
+    public int send(char opCode, ByteBuffer payload, long now)
+	throws IOException, IllegalStateException {
+	if (!isWindowOpen()) {
+	    throw new IllegalStateException("Send window is full");
+	}
+
+	int seqNo = this.nextSeqNo;
+	int slot = (this.head + this.inFlight) % this.window.length;
+	int maxLength = this.codec.getMaxLength(payload.remaining());
+	if (this.window[slot].capacity() < maxLength) {
+	    this.window[slot] = ByteBuffer.allocate(maxLength);
+	}
+
+	ByteBuffer datagram = this.window[slot];
+	datagram.clear();
+	this.header.setOpCode(opCode);
+	this.header.setSequenceNo(seqNo);
+	this.header.encode(this.codec, payload, datagram);
+	datagram.flip();
+
+	this.acked[slot] = false;
+	this.retransmitted[slot] = false;
+	this.sentAt[slot] = now;
+	this.probing = this.probeAllowed;
+	this.deadlines[slot] = now + (this.probing ? this.persistInterval
+				      : this.rtt.getRto());
+	transmit(datagram);
+	this.nextSendTime = Math.max(now, this.nextSendTime) + getPacingInterval();
+
+	if (this.inFlight == 0) {
+	    this.deadline = this.deadlines[slot];
+	}
+	this.inFlight++;
+	this.transmitted++;
+	this.nextSeqNo = this.sequence.next(seqNo);
+	this.probeAllowed = false;
+
+	return seqNo;
+    }
+
+    /**
+     * Handles a decoded ACK or NAK, including any SACK blocks in its
+     * payload. A payload that is not a valid {@link AckPayload} is ignored
+     * and the response treated as a plain cumulative one.
+     *
+     * @param response
+     *            the response, decoded intact
+     * @param now
+     *            current time in nanoseconds
+     * @return true if the response acknowledged at least one new packet
+     * @throws IOException
+     */
+    public boolean onResponse(MessageView response, long now)
+	throws IOException {
+	this.ackPayload.decode(response);
+	return handleResponse(response.getOpCode(), response.getSequenceNo(), now);
+    }
+
+    /**
+     * Handles an ACK or NAK without SACK blocks. <br>
+     * Both carry the highest sequence number the receiver has in order, so
+     * everything up to and including it leaves the window. In Selective
+     * Repeat mode SACK blocks can acknowledge later packets too, and the
+     * window slides once its oldest packet is acknowledged. <br>
+     * A NAK also tells the congestion controller that the packet after the
+     * one it carries was lost.
+     *
+     * @param opCode
+     *            op code of the response
+     * @param seqNo
+     *            sequence number carried by the response
+     * @param now
+     *            current time in nanoseconds
+     * @return true if the response acknowledged at least one new packet
+     * @throws IOException
+     */
+    public boolean onResponse(char opCode, int seqNo, long now)
+	throws IOException {
+	this.ackPayload.clear();
+	return handleResponse(opCode, seqNo, now);
+    }
+
+    /**
+     * Handles an ACK or NAK whose SACK blocks and receive window, if any, are
+     * in {@link #ackPayload}. The window is taken only from responses that
+     * are not older than the window's base, since a stale ACK carries a
+     * stale window. Afterwards a NAK, or a run of duplicate ACKs, for the
+     * oldest packet in flight resends it.
+     */
+    private boolean handleResponse(char opCode, int seqNo, long now)
+	throws IOException {
+	boolean current =
+	    this.sequence.distance(this.base, this.sequence.next(seqNo))
+	    <= this.inFlight;
+	int window = this.ackPayload.getWindow();
+	boolean windowUpdate = window != AckPayload.NO_WINDOW
+	    && window != this.peerWindow;
+	int oldBase = this.base;
+	boolean acked = handleAck(opCode, seqNo, now);
+	if (current && window != AckPayload.NO_WINDOW) {
+	    updatePeerWindow(window, now);
+	}
+
+	if (this.base != oldBase) {
+	    this.duplicateAcks = 0;
+	}
+	//only a response naming the oldest packet in flight as missing counts,
+	//and not while probing: the probe's own timer resends it
+	boolean missing = this.inFlight > 0 && !this.probing
+	    && this.sequence.next(seqNo) == this.base;
+	if (missing && opCode == ReliableTransportMessage.NAK) {
+	    fastRetransmit(now);
+	} else if (missing && opCode == ReliableTransportMessage.ACK
+		   && this.base == oldBase && !windowUpdate) {
+	    this.duplicateAcks++;
+	    if (this.duplicateAcks == this.dupAckThreshold) {
+		fastRetransmit(now);
+	    }
+	}
+	return acked;
+    }
+
+    /**
+     * Resends the oldest packet in flight, which the receiver reported
+     * missing, unless it was already resent this way. Go-Back-N resends the
+     * rest of the window after it, as far as the congestion window allows.
+     */
+    private void fastRetransmit(long now) throws IOException {
+	if (this.fastRetransmitIndex == this.acknowledged) {
+	    return;// the timer recovers a lost resend
+	}
+	this.fastRetransmitIndex = this.acknowledged;
+	onLoss(this.acknowledged, false);
+	this.metrics.countFastRetransmit();
+
+	if (!this.selectiveRepeat) {
+	    this.transmitted = 0;
+	    retransmitBacklog(now);
+	    this.deadline = now + this.retry.getTimeout(this.rtt.getRto());
+	    return;
+	}
+
+	transmit(this.window[this.head]);
+	this.retransmitted[this.head] = true;
+	this.deadlines[this.head] = now + this.retry.getTimeout(this.rtt.getRto());
+	this.retransmissions++;
+	this.metrics.countRetransmit();
+	updateDeadline();
+    }
+
+    /**
+     * Takes the receive window the receiver advertised, and starts the
+     * persist timer if it is closed and no packet in flight will bring
+     * another ACK.
+     */
+    private void updatePeerWindow(int window, long now) {
+	this.peerWindow = window;
+	if (window > 0) {
+	    this.persistDeadline = NO_DEADLINE;
+	    this.persistInterval = 0;
+	    this.probeAllowed = false;
+	    if (this.probing) {
+		//the probe still in flight is an ordinary packet again
+		this.probing = false;
+		this.deadlines[this.head] = now + this.rtt.getRto();
+		this.deadline = this.deadlines[this.head];
+	    }
+	} else if (this.inFlight == 0 && !this.probeAllowed
+		   && this.persistDeadline == NO_DEADLINE) {
+	    this.persistInterval = this.persistInterval == 0
+		? this.rtt.getRto()
+		: Math.min(this.persistInterval * 2, this.maxPersist);
+	    this.persistDeadline = now + this.persistInterval;
+	}
+    }
+
+    /**
+     * Handles the acknowledgement in an ACK or NAK.
+     */
+    private boolean handleAck(char opCode, int seqNo, long now)
+	throws IOException {
+	this.metrics.countReceived();
+	if (opCode == ReliableTransportMessage.NAK) {
+	    this.metrics.countNak();
+	    long lost = this.sequence.distance(this.base, this.sequence.next(seqNo));
+	    if (lost < this.inFlight) {
+		onLoss(this.acknowledged + lost, false);
+	    }
+	}
+
+	if (this.selectiveRepeat) {
+	    return onSelectiveAck(opCode, seqNo, now);
+	}
+
+	if (opCode != ReliableTransportMessage.ACK
+	    && opCode != ReliableTransportMessage.NAK) {
+	    return false;
+	}
+
+	long ackCount = this.sequence.distance(this.base, seqNo) + 1;
+	if (ackCount > this.inFlight) {
+	    return false;// duplicate or stale ACK
+	}
+
+	sampleRtt((int) ((this.head + ackCount - 1) % this.window.length), now);
+	for (int i = 0; i < ackCount; i++) {
+	    recordLatency((this.head + i) % this.window.length, now);
+	}
+	slide((int) ackCount);
+	this.consecutiveTimeouts = 0;
+
+	if (this.inFlight > 0) {
+	    this.deadline = now + this.rtt.getRto();
+	} else {
+	    this.deadline = NO_DEADLINE;
+	}
+	retransmitBacklog(now);
+
+	return true;
+    }
+
+    /**
+     * Marks every packet up to and including 'seqNo', and every packet in
+     * the SACK blocks, as received and slides the window past any
+     * acknowledged packets at its front. The round trip is sampled from the
+     * most recently sent of the newly acknowledged packets, which is the one
+     * most likely to have triggered the ACK.
+     *
+     * @param opCode
+     *            op code of the response
+     * @param seqNo
+     *            highest sequence number the receiver has in order
+     * @param now
+     *            current time in nanoseconds
+     * @return true if any packet in flight was newly acknowledged
+     */
+    private boolean onSelectiveAck(char opCode, int seqNo, long now) {
+	if (opCode != ReliableTransportMessage.ACK
+	    && opCode != ReliableTransportMessage.NAK) {
+	    return false;
+	}
+
+	int newlyAcked = 0;
+	this.sampleSlot = -1;
+	long cumulative = this.sequence.distance(this.base, seqNo) + 1;
+	if (cumulative <= this.inFlight) {
+	    newlyAcked += markAcked(0, cumulative - 1, now);
+	}
+	for (int i = 0; i < this.ackPayload.getSackCount(); i++) {
+	    long first = this.sequence.distance(this.base,
+						this.ackPayload.getSackStart(i));
+	    long last = this.sequence.distance(this.base,
+					       this.ackPayload.getSackEnd(i));
+	    if (first >= this.inFlight || last < first) {
+		continue;// outside the window or malformed
+	    }
+	    last = Math.min(last, this.inFlight - 1);
+	    newlyAcked += markAcked(first, last, now);
+	}
+	if (newlyAcked == 0) {
+	    return false;// duplicate or stale ACK
+	}
+
+	this.consecutiveTimeouts = 0;
+	if (this.sampleSlot >= 0) {
+	    sampleRtt(this.sampleSlot, now);
+	}
+	if (this.congestion != null) {
+	    this.congestion.onAck(newlyAcked);
+	}
+
+	int ackCount = 0;
+	while (ackCount < this.inFlight
+	       && this.acked[(this.head + ackCount) % this.window.length]) {
+	    ackCount++;
+	}
+	slide(ackCount);
+	updateDeadline();
+
+	return true;
+    }
+
+    /**
+     * Marks the packets at window offsets 'first' to 'last', inclusive, as
+     * acknowledged at 'now', and points {@link #sampleSlot} at the most
+     * recently sent of them that may be timed (Karn's rule).
+     *
+     * @return the number that were not acknowledged before
+     */
+    private int markAcked(long first, long last, long now) {
+	int count = 0;
+	for (long i = first; i <= last; i++) {
+	    int slot = (int) ((this.head + i) % this.window.length);
+	    if (!this.acked[slot]) {
+		this.acked[slot] = true;
+		recordLatency(slot, now);
+		count++;
+		if (!this.retransmitted[slot]
+		    && (this.sampleSlot < 0
+			|| this.sentAt[slot] > this.sentAt[this.sampleSlot])) {
+		    this.sampleSlot = slot;
+		}
+	    }
+	}
+	return count;
+    }
+
+    /**
+     * Resends packets whose retransmission timer has expired. Go-Back-N
+     * resends the window from its oldest packet, as far as the congestion
+     * window allows; Selective Repeat resends only the expired,
+     * unacknowledged packets. When the persist timer runs out instead, the
+     * window opens for one probe packet, or the probe in flight is resent
+     * and the persist timer doubled.
+     *
+     * @param now
+     *            current time in nanoseconds
+     * @return true if anything was retransmitted
+     * @throws IOException
+     */
+    public boolean onTimer(long now) throws IOException {
+	if (this.inFlight == 0) {
+	    if (now >= this.persistDeadline) {
+		this.persistDeadline = NO_DEADLINE;
+		this.probeAllowed = true;
+		this.metrics.countWindowProbe();
+	    }
+	    return false;
+	}
+	if (now < this.deadline) {
+	    return false;
+	}
+	if (this.probing) {
+	    onProbeTimeout(now);
+	    return true;
+	}
+
+	this.rtt.backoff();
+	this.consecutiveTimeouts++;
+	this.metrics.countTimeout();
+
+	if (!this.selectiveRepeat) {
+	    onLoss(this.acknowledged, true);
+	    this.fastRetransmitIndex = this.acknowledged;//already resent
+	    this.transmitted = 0;
+	    retransmitBacklog(now);
+	    this.deadline = now + this.retry.getTimeout(this.rtt.getRto());
+	    return true;
+	}
+
+	boolean lossReported = false;
+	for (int i = 0; i < this.inFlight; i++) {
+	    int slot = (this.head + i) % this.window.length;
+	    if (this.acked[slot] || now < this.deadlines[slot]) {
+		continue;
+	    }
+	    if (!lossReported) {
+		onLoss(this.acknowledged + i, true);
+		lossReported = true;
+	    }
+	    if (i == 0) {
+		this.fastRetransmitIndex = this.acknowledged;//already resent
+	    }
+	    transmit(this.window[slot]);
+	    this.retransmitted[slot] = true;
+	    this.deadlines[slot] = now + this.retry.getTimeout(this.rtt.getRto());
+	    this.retransmissions++;
+	    this.metrics.countRetransmit();
+	}
+	updateDeadline();
+
+	return true;
+    }
+
+    /**
+     * Resends the zero-window probe, the only packet in flight, and doubles
+     * the persist timer up to the maximum RTO. The probe or its ACK being
+     * lost says nothing about congestion, and the receiver is still there,
+     * so the RTO, the congestion window and the timeout count are left
+     * alone.
+     */
+    private void onProbeTimeout(long now) throws IOException {
+	this.persistInterval = Math.min(this.persistInterval * 2, this.maxPersist);
+	transmit(this.window[this.head]);
+	this.retransmitted[this.head] = true;
+	this.deadlines[this.head] = now + this.persistInterval;
+	this.deadline = this.deadlines[this.head];
+	this.metrics.countWindowProbe();
+    }
+
+    /**
+     * Go-Back-N: resends the packets at the front of the window that have
+     * not been sent since the last timeout, as far as the congestion window
+     * allows. The oldest is always resent, even into a closed receive
+     * window, since it may be a probe.
+     */
+    private void retransmitBacklog(long now) throws IOException {
+	int limit = Math.min(this.inFlight, Math.max(1, getWindow()));
+	while (this.transmitted < limit) {
+	    int slot = (this.head + this.transmitted) % this.window.length;
+	    transmit(this.window[slot]);
+	    this.retransmitted[slot] = true;
+	    this.deadlines[slot] = now + this.retry.getTimeout(this.rtt.getRto());
+	    this.retransmissions++;
+	    this.metrics.countRetransmit();
+	    this.transmitted++;
+	}
+    }
+
+    /**
+     * Tells the congestion controller that the packet with absolute index
+     * 'index' (counting every packet ever sent) was lost. Only the first
+     * loss among the packets that were in flight when the window was last
+     * reduced shrinks it again.
+     *
+     * @param index
+     *            absolute index of the lost packet
+     * @param timeout
+     *            true if the retransmission timer found the loss
+     */
+    private void onLoss(long index, boolean timeout) {
+	if (this.congestion == null) {
+	    return;
+	}
+
+	if (index >= this.recoveryPoint) {
+	    this.congestion.onLoss(this.inFlight, timeout);
+	    this.recoveryPoint = this.acknowledged + this.inFlight;
+	} else if (timeout) {
+	    this.congestion.onRepeatedTimeout();
+	}
+    }
+
+    /**
+     * Returns the interval between new packets the congestion controller
+     * asks for, 0 if pacing is off.
+     */
+    private long getPacingInterval() {
+	if (this.congestion == null) {
+	    return 0;
+	}
+	return this.congestion.getPacingInterval(this.rtt.getSrtt());
+    }
+
+    /**
+     * Feeds the round trip of the packet in 'slot' to the estimator, unless
+     * it was retransmitted and the ACK might belong to either copy.
+     */
+    private void sampleRtt(int slot, long now) {
+	if (!this.retransmitted[slot]) {
+	    this.rtt.sample(now - this.sentAt[slot]);
+	    this.metrics.recordRtt(now - this.sentAt[slot]);
+	}
+    }
+
+    /**
+     * Records how long the packet in 'slot' took from its first
+     * transmission until it was acknowledged at 'now'.
+     */
+    private void recordLatency(int slot, long now) {
+	this.metrics.recordAckLatency(now - this.sentAt[slot]);
+	if (this.latency != null) {
+	    this.latency.record(now - this.sentAt[slot]);
+	}
+    }
+
+    /**
+     * Hands the encoded datagram in 'datagram' to the sink.
+     */
+    private void transmit(ByteBuffer datagram) throws IOException {
+	this.metrics.countSent();
+	this.sink.transmit(datagram.array(), datagram.arrayOffset(),
+			   datagram.limit());
+    }
+
+    /**
+     * Drops the first 'count' packets of the window.
+     *
+     * @param count
+     *            number of packets acknowledged at the front of the window
+     */
+    private void slide(int count) {
+	if (this.congestion != null && !this.selectiveRepeat) {
+	    this.congestion.onAck(count);
+	}
+	if (count > 0) {
+	    this.probing = false;
+	}
+	this.head = (this.head + count) % this.window.length;
+	this.inFlight -= count;
+	this.transmitted = Math.max(0, this.transmitted - count);
+	this.acknowledged += count;
+	this.base = this.sequence.add(this.base, count);
+    }
+
+    /**
+     * Sets the deadline to the earliest timer of any unacknowledged packet.
+     */
+    private void updateDeadline() {
+	this.deadline = NO_DEADLINE;
+	for (int i = 0; i < this.inFlight; i++) {
+	    int slot = (this.head + i) % this.window.length;
+	    if (!this.acked[slot] && this.deadlines[slot] < this.deadline) {
+		this.deadline = this.deadlines[slot];
+	    }
+	}
+    }
+
+    // region getters
+
+    /**
+     * Returns the time (nanoseconds) at which the retransmission timer or,
+     * with the receive window closed, the persist timer expires, or
+     * {@link #NO_DEADLINE} if neither is running.
+     */
+    public long getDeadline() {
+	return Math.min(this.deadline, this.persistDeadline);
+    }
+
+    /**
+     * Returns the sequence number of the oldest unacknowledged packet, or of
+     * the next packet if none is in flight.
+     */
+    public int getBase() {
+	return this.base;
+    }
+
+    /**
+     * Returns the congestion controller, or null if congestion control is
+     * off.
+     */
+    public CongestionController getCongestionController() {
+	return this.congestion;
+    }
+
+    /**
+     * Returns the earliest time (nanoseconds) the next new packet should be
+     * sent to keep to the pacing rate.
+     */
+    public long getSendTime() {
+	return this.nextSendTime;
+    }
+
+    /**
+     * Returns the number of packets allowed in flight: the configured window,
+     * or the congestion window or the receiver's advertised window if
+     * smaller. A closed receive window allows one packet once the persist
+     * timer has run out.
+     */
+    public int getWindow() {
+	int window = this.windowSize;
+	if (this.congestion != null) {
+	    window = Math.min(window, this.congestion.getWindow());
+	}
+	return Math.min(window, this.probeAllowed ? 1 : this.peerWindow);
+    }
+
+    /**
+     * Returns the receive window the receiver last advertised, in packets;
+     * the configured window until it advertises one.
+     */
+    public int getPeerWindow() {
+	return this.peerWindow;
+    }
+
+    /**
+     * Returns the counters and histograms this sender records into.
+     */
+    public TransportMetrics getMetrics() {
+	return this.metrics;
+    }
+
+    /**
+     * Returns the estimator that sets the retransmission timeout.
+     */
+    public RttEstimator getRttEstimator() {
+	return this.rtt;
+    }
+
+    /**
+     * Returns true while the only packet in flight is a zero-window probe.
+     * Its timeouts are not retransmission timeouts, so callers should not
+     * count them against the retry policy.
+     */
+    public boolean isProbing() {
+	return this.probing;
+    }
+
+    /**
+     * Returns the number of timeouts since the window last moved.
+     */
+    public int getConsecutiveTimeouts() {
+	return this.consecutiveTimeouts;
+    }
+
+    /**
+     * Returns the number of unacknowledged packets.
+     */
+    public int getInFlight() {
+	return this.inFlight;
+    }
+
+    /**
+     * Returns the sequence number the next new packet will carry.
+     */
+    public int getNextSeqNo() {
+	return this.nextSeqNo;
+    }
+
+    /**
+     * Returns the total number of packets sent again after a timeout.
+     */
+    public long getRetransmissions() {
+	return this.retransmissions;
+    }
+
+    /**
+     * Returns true when every packet sent so far has been acknowledged.
+     */
+    public boolean isIdle() {
+	return this.inFlight == 0;
+    }
+
+    /**
+     * Returns true if another packet may be sent without exceeding the
+     * window, and no resends are waiting for it to open.
+     */
+    public boolean isWindowOpen() {
+	return this.inFlight < getWindow() && this.transmitted == this.inFlight;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param latency
+     *            where to record, for each packet acknowledged from now on,
+     *            the time from its first transmission until its
+     *            acknowledgement, or null to stop recording
+     */
+    public void setLatencyRecorder(LatencyRecorder latency) {
+	this.latency = latency;
+    }
+
+    /**
+     * @param metrics
+     *            where to count from now on, e.g. one shared with the rest
+     *            of the program
+     */
+    public void setMetrics(TransportMetrics metrics) {
+	this.metrics = metrics;
+    }
+
+    /**
+     * @param retry
+     *            jitters the timeout of every retransmission; its attempt
+     *            limit is up to the caller, who sees
+     *            {@link #getConsecutiveTimeouts()}
+     */
+    public void setRetryPolicy(RetryPolicy retry) {
+	this.retry = retry;
+    }
+
+    // endregion setters
+}
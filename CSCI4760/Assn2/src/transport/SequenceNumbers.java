@@ -0,0 +1,100 @@
+/**
+ * SequenceNumbers.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+/**
+ * Arithmetic on wrapping sequence numbers, after the serial number
+ * arithmetic of RFC 1982. A sequence space holds {@link #getSize()} numbers;
+ * after the last one the count starts again from 0, and -1 stands for "before
+ * the first packet". <br>
+ * Numbers are compared by their forward distance, so a number is "after"
+ * another if it is less than half the space ahead of it. Windows must stay
+ * well inside that, which is what keeps a delayed duplicate from one lap ago
+ * from being taken for a new packet. <br>
+ * Each {@link WireCodec} says which space its sequence field can carry.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public final class SequenceNumbers {
+
+    // region fields
+    /**
+     * The 0-99 space of the two-character text field.
+     */
+    public static final SequenceNumbers	DECIMAL		=
+	new SequenceNumbers(ReliableTransportMessage.SEQUENCE_MODULUS);
+
+    /**
+     * The full 32-bit space of the binary field. Numbers past
+     * {@link Integer#MAX_VALUE} are carried as negative ints.
+     */
+    public static final SequenceNumbers	SERIAL_32	=
+	new SequenceNumbers(1L << 32);
+
+    private final long			size;
+    // endregion fields
+
+    private SequenceNumbers(long size) {
+	this.size = size;
+    }
+
+    /**
+     * Returns the sequence number that follows 'seqNo'.
+     *
+     * @param seqNo
+     *            a sequence number, or -1 before the first packet
+     * @return the next sequence number
+     */
+    public int next(int seqNo) {
+	return add(seqNo, 1);
+    }
+
+    /**
+     * Returns the sequence number 'count' steps after 'seqNo'.
+     *
+     * @param seqNo
+     *            a sequence number, or -1 before the first packet
+     * @param count
+     *            number of steps forward; may be negative
+     * @return the resulting sequence number
+     */
+    public int add(int seqNo, long count) {
+	return (int) Math.floorMod(seqNo + count, this.size);
+    }
+
+    /**
+     * Returns how many steps forward 'to' is from 'from', 0 to
+     * {@link #getSize()}-1.
+     *
+     * @param from
+     *            the earlier sequence number
+     * @param to
+     *            the later sequence number
+     * @return forward distance from 'from' to 'to'
+     */
+    public long distance(int from, int to) {
+	return Math.floorMod((long) to - from, this.size);
+    }
+
+    /**
+     * Returns the number of distinct sequence numbers.
+     */
+    public long getSize() {
+	return this.size;
+    }
+
+    /**
+     * Returns the largest window in any mode: half the space. Selective
+     * Repeat needs it because the sender's and receiver's windows together
+     * must not cover more than the whole space. Go-Back-N needs it too,
+     * since relays reorder and duplicate: with a window of one less than
+     * the space, a late packet or ACK from the previous lap carries a
+     * number of the current one and is taken for new.
+     */
+    public long getMaxWindow() {
+	return this.size / 2;
+    }
+}
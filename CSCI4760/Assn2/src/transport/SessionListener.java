@@ -0,0 +1,48 @@
+/**
+ * SessionListener.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Told by a {@link MultiSessionReceiver} when a sender starts and stops
+ * talking to it, and supplies the sink each sender's data is released to.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public interface SessionListener {
+
+    /**
+     * Called when the first packet from a new sender arrives, or the first
+     * packet of a new transfer from a sender whose last one has finished.
+     *
+     * @param srcIP
+     *            address the sender stamped into its packets
+     * @param srcPort
+     *            port the sender stamped into its packets
+     * @return where the session's in-order messages are released
+     * @throws IOException
+     */
+    DeliverySink sessionStarted(InetAddress srcIP, int srcPort)
+	throws IOException;
+
+    /**
+     * Called when a session is dropped after being idle or, once finished,
+     * after lingering, when a new transfer from the same sender replaces it,
+     * or when the receiver is closed.
+     *
+     * @param srcIP
+     *            address the sender stamped into its packets
+     * @param srcPort
+     *            port the sender stamped into its packets
+     * @param finished
+     *            true if the END message had been delivered
+     * @throws IOException
+     */
+    void sessionEnded(InetAddress srcIP, int srcPort, boolean finished)
+	throws IOException;
+}
@@ -0,0 +1,548 @@
+/**
+ * SessionParameters.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reusable reader and writer for the payload of a
+ * {@link ReliableTransportMessage#SYN} or
+ * {@link ReliableTransportMessage#SYN_ACK}: the settings a sender offers for
+ * a session and those the receiver answers with. <br>
+ * Like {@link AckPayload}, the payload is a list of fields, each a one byte
+ * tag, a one byte length and that many bytes of value, so an end can skip
+ * fields it does not know. <br>
+ * <code>
+ * 'M' Transport mode: one byte, its position in {@link TransportMode} <br>
+ * 'W' Window size: an unsigned 16-bit count of packets, in network byte
+ * order <br>
+ * 'P' Payload size: an unsigned 16-bit count of bytes, in network byte
+ * order <br>
+ * 'C' Wire codec: its name in ASCII; repeated, in order of preference <br>
+ * 'K' Checksum: its {@link ChecksumAlgorithm#getId()}; repeated, in order of
+ * preference <br>
+ * 'D' ACK delay: an unsigned 16-bit count of milliseconds, in network byte
+ * order <br>
+ * </code> <br>
+ * An offer ({@link #offer(TransportConfig)}) carries the sender's mode, the
+ * largest window and payload it will use, and the codecs and checksums its
+ * settings allow, in order of preference. The answer
+ * ({@link #answer(TransportConfig)}) carries exactly one of each: the
+ * sender's mode, the smaller of the two windows and payloads, and the first
+ * offered codec and checksum the receiver's settings allow too. The answer
+ * also carries the longest the receiver holds back a delayed ACK, 0 if it
+ * acknowledges every packet at once, which the sender allows for in its
+ * RTO. Both ends then run the session with {@link #apply(TransportConfig)}.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class SessionParameters {
+
+    // region fields
+    /**
+     * Tag of the mode field.
+     */
+    public static final byte	MODE		= 'M';
+
+    /**
+     * Tag of the window size field.
+     */
+    public static final byte	WINDOW		= 'W';
+
+    /**
+     * Tag of the payload size field.
+     */
+    public static final byte	PAYLOAD		= 'P';
+
+    /**
+     * Tag of a codec field.
+     */
+    public static final byte	CODEC		= 'C';
+
+    /**
+     * Tag of a checksum field.
+     */
+    public static final byte	CHECKSUM	= 'K';
+
+    /**
+     * Tag of the ACK delay field.
+     */
+    public static final byte	ACK_DELAY	= 'D';
+
+    /**
+     * Largest window size, payload size or ACK delay the fields carry.
+     */
+    public static final int	MAX_VALUE	= 0xFFFF;
+
+    /**
+     * Every codec.
+     */
+    private static final WireCodec[] CODECS	=
+    { WireCodecs.BINARY, WireCodecs.TEXT };
+
+    /**
+     * Every checksum, fastest first: CRC-32C runs on the processor's CRC
+     * instructions and the Internet checksum sums eight bytes at a time.
+     */
+    private static final ChecksumAlgorithm[] CHECKSUMS =
+    { ChecksumAlgorithm.CRC32C, ChecksumAlgorithm.INTERNET,
+      ChecksumAlgorithm.SUM };
+
+    private static final int	MAX_NAME_LENGTH	= 16;
+
+    /**
+     * Longest payload {@link #encode(ByteBuffer)} writes.
+     */
+    public static final int	MAX_LENGTH	= 3 + 4 + 4 + 4
+	+ CODECS.length * (2 + MAX_NAME_LENGTH) + CHECKSUMS.length * 3;
+
+    private static final Charset NAME_CHARSET = Charset.forName("US-ASCII");
+
+    private final WireCodec[]	codecs		= new WireCodec[CODECS.length];
+
+    private final ChecksumAlgorithm[] checksums	=
+	new ChecksumAlgorithm[CHECKSUMS.length];
+
+    private TransportMode	mode		= null;
+
+    private int			windowSize	= -1;
+
+    private int			payloadSize	= -1;
+
+    private int			ackDelay	= -1;
+
+    private int			codecCount	= 0;
+
+    private int			checksumCount	= 0;
+
+    private boolean		codecsListed	= false;
+
+    private boolean		checksumsListed	= false;
+    // endregion fields
+
+    /**
+     * Returns the offer a sender with 'config' makes: its mode, window size
+     * and payload size, the codecs it allows ({@link TransportConfig#getCodecs()})
+     * in its order, and the checksums it allows that one of them carries,
+     * fastest first.
+     *
+     * @param config
+     *            the sender's settings
+     * @return the offer
+     */
+    public static SessionParameters offer(TransportConfig config) {
+	SessionParameters offer = new SessionParameters();
+	offer.mode = config.getMode();
+	offer.windowSize = Math.min(config.getWindowSize(), MAX_VALUE);
+	offer.payloadSize = Math.min(config.getPayloadSize(), MAX_VALUE);
+	WireCodec[] codecs = config.getCodecs();
+	for (WireCodec codec : codecs) {
+	    offer.addCodec(codec);
+	}
+	for (ChecksumAlgorithm checksum : CHECKSUMS) {
+	    if (!config.supports(checksum)) {
+		continue;
+	    }
+	    for (WireCodec codec : codecs) {
+		if (carries(codec, checksum)) {
+		    offer.addChecksum(checksum);
+		    break;
+		}
+	    }
+	}
+	return offer;
+    }
+
+    /**
+     * Returns the settings a receiver with 'config' runs a session with when
+     * this is the sender's offer: the first offered codec 'config' supports,
+     * and the first offered checksum it carries that 'config' supports too.
+     * Whatever the offer leaves out is taken from 'config'.
+     *
+     * @param config
+     *            the receiver's settings; its window size is the most it
+     *            will buffer
+     * @return the answer, holding one codec and one checksum
+     * @throws IllegalArgumentException
+     *             if no offered codec, or no offered checksum, is one both
+     *             ends allow
+     */
+    public SessionParameters answer(TransportConfig config)
+	throws IllegalArgumentException {
+	SessionParameters answer = new SessionParameters();
+	answer.mode = this.mode != null ? this.mode : config.getMode();
+
+	WireCodec codec = null;
+	if (!this.codecsListed) {
+	    codec = config.getCodecs()[0];
+	}
+	for (int i = 0; codec == null && i < this.codecCount; i++) {
+	    if (config.supports(this.codecs[i])) {
+		codec = this.codecs[i];
+	    }
+	}
+	if (codec == null) {
+	    throw new IllegalArgumentException("No offered codec is allowed: "
+					       + this);
+	}
+	answer.addCodec(codec);
+
+	ChecksumAlgorithm checksum = null;
+	if (!this.checksumsListed) {
+	    for (int i = 0; checksum == null && i < CHECKSUMS.length; i++) {
+		if (config.supports(CHECKSUMS[i]) && carries(codec, CHECKSUMS[i])) {
+		    checksum = CHECKSUMS[i];
+		}
+	    }
+	}
+	for (int i = 0; checksum == null && i < this.checksumCount; i++) {
+	    if (config.supports(this.checksums[i])
+		&& carries(codec, this.checksums[i])) {
+		checksum = this.checksums[i];
+	    }
+	}
+	if (checksum == null) {
+	    throw new IllegalArgumentException("No offered checksum is allowed with the "
+					       + codec.getName() + " codec: "
+					       + this);
+	}
+	answer.addChecksum(checksum);
+
+	SequenceNumbers sequence = codec.getSequenceNumbers();
+	long limit = sequence.getMaxWindow();
+	//the window this end would buffer in the agreed mode
+	TransportConfig receiving = config.copy();
+	receiving.setMode(answer.mode);
+	int window = (int) Math.min(limit, receiving.getWindowSize());
+	if (this.windowSize > 0) {
+	    window = Math.min(window, this.windowSize);
+	}
+	answer.windowSize = Math.min(window, MAX_VALUE);
+
+	//anything a datagram holds fits in the receive buffer
+	int payload = TransportConfig.MAX_DATAGRAM_LEN - codec.getMaxLength(0);
+	if (this.payloadSize > 0) {
+	    payload = Math.min(payload, this.payloadSize);
+	}
+	answer.payloadSize = Math.min(payload, MAX_VALUE);
+
+	//as the receiver protocol holds ACKs back in the agreed mode
+	answer.ackDelay = answer.mode != TransportMode.STOP_AND_WAIT
+	    && config.getAckEvery() > 1
+	    ? (int) Math.min(config.getAckDelay(), MAX_VALUE) : 0;
+
+	return answer;
+    }
+
+    /**
+     * Returns true if 'codec' can write 'checksum'.
+     */
+    private static boolean carries(WireCodec codec, ChecksumAlgorithm checksum) {
+	try {
+	    codec.withChecksum(checksum);
+	    return true;
+	} catch (IllegalArgumentException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Returns a copy of 'config' with the mode, window size, payload size,
+     * first codec and first checksum held here; settings not held are kept.
+     *
+     * @param config
+     *            settings to start from; not changed
+     * @return the settings to run the session with
+     * @throws IllegalArgumentException
+     *             if the result does not validate
+     */
+    public TransportConfig apply(TransportConfig config)
+	throws IllegalArgumentException {
+	TransportConfig session = config.copy();
+	if (this.mode != null) {
+	    session.setMode(this.mode);
+	}
+	if (this.codecCount > 0) {
+	    session.setCodec(this.codecs[0]);
+	    session.setChecksum(this.checksumCount > 0 ? this.checksums[0] : null);
+	}
+	if (this.windowSize > 0) {
+	    session.setWindowSize(this.windowSize);
+	}
+	if (this.payloadSize > 0) {
+	    session.setPayloadSize(this.payloadSize);
+	}
+	session.validate();
+	return session;
+    }
+
+    /**
+     * Forgets every field.
+     */
+    public void clear() {
+	this.mode = null;
+	this.windowSize = -1;
+	this.payloadSize = -1;
+	this.ackDelay = -1;
+	this.codecCount = 0;
+	this.checksumCount = 0;
+	this.codecsListed = false;
+	this.checksumsListed = false;
+    }
+
+    /**
+     * Writes the fields into 'destination' from its position, which is
+     * advanced past them.
+     *
+     * @param destination
+     *            buffer with at least {@link #MAX_LENGTH} bytes remaining
+     */
+    public void encode(ByteBuffer destination) {
+	if (this.mode != null) {
+	    destination.put(MODE);
+	    destination.put((byte) 1);
+	    destination.put((byte) this.mode.ordinal());
+	}
+	if (this.windowSize > 0) {
+	    destination.put(WINDOW);
+	    destination.put((byte) 2);
+	    destination.putShort((short) this.windowSize);
+	}
+	if (this.payloadSize > 0) {
+	    destination.put(PAYLOAD);
+	    destination.put((byte) 2);
+	    destination.putShort((short) this.payloadSize);
+	}
+	for (int i = 0; i < this.codecCount; i++) {
+	    byte[] name = this.codecs[i].getName().getBytes(NAME_CHARSET);
+	    destination.put(CODEC);
+	    destination.put((byte) name.length);
+	    destination.put(name);
+	}
+	for (int i = 0; i < this.checksumCount; i++) {
+	    destination.put(CHECKSUM);
+	    destination.put((byte) 1);
+	    destination.put((byte) this.checksums[i].getId());
+	}
+	if (this.ackDelay >= 0) {
+	    destination.put(ACK_DELAY);
+	    destination.put((byte) 2);
+	    destination.putShort((short) this.ackDelay);
+	}
+    }
+
+    /**
+     * Reads the fields from the payload of 'message', replacing any held.
+     * Unknown fields, and codecs and checksums this end does not support,
+     * are skipped.
+     *
+     * @param message
+     *            a decoded SYN or SYN-ACK
+     * @return false if the payload is not a well-formed list of fields; no
+     *         fields are held then
+     */
+    public boolean decode(MessageView message) {
+	clear();
+	ByteBuffer buffer = message.getBuffer();
+	int at = message.getPayloadOffset();
+	int end = at + message.getPayloadLength();
+
+	while (at < end) {
+	    if (end - at < 2) {
+		clear();
+		return false;
+	    }
+	    byte tag = buffer.get(at);
+	    int length = buffer.get(at + 1) & 0xFF;
+	    at += 2;
+	    if (end - at < length) {
+		clear();
+		return false;
+	    }
+
+	    if (tag == MODE || tag == CHECKSUM) {
+		if (length != 1) {
+		    clear();
+		    return false;
+		}
+		int value = buffer.get(at) & 0xFF;
+		if (tag == MODE) {
+		    TransportMode[] modes = TransportMode.values();
+		    this.mode = value < modes.length ? modes[value] : null;
+		} else {
+		    addChecksum(ChecksumAlgorithm.forId(value));
+		}
+	    } else if (tag == WINDOW || tag == PAYLOAD || tag == ACK_DELAY) {
+		if (length != 2) {
+		    clear();
+		    return false;
+		}
+		int value = buffer.getShort(at) & 0xFFFF;
+		if (tag == WINDOW) {
+		    this.windowSize = value;
+		} else if (tag == PAYLOAD) {
+		    this.payloadSize = value;
+		} else {
+		    this.ackDelay = value;
+		}
+	    } else if (tag == CODEC) {
+		byte[] name = new byte[length];
+		for (int i = 0; i < length; i++) {
+		    name[i] = buffer.get(at + i);
+		}
+		try {
+		    addCodec(WireCodecs.forName(new String(name, NAME_CHARSET)));
+		} catch (IllegalArgumentException e) {
+		    //a codec this end does not have
+		}
+	    }
+	    at += length;
+	}
+
+	return true;
+    }
+
+    /**
+     * Adds 'codec' after those held, unless it is already held or there is
+     * no room.
+     */
+    private void addCodec(WireCodec codec) {
+	this.codecsListed = true;
+	for (int i = 0; i < this.codecCount; i++) {
+	    if (this.codecs[i] == codec) {
+		return;
+	    }
+	}
+	if (this.codecCount < this.codecs.length) {
+	    this.codecs[this.codecCount++] = codec;
+	}
+    }
+
+    /**
+     * Adds 'checksum' after those held, unless it is null, already held or
+     * there is no room.
+     */
+    private void addChecksum(ChecksumAlgorithm checksum) {
+	this.checksumsListed = true;
+	if (checksum == null) {
+	    return;
+	}
+	for (int i = 0; i < this.checksumCount; i++) {
+	    if (this.checksums[i] == checksum) {
+		return;
+	    }
+	}
+	if (this.checksumCount < this.checksums.length) {
+	    this.checksums[this.checksumCount++] = checksum;
+	}
+    }
+
+    /**
+     * Returns the settings held on one line, e.g.
+     * <code>mode=sr window=16 payload=1400 codec=binary checksum=crc32c</code>,
+     * followed by <code>ack-delay=20</code> if one is held
+     */
+    @Override
+    public String toString() {
+	StringBuilder text = new StringBuilder();
+	text.append("mode=").append(this.mode == null ? "-"
+				    : this.mode.getShortName());
+	text.append(" window=").append(this.windowSize);
+	text.append(" payload=").append(this.payloadSize);
+	for (int i = 0; i < this.codecCount; i++) {
+	    text.append(i == 0 ? " codec=" : ",").append(this.codecs[i].getName());
+	}
+	for (int i = 0; i < this.checksumCount; i++) {
+	    text.append(i == 0 ? " checksum=" : ",")
+		.append(this.checksums[i].getShortName());
+	}
+	if (this.ackDelay >= 0) {
+	    text.append(" ack-delay=").append(this.ackDelay);
+	}
+	return text.toString();
+    }
+
+    // region getters
+
+    /**
+     * Returns the mode, or null if none is held.
+     */
+    public TransportMode getMode() {
+	return this.mode;
+    }
+
+    /**
+     * Returns the window size, or -1 if none is held.
+     */
+    public int getWindowSize() {
+	return this.windowSize;
+    }
+
+    /**
+     * Returns the payload size, or -1 if none is held.
+     */
+    public int getPayloadSize() {
+	return this.payloadSize;
+    }
+
+    /**
+     * Returns the longest the receiver holds back an ACK, in milliseconds,
+     * or -1 if none is held.
+     */
+    public int getAckDelay() {
+	return this.ackDelay;
+    }
+
+    /**
+     * Returns the number of codecs held.
+     */
+    public int getCodecCount() {
+	return this.codecCount;
+    }
+
+    /**
+     * Returns codec 'index', in order of preference.
+     *
+     * @param index
+     *            0 to {@link #getCodecCount()} - 1
+     */
+    public WireCodec getCodec(int index) {
+	return this.codecs[index];
+    }
+
+    /**
+     * Returns the number of checksums held.
+     */
+    public int getChecksumCount() {
+	return this.checksumCount;
+    }
+
+    /**
+     * Returns checksum 'index', in order of preference.
+     *
+     * @param index
+     *            0 to {@link #getChecksumCount()} - 1
+     */
+    public ChecksumAlgorithm getChecksum(int index) {
+	return this.checksums[index];
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param payloadSize
+     *            largest payload the sender will use, in bytes; larger
+     *            values are sent as {@link #MAX_VALUE}
+     */
+    public void setPayloadSize(int payloadSize) {
+	this.payloadSize = Math.min(payloadSize, MAX_VALUE);
+    }
+
+    // endregion setters
+}
@@ -0,0 +1,415 @@
+/**
+ * TextWireCodec.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original human-readable packet format described in
+ * {@link ReliableTransportMessage}: blank-padded decimal header fields, the
+ * payload and a decimal checksum. Easy to read in a tcpdump capture, and what
+ * the lab relay expects. <br>
+ * The allocation-free interface writes the payload exactly as given, so a
+ * datagram is {@link #OVERHEAD} bytes longer than its payload and the
+ * receiver takes the payload length from the datagram length; nothing is
+ * padded. It reads and writes the decimal fields digit by digit and carries
+ * IPv4 addresses only, since a 15-character field cannot hold most IPv6
+ * addresses.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class TextWireCodec implements WireCodec {
+
+    // region fields
+    /**
+     * Name of this codec on the command line.
+     */
+    public static final String	NAME		= "text";
+
+    /**
+     * Bytes of header and checksum around the payload.
+     */
+    public static final int	OVERHEAD	= ReliableTransportMessage.HEADER_LEN
+	+ ReliableTransportMessage.CHECKSUM_LEN;
+
+    private static final int	IP_WIDTH	= 15;
+
+    private static final int	PORT_WIDTH	= 5;
+
+    private static final int	SEQUENCE_WIDTH	= 2;
+
+    private static final int	CHECKSUM_WIDTH	= ReliableTransportMessage.CHECKSUM_LEN;
+
+    private static final int	CHECKSUM_MODULUS = 100000;
+
+    private static final int	MIN_CHECKSUM	= -9999;
+
+    private static final int	SRC_IP_OFFSET	= 0;
+
+    private static final int	SRC_PORT_OFFSET	= 15;
+
+    private static final int	DEST_IP_OFFSET	= 20;
+
+    private static final int	DEST_PORT_OFFSET = 35;
+
+    private static final int	OPCODE_OFFSET	= 40;
+
+    private static final int	SEQUENCE_OFFSET	= 41;
+
+    private static final int	NOT_A_NUMBER	= Integer.MIN_VALUE;
+
+    private static final byte	BLANK		= ' ';
+    // endregion fields
+
+    /**
+     * Returns {@link #NAME}.
+     */
+    public String getName() {
+	return NAME;
+    }
+
+    /**
+     * Returns {@link SequenceNumbers#DECIMAL}; the field has two characters.
+     */
+    public SequenceNumbers getSequenceNumbers() {
+	return SequenceNumbers.DECIMAL;
+    }
+
+    /**
+     * Returns {@link ChecksumAlgorithm#SUM}: the decimal checksum field of
+     * the text format is the folded sum of the characters before it.
+     */
+    public ChecksumAlgorithm getChecksum() {
+	return ChecksumAlgorithm.SUM;
+    }
+
+    /**
+     * Returns this codec for {@link ChecksumAlgorithm#SUM}. The layout has no
+     * room to name another algorithm, so no other can be carried.
+     *
+     * @throws IllegalArgumentException
+     *             if 'checksum' is not {@link ChecksumAlgorithm#SUM}
+     */
+    public WireCodec withChecksum(ChecksumAlgorithm checksum)
+	throws IllegalArgumentException {
+	if (checksum != ChecksumAlgorithm.SUM) {
+	    throw new IllegalArgumentException("the " + NAME
+					       + " codec only carries the "
+					       + ChecksumAlgorithm.SUM.getShortName()
+					       + " checksum");
+	}
+	return this;
+    }
+
+    /**
+     * Returns 'payloadLength' + {@link #OVERHEAD}.
+     */
+    public int getMaxLength(int payloadLength) {
+	return OVERHEAD + payloadLength;
+    }
+
+    /**
+     * Returns the message's own text encoding.
+     *
+     * @param message
+     *            the message to encode
+     * @return the datagram contents
+     */
+    public byte[] encode(ReliableTransportMessage message) {
+	return message.getBuffer();
+    }
+
+    /**
+     * Decodes a text datagram with
+     * {@link ReliableTransportMessage#reconstitute(byte[], int)}.
+     *
+     * @param buffer
+     *            received datagram
+     * @param offset
+     *            index of the first byte of the datagram
+     * @param length
+     *            number of bytes in the datagram
+     * @return the message, or null if it is malformed or damaged
+     */
+    public ReliableTransportMessage decode(byte[] buffer, int offset, int length) {
+	if (length < OVERHEAD) {
+	    return null;
+	}
+
+	byte[] encodingBytes = new byte[length];
+	System.arraycopy(buffer, offset, encodingBytes, 0, encodingBytes.length);
+	return ReliableTransportMessage.reconstitute(encodingBytes, length);
+    }
+
+    /**
+     * Writes a text datagram of exactly {@link #getMaxLength(int)} bytes; the
+     * payload is not padded.
+     *
+     * @param header
+     *            header fields to write; addresses must be IPv4
+     * @param payload
+     *            message body; not consumed
+     * @param destination
+     *            buffer receiving the datagram
+     * @throws IllegalArgumentException
+     *             if an address is not IPv4 or a number does not fit its
+     *             field
+     */
+    public void encode(MessageView header, ByteBuffer payload, ByteBuffer destination)
+	throws IllegalArgumentException {
+	if (header.getSourceAddressLength() != 4
+	    || header.getDestAddressLength() != 4) {
+	    throw new IllegalArgumentException("text format carries IPv4 addresses only");
+	}
+	int length = getMaxLength(payload.remaining());
+	if (destination.remaining() < length) {
+	    throw new BufferOverflowException();
+	}
+
+	int base = destination.position();
+	putAddress(destination, base + SRC_IP_OFFSET, header.getSourceAddress());
+	putNumber(destination, base + SRC_PORT_OFFSET, PORT_WIDTH,
+		  header.getSrcPort());
+	putAddress(destination, base + DEST_IP_OFFSET, header.getDestAddress());
+	putNumber(destination, base + DEST_PORT_OFFSET, PORT_WIDTH,
+		  header.getDestPort());
+	destination.put(base + OPCODE_OFFSET, (byte) header.getOpCode());
+	putNumber(destination, base + SEQUENCE_OFFSET, SEQUENCE_WIDTH,
+		  header.getSequenceNo());
+
+	int index = base + ReliableTransportMessage.HEADER_LEN;
+	for (int i = payload.position(); i < payload.limit(); i++) {
+	    destination.put(index++, payload.get(i));
+	}
+
+	putNumber(destination, index, CHECKSUM_WIDTH,
+		  sum(destination, base, index));
+	destination.position(base + length);
+    }
+
+    /**
+     * Parses a text datagram. The checksum is checked before any other field,
+     * so damage anywhere before the checksum shows up as
+     * {@link MessageView#BAD_CHECKSUM}. The payload is everything between the
+     * header and the checksum in the last {@link ReliableTransportMessage#CHECKSUM_LEN}
+     * bytes.
+     *
+     * @param datagram
+     *            received datagram
+     * @param view
+     *            view receiving the header fields and payload location
+     * @return {@link MessageView#OK} or one of its failure codes
+     */
+    public int decode(ByteBuffer datagram, MessageView view) {
+	view.setDatagram(datagram, this);
+	if (datagram.remaining() < OVERHEAD) {
+	    return MessageView.TRUNCATED;
+	}
+
+	int base = datagram.position();
+	int checksumOffset = datagram.limit() - CHECKSUM_WIDTH;
+	int storedChecksum = parseNumber(datagram, checksumOffset, CHECKSUM_WIDTH);
+	if (storedChecksum == NOT_A_NUMBER) {
+	    return MessageView.BAD_FIELD;
+	}
+	if (storedChecksum != sum(datagram, base, checksumOffset)) {
+	    return MessageView.BAD_CHECKSUM;
+	}
+
+	int srcPort = parseNumber(datagram, base + SRC_PORT_OFFSET, PORT_WIDTH);
+	int destPort = parseNumber(datagram, base + DEST_PORT_OFFSET, PORT_WIDTH);
+	int seqNo = parseNumber(datagram, base + SEQUENCE_OFFSET, SEQUENCE_WIDTH);
+	if (srcPort == NOT_A_NUMBER || destPort == NOT_A_NUMBER
+	    || seqNo == NOT_A_NUMBER
+	    || !parseAddress(datagram, base + SRC_IP_OFFSET, view.getSourceAddress())
+	    || !parseAddress(datagram, base + DEST_IP_OFFSET, view.getDestAddress())) {
+	    return MessageView.BAD_FIELD;
+	}
+
+	view.setSourceAddressLength(4);
+	view.setDestAddressLength(4);
+	view.setSrcPort(srcPort);
+	view.setDestPort(destPort);
+	view.setOpCode((char) (datagram.get(base + OPCODE_OFFSET) & 0xFF));
+	view.setSequenceNo(seqNo);
+	view.setPayload(base + ReliableTransportMessage.HEADER_LEN,
+			checksumOffset - base - ReliableTransportMessage.HEADER_LEN);
+
+	return MessageView.OK;
+    }
+
+    // region field helpers
+
+    /**
+     * Returns the checksum of the bytes from 'base' up to 'end': the sum of
+     * their (signed) byte values, folded by {@link #foldChecksum(int)}. The
+     * same value {@link ReliableTransportMessage#getComputedChecksum()} takes.
+     */
+    private static int sum(ByteBuffer buffer, int base, int end) {
+	int sum = 0;
+	for (int i = base; i < end; i++) {
+	    sum += buffer.get(i);
+	}
+	return foldChecksum(sum);
+    }
+
+    /**
+     * Brings a byte sum into the range the five-character checksum field can
+     * hold. Sums of a 30-byte payload always fit and are left alone, so short
+     * datagrams keep their original checksum; sums of long payloads are taken
+     * modulo 100000.
+     *
+     * @param sum
+     *            sum of the signed byte values
+     * @return the checksum to store
+     */
+    static int foldChecksum(int sum) {
+	if (sum >= MIN_CHECKSUM && sum < CHECKSUM_MODULUS) {
+	    return sum;
+	}
+	int folded = sum % CHECKSUM_MODULUS;
+	return folded < 0 ? folded + CHECKSUM_MODULUS : folded;
+    }
+
+    /**
+     * Writes 'value' in decimal, left-padded with blanks to 'width' chars.
+     *
+     * @throws IllegalArgumentException
+     *             if 'value' cannot be represented in 'width' chars
+     */
+    static void putNumber(ByteBuffer buffer, int index, int width, int value)
+	throws IllegalArgumentException {
+	long remaining = Math.abs((long) value);
+	int digits = 1;
+	for (long scale = 10; scale <= remaining; scale *= 10) {
+	    digits++;
+	}
+	int length = digits + (value < 0 ? 1 : 0);
+	if (length > width) {
+	    throw new IllegalArgumentException(
+					       "'value' cannot be represented in 'width' chars.");
+	}
+
+	int end = index + width;
+	for (int i = end - 1; i >= end - digits; i--) {
+	    buffer.put(i, (byte) ('0' + remaining % 10));
+	    remaining /= 10;
+	}
+	if (value < 0) {
+	    buffer.put(end - length, (byte) '-');
+	}
+	for (int i = index; i < end - length; i++) {
+	    buffer.put(i, BLANK);
+	}
+    }
+
+    /**
+     * Parses a decimal number surrounded by blanks from 'width' chars.
+     *
+     * @return the number, or {@link #NOT_A_NUMBER}
+     */
+    static int parseNumber(ByteBuffer buffer, int index, int width) {
+	int end = index + width;
+	int i = index;
+	while (i < end && buffer.get(i) == BLANK) {
+	    i++;
+	}
+
+	boolean negative = i < end && buffer.get(i) == '-';
+	if (negative) {
+	    i++;
+	}
+
+	int value = 0;
+	int digits = 0;
+	while (i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+	    value = value * 10 + (buffer.get(i) - '0');
+	    digits++;
+	    i++;
+	}
+	while (i < end && buffer.get(i) == BLANK) {
+	    i++;
+	}
+
+	if (digits == 0 || i != end) {
+	    return NOT_A_NUMBER;
+	}
+	return negative ? -value : value;
+    }
+
+    /**
+     * Writes a dotted-quad IPv4 address left-padded with blanks to 15 chars.
+     */
+    private static void putAddress(ByteBuffer buffer, int index, byte[] address) {
+	int length = 3;// the dots
+	for (int octet = 0; octet < 4; octet++) {
+	    int value = address[octet] & 0xFF;
+	    length += value >= 100 ? 3 : value >= 10 ? 2 : 1;
+	}
+
+	int i = index;
+	while (i < index + IP_WIDTH - length) {
+	    buffer.put(i++, BLANK);
+	}
+	for (int octet = 0; octet < 4; octet++) {
+	    int value = address[octet] & 0xFF;
+	    if (value >= 100) {
+		buffer.put(i++, (byte) ('0' + value / 100));
+	    }
+	    if (value >= 10) {
+		buffer.put(i++, (byte) ('0' + value / 10 % 10));
+	    }
+	    buffer.put(i++, (byte) ('0' + value % 10));
+	    if (octet < 3) {
+		buffer.put(i++, (byte) '.');
+	    }
+	}
+    }
+
+    /**
+     * Parses a blank-padded dotted-quad IPv4 address from 15 chars into the
+     * first four bytes of 'address'.
+     *
+     * @return false if the field is not a dotted-quad address
+     */
+    static boolean parseAddress(ByteBuffer buffer, int index, byte[] address) {
+	int end = index + IP_WIDTH;
+	int i = index;
+	while (i < end && buffer.get(i) == BLANK) {
+	    i++;
+	}
+
+	for (int octet = 0; octet < 4; octet++) {
+	    int value = 0;
+	    int digits = 0;
+	    while (i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9'
+		   && digits < 3) {
+		value = value * 10 + (buffer.get(i) - '0');
+		digits++;
+		i++;
+	    }
+	    if (digits == 0 || value > 255) {
+		return false;
+	    }
+	    address[octet] = (byte) value;
+
+	    if (octet < 3) {
+		if (i >= end || buffer.get(i) != '.') {
+		    return false;
+		}
+		i++;
+	    }
+	}
+
+	while (i < end && buffer.get(i) == BLANK) {
+	    i++;
+	}
+	return i == end;
+    }
+
+    // endregion field helpers
+}
@@ -0,0 +1,386 @@
+/**
+ * TransferBenchmark.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times whole {@link ReliableSender} to {@link ReliableReceiver} transfers
+ * over loopback and prints the results as JSON. <br>
+ * Each run writes a file of random bytes, sends it with the real sockets and
+ * checks that the received file is identical. Runs with loss go through a
+ * {@link UdpRelay} in the same process; the others go straight from sender
+ * to receiver unless a relay profile is asked for. Every combination of the
+ * swept settings is run in turn:
+ * <ul>
+ * <li><code>--sizes=</code> file sizes in bytes</li>
+ * <li><code>--payloads=</code> payload sizes in bytes</li>
+ * <li><code>--losses=</code> loss rates in percent</li>
+ * <li><code>--windows=</code> window sizes</li>
+ * </ul>
+ * each a comma separated list (<code>--loss</code> is the same as
+ * <code>--losses</code>). <code>--repeat=N</code> runs each combination
+ * N times and <code>--seed=N</code> seeds the file contents and the relay.
+ * Other options are those of {@link TransportConfig}, e.g.
+ * <code>--mode=sr --codec=binary</code>, and of {@link ImpairmentProfile},
+ * e.g. <code>--profile=reliable --delay=1</code>, which apply to every run.
+ * <br>
+ * For each run the report gives the wall time from the first send until the
+ * END is acknowledged, goodput in MB/s (10^6 bytes) over that time,
+ * retransmissions per packet, and the 50th and 99th percentile of the time
+ * from a packet's first transmission to its acknowledgement. The sender and
+ * receiver bind their usual ports on 127.0.0.1, so nothing else may be
+ * using them.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class TransferBenchmark {
+
+    // region fields
+    /**
+     * How long the receiver waits for a packet before checking whether the
+     * run is over (ms).
+     */
+    private static final int	RECEIVE_POLL	= 50;
+
+    private long[]		sizes		= { 1 << 20 };
+
+    private int[]		payloads	= { 1024 };
+
+    private double[]		losses		= { 0 };
+
+    private int[]		windows		= { 16 };
+
+    private int			repeat		= 1;
+
+    private long		seed		= 1;
+
+    private final List<String>	configArgs	= new ArrayList<String>();
+
+    private final ImpairmentProfile profile	= new ImpairmentProfile();
+
+    private boolean		relayed		= false;
+
+    private final InetAddress	loopback;
+    // endregion fields
+
+    /**
+     * Creates a benchmark with one run of a 1 MB file, 1024 byte payloads,
+     * no loss and a window of 16.
+     *
+     * @throws IOException
+     */
+    public TransferBenchmark() throws IOException {
+	this.loopback = InetAddress.getByName("127.0.0.1");
+    }
+
+    /**
+     * Runs the sweep given on the command line and prints the JSON report.
+     *
+     * @param args
+     *            sweep, transfer and impairment settings, e.g.
+     *            --mode=sr --window=64 --sizes=1048576,10485760 --losses=0,1,5
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+	TransferBenchmark benchmark = new TransferBenchmark();
+	for (String arg : args) {
+	    int split = arg.indexOf('=');
+	    if (!arg.startsWith("--") || split < 0) {
+		throw new IllegalArgumentException("Expected --name=value: " + arg);
+	    }
+	    benchmark.set(arg.substring(2, split), arg.substring(split + 1));
+	}
+	System.out.println(benchmark.run());
+    }
+
+    /**
+     * Sets the option called 'name' from its string form.
+     *
+     * @param name
+     *            option name, without the leading dashes
+     * @param value
+     *            option value
+     * @throws IllegalArgumentException
+     *             if the option is unknown or the value is invalid
+     */
+    public void set(String name, String value) throws IllegalArgumentException {
+	if (name.equals("sizes")) {
+	    this.sizes = parseLongs(value);
+	} else if (name.equals("payloads")) {
+	    this.payloads = toInts(parseLongs(value));
+	} else if (name.equals("losses") || name.equals("loss")) {
+	    String[] parts = value.split(",");
+	    this.losses = new double[parts.length];
+	    for (int i = 0; i < parts.length; i++) {
+		this.losses[i] = Double.parseDouble(parts[i].trim());
+	    }
+	} else if (name.equals("windows")) {
+	    this.windows = toInts(parseLongs(value));
+	} else if (name.equals("repeat")) {
+	    this.repeat = Integer.parseInt(value);
+	} else if (name.equals("seed")) {
+	    this.seed = Long.parseLong(value);
+	} else if (ImpairmentProfile.isOption(name)) {
+	    this.profile.set(name, value);
+	    this.relayed = true;
+	} else {
+	    //checked now, applied to every run
+	    new TransportConfig().set(name, value);
+	    this.configArgs.add("--" + name + "=" + value);
+	}
+    }
+
+    private static long[] parseLongs(String value) {
+	String[] parts = value.split(",");
+	long[] values = new long[parts.length];
+	for (int i = 0; i < parts.length; i++) {
+	    values[i] = Long.parseLong(parts[i].trim());
+	}
+	return values;
+    }
+
+    private static int[] toInts(long[] values) {
+	int[] ints = new int[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    ints[i] = (int) values[i];
+	}
+	return ints;
+    }
+
+    /**
+     * Runs every combination of the swept settings.
+     *
+     * @return the JSON report
+     * @throws IOException
+     */
+    public String run() throws IOException {
+	StringBuilder json = new StringBuilder("{\"runs\": [");
+	String separator = "\n  ";
+	for (long size : this.sizes) {
+	    for (int payload : this.payloads) {
+		for (double loss : this.losses) {
+		    for (int window : this.windows) {
+			for (int i = 0; i < this.repeat; i++) {
+			    json.append(separator);
+			    json.append(runOne(size, payload, loss, window));
+			    separator = ",\n  ";
+			}
+		    }
+		}
+	    }
+	}
+	return json.append("\n]}").toString();
+    }
+
+    /**
+     * Runs one transfer.
+     *
+     * @return the run's JSON object
+     * @throws IOException
+     */
+    public String runOne(long size, int payload, double loss, int window)
+	throws IOException {
+	File input = File.createTempFile("benchmark", ".in");
+	File output = File.createTempFile("benchmark", ".out");
+	UdpRelay relay = null;
+	Thread relayThread = null;
+	try {
+	    writeRandom(input, size);
+
+	    TransportConfig senderConfig = config(input, output, payload, window);
+	    TransportConfig receiverConfig = config(input, output, payload, window);
+	    boolean throughRelay = this.relayed || loss > 0;
+	    if (throughRelay) {
+		this.profile.setLoss(loss / 100);
+		relay = new UdpRelay(new InetSocketAddress(this.loopback, 0),
+				     this.profile, this.seed);
+		int port = ((InetSocketAddress) relay.getLocalAddress()).getPort();
+		senderConfig.setRelayPort(port);
+		receiverConfig.setRelayPort(port);
+		relayThread = start(relay);
+	    } else {
+		//straight to each other's ports
+		senderConfig.setRelayPort(ReliableSender.DATA_RECEIVE_PORT);
+		receiverConfig.setRelayPort(ReliableSender.ACK_RECEIVE_PORT);
+	    }
+
+	    Result result = transfer(senderConfig, receiverConfig);
+	    boolean intact = Arrays.equals(Files.readAllBytes(input.toPath()),
+					   Files.readAllBytes(output.toPath()));
+
+	    return String.format(Locale.ROOT,
+				 "{\"mode\": \"%s\", \"codec\": \"%s\", \"size\": %d, "
+				 + "\"payload\": %d, \"loss\": %s, \"window\": %d, "
+				 + "\"relayed\": %b, \"packets\": %d, "
+				 + "\"retransmissions\": %d, \"retransmissionRatio\": %.4f, "
+				 + "\"wallTimeMs\": %.3f, \"goodputMBps\": %.3f, "
+				 + "\"latencyP50Us\": %.1f, \"latencyP99Us\": %.1f, "
+				 + "\"intact\": %b}",
+				 senderConfig.getMode().getShortName(),
+				 senderConfig.getCodec().getName(), size, payload,
+				 Double.toString(loss), senderConfig.getWindowSize(),
+				 throughRelay, result.packets, result.retransmissions,
+				 result.packets == 0 ? 0.0
+				 : (double) result.retransmissions / result.packets,
+				 result.wallTime / 1e6,
+				 result.wallTime == 0 ? 0.0 : size * 1e3 / result.wallTime,
+				 result.latency.getPercentile(0.5) / 1e3,
+				 result.latency.getPercentile(0.99) / 1e3, intact);
+	} finally {
+	    if (relay != null) {
+		relay.stop();
+		join(relayThread);
+		relay.close();
+	    }
+	    input.delete();
+	    output.delete();
+	}
+    }
+
+    /**
+     * Builds the settings of one end of a run.
+     */
+    private TransportConfig config(File input, File output, int payload,
+				   int window) {
+	TransportConfig config =
+	    TransportConfig.parse(this.configArgs.toArray(new String[0]));
+	config.setInput(input.getPath());
+	config.setOutput(output.getPath());
+	config.setPayloadSize(payload);
+	config.setWindowSize(window);
+	config.setLocal(this.loopback.getHostAddress());
+	config.setRelay(this.loopback.getHostAddress());
+	config.setLogLevel(LogLevel.OFF);//the report is the only output
+	config.validate();
+	return config;
+    }
+
+    /**
+     * Sends the input file to a receiver running on its own thread, and
+     * waits for both ends to finish.
+     */
+    private Result transfer(TransportConfig senderConfig,
+			    TransportConfig receiverConfig) throws IOException {
+	final ReliableReceiver receiver = new ReliableReceiver(receiverConfig);
+	final AtomicBoolean running = new AtomicBoolean(true);
+	final IOException[] failure = { null };
+	receiver.setTimeout(RECEIVE_POLL);
+	Thread receiving = new Thread("receiver") {
+		public void run() {
+		    //keeps answering after END in case its ACK was lost
+		    while (running.get()) {
+			try {
+			    receiver.receive();
+			} catch (SocketTimeoutException e) {
+			    //check whether the run is over
+			} catch (IOException e) {
+			    failure[0] = e;
+			    return;
+			}
+		    }
+		}
+	    };
+	receiving.start();
+
+	Result result = new Result();
+	ReliableSender sender =
+	    new ReliableSender(InetAddress.getByName(senderConfig.getRelay()),
+			       senderConfig);
+	try {
+	    sender.setLatencyRecorder(result.latency);
+	    MappedFileSource in =
+		new MappedFileSource(new File(senderConfig.getInput()).toPath(),
+				     sender.getPayloadSize());
+
+	    long started = System.nanoTime();
+	    ByteBuffer payload;
+	    while ((payload = in.next()) != null) {
+		sender.send(payload);
+		result.packets++;
+	    }
+	    sender.close();
+	    result.wallTime = System.nanoTime() - started;
+	    result.retransmissions = sender.getRetransmissions();
+	    in.close();
+	} finally {
+	    sender.disconnect();
+	    running.set(false);
+	    join(receiving);
+	    receiver.close();
+	}
+	if (failure[0] != null) {
+	    throw failure[0];
+	}
+	return result;
+    }
+
+    private static Thread start(final UdpRelay relay) {
+	Thread thread = new Thread("relay") {
+		public void run() {
+		    try {
+			relay.run();
+		    } catch (IOException e) {
+			e.printStackTrace();
+		    }
+		}
+	    };
+	thread.start();
+	return thread;
+    }
+
+    private static void join(Thread thread) {
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Fills 'file' with 'size' random bytes from the benchmark's seed.
+     */
+    private void writeRandom(File file, long size) throws IOException {
+	Random random = new Random(this.seed ^ size);
+	byte[] chunk = new byte[1 << 16];
+	OutputStream out = Files.newOutputStream(file.toPath());
+	try {
+	    for (long written = 0; written < size; written += chunk.length) {
+		random.nextBytes(chunk);
+		out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * What one transfer measured.
+     */
+    private static class Result {
+
+	final LatencyRecorder	latency		= new LatencyRecorder();
+
+	long			packets		= 0;
+
+	long			retransmissions	= 0;
+
+	long			wallTime	= 0;
+    }
+}
@@ -0,0 +1,776 @@
+/**
+ * TransportConfig.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+/**
+ * Tunable settings for a {@link ReliableSender} / {@link ReliableReceiver}
+ * pair. The defaults reproduce the original stop-and-wait behaviour.
+ * Settings can be given on the command line as <code>--name=value</code>,
+ * e.g. <code>--mode=gbn --window=16 --codec=binary --payload=1400</code>
+ * or <code>--checksum=internet</code>. With <code>--codec=text</code>, the
+ * default, sequence numbers run 0-99, so the window may be at most 50 in
+ * any mode; <code>--codec=binary</code> carries 32-bit sequence numbers.
+ * Times are in milliseconds, sizes in bytes. File names are paths. Hosts
+ * are names or addresses; <code>--relay=127.0.0.1 --local=127.0.0.1</code>
+ * runs a transfer through a {@link UdpRelay} on this machine, and
+ * <code>--metrics-interval=1000</code> prints the {@link TransportMetrics}
+ * every second. <code>--log=error</code> (or off, info, debug) sets how
+ * much is logged per packet. <code>--max-attempts=10 --retry-jitter=20</code>
+ * gives up on a packet after 10 sends and waits up to 20% longer than the
+ * RTO before each resend (see {@link RetryPolicy}).
+ * <code>--threads=8</code> lets a {@link SenderEngine} run 8 transfers at
+ * once. <code>--ack-every=2 --ack-delay=10</code> makes the receiver
+ * acknowledge every second packet in order, or 10 ms after the first one it
+ * has not acknowledged, whichever comes first. <code>--dup-acks=3</code>
+ * resends the oldest packet in flight as soon as 3 duplicate ACKs arrive
+ * for it, without waiting for its timer; 0 leaves that to NAKs and the
+ * timer. <code>--handshake=true</code> makes the sender open each session
+ * with a SYN, which settles the mode, window, payload size, codec and
+ * checksum with the receiver (see {@link SessionParameters}); the receiver
+ * needs no option for it. Each end offers or accepts only its own
+ * <code>--codec</code> and <code>--checksum</code>, or with
+ * <code>--codecs=binary,text</code> any of the codecs listed, in that order
+ * of preference.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class TransportConfig implements Cloneable {
+
+    // region fields
+    /**
+     * Largest window in any mode. The codec's sequence space may allow less:
+     * see {@link SequenceNumbers#getMaxWindow()}.
+     */
+    public static final int	MAX_WINDOW	= 65535;
+
+    /**
+     * Largest UDP payload over IPv4 (65535 - 20 byte IP header - 8 byte UDP
+     * header). No datagram may be longer.
+     */
+    public static final int	MAX_DATAGRAM_LEN = 65507;
+
+    /**
+     * Most transfers a {@link SenderEngine} may run at once.
+     */
+    public static final int	MAX_THREADS	= 1024;
+
+    private TransportMode	mode		= TransportMode.STOP_AND_WAIT;
+
+    private int			windowSize	= 8;
+
+    private WireCodec		codec		= WireCodecs.TEXT;
+
+    private WireCodec[]		codecs		= null;
+
+    private ChecksumAlgorithm	checksum	= null;
+
+    private long		initialRto	= 1000;
+
+    private long		minRto		= 20;
+
+    private long		maxRto		= 10000;
+
+    private int			payloadSize	= ReliableTransportMessage.PAYLOAD_LEN;
+
+    private boolean		probeMtu	= false;
+
+    private boolean		handshake	= false;
+
+    private boolean		congestionControl = true;
+
+    private String		input		= "divine_comedy2.txt";
+
+    private String		output		= null;
+
+    private String		relay		= "172.17.152.60";
+
+    private int			relayPort	= ReliableSender.RELAY_PORT;
+
+    private String		local		= "172.17.152.46";
+
+    private long		metricsInterval	= 0;
+
+    private LogLevel		logLevel	= LogLevel.INFO;
+
+    private int			maxAttempts	= 0;
+
+    private double		retryJitter	= 0;
+
+    private int			threads		= 4;
+
+    private int			ackEvery	= 1;
+
+    private long		ackDelay	= 10;
+
+    private int			dupAcks		= 3;
+    // endregion fields
+
+    /**
+     * Builds a configuration from <code>--name=value</code> arguments.
+     *
+     * @param args
+     *            command line arguments
+     * @return the parsed configuration
+     * @throws IllegalArgumentException
+     *             if an argument is unknown or its value is out of range
+     */
+    public static TransportConfig parse(String[] args)
+	throws IllegalArgumentException {
+	TransportConfig config = new TransportConfig();
+
+	for (String arg : args) {
+	    int split = arg.indexOf('=');
+	    if (!arg.startsWith("--") || split < 0) {
+		throw new IllegalArgumentException("Expected --name=value: " + arg);
+	    }
+	    config.set(arg.substring(2, split), arg.substring(split + 1));
+	}
+	config.validate();
+
+	return config;
+    }
+
+    /**
+     * Checks that the settings make sense together.
+     *
+     * @throws IllegalArgumentException
+     *             if the window is too large for the codec, the RTO
+     *             limits are inconsistent, a payload would not fit in a
+     *             datagram, the codec cannot carry the checksum or delayed
+     *             ACKs would wait as long as the minimum RTO
+     */
+    public void validate() throws IllegalArgumentException {
+	WireCodec codec = getCodec();
+	if (codec.getMaxLength(this.payloadSize) > MAX_DATAGRAM_LEN) {
+	    throw new IllegalArgumentException("payload of " + this.payloadSize
+					       + " bytes does not fit in a "
+					       + this.codec.getName() + " datagram");
+	}
+	if (this.minRto < 1 || this.minRto > this.maxRto) {
+	    throw new IllegalArgumentException("RTO limits must satisfy 1 <= min-rto <= max-rto, got "
+					       + this.minRto + " and " + this.maxRto);
+	}
+	SequenceNumbers sequence = this.codec.getSequenceNumbers();
+	if (this.ackEvery > 1 && this.ackDelay >= this.minRto) {
+	    throw new IllegalArgumentException("ack delay must be shorter than min-rto ("
+					       + this.minRto + "), got " + this.ackDelay);
+	}
+	if (this.windowSize > sequence.getMaxWindow()) {
+	    throw new IllegalArgumentException("window must be 1-"
+					       + sequence.getMaxWindow()
+					       + " with the " + this.codec.getName()
+					       + " codec, got " + this.windowSize);
+	}
+    }
+
+    /**
+     * Returns a copy of these settings that can be changed without changing
+     * them, e.g. to run one session with settings agreed in a handshake.
+     */
+    public TransportConfig copy() {
+	try {
+	    return (TransportConfig) super.clone();
+	} catch (CloneNotSupportedException e) {
+	    throw new AssertionError(e);//every field is a value
+	}
+    }
+
+    /**
+     * Sets the option called 'name' from its string form.
+     *
+     * @param name
+     *            option name, without the leading dashes
+     * @param value
+     *            option value
+     * @throws IllegalArgumentException
+     *             if the option is unknown or the value is invalid
+     */
+    public void set(String name, String value) throws IllegalArgumentException {
+	if (name.equals("mode")) {
+	    setMode(TransportMode.forName(value));
+	} else if (name.equals("window")) {
+	    setWindowSize(Integer.parseInt(value));
+	} else if (name.equals("codec")) {
+	    setCodec(WireCodecs.forName(value));
+	} else if (name.equals("codecs")) {
+	    String[] names = value.split(",");
+	    WireCodec[] codecs = new WireCodec[names.length];
+	    for (int i = 0; i < names.length; i++) {
+		codecs[i] = WireCodecs.forName(names[i].trim());
+	    }
+	    setCodecs(codecs);
+	} else if (name.equals("checksum")) {
+	    setChecksum(ChecksumAlgorithm.forName(value));
+	} else if (name.equals("initial-rto")) {
+	    setInitialRto(Long.parseLong(value));
+	} else if (name.equals("min-rto")) {
+	    setMinRto(Long.parseLong(value));
+	} else if (name.equals("max-rto")) {
+	    setMaxRto(Long.parseLong(value));
+	} else if (name.equals("payload")) {
+	    setPayloadSize(Integer.parseInt(value));
+	} else if (name.equals("probe-mtu")) {
+	    setProbeMtu(Boolean.parseBoolean(value));
+	} else if (name.equals("handshake")) {
+	    setHandshake(Boolean.parseBoolean(value));
+	} else if (name.equals("congestion")) {
+	    setCongestionControl(Boolean.parseBoolean(value));
+	} else if (name.equals("input")) {
+	    setInput(value);
+	} else if (name.equals("output")) {
+	    setOutput(value);
+	} else if (name.equals("relay")) {
+	    setRelay(value);
+	} else if (name.equals("relay-port")) {
+	    setRelayPort(Integer.parseInt(value));
+	} else if (name.equals("local")) {
+	    setLocal(value);
+	} else if (name.equals("max-attempts")) {
+	    setMaxAttempts(Integer.parseInt(value));
+	} else if (name.equals("retry-jitter")) {
+	    setRetryJitter(Double.parseDouble(value));
+	} else if (name.equals("log")) {
+	    setLogLevel(LogLevel.forName(value));
+	} else if (name.equals("metrics-interval")) {
+	    setMetricsInterval(Long.parseLong(value));
+	} else if (name.equals("threads")) {
+	    setThreads(Integer.parseInt(value));
+	} else if (name.equals("ack-every")) {
+	    setAckEvery(Integer.parseInt(value));
+	} else if (name.equals("ack-delay")) {
+	    setAckDelay(Long.parseLong(value));
+	} else if (name.equals("dup-acks")) {
+	    setDupAcks(Integer.parseInt(value));
+	} else {
+	    throw new IllegalArgumentException("Unknown option: " + name);
+	}
+    }
+
+    // region getters
+
+    /**
+     * Returns how long the receiver may hold back an ACK for an in-order
+     * packet, in milliseconds.
+     */
+    public long getAckDelay() {
+	return this.ackDelay;
+    }
+
+    /**
+     * Returns the number of in-order packets the receiver acknowledges with
+     * one ACK; 1 acknowledges every packet at once.
+     */
+    public int getAckEvery() {
+	return this.ackEvery;
+    }
+
+    /**
+     * Returns the codec outgoing packets are encoded with, writing the
+     * chosen checksum.
+     *
+     * @throws IllegalArgumentException
+     *             if the codec cannot carry the chosen checksum; caught
+     *             earlier by {@link #validate()}
+     */
+    public WireCodec getCodec() throws IllegalArgumentException {
+	if (this.checksum == null) {
+	    return this.codec;
+	}
+	return this.codec.withChecksum(this.checksum);
+    }
+
+    /**
+     * Returns the checksum written into outgoing packets.
+     */
+    public ChecksumAlgorithm getChecksum() {
+	return getCodec().getChecksum();
+    }
+
+    /**
+     * Returns the codecs this end offers or accepts in a handshake, in order
+     * of preference: those set with {@link #setCodecs(WireCodec[])}, or
+     * else just the configured codec.
+     */
+    public WireCodec[] getCodecs() {
+	return this.codecs != null ? this.codecs.clone()
+	    : new WireCodec[] { this.codec };
+    }
+
+    /**
+     * Returns true if this end may run a session with 'codec': it is one of
+     * {@link #getCodecs()}.
+     *
+     * @param codec
+     *            a codec from {@link WireCodecs}
+     */
+    public boolean supports(WireCodec codec) {
+	for (WireCodec allowed : getCodecs()) {
+	    if (allowed == codec) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Returns true if this end may run a session with 'checksum': it is the
+     * configured checksum or, if none was chosen, any checksum.
+     *
+     * @param checksum
+     *            a checksum algorithm
+     */
+    public boolean supports(ChecksumAlgorithm checksum) {
+	return this.checksum == null || this.checksum == checksum;
+    }
+
+    /**
+     * Returns true if the windowed modes run congestion control and pacing.
+     */
+    public boolean isCongestionControl() {
+	return this.congestionControl;
+    }
+
+    /**
+     * Returns the number of duplicate ACKs that make the windowed modes
+     * resend the oldest packet in flight at once; 0 if they never do.
+     */
+    public int getDupAcks() {
+	return this.dupAcks;
+    }
+
+    /**
+     * Returns the file the sender transfers.
+     */
+    public String getInput() {
+	return this.input;
+    }
+
+    /**
+     * Returns the local host the sender and receiver bind their sockets to.
+     */
+    public String getLocal() {
+	return this.local;
+    }
+
+    /**
+     * Returns the file the receiver writes the transfer to, or null to print
+     * it to standard out.
+     */
+    public String getOutput() {
+	return this.output;
+    }
+
+    /**
+     * Returns how much the sender and receiver log per packet.
+     */
+    public LogLevel getLogLevel() {
+	return this.logLevel;
+    }
+
+    /**
+     * Returns how often the sender and receiver print a
+     * {@link TransportMetrics} snapshot, in milliseconds; 0 for never.
+     */
+    public long getMetricsInterval() {
+	return this.metricsInterval;
+    }
+
+    /**
+     * Returns the retransmission timeout used before any round trip has been
+     * measured, in milliseconds.
+     */
+    public long getInitialRto() {
+	return this.initialRto;
+    }
+
+    /**
+     * Returns the most times a packet is sent before the sender gives up, 0
+     * for no limit.
+     */
+    public int getMaxAttempts() {
+	return this.maxAttempts;
+    }
+
+    /**
+     * Returns the largest retransmission timeout, in milliseconds.
+     */
+    public long getMaxRto() {
+	return this.maxRto;
+    }
+
+    /**
+     * Returns the smallest retransmission timeout, in milliseconds.
+     */
+    public long getMinRto() {
+	return this.minRto;
+    }
+
+    /**
+     * Returns the retransmission scheme.
+     */
+    public TransportMode getMode() {
+	return this.mode;
+    }
+
+    /**
+     * Returns the largest payload a DATA packet carries, in bytes.
+     */
+    public int getPayloadSize() {
+	return this.payloadSize;
+    }
+
+    /**
+     * Returns the host of the relay every packet is sent through.
+     */
+    public String getRelay() {
+	return this.relay;
+    }
+
+    /**
+     * Returns the UDP port of the relay.
+     */
+    public int getRelayPort() {
+	return this.relayPort;
+    }
+
+    /**
+     * Returns the largest random addition to a retransmission timeout, as a
+     * percentage of it.
+     */
+    public double getRetryJitter() {
+	return this.retryJitter;
+    }
+
+    /**
+     * Returns true if the sender should look for the largest payload the path
+     * carries without fragmentation before it starts.
+     */
+    public boolean isProbeMtu() {
+	return this.probeMtu;
+    }
+
+    /**
+     * Returns true if the sender settles the session's settings with the
+     * receiver in a SYN / SYN-ACK exchange before sending.
+     */
+    public boolean isHandshake() {
+	return this.handshake;
+    }
+
+    /**
+     * Returns the number of transfers a {@link SenderEngine} runs at once.
+     */
+    public int getThreads() {
+	return this.threads;
+    }
+
+    /**
+     * Returns the number of packets that may be in flight at once. Always 1 in
+     * {@link TransportMode#STOP_AND_WAIT}.
+     */
+    public int getWindowSize() {
+	if (this.mode == TransportMode.STOP_AND_WAIT) {
+	    return 1;
+	}
+	return this.windowSize;
+    }
+
+    // endregion getters
+
+    // region setters
+
+    /**
+     * @param ackDelay
+     *            longest the receiver holds back an ACK for an in-order
+     *            packet, in milliseconds; must be shorter than the minimum
+     *            RTO
+     * @throws IllegalArgumentException
+     *             if 'ackDelay' is less than 1
+     */
+    public void setAckDelay(long ackDelay) throws IllegalArgumentException {
+	if (ackDelay < 1) {
+	    throw new IllegalArgumentException("ack delay must be at least 1 ms, got "
+					       + ackDelay);
+	}
+	this.ackDelay = ackDelay;
+    }
+
+    /**
+     * @param ackEvery
+     *            number of in-order packets acknowledged with one ACK (1 -
+     *            {@link #MAX_WINDOW}); stop-and-wait always acknowledges
+     *            every packet
+     * @throws IllegalArgumentException
+     *             if 'ackEvery' is out of range
+     */
+    public void setAckEvery(int ackEvery) throws IllegalArgumentException {
+	if (ackEvery < 1 || ackEvery > MAX_WINDOW) {
+	    throw new IllegalArgumentException("ack every must be 1-" + MAX_WINDOW
+					       + ", got " + ackEvery);
+	}
+	this.ackEvery = ackEvery;
+    }
+
+    /**
+     * @param checksum
+     *            the checksum written into outgoing packets, or null for the
+     *            codec's own: {@link ChecksumAlgorithm#CRC32C} for binary,
+     *            {@link ChecksumAlgorithm#SUM} for text, the only one it
+     *            carries
+     */
+    public void setChecksum(ChecksumAlgorithm checksum) {
+	this.checksum = checksum;
+    }
+
+    /**
+     * @param codec
+     *            the codec outgoing packets are encoded with; the text
+     *            codec's 0-99 sequence numbers limit the window to 50 in
+     *            every mode, so nothing from the previous lap is taken for
+     *            a current packet or ACK
+     */
+    public void setCodec(WireCodec codec) {
+	this.codec = codec;
+    }
+
+    /**
+     * @param codecs
+     *            the codecs this end offers or accepts in a handshake, in
+     *            order of preference, or null for just the configured codec
+     */
+    public void setCodecs(WireCodec[] codecs) {
+	//copied, so copy() can share the array
+	this.codecs = codecs != null ? codecs.clone() : null;
+    }
+
+    /**
+     * @param congestionControl
+     *            true to let a congestion window and pacing limit the
+     *            windowed modes, false to always send a full window
+     */
+    public void setCongestionControl(boolean congestionControl) {
+	this.congestionControl = congestionControl;
+    }
+
+    /**
+     * @param dupAcks
+     *            number of duplicate ACKs that make the windowed modes resend
+     *            the oldest packet in flight at once, or 0 to wait for a NAK
+     *            or the timer
+     * @throws IllegalArgumentException
+     *             if 'dupAcks' is negative
+     */
+    public void setDupAcks(int dupAcks) throws IllegalArgumentException {
+	if (dupAcks < 0) {
+	    throw new IllegalArgumentException("dup acks must be at least 0, got "
+					       + dupAcks);
+	}
+	this.dupAcks = dupAcks;
+    }
+
+    /**
+     * @param initialRto
+     *            retransmission timeout before the first measured round trip,
+     *            in milliseconds
+     */
+    public void setInitialRto(long initialRto) {
+	this.initialRto = initialRto;
+    }
+
+    /**
+     * @param input
+     *            file the sender transfers
+     */
+    public void setInput(String input) {
+	this.input = input;
+    }
+
+    /**
+     * @param local
+     *            local host to bind the sockets to
+     */
+    public void setLocal(String local) {
+	this.local = local;
+    }
+
+    /**
+     * @param maxAttempts
+     *            most times a packet is sent before the sender gives up, 0
+     *            for no limit; END packets stop after 20 attempts in any
+     *            case
+     * @throws IllegalArgumentException
+     *             if 'maxAttempts' is negative
+     */
+    public void setMaxAttempts(int maxAttempts) throws IllegalArgumentException {
+	if (maxAttempts < 0) {
+	    throw new IllegalArgumentException("max attempts must not be negative, got "
+					       + maxAttempts);
+	}
+	this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param maxRto
+     *            largest retransmission timeout, in milliseconds
+     */
+    public void setMaxRto(long maxRto) {
+	this.maxRto = maxRto;
+    }
+
+    /**
+     * @param logLevel
+     *            how much the sender and receiver log:
+     *            {@link LogLevel#DEBUG} for every packet's checks,
+     *            {@link LogLevel#INFO} for resends and session events,
+     *            {@link LogLevel#ERROR} for bad packets only
+     */
+    public void setLogLevel(LogLevel logLevel) {
+	this.logLevel = logLevel;
+    }
+
+    /**
+     * @param metricsInterval
+     *            how often to print a {@link TransportMetrics} snapshot, in
+     *            milliseconds; 0 for never
+     * @throws IllegalArgumentException
+     *             if 'metricsInterval' is negative
+     */
+    public void setMetricsInterval(long metricsInterval)
+	throws IllegalArgumentException {
+	if (metricsInterval < 0) {
+	    throw new IllegalArgumentException("metrics interval must not be negative, got "
+					       + metricsInterval);
+	}
+	this.metricsInterval = metricsInterval;
+    }
+
+    /**
+     * @param minRto
+     *            smallest retransmission timeout, in milliseconds
+     */
+    public void setMinRto(long minRto) {
+	this.minRto = minRto;
+    }
+
+    /**
+     * @param mode
+     *            the retransmission scheme to use
+     */
+    public void setMode(TransportMode mode) {
+	this.mode = mode;
+    }
+
+    /**
+     * @param output
+     *            file the receiver writes the transfer to, or null to print
+     *            it to standard out
+     */
+    public void setOutput(String output) {
+	this.output = output;
+    }
+
+    /**
+     * @param payloadSize
+     *            largest payload a DATA packet carries, in bytes
+     * @throws IllegalArgumentException
+     *             if 'payloadSize' is less than 1
+     */
+    public void setPayloadSize(int payloadSize) throws IllegalArgumentException {
+	if (payloadSize < 1) {
+	    throw new IllegalArgumentException("payload must be at least 1 byte, got "
+					       + payloadSize);
+	}
+	this.payloadSize = payloadSize;
+    }
+
+    /**
+     * @param handshake
+     *            true to settle the mode, window, payload size, codec and
+     *            checksum with the receiver before sending
+     */
+    public void setHandshake(boolean handshake) {
+	this.handshake = handshake;
+    }
+
+    /**
+     * @param probeMtu
+     *            true to probe the path MTU before sending; the probe starts
+     *            from the payload size and only ever raises it
+     */
+    public void setProbeMtu(boolean probeMtu) {
+	this.probeMtu = probeMtu;
+    }
+
+    /**
+     * @param relay
+     *            host of the relay every packet is sent through
+     */
+    public void setRelay(String relay) {
+	this.relay = relay;
+    }
+
+    /**
+     * @param relayPort
+     *            UDP port of the relay
+     * @throws IllegalArgumentException
+     *             if 'relayPort' is not 1-65535
+     */
+    public void setRelayPort(int relayPort) throws IllegalArgumentException {
+	if (relayPort < 1 || relayPort > 65535) {
+	    throw new IllegalArgumentException("relay port must be 1-65535, got "
+					       + relayPort);
+	}
+	this.relayPort = relayPort;
+    }
+
+    /**
+     * @param retryJitter
+     *            largest random addition to a retransmission timeout, as a
+     *            percentage of it (0 - 100)
+     * @throws IllegalArgumentException
+     *             if 'retryJitter' is out of range
+     */
+    public void setRetryJitter(double retryJitter)
+	throws IllegalArgumentException {
+	if (retryJitter < 0 || retryJitter > 100) {
+	    throw new IllegalArgumentException("retry jitter must be 0-100%, got "
+					       + retryJitter);
+	}
+	this.retryJitter = retryJitter;
+    }
+
+    /**
+     * @param threads
+     *            number of transfers a {@link SenderEngine} runs at once,
+     *            each on its own thread (1 - {@link #MAX_THREADS})
+     * @throws IllegalArgumentException
+     *             if 'threads' is out of range
+     */
+    public void setThreads(int threads) throws IllegalArgumentException {
+	if (threads < 1 || threads > MAX_THREADS) {
+	    throw new IllegalArgumentException("threads must be 1-" + MAX_THREADS
+					       + ", got " + threads);
+	}
+	this.threads = threads;
+    }
+
+    /**
+     * @param windowSize
+     *            number of packets that may be in flight (1 -
+     *            {@link #MAX_WINDOW})
+     * @throws IllegalArgumentException
+     *             if 'windowSize' is out of range
+     */
+    public void setWindowSize(int windowSize) throws IllegalArgumentException {
+	if (windowSize < 1 || windowSize > MAX_WINDOW) {
+	    throw new IllegalArgumentException("window must be 1-" + MAX_WINDOW
+					       + ", got " + windowSize);
+	}
+	this.windowSize = windowSize;
+    }
+
+    // endregion setters
+}
@@ -0,0 +1,386 @@
+/**
+ * TransportMetrics.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one end of a transfer: packets sent
+ * and received, retransmits, timeouts, NAKs, checksum failures and
+ * out-of-order drops and zero window probes, plus the round-trip times fed to the
+ * {@link RttEstimator} and the time from each packet's first transmission
+ * to its acknowledgement. <br>
+ * {@link SenderProtocol}, {@link ReceiverProtocol} and the programs around
+ * them count into an instance as they go; it can be read from any thread,
+ * published over JMX with {@link #register()} (as
+ * <code>transport:type=TransportMetrics,name=&lt;name&gt;</code>) and
+ * printed every so often with {@link #startReporting(PrintStream, long)}.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class TransportMetrics implements TransportMetricsMBean {
+
+    // region fields
+    private final String	name;
+
+    private final AtomicLong	packetsSent	= new AtomicLong();
+
+    private final AtomicLong	packetsReceived	= new AtomicLong();
+
+    private final AtomicLong	retransmits	= new AtomicLong();
+
+    private final AtomicLong	timeouts	= new AtomicLong();
+
+    private final AtomicLong	naks		= new AtomicLong();
+
+    private final AtomicLong	checksumFailures = new AtomicLong();
+
+    private final AtomicLong	outOfOrderDrops	= new AtomicLong();
+
+    private final AtomicLong	windowProbes	= new AtomicLong();
+
+    private final AtomicLong	fastRetransmits	= new AtomicLong();
+
+    private final LatencyHistogram rtt		= new LatencyHistogram();
+
+    private final LatencyHistogram ackLatency	= new LatencyHistogram();
+
+    private ObjectName		objectName	= null;
+
+    private Timer		reporter	= null;
+    // endregion fields
+
+    /**
+     * Creates metrics called "transport".
+     */
+    public TransportMetrics() {
+	this("transport");
+    }
+
+    /**
+     * @param name
+     *            what the metrics are of, e.g. "sender"; names the MBean and
+     *            starts every snapshot
+     */
+    public TransportMetrics(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Counts one datagram sent.
+     */
+    public void countSent() {
+	this.packetsSent.incrementAndGet();
+    }
+
+    /**
+     * Counts one datagram received.
+     */
+    public void countReceived() {
+	this.packetsReceived.incrementAndGet();
+    }
+
+    /**
+     * Counts one packet sent again.
+     */
+    public void countRetransmit() {
+	this.retransmits.incrementAndGet();
+    }
+
+    /**
+     * Counts one expired retransmission timer.
+     */
+    public void countTimeout() {
+	this.timeouts.incrementAndGet();
+    }
+
+    /**
+     * Counts one NAK sent or received.
+     */
+    public void countNak() {
+	this.naks.incrementAndGet();
+    }
+
+    /**
+     * Counts one datagram that failed its checksum or did not decode.
+     */
+    public void countChecksumFailure() {
+	this.checksumFailures.incrementAndGet();
+    }
+
+    /**
+     * Counts one intact packet discarded for arriving out of order.
+     */
+    public void countOutOfOrderDrop() {
+	this.outOfOrderDrops.incrementAndGet();
+    }
+
+    /**
+     * Counts one packet let through a closed receive window to probe it.
+     */
+    public void countWindowProbe() {
+	this.windowProbes.incrementAndGet();
+    }
+
+    /**
+     * Counts one retransmission started by a NAK or duplicate ACKs rather
+     * than a timeout.
+     */
+    public void countFastRetransmit() {
+	this.fastRetransmits.incrementAndGet();
+    }
+
+    /**
+     * @param nanos
+     *            a round-trip time, in nanoseconds
+     */
+    public void recordRtt(long nanos) {
+	this.rtt.record(nanos);
+    }
+
+    /**
+     * @param nanos
+     *            time from a packet's first transmission until its
+     *            acknowledgement, in nanoseconds
+     */
+    public void recordAckLatency(long nanos) {
+	this.ackLatency.record(nanos);
+    }
+
+    public void reset() {
+	this.packetsSent.set(0);
+	this.packetsReceived.set(0);
+	this.retransmits.set(0);
+	this.timeouts.set(0);
+	this.naks.set(0);
+	this.checksumFailures.set(0);
+	this.outOfOrderDrops.set(0);
+	this.windowProbes.set(0);
+	this.fastRetransmits.set(0);
+	this.rtt.clear();
+	this.ackLatency.clear();
+    }
+
+    /**
+     * Publishes these metrics in the platform MBean server under
+     * <code>transport:type=TransportMetrics,name=&lt;name&gt;</code>.
+     *
+     * @return the name registered
+     * @throws JMException
+     *             if the name is taken or invalid
+     */
+    public synchronized ObjectName register() throws JMException {
+	if (this.objectName == null) {
+	    ObjectName objectName =
+		new ObjectName("transport:type=TransportMetrics,name="
+			       + ObjectName.quote(this.name));
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+								     objectName);
+	    this.objectName = objectName;
+	}
+	return this.objectName;
+    }
+
+    /**
+     * Withdraws these metrics from the platform MBean server, if
+     * {@link #register()} published them.
+     *
+     * @throws JMException
+     */
+    public synchronized void unregister() throws JMException {
+	if (this.objectName != null) {
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    if (server.isRegistered(this.objectName)) {
+		server.unregisterMBean(this.objectName);
+	    }
+	    this.objectName = null;
+	}
+    }
+
+    /**
+     * Does what the command line asked for: registers these metrics over JMX
+     * and, if {@link TransportConfig#getMetricsInterval()} is set, prints a
+     * snapshot to standard error that often. A failure to register is
+     * reported and otherwise ignored, since the transfer works without it.
+     *
+     * @param config
+     *            settings of the program the metrics are of
+     */
+    public void publish(TransportConfig config) {
+	try {
+	    register();
+	} catch (JMException e) {
+	    System.err.println("METRICS " + this.name
+			       + ": not published over JMX: " + e);
+	}
+	if (config.getMetricsInterval() > 0) {
+	    startReporting(System.err, config.getMetricsInterval());
+	}
+    }
+
+    /**
+     * Prints {@link #getSnapshot()} to 'out' every 'periodMillis' from a
+     * daemon thread, until {@link #stopReporting()}. Replaces any earlier
+     * reporting.
+     *
+     * @param out
+     *            where snapshots are printed
+     * @param periodMillis
+     *            time between snapshots, in milliseconds
+     * @throws IllegalArgumentException
+     *             if 'periodMillis' is less than 1
+     */
+    public synchronized void startReporting(final PrintStream out,
+					    long periodMillis)
+	throws IllegalArgumentException {
+	if (periodMillis < 1) {
+	    throw new IllegalArgumentException("report period must be at least 1 ms, got "
+					       + periodMillis);
+	}
+	stopReporting();
+	this.reporter = new Timer(this.name + " metrics", true);
+	this.reporter.scheduleAtFixedRate(new TimerTask() {
+		public void run() {
+		    out.println(getSnapshot());
+		}
+	    }, periodMillis, periodMillis);
+    }
+
+    /**
+     * Stops the snapshots {@link #startReporting(PrintStream, long)}
+     * started.
+     */
+    public synchronized void stopReporting() {
+	if (this.reporter != null) {
+	    this.reporter.cancel();
+	    this.reporter = null;
+	}
+    }
+
+    /**
+     * Converts nanoseconds to whole microseconds.
+     */
+    private static long micros(long nanos) {
+	return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    // region getters
+
+    /**
+     * Returns what the metrics are of.
+     */
+    public String getName() {
+	return this.name;
+    }
+
+    /**
+     * Returns the round-trip times, in nanoseconds.
+     */
+    public LatencyHistogram getRtt() {
+	return this.rtt;
+    }
+
+    /**
+     * Returns the times from first transmission to acknowledgement, in
+     * nanoseconds.
+     */
+    public LatencyHistogram getAckLatency() {
+	return this.ackLatency;
+    }
+
+    public long getPacketsSent() {
+	return this.packetsSent.get();
+    }
+
+    public long getPacketsReceived() {
+	return this.packetsReceived.get();
+    }
+
+    public long getRetransmits() {
+	return this.retransmits.get();
+    }
+
+    public long getTimeouts() {
+	return this.timeouts.get();
+    }
+
+    public long getNaks() {
+	return this.naks.get();
+    }
+
+    public long getChecksumFailures() {
+	return this.checksumFailures.get();
+    }
+
+    public long getOutOfOrderDrops() {
+	return this.outOfOrderDrops.get();
+    }
+
+    public long getWindowProbes() {
+	return this.windowProbes.get();
+    }
+
+    public long getFastRetransmits() {
+	return this.fastRetransmits.get();
+    }
+
+    public long getRttP50Micros() {
+	return micros(this.rtt.getPercentile(0.5));
+    }
+
+    public long getRttP99Micros() {
+	return micros(this.rtt.getPercentile(0.99));
+    }
+
+    public long getRttMaxMicros() {
+	return micros(this.rtt.getMax());
+    }
+
+    public long getAckLatencyP50Micros() {
+	return micros(this.ackLatency.getPercentile(0.5));
+    }
+
+    public long getAckLatencyP99Micros() {
+	return micros(this.ackLatency.getPercentile(0.99));
+    }
+
+    public long getAckLatencyMaxMicros() {
+	return micros(this.ackLatency.getMax());
+    }
+
+    /**
+     * Returns every counter and percentile on one line, e.g.
+     * <code>METRICS sender: sent=120 received=118 retransmits=2 ...</code>
+     */
+    public String getSnapshot() {
+	return "METRICS " + this.name + ": sent=" + getPacketsSent()
+	    + " received=" + getPacketsReceived()
+	    + " retransmits=" + getRetransmits()
+	    + " timeouts=" + getTimeouts()
+	    + " naks=" + getNaks()
+	    + " checksumFailures=" + getChecksumFailures()
+	    + " outOfOrderDrops=" + getOutOfOrderDrops()
+	    + " windowProbes=" + getWindowProbes()
+	    + " fastRetransmits=" + getFastRetransmits()
+	    + " rttP50us=" + getRttP50Micros()
+	    + " rttP99us=" + getRttP99Micros()
+	    + " rttMaxUs=" + getRttMaxMicros()
+	    + " ackLatencyP50us=" + getAckLatencyP50Micros()
+	    + " ackLatencyP99us=" + getAckLatencyP99Micros()
+	    + " ackLatencyMaxUs=" + getAckLatencyMaxMicros();
+    }
+
+    // endregion getters
+}
@@ -0,0 +1,109 @@
+/**
+ * TransportMetricsMBean.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+/**
+ * Management interface of {@link TransportMetrics}, the attributes and
+ * operations a JMX client such as jconsole shows. Times are in
+ * microseconds.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public interface TransportMetricsMBean {
+
+    /**
+     * Returns the number of datagrams sent, retransmissions and ACKs
+     * included.
+     */
+    long getPacketsSent();
+
+    /**
+     * Returns the number of datagrams received, damaged ones included.
+     */
+    long getPacketsReceived();
+
+    /**
+     * Returns the number of packets sent again.
+     */
+    long getRetransmits();
+
+    /**
+     * Returns the number of times a retransmission timer ran out.
+     */
+    long getTimeouts();
+
+    /**
+     * Returns the number of NAKs sent or received.
+     */
+    long getNaks();
+
+    /**
+     * Returns the number of datagrams that failed their checksum or did not
+     * decode.
+     */
+    long getChecksumFailures();
+
+    /**
+     * Returns the number of intact packets discarded for arriving out of
+     * order.
+     */
+    long getOutOfOrderDrops();
+
+    /**
+     * Returns the number of packets let through a closed receive window to
+     * probe it.
+     */
+    long getWindowProbes();
+
+    /**
+     * Returns the number of retransmissions started by a NAK or duplicate
+     * ACKs rather than a timeout.
+     */
+    long getFastRetransmits();
+
+    /**
+     * Returns the median round-trip time.
+     */
+    long getRttP50Micros();
+
+    /**
+     * Returns the 99th percentile round-trip time.
+     */
+    long getRttP99Micros();
+
+    /**
+     * Returns the largest round-trip time.
+     */
+    long getRttMaxMicros();
+
+    /**
+     * Returns the median time from a packet's first transmission until its
+     * acknowledgement.
+     */
+    long getAckLatencyP50Micros();
+
+    /**
+     * Returns the 99th percentile time from a packet's first transmission
+     * until its acknowledgement.
+     */
+    long getAckLatencyP99Micros();
+
+    /**
+     * Returns the largest time from a packet's first transmission until its
+     * acknowledgement.
+     */
+    long getAckLatencyMaxMicros();
+
+    /**
+     * Returns every counter and percentile on one line.
+     */
+    String getSnapshot();
+
+    /**
+     * Sets every counter back to 0 and empties the histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,70 @@
+/**
+ * TransportMode.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+/**
+ * The retransmission schemes understood by {@link ReliableSender} and
+ * {@link ReliableReceiver}. Both ends of a transfer must run the same mode.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public enum TransportMode {
+
+    /**
+     * One packet in flight; every packet waits for its ACK before the next one
+     * is sent.
+     */
+    STOP_AND_WAIT("saw"),
+
+    /**
+     * Up to a window of packets in flight. The receiver ACKs the highest
+     * in-order sequence number it holds and the sender resends everything
+     * after it on a timeout.
+     */
+    GO_BACK_N("gbn"),
+
+    /**
+     * Up to a window of packets in flight. The receiver buffers out-of-order
+     * packets and lists them as SACK blocks in its cumulative ACKs, and the
+     * sender resends only the unacknowledged packets whose own timer runs
+     * out.
+     */
+    SELECTIVE_REPEAT("sr");
+
+    private final String shortName;
+
+    private TransportMode(String shortName) {
+	this.shortName = shortName;
+    }
+
+    /**
+     * Looks up a mode by its short name ("saw", "gbn", "sr") or its constant name.
+     *
+     * @param name
+     *            name of the mode, case insensitive
+     * @return the matching mode
+     * @throws IllegalArgumentException
+     *             if no mode has that name
+     */
+    public static TransportMode forName(String name)
+	throws IllegalArgumentException {
+	for (TransportMode mode : values()) {
+	    if (mode.shortName.equalsIgnoreCase(name)
+		|| mode.name().replace('_', '-').equalsIgnoreCase(name)
+		|| mode.name().equalsIgnoreCase(name)) {
+		return mode;
+	    }
+	}
+	throw new IllegalArgumentException("Unknown transport mode: " + name);
+    }
+
+    /**
+     * Returns the short name used on the command line.
+     */
+    public String getShortName() {
+	return this.shortName;
+    }
+}
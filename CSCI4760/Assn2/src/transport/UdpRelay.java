@@ -0,0 +1,458 @@
+/**
+ * UdpRelay.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the course relay on any machine: receives datagrams on one
+ * non-blocking {@link DatagramChannel} and forwards each to the address and
+ * port stamped in its header, so data reaches the {@link ReliableReceiver}
+ * and ACKs reach the {@link ReliableSender} exactly as through the real
+ * relay. <br>
+ * Every destination gets its own {@link NetworkEmulator.Link}, which drops,
+ * corrupts, duplicates, reorders and delays datagrams according to an
+ * {@link ImpairmentProfile}. The emulator is clocked by
+ * {@link System#nanoTime()}, and the event loop sleeps in
+ * {@link Selector#select(long)} only until the next datagram is due, so
+ * delays are kept to within a millisecond. Datagrams that do not decode are
+ * dropped, since they cannot be routed. <br>
+ * Usage: <code>java transport.UdpRelay [options]</code>, with the options of
+ * {@link ImpairmentProfile}, e.g. <code>--profile=unreliable</code>, plus
+ * <code>--bind=host</code> (default 127.0.0.1), <code>--port=N</code>
+ * (default {@link ReliableSender#RELAY_PORT}) and <code>--seed=N</code>.
+ * Point the ends at it with <code>--relay=127.0.0.1 --local=127.0.0.1</code>.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class UdpRelay {
+
+    // region fields
+    /**
+     * Socket buffer size asked for, so bursts at loopback speed are not
+     * dropped before the event loop gets to them.
+     */
+    private static final int	SOCKET_BUFFER	= 4 << 20;
+
+    /**
+     * Longest the event loop waits in {@link Selector#select(long)} (ms) when
+     * nothing is due.
+     */
+    private static final long	IDLE_WAIT	= 1000;
+
+    /**
+     * Most datagrams taken in before those that are due are sent on, so a
+     * flood in one direction cannot hold up the other.
+     */
+    private static final int	BATCH		= 256;
+
+    private final DatagramChannel channel;
+
+    private final Selector	selector;
+
+    private final int		port;
+
+    private final ImpairmentProfile profile;
+
+    private final NetworkEmulator emulator;
+
+    private final long		epoch		= System.nanoTime();
+
+    private final Map<Route, NetworkEmulator.Link> links =
+	new HashMap<Route, NetworkEmulator.Link>();
+
+    private final Route		probe		= new Route();
+
+    private final ByteBuffer	receiveBytes;
+
+    private final ByteBuffer	sendBytes;
+
+    private final MessageView	view		= new MessageView();
+
+    private long		received	= 0;
+
+    private long		unroutable	= 0;
+
+    private long		sendFailures	= 0;
+
+    private volatile boolean	running		= false;
+    // endregion fields
+
+    /**
+     * Binds the relay's channel.
+     *
+     * @param bindAddress
+     *            local address and port to relay on
+     * @param profile
+     *            impairments applied on the way to every destination; read
+     *            on every datagram, so changes take effect at once
+     * @param seed
+     *            seed of every random impairment
+     * @throws IOException
+     *             if the channel cannot be opened or bound
+     */
+    public UdpRelay(SocketAddress bindAddress, ImpairmentProfile profile,
+		    long seed) throws IOException {
+	this.profile = profile;
+	this.emulator = new NetworkEmulator(seed);
+	this.receiveBytes = ByteBuffer.allocate(TransportConfig.MAX_DATAGRAM_LEN);
+	this.sendBytes = ByteBuffer.allocateDirect(TransportConfig.MAX_DATAGRAM_LEN);
+
+	this.selector = Selector.open();
+	this.channel = DatagramChannel.open();
+	this.channel.configureBlocking(false);
+	this.channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+	this.channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+	this.channel.socket().bind(bindAddress);
+	this.channel.register(this.selector, SelectionKey.OP_READ);
+	this.port = this.channel.socket().getLocalPort();
+    }
+
+    /**
+     * Relays until killed, then prints what happened to the datagrams.
+     *
+     * @param args
+     *            relay and impairment settings, e.g. --profile=unreliable
+     *            --delay=20
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+	ImpairmentProfile profile = new ImpairmentProfile();
+	String bind = "127.0.0.1";
+	int port = ReliableSender.RELAY_PORT;
+	long seed = System.nanoTime();
+
+	for (String arg : args) {
+	    int split = arg.indexOf('=');
+	    if (!arg.startsWith("--") || split < 0) {
+		throw new IllegalArgumentException("Expected --name=value: " + arg);
+	    }
+	    String name = arg.substring(2, split);
+	    String value = arg.substring(split + 1);
+	    if (name.equals("bind")) {
+		bind = value;
+	    } else if (name.equals("port")) {
+		port = Integer.parseInt(value);
+	    } else if (name.equals("seed")) {
+		seed = Long.parseLong(value);
+	    } else {
+		profile.set(name, value);
+	    }
+	}
+
+	final UdpRelay relay =
+	    new UdpRelay(new InetSocketAddress(InetAddress.getByName(bind), port),
+			 profile, seed);
+	System.out.println("RELAY: listening on " + relay.getLocalAddress());
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    System.out.println("RELAY: RECEIVED=" + relay.getReceived()
+				       + " FORWARDED=" + relay.getForwarded()
+				       + " DROPPED=" + relay.getDropped()
+				       + " CORRUPTED=" + relay.getCorrupted()
+				       + " UNROUTABLE=" + relay.getUnroutable());
+		}
+	    });
+	relay.run();
+    }
+
+    /**
+     * Runs the event loop until {@link #stop()} is called.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+	this.running = true;
+	while (this.running) {
+	    poll(IDLE_WAIT);
+	}
+    }
+
+    /**
+     * Makes {@link #run()} return. May be called from any thread.
+     */
+    public void stop() {
+	this.running = false;
+	this.selector.wakeup();
+    }
+
+    /**
+     * Waits up to 'timeoutMillis' for datagrams, or less if one is due out
+     * sooner, puts every datagram that has arrived on its link and forwards
+     * every datagram that is due.
+     *
+     * @param timeoutMillis
+     *            longest time to wait; 0 waits until a datagram arrives or
+     *            is due
+     * @return number of datagrams received
+     * @throws IOException
+     */
+    public int poll(long timeoutMillis) throws IOException {
+	int handled = 0;
+
+	long next = this.emulator.getNextEventTime();
+	long start = clock();
+	int ready;
+	if (next == NetworkEmulator.NO_EVENT) {
+	    ready = this.selector.select(timeoutMillis);
+	} else if (next <= start) {
+	    ready = this.selector.selectNow();
+	} else {
+	    //round up, or a datagram due in under 1 ms would spin the loop; one
+	    //reading of the clock keeps the wait at least 1 ms, as 0 is forever
+	    long wait = (next - start + 999999) / 1000000;
+	    if (timeoutMillis > 0) {
+		wait = Math.min(wait, timeoutMillis);
+	    }
+	    ready = this.selector.select(wait);
+	}
+
+	if (ready > 0) {
+	    this.selector.selectedKeys().clear();
+	    while (handled < BATCH && receiveDatagram()) {
+		onDatagram();
+		handled++;
+	    }
+	}
+
+	long now = clock();
+	while (this.emulator.step(now)) {
+	    //forwarded by the link's destination
+	}
+
+	return handled;
+    }
+
+    /**
+     * Returns the emulator's time for this instant: nanoseconds since the
+     * relay was created.
+     */
+    private long clock() {
+	return System.nanoTime() - this.epoch;
+    }
+
+    /**
+     * Reads one datagram into the receive buffer.
+     *
+     * @return false if none is waiting
+     */
+    private boolean receiveDatagram() throws IOException {
+	this.receiveBytes.clear();
+	if (this.channel.receive(this.receiveBytes) == null) {
+	    return false;
+	}
+	this.receiveBytes.flip();
+	return true;
+    }
+
+    /**
+     * Puts the datagram in the receive buffer on the link to the destination
+     * in its header.
+     */
+    private void onDatagram() throws IOException {
+	this.received++;
+	if (this.view.decode(this.receiveBytes) != MessageView.OK
+	    || this.view.getDestPort() == this.port) {
+	    //unreadable, or addressed back to the relay
+	    this.unroutable++;
+	    return;
+	}
+
+	this.probe.set(this.view);
+	NetworkEmulator.Link link = this.links.get(this.probe);
+	if (link == null) {
+	    Route route = this.probe.copy();
+	    link = this.emulator.createLink(this.profile,
+					    new Destination(route.toSocketAddress()));
+	    this.links.put(route, link);
+	}
+
+	//the link copies the datagram out of the buffer
+	this.emulator.advanceTo(clock());
+	link.transmit(this.receiveBytes.array(), 0, this.receiveBytes.limit());
+    }
+
+    /**
+     * Closes the channel. Datagrams still on a link are lost.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+	this.selector.close();
+	this.channel.close();
+    }
+
+    // region getters
+
+    /**
+     * Returns the number of datagrams that had a bit flipped on the way.
+     */
+    public long getCorrupted() {
+	long corrupted = 0;
+	for (NetworkEmulator.Link link : this.links.values()) {
+	    corrupted += link.getCorrupted();
+	}
+	return corrupted;
+    }
+
+    /**
+     * Returns the number of datagrams dropped by the impairments.
+     */
+    public long getDropped() {
+	long dropped = 0;
+	for (NetworkEmulator.Link link : this.links.values()) {
+	    dropped += link.getLost() + link.getQueueDrops();
+	}
+	return dropped;
+    }
+
+    /**
+     * Returns the number of datagrams sent on, duplicates included.
+     */
+    public long getForwarded() {
+	long forwarded = 0;
+	for (NetworkEmulator.Link link : this.links.values()) {
+	    forwarded += link.getDelivered();
+	}
+	return forwarded - this.sendFailures;
+    }
+
+    /**
+     * Returns the number of datagrams waiting out their delay.
+     */
+    public int getInFlight() {
+	return this.emulator.getInFlight();
+    }
+
+    /**
+     * Returns the local address the channel is bound to.
+     */
+    public SocketAddress getLocalAddress() {
+	return this.channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Returns the number of datagrams received.
+     */
+    public long getReceived() {
+	return this.received;
+    }
+
+    /**
+     * Returns the number of datagrams dropped because the socket buffer was
+     * full when they were due out.
+     */
+    public long getSendFailures() {
+	return this.sendFailures;
+    }
+
+    /**
+     * Returns the number of datagrams dropped because they did not decode
+     * or were addressed to the relay itself.
+     */
+    public long getUnroutable() {
+	return this.unroutable;
+    }
+
+    // endregion getters
+
+    /**
+     * Where a link delivers: sends each datagram on to one address.
+     */
+    private class Destination implements PacketSink {
+
+	private final SocketAddress address;
+
+	Destination(SocketAddress address) {
+	    this.address = address;
+	}
+
+	public void transmit(byte[] buffer, int offset, int length)
+	    throws IOException {
+	    sendBytes.clear();
+	    sendBytes.put(buffer, offset, length);
+	    sendBytes.flip();
+	    //a full socket buffer drops the datagram like the network would
+	    if (channel.send(sendBytes, this.address) == 0) {
+		sendFailures++;
+	    }
+	}
+    }
+
+    /**
+     * Destination address and port of a datagram. A single instance is
+     * refilled from each datagram to look links up without allocating.
+     */
+    private static class Route {
+
+	private final byte[]	address	= new byte[MessageView.MAX_ADDRESS_LEN];
+
+	private int		addressLength;
+
+	private int		port;
+
+	/**
+	 * Refills this route from the destination fields of 'message'.
+	 */
+	void set(MessageView message) {
+	    this.addressLength = message.getDestAddressLength();
+	    System.arraycopy(message.getDestAddress(), 0, this.address, 0,
+			     this.addressLength);
+	    this.port = message.getDestPort();
+	}
+
+	Route copy() {
+	    Route copy = new Route();
+	    System.arraycopy(this.address, 0, copy.address, 0, this.addressLength);
+	    copy.addressLength = this.addressLength;
+	    copy.port = this.port;
+	    return copy;
+	}
+
+	SocketAddress toSocketAddress() throws IOException {
+	    byte[] address = new byte[this.addressLength];
+	    System.arraycopy(this.address, 0, address, 0, this.addressLength);
+	    return new InetSocketAddress(InetAddress.getByAddress(address),
+					 this.port);
+	}
+
+	@Override
+	public int hashCode() {
+	    int hash = this.port;
+	    for (int i = 0; i < this.addressLength; i++) {
+		hash = 31 * hash + this.address[i];
+	    }
+	    return hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+	    if (!(other instanceof Route)) {
+		return false;
+	    }
+	    Route route = (Route) other;
+	    if (route.port != this.port || route.addressLength != this.addressLength) {
+		return false;
+	    }
+	    for (int i = 0; i < this.addressLength; i++) {
+		if (route.address[i] != this.address[i]) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+}
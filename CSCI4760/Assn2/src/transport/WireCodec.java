@@ -0,0 +1,117 @@
+/**
+ * WireCodec.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a transport message into the bytes of a datagram and back.
+ * {@link WireCodecs} holds the available codecs. <br>
+ * Each codec has two interfaces: an object one built on
+ * {@link ReliableTransportMessage}, convenient but allocating, and an
+ * allocation-free one built on a reusable {@link MessageView} and
+ * caller-supplied {@link ByteBuffer}s, for the per-packet path.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public interface WireCodec {
+
+    /**
+     * Returns the name used to select this codec on the command line.
+     */
+    String getName();
+
+    /**
+     * Returns the sequence space the format's sequence field can carry.
+     */
+    SequenceNumbers getSequenceNumbers();
+
+    /**
+     * Returns the checksum this codec writes into datagrams.
+     */
+    ChecksumAlgorithm getChecksum();
+
+    /**
+     * Returns the same format writing 'checksum' instead. Decoding is
+     * unaffected: a datagram is verified with whatever checksum it carries.
+     *
+     * @param checksum
+     *            the checksum to write
+     * @return a codec writing 'checksum'
+     * @throws IllegalArgumentException
+     *             if the format cannot carry 'checksum'
+     */
+    WireCodec withChecksum(ChecksumAlgorithm checksum)
+	throws IllegalArgumentException;
+
+    /**
+     * Returns the most bytes a datagram with a payload of 'payloadLength'
+     * bytes can take in this format.
+     *
+     * @param payloadLength
+     *            payload size in bytes
+     * @return size of the largest such datagram
+     */
+    int getMaxLength(int payloadLength);
+
+    /**
+     * Encodes 'message' into a new datagram buffer.
+     *
+     * @param message
+     *            the message to encode
+     * @return the datagram contents
+     * @throws IllegalArgumentException
+     *             if a field of 'message' cannot be represented
+     */
+    byte[] encode(ReliableTransportMessage message)
+	throws IllegalArgumentException;
+
+    /**
+     * Decodes the datagram held in 'length' bytes of 'buffer' starting at
+     * 'offset'.
+     *
+     * @param buffer
+     *            received datagram
+     * @param offset
+     *            index of the first byte of the datagram
+     * @param length
+     *            number of bytes in the datagram
+     * @return the message, or null if the datagram is malformed or its
+     *         checksum does not match
+     */
+    ReliableTransportMessage decode(byte[] buffer, int offset, int length);
+
+    /**
+     * Writes the header fields of 'header' and the bytes between the position
+     * and limit of 'payload' into 'destination' at its position, and advances
+     * that position past the datagram. Does not allocate.
+     *
+     * @param header
+     *            header fields to write
+     * @param payload
+     *            message body; not consumed
+     * @param destination
+     *            buffer receiving the datagram
+     * @throws IllegalArgumentException
+     *             if a field cannot be represented in this format
+     * @throws java.nio.BufferOverflowException
+     *             if 'destination' has too little room
+     */
+    void encode(MessageView header, ByteBuffer payload, ByteBuffer destination)
+	throws IllegalArgumentException;
+
+    /**
+     * Parses the datagram between the position and limit of 'datagram' into
+     * 'view', leaving the buffer's position unchanged. Does not allocate.
+     *
+     * @param datagram
+     *            received datagram
+     * @param view
+     *            view receiving the header fields and payload location
+     * @return {@link MessageView#OK} or one of its failure codes
+     */
+    int decode(ByteBuffer datagram, MessageView view);
+}
@@ -0,0 +1,124 @@
+/**
+ * WireCodecs.java
+ * @author Elliott Tanner
+ */
+package transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The available {@link WireCodec}s, and lookup of the codec that produced a
+ * datagram.
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class WireCodecs {
+
+    /**
+     * The original human-readable format.
+     */
+    public static final WireCodec	TEXT	= new TextWireCodec();
+
+    /**
+     * The compact binary format, checked with
+     * {@link ChecksumAlgorithm#CRC32C}.
+     */
+    public static final WireCodec	BINARY	= new BinaryWireCodec();
+
+    private static final WireCodec[]	BINARY_BY_CHECKSUM =
+	new WireCodec[ChecksumAlgorithm.values().length];
+
+    static {
+	for (ChecksumAlgorithm checksum : ChecksumAlgorithm.values()) {
+	    BINARY_BY_CHECKSUM[checksum.ordinal()] =
+		checksum == BINARY.getChecksum() ? BINARY
+		: new BinaryWireCodec(checksum);
+	}
+    }
+
+    private WireCodecs() {
+    }
+
+    /**
+     * Returns the binary codec that writes 'checksum'. Always the same
+     * instance for the same checksum.
+     *
+     * @param checksum
+     *            the checksum to write
+     * @return the codec
+     */
+    public static WireCodec binary(ChecksumAlgorithm checksum) {
+	return BINARY_BY_CHECKSUM[checksum.ordinal()];
+    }
+
+    /**
+     * Looks up a codec by name.
+     *
+     * @param name
+     *            "text" or "binary"
+     * @return the codec
+     * @throws IllegalArgumentException
+     *             if there is no codec called 'name'
+     */
+    public static WireCodec forName(String name) throws IllegalArgumentException {
+	if (TEXT.getName().equalsIgnoreCase(name)) {
+	    return TEXT;
+	} else if (BINARY.getName().equalsIgnoreCase(name)) {
+	    return BINARY;
+	}
+	throw new IllegalArgumentException("Unknown wire codec: " + name);
+    }
+
+    /**
+     * Returns the codec a datagram was encoded with, judged by its first byte:
+     * binary datagrams start with the unprintable
+     * {@link BinaryWireCodec#VERSION}, text ones with a blank or a digit.
+     *
+     * @param buffer
+     *            received datagram
+     * @param offset
+     *            index of the first byte of the datagram
+     * @param length
+     *            number of bytes in the datagram
+     * @return the codec to decode it with
+     */
+    public static WireCodec detect(byte[] buffer, int offset, int length) {
+	if (length > 0 && buffer[offset] == BinaryWireCodec.VERSION) {
+	    return BINARY;
+	}
+	return TEXT;
+    }
+
+    /**
+     * Returns the codec the datagram between the position and limit of
+     * 'datagram' was encoded with. Does not allocate.
+     *
+     * @param datagram
+     *            received datagram
+     * @return the codec to decode it with
+     */
+    public static WireCodec detect(ByteBuffer datagram) {
+	if (datagram.hasRemaining()
+	    && datagram.get(datagram.position()) == BinaryWireCodec.VERSION) {
+	    return BINARY;
+	}
+	return TEXT;
+    }
+
+    /**
+     * Decodes a datagram in whichever format it was sent.
+     *
+     * @param buffer
+     *            received datagram
+     * @param offset
+     *            index of the first byte of the datagram
+     * @param length
+     *            number of bytes in the datagram
+     * @return the message, or null if it is malformed or damaged
+     */
+    public static ReliableTransportMessage decode(byte[] buffer, int offset,
+						  int length) {
+	return detect(buffer, offset, length).decode(buffer, offset, length);
+    }
+}
@@ -0,0 +1,196 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the ACK payload format and selective acknowledgment between the
+ * Selective Repeat receiver and sender
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class AckPayloadTest extends TestCase {
+
+	private static final long MS = 1000000L;
+
+	private byte[] lastAck = null;
+
+	private int transmitted = 0;
+
+	/**
+	 * Encodes 'payload' as an ACK with 'codec' and decodes it into a view
+	 */
+	private static MessageView ack(WireCodec codec, ByteBuffer payload)
+			throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		MessageView header = new MessageView();
+		header.setSourceAddress(ip);
+		header.setDestAddress(ip);
+		header.setOpCode(ReliableTransportMessage.ACK);
+		header.setSequenceNo(7);
+		ByteBuffer datagram = ByteBuffer.allocate(codec
+				.getMaxLength(payload.remaining()));
+		header.encode(codec, payload, datagram);
+		datagram.flip();
+
+		MessageView view = new MessageView();
+		assertEquals(MessageView.OK, view.decode(datagram));
+		return view;
+	}
+
+	/**
+	 * SACK blocks survive both codecs
+	 */
+	public void testRoundTrip() throws IOException {
+		AckPayload written = new AckPayload();
+		assertTrue(written.addSack(2, 3));
+		assertTrue(written.addSack(-5, 8));
+		ByteBuffer payload = ByteBuffer.allocate(AckPayload.MAX_LENGTH);
+		written.encode(payload);
+		payload.flip();
+
+		WireCodec[] codecs = { WireCodecs.TEXT, WireCodecs.BINARY };
+		for (WireCodec codec : codecs) {
+			AckPayload read = new AckPayload();
+			assertTrue(read.decode(ack(codec, payload.duplicate())));
+			assertEquals(codec.getName(), 2, read.getSackCount());
+			assertEquals(2, read.getSackStart(0));
+			assertEquals(3, read.getSackEnd(0));
+			assertEquals(-5, read.getSackStart(1));
+			assertEquals(8, read.getSackEnd(1));
+		}
+	}
+
+	/**
+	 * The receive window survives both codecs next to SACK blocks, and is
+	 * left out unless set
+	 */
+	public void testWindowRoundTrip() throws IOException {
+		AckPayload written = new AckPayload();
+		written.setWindow(300);
+		assertTrue(written.addSack(9, 12));
+		ByteBuffer payload = ByteBuffer.allocate(AckPayload.MAX_LENGTH);
+		written.encode(payload);
+		payload.flip();
+
+		WireCodec[] codecs = { WireCodecs.TEXT, WireCodecs.BINARY };
+		for (WireCodec codec : codecs) {
+			AckPayload read = new AckPayload();
+			assertTrue(read.decode(ack(codec, payload.duplicate())));
+			assertEquals(codec.getName(), 300, read.getWindow());
+			assertEquals(1, read.getSackCount());
+			assertEquals(12, read.getSackEnd(0));
+		}
+
+		written.setWindow(AckPayload.MAX_WINDOW + 1);
+		payload.clear();
+		written.encode(payload);
+		payload.flip();
+		AckPayload read = new AckPayload();
+		assertTrue(read.decode(ack(WireCodecs.BINARY, payload)));
+		assertEquals("clamped", AckPayload.MAX_WINDOW, read.getWindow());
+
+		assertTrue(read.decode(ack(WireCodecs.BINARY, ByteBuffer.allocate(0))));
+		assertEquals(AckPayload.NO_WINDOW, read.getWindow());
+
+		ByteBuffer wrongLength = ByteBuffer.wrap(new byte[] { 'W', 1, 5 });
+		assertFalse(read.decode(ack(WireCodecs.BINARY, wrongLength)));
+		assertEquals(AckPayload.NO_WINDOW, read.getWindow());
+	}
+
+	/**
+	 * An empty payload holds no blocks, unknown fields are skipped and
+	 * malformed ones rejected
+	 */
+	public void testDecode() throws IOException {
+		AckPayload read = new AckPayload();
+		assertTrue(read.decode(ack(WireCodecs.BINARY, ByteBuffer.allocate(0))));
+		assertEquals(0, read.getSackCount());
+
+		ByteBuffer unknown = ByteBuffer.wrap(new byte[] { 'X', 1, 0, 'S', 8,
+				0, 0, 0, 4, 0, 0, 0, 6 });
+		assertTrue(read.decode(ack(WireCodecs.BINARY, unknown)));
+		assertEquals(1, read.getSackCount());
+		assertEquals(4, read.getSackStart(0));
+		assertEquals(6, read.getSackEnd(0));
+
+		ByteBuffer truncated = ByteBuffer.wrap(new byte[] { 'S', 8, 0, 0 });
+		assertFalse(read.decode(ack(WireCodecs.BINARY, truncated)));
+		assertEquals(0, read.getSackCount());
+
+		assertFalse(read.addSack(0, 0) && read.addSack(0, 0)
+				&& read.addSack(0, 0) && read.addSack(0, 0)
+				&& read.addSack(0, 0));
+		assertEquals(AckPayload.MAX_SACK_BLOCKS, read.getSackCount());
+	}
+
+	/**
+	 * The receiver reports the runs it holds and the sender resends only
+	 * the holes between them
+	 */
+	public void testSenderResendsOnlyHoles() throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.SELECTIVE_REPEAT);
+		config.setWindowSize(8);
+		config.setCongestionControl(false);
+
+		ReceiverProtocol receiver = new ReceiverProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+				lastAck = new byte[length];
+				System.arraycopy(buffer, offset, lastAck, 0, length);
+			}
+		}, new DeliverySink() {
+			public void deliver(MessageView message) {
+			}
+		}, ip, ip, 2018, 2016, config);
+
+		final ByteBuffer[] packets = new ByteBuffer[6];
+		SenderProtocol sender = new SenderProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+				if (transmitted < packets.length) {
+					byte[] copy = new byte[length];
+					System.arraycopy(buffer, offset, copy, 0, length);
+					packets[transmitted] = ByteBuffer.wrap(copy);
+				}
+				transmitted++;
+			}
+		}, ip, ip, 2015, 2017, config, new RttEstimator(100 * MS, 10 * MS,
+				1000 * MS));
+
+		for (int i = 0; i < packets.length; i++) {
+			sender.send(ReliableTransportMessage.DATA, "x", 0);
+		}
+
+		// 1 and 4 are lost
+		int[] arrived = { 0, 2, 3, 5 };
+		MessageView view = new MessageView();
+		for (int seqNo : arrived) {
+			assertEquals(MessageView.OK, view.decode(packets[seqNo]));
+			assertTrue(receiver.onMessage(view, true));
+		}
+
+		assertEquals(MessageView.OK, view.decode(ByteBuffer.wrap(lastAck)));
+		assertEquals("cumulative", 0, view.getSequenceNo());
+		AckPayload sack = new AckPayload();
+		assertTrue(sack.decode(view));
+		assertEquals(2, sack.getSackCount());
+		assertEquals(2, sack.getSackStart(0));
+		assertEquals(3, sack.getSackEnd(0));
+		assertEquals(5, sack.getSackStart(1));
+		assertEquals(5, sack.getSackEnd(1));
+
+		assertTrue(sender.onResponse(view, 10 * MS));
+		assertEquals("in flight", 5, sender.getInFlight());
+
+		this.transmitted = 0;
+		assertTrue(sender.onTimer(sender.getDeadline()));
+		assertEquals("only the holes resent", 2, this.transmitted);
+		assertEquals(2, sender.getRetransmissions());
+	}
+
+}
@@ -0,0 +1,145 @@
+package transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the checksum algorithms against known values and their use in the
+ * binary codec
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class ChecksumAlgorithmTest extends TestCase {
+
+	/**
+	 * Encodes a binary DATA message with 'codec'
+	 */
+	private static ByteBuffer encode(WireCodec codec, String payload)
+			throws UnknownHostException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		MessageView header = new MessageView();
+		header.setSourceAddress(ip);
+		header.setDestAddress(ip);
+		header.setOpCode(ReliableTransportMessage.DATA);
+		header.setSequenceNo(9);
+		ByteBuffer datagram = ByteBuffer.allocate(codec.getMaxLength(payload
+				.length()));
+		header.encode(codec, ByteBuffer.wrap(payload.getBytes()), datagram);
+		datagram.flip();
+		return datagram;
+	}
+
+	/**
+	 * CRC-32C check value and the RFC 1071 worked example
+	 */
+	public void testKnownValues() {
+		ByteBuffer digits = ByteBuffer.wrap("123456789".getBytes());
+		assertEquals(0xE3069283, ChecksumAlgorithm.CRC32C.compute(digits, 0,
+				9));
+		assertEquals(0x1DD, ChecksumAlgorithm.SUM.compute(digits, 0, 9));
+
+		ByteBuffer words = ByteBuffer.wrap(new byte[] { 0x00, 0x01,
+				(byte) 0xF2, 0x03, (byte) 0xF4, (byte) 0xF5, (byte) 0xF6,
+				(byte) 0xF7 });
+		assertEquals(~0xDDF2 & 0xFFFF, ChecksumAlgorithm.INTERNET.compute(
+				words, 0, 8));
+	}
+
+	/**
+	 * The Internet checksum summed a word at a time agrees with the wide
+	 * sum, at every length and offset, and direct buffers give the same CRC
+	 */
+	public void testInternetMatchesWordSum() {
+		Random random = new Random(4760);
+		byte[] bytes = new byte[64];
+		random.nextBytes(bytes);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes);
+
+		for (int offset = 0; offset < 4; offset++) {
+			for (int length = 0; length + offset <= bytes.length; length++) {
+				long sum = 0;
+				for (int i = 0; i < length; i++) {
+					int b = bytes[offset + i] & 0xFF;
+					sum += i % 2 == 0 ? b << 8 : b;
+				}
+				while ((sum >>> 16) != 0) {
+					sum = (sum & 0xFFFF) + (sum >>> 16);
+				}
+				assertEquals("length " + length, (int) (~sum & 0xFFFF),
+						ChecksumAlgorithm.INTERNET.compute(buffer, offset,
+								length));
+				assertEquals(ChecksumAlgorithm.CRC32C.compute(buffer, offset,
+						length), ChecksumAlgorithm.CRC32C.compute(direct,
+						offset, length));
+			}
+		}
+	}
+
+	/**
+	 * Every algorithm round trips in the binary codec, and the decoded view
+	 * reports the codec writing the sender's checksum
+	 */
+	public void testBinaryRoundTrip() throws UnknownHostException {
+		MessageView view = new MessageView();
+		for (ChecksumAlgorithm checksum : ChecksumAlgorithm.values()) {
+			WireCodec codec = WireCodecs.binary(checksum);
+			assertSame(codec, WireCodecs.BINARY.withChecksum(checksum));
+			ByteBuffer datagram = encode(codec, "Hi Mom!");
+			assertEquals(checksum.getId(), datagram.get(3));
+			assertEquals(checksum.getShortName(), MessageView.OK,
+					view.decode(datagram));
+			assertSame(codec, view.getCodec());
+			assertEquals(9, view.getSequenceNo());
+		}
+		assertEquals(ChecksumAlgorithm.CRC32C, WireCodecs.BINARY.getChecksum());
+	}
+
+	/**
+	 * Swapped bytes slip past the sum but not the CRC; an unknown algorithm
+	 * is rejected
+	 */
+	public void testSwappedBytes() throws UnknownHostException {
+		MessageView view = new MessageView();
+		ChecksumAlgorithm[] checksums = { ChecksumAlgorithm.SUM,
+				ChecksumAlgorithm.CRC32C };
+		for (ChecksumAlgorithm checksum : checksums) {
+			ByteBuffer datagram = encode(WireCodecs.binary(checksum), "ab");
+			int payload = datagram.limit() - 6;
+			byte first = datagram.get(payload);
+			datagram.put(payload, datagram.get(payload + 1));
+			datagram.put(payload + 1, first);
+			assertEquals(checksum.getShortName(),
+					checksum == ChecksumAlgorithm.SUM ? MessageView.OK
+							: MessageView.BAD_CHECKSUM, view.decode(datagram));
+		}
+
+		ByteBuffer datagram = encode(WireCodecs.BINARY, "ab");
+		datagram.put(3, (byte) 99);
+		assertEquals(MessageView.BAD_VERSION, view.decode(datagram));
+	}
+
+	/**
+	 * The checksum is chosen per transfer; text only carries its sum
+	 */
+	public void testConfig() {
+		TransportConfig config = TransportConfig.parse(new String[] {
+				"--codec=binary", "--checksum=internet" });
+		assertEquals(ChecksumAlgorithm.INTERNET, config.getChecksum());
+		assertSame(WireCodecs.binary(ChecksumAlgorithm.INTERNET),
+				config.getCodec());
+		assertEquals(ChecksumAlgorithm.SUM, new TransportConfig().getChecksum());
+		try {
+			TransportConfig.parse(new String[] { "--checksum=crc32c" });
+			fail("text codec accepted CRC-32C");
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+
+}
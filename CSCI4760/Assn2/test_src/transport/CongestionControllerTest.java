@@ -0,0 +1,122 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests slow start, congestion avoidance and loss reaction, alone and in the
+ * sender
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class CongestionControllerTest extends TestCase {
+
+	private static final long MS = 1000000L;
+
+	private int transmitted = 0;
+
+	/**
+	 * Slow start doubles the window every round trip, up to ssthresh
+	 */
+	public void testSlowStart() {
+		CongestionController cc = new CongestionController(64);
+		assertEquals("initial", CongestionController.INITIAL_WINDOW,
+				cc.getWindow());
+		cc.onAck(2);
+		assertEquals("after one round", 4, cc.getWindow());
+		cc.onAck(4);
+		assertEquals("after two rounds", 8, cc.getWindow());
+		assertTrue("slow start", cc.isSlowStart());
+		cc.onAck(1000);
+		assertEquals("capped", 64, cc.getWindow());
+	}
+
+	/**
+	 * Above ssthresh the window grows by one packet per round trip
+	 */
+	public void testCongestionAvoidance() {
+		CongestionController cc = new CongestionController(64);
+		cc.onAck(14);
+		cc.onLoss(16, false);
+		assertEquals("ssthresh halved", 8, cc.getSsthresh());
+		assertEquals("window to ssthresh", 8, cc.getWindow());
+		assertFalse("avoidance", cc.isSlowStart());
+		cc.onAck(8);
+		assertEquals("about one more per round", 9.0, cc.getCwnd(), 0.1);
+		assertEquals("loss events", 1, cc.getLossEvents());
+	}
+
+	/**
+	 * A timeout collapses the window to one packet
+	 */
+	public void testTimeout() {
+		CongestionController cc = new CongestionController(64);
+		cc.onAck(30);
+		cc.onLoss(32, true);
+		assertEquals("window", 1, cc.getWindow());
+		assertEquals("ssthresh", 16, cc.getSsthresh());
+		cc.onRepeatedTimeout();
+		assertEquals("ssthresh kept", 16, cc.getSsthresh());
+		assertEquals("timeouts", 2, cc.getTimeouts());
+		assertEquals("loss events", 1, cc.getLossEvents());
+		cc.onLoss(1, true);
+		assertEquals("min ssthresh", CongestionController.MIN_SSTHRESH,
+				cc.getSsthresh());
+	}
+
+	/**
+	 * Pacing spreads the window over a round trip
+	 */
+	public void testPacing() {
+		CongestionController cc = new CongestionController(64);
+		assertEquals("no RTT yet", 0, cc.getPacingInterval(0));
+		cc.onAck(8);
+		// 10 packets, slow start gain 2: 100 ms / 20
+		assertEquals("slow start", 5 * MS, cc.getPacingInterval(100 * MS));
+	}
+
+	/**
+	 * The Go-Back-N sender keeps to the congestion window and resends only
+	 * what it allows after a timeout
+	 */
+	public void testGoBackNSender() throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.GO_BACK_N);
+		config.setWindowSize(16);
+		SenderProtocol sender = new SenderProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+				transmitted++;
+			}
+		}, ip, ip, 2015, 2017, config, new RttEstimator(100 * MS, 10 * MS,
+				1000 * MS));
+
+		long now = 0;
+		while (sender.isWindowOpen()) {
+			sender.send(ReliableTransportMessage.DATA, "x", now);
+		}
+		assertEquals("initial window", CongestionController.INITIAL_WINDOW,
+				sender.getInFlight());
+		sender.onResponse(ReliableTransportMessage.ACK, 1, now + 10 * MS);
+		while (sender.isWindowOpen()) {
+			sender.send(ReliableTransportMessage.DATA, "x", now);
+		}
+		assertEquals("window after a round", 4, sender.getInFlight());
+		assertTrue("paced", sender.getSendTime() > now);
+
+		this.transmitted = 0;
+		assertTrue(sender.onTimer(sender.getDeadline()));
+		assertEquals("one packet resent", 1, this.transmitted);
+		assertFalse("backlog blocks new data", sender.isWindowOpen());
+		assertEquals("window", 1, sender.getCongestionController()
+				.getWindow());
+
+		sender.onResponse(ReliableTransportMessage.ACK, 2,
+				sender.getDeadline());
+		assertEquals("rest of the backlog resent", 3, this.transmitted);
+	}
+
+}
@@ -0,0 +1,142 @@
+package transport;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the receiver holding back ACKs for in-order packets until every Nth
+ * one or the ACK timer, and answering everything else at once
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class DelayedAckTest extends TestCase {
+
+	private static final long MS = ProtocolPair.MS;
+
+	private ProtocolPair pair;
+
+	private void start(TransportMode mode) throws IOException {
+		TransportConfig config = ProtocolPair.config(mode, 8);
+		config.setAckEvery(3);
+		config.setAckDelay(10);
+		this.pair = new ProtocolPair(config);
+	}
+
+	/**
+	 * Hands packet 'index' of those sent so far to the receiver
+	 */
+	private void deliver(int index, long now) throws IOException {
+		this.pair.deliver(index, true, now);
+	}
+
+	/**
+	 * Returns the sequence number the one ACK sent so far acknowledges
+	 */
+	private int onlyAck() {
+		assertEquals("one ACK", 1, this.pair.acks.size());
+		MessageView ack = this.pair.ack(0);
+		this.pair.acks.clear();
+		assertEquals(ReliableTransportMessage.ACK, ack.getOpCode());
+		return ack.getSequenceNo();
+	}
+
+	private void send(int count) throws IOException {
+		this.pair.send(count, 0);
+	}
+
+	/**
+	 * Every third in-order packet is acknowledged, covering the two before it
+	 */
+	public void testEveryNth() throws IOException {
+		start(TransportMode.GO_BACK_N);
+		send(6);
+		deliver(0, 0);
+		deliver(1, MS);
+		assertTrue("held back", this.pair.acks.isEmpty());
+		assertEquals("timer from the first", 10 * MS,
+				this.pair.receiver.getDeadline());
+		deliver(2, 2 * MS);
+		int third = onlyAck();
+		assertEquals(ReceiverProtocol.NO_DEADLINE,
+				this.pair.receiver.getDeadline());
+
+		deliver(3, 3 * MS);
+		deliver(4, 3 * MS);
+		assertTrue(this.pair.acks.isEmpty());
+		deliver(5, 3 * MS);
+		assertEquals(this.pair.sender.getNextSeqNo(), onlyAck() + 1);
+		assertTrue(this.pair.sender.getNextSeqNo() > third + 3);
+	}
+
+	/**
+	 * A packet short of the count is acknowledged when the timer runs out
+	 */
+	public void testTimer() throws IOException {
+		start(TransportMode.GO_BACK_N);
+		send(1);
+		deliver(0, 0);
+		long deadline = this.pair.receiver.getDeadline();
+		assertEquals(10 * MS, deadline);
+
+		assertFalse(this.pair.receiver.onTimer(deadline - 1));
+		assertTrue(this.pair.acks.isEmpty());
+		assertTrue(this.pair.receiver.onTimer(deadline));
+		assertEquals(this.pair.receiver.getLastSeqNo(), onlyAck());
+		assertEquals(ReceiverProtocol.NO_DEADLINE,
+				this.pair.receiver.getDeadline());
+		assertFalse("nothing left", this.pair.receiver.onTimer(deadline + MS));
+	}
+
+	/**
+	 * A packet past a gap, and the one filling it, are answered at once
+	 */
+	public void testOutOfOrder() throws IOException {
+		start(TransportMode.SELECTIVE_REPEAT);
+		send(3);
+		deliver(0, 0);
+		assertTrue(this.pair.acks.isEmpty());
+
+		deliver(2, MS);
+		int first = onlyAck();
+		assertEquals("timer stopped", ReceiverProtocol.NO_DEADLINE,
+				this.pair.receiver.getDeadline());
+
+		deliver(1, 2 * MS);
+		assertEquals("gap filled", first + 2, onlyAck());
+
+		deliver(0, 3 * MS);
+		assertEquals("duplicate", first + 2, onlyAck());
+	}
+
+	/**
+	 * END is answered at once, acknowledging the data held back too
+	 */
+	public void testEnd() throws IOException {
+		start(TransportMode.GO_BACK_N);
+		send(1);
+		this.pair.sender.send(ReliableTransportMessage.END, "", 0);
+		deliver(0, 0);
+		assertTrue(this.pair.acks.isEmpty());
+		deliver(1, MS);
+		assertEquals(this.pair.receiver.getLastSeqNo(), onlyAck());
+		assertTrue(this.pair.receiver.isFinished());
+		assertEquals(ReceiverProtocol.NO_DEADLINE,
+				this.pair.receiver.getDeadline());
+	}
+
+	/**
+	 * Stop-and-wait has one packet in flight, so each is answered at once
+	 */
+	public void testStopAndWait() throws IOException {
+		start(TransportMode.STOP_AND_WAIT);
+		for (int i = 0; i < 3; i++) {
+			send(1);
+			deliver(i, i * MS);
+			assertEquals(this.pair.receiver.getLastSeqNo(), onlyAck());
+			assertTrue(this.pair.sender.onResponse(ReliableTransportMessage.ACK,
+					this.pair.receiver.getLastSeqNo(), i * MS));
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package transport;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the asynchronous event log: ordering, levels, a full ring and
+ * several producers
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class EventLogTest extends TestCase {
+
+	private static final String NL = System.lineSeparator();
+
+	public void testWritesInOrder() {
+		StringWriter text = new StringWriter();
+		EventLog log = new EventLog(new PrintWriter(text), LogLevel.INFO, 1000);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(log.log(LogLevel.INFO, "ACK ", i));
+			expected.append("ACK ").append(i).append(NL);
+		}
+		assertTrue(log.log(LogLevel.ERROR, "SUMOK = ", "NO"));
+		expected.append("SUMOK = NO").append(NL);
+		log.flush();
+		assertEquals("written by flush", expected.toString(), text.toString());
+		log.close();
+		assertFalse("closed", log.log(LogLevel.INFO, "late"));
+		assertEquals("dropped after close", 1, log.getDropped());
+	}
+
+	public void testLevels() {
+		StringWriter text = new StringWriter();
+		EventLog log = new EventLog(new PrintWriter(text), LogLevel.ERROR);
+		assertFalse("info filtered", log.log(LogLevel.INFO, "info"));
+		assertFalse(log.isEnabled(LogLevel.DEBUG));
+		assertTrue(log.log(LogLevel.ERROR, "error"));
+		log.setLevel(LogLevel.OFF);
+		assertFalse("off", log.log(LogLevel.ERROR, "error"));
+		log.close();
+		assertEquals("error" + NL, text.toString());
+		assertEquals("nothing dropped", 0, log.getDropped());
+		assertEquals(LogLevel.DEBUG, LogLevel.forName("debug"));
+	}
+
+	/**
+	 * A writer stuck on a slow stream makes producers drop, not wait
+	 */
+	public void testFullRingDrops() throws InterruptedException {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final StringWriter text = new StringWriter();
+		Writer slow = new Writer() {
+			public void write(char[] chars, int offset, int length)
+					throws IOException {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				text.write(chars, offset, length);
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		};
+		EventLog log = new EventLog(new PrintWriter(slow), LogLevel.INFO, 4);
+		assertTrue(log.log(LogLevel.INFO, "first"));
+		writing.await();
+		for (int i = 0; i < 4; i++) {
+			assertTrue("room for " + i, log.log(LogLevel.INFO, "next ", i));
+		}
+		assertFalse("full", log.log(LogLevel.INFO, "lost"));
+		assertEquals(1, log.getDropped());
+
+		release.countDown();
+		log.close();
+		assertEquals("first" + NL + "next 0" + NL + "next 1" + NL + "next 2"
+				+ NL + "next 3" + NL + "(1 log events dropped)" + NL,
+				text.toString());
+	}
+
+	public void testProducers() throws InterruptedException {
+		StringWriter text = new StringWriter();
+		final EventLog log = new EventLog(new PrintWriter(text),
+				LogLevel.INFO, 8192);
+		Thread[] producers = new Thread[4];
+		for (int t = 0; t < producers.length; t++) {
+			final String name = "thread " + t + " event ";
+			producers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						log.log(LogLevel.INFO, name, i);
+					}
+				}
+			};
+			producers[t].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		log.close();
+
+		String[] lines = text.toString().split(NL);
+		assertEquals("every event", 4000, lines.length);
+		int[] next = new int[producers.length];
+		for (String line : lines) {
+			int t = line.charAt("thread ".length()) - '0';
+			assertEquals("in order per producer", "thread " + t + " event "
+					+ next[t]++, line);
+		}
+	}
+}
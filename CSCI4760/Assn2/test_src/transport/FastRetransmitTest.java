@@ -0,0 +1,134 @@
+package transport;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the sender resending a lost packet as soon as a NAK or a run of
+ * duplicate ACKs reports it missing, without waiting for its timer
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class FastRetransmitTest extends TestCase {
+
+	private static final long MS = ProtocolPair.MS;
+
+	private ProtocolPair pair;
+
+	private void start(TransportMode mode, int dupAcks) throws IOException {
+		TransportConfig config = ProtocolPair.config(mode, 8);
+		config.setDupAcks(dupAcks);
+		this.pair = new ProtocolPair(config);
+		this.pair.send(5, 0);
+	}
+
+	/**
+	 * Hands packet 'index' of those sent so far to the receiver, and its
+	 * answer to the sender
+	 */
+	private void deliver(int index) throws IOException {
+		this.pair.deliver(index, true, MS);
+		this.pair.deliverAcks(2 * MS);
+	}
+
+	/**
+	 * The third duplicate ACK resends only the hole; later ones do not
+	 */
+	public void testSelectiveRepeat() throws IOException {
+		start(TransportMode.SELECTIVE_REPEAT, 3);
+		deliver(1);
+		deliver(2);
+		assertEquals("no resend yet", 5, this.pair.packets.size());
+		deliver(3);
+		assertEquals("hole resent", 6, this.pair.packets.size());
+		assertEquals(this.pair.seqNo(0), this.pair.seqNo(5));
+		assertTrue("timer not run out",
+				this.pair.sender.getDeadline() > 2 * MS);
+
+		deliver(4);
+		assertEquals("once per hole", 6, this.pair.packets.size());
+		deliver(5);
+		assertTrue(this.pair.sender.isIdle());
+
+		TransportMetrics metrics = this.pair.sender.getMetrics();
+		assertEquals(1, metrics.getFastRetransmits());
+		assertEquals(1, metrics.getRetransmits());
+		assertEquals(0, metrics.getTimeouts());
+	}
+
+	/**
+	 * Go-Back-N resends the hole and everything after it, which the receiver
+	 * dropped
+	 */
+	public void testGoBackN() throws IOException {
+		start(TransportMode.GO_BACK_N, 3);
+		deliver(1);
+		deliver(2);
+		deliver(3);
+		assertEquals("window resent", 10, this.pair.packets.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(this.pair.seqNo(i), this.pair.seqNo(5 + i));
+		}
+		deliver(4);
+		assertEquals("once per hole", 10, this.pair.packets.size());
+
+		for (int i = 5; i < 10; i++) {
+			deliver(i);
+		}
+		assertTrue(this.pair.sender.isIdle());
+		assertEquals(1, this.pair.sender.getMetrics().getFastRetransmits());
+	}
+
+	/**
+	 * A NAK names the packet after its sequence number as missing
+	 */
+	public void testNak() throws IOException {
+		start(TransportMode.GO_BACK_N, 3);
+		deliver(0);
+		this.pair.deliver(1, false, MS);
+		assertEquals(1, this.pair.acks.size());
+		assertEquals(ReliableTransportMessage.NAK, this.pair.ack(0)
+				.getOpCode());
+		this.pair.deliverAcks(2 * MS);
+
+		assertEquals("rest of the window resent", 9, this.pair.packets.size());
+		assertEquals(this.pair.seqNo(1), this.pair.seqNo(5));
+		assertEquals(1, this.pair.sender.getMetrics().getFastRetransmits());
+
+		this.pair.sender.onResponse(ReliableTransportMessage.NAK,
+				this.pair.seqNo(0), 3 * MS);
+		assertEquals("once per hole", 9, this.pair.packets.size());
+	}
+
+	/**
+	 * An ACK that changes the advertised window is a window update, not a
+	 * duplicate
+	 */
+	public void testWindowUpdate() throws IOException {
+		start(TransportMode.SELECTIVE_REPEAT, 3);
+		this.pair.receiver.setBacklog(2);
+		deliver(1);
+		deliver(2);
+		deliver(3);
+		assertEquals("first ACK was a window update", 5,
+				this.pair.packets.size());
+		deliver(4);
+		assertEquals("hole resent", 6, this.pair.packets.size());
+	}
+
+	/**
+	 * With no duplicate ACK count set, only the timer resends
+	 */
+	public void testDisabled() throws IOException {
+		start(TransportMode.SELECTIVE_REPEAT, 0);
+		for (int i = 1; i < 5; i++) {
+			deliver(i);
+		}
+		assertEquals(5, this.pair.packets.size());
+		assertTrue(this.pair.sender.onTimer(this.pair.sender.getDeadline()));
+		assertEquals(6, this.pair.packets.size());
+		assertEquals(0, this.pair.sender.getMetrics().getFastRetransmits());
+	}
+}
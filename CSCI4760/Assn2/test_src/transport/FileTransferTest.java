@@ -0,0 +1,113 @@
+package transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the mapped file source and the file sink, alone and through a
+ * Selective Repeat transfer
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class FileTransferTest extends TestCase {
+
+	private File input;
+
+	private File output;
+
+	private byte[] contents;
+
+	protected void setUp() throws IOException {
+		this.input = File.createTempFile("transport", ".in");
+		this.output = File.createTempFile("transport", ".out");
+		// every byte value, so nothing survives a charset round trip by luck
+		this.contents = new byte[10007];
+		for (int i = 0; i < this.contents.length; i++) {
+			this.contents[i] = (byte) (i * 31);
+		}
+		Files.write(this.input.toPath(), this.contents);
+	}
+
+	protected void tearDown() {
+		this.input.delete();
+		this.output.delete();
+	}
+
+	/**
+	 * Payloads cover the file exactly, across several mapped regions
+	 */
+	public void testSource() throws IOException {
+		MappedFileSource source = new MappedFileSource(this.input.toPath(),
+				100, 1024);
+		assertEquals(this.contents.length, source.getSize());
+
+		byte[] read = new byte[this.contents.length];
+		int at = 0;
+		ByteBuffer payload;
+		while ((payload = source.next()) != null) {
+			assertTrue("payload size", payload.remaining() <= 100);
+			int length = payload.remaining();
+			payload.get(read, at, length);
+			at += length;
+		}
+		source.close();
+
+		assertEquals(this.contents.length, at);
+		assertTrue(Arrays.equals(this.contents, read));
+	}
+
+	/**
+	 * Payloads sliced from the mapping arrive unchanged in the output file,
+	 * which is trimmed to the data
+	 */
+	public void testTransfer() throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		final TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.SELECTIVE_REPEAT);
+		config.setCodec(WireCodecs.BINARY);
+		config.setWindowSize(16);
+		config.setPayloadSize(512);
+
+		FileSink sink = new FileSink(this.output.toPath(), 0);
+		final ReceiverProtocol receiver = new ReceiverProtocol(
+				new PacketSink() {
+					public void transmit(byte[] buffer, int offset, int length) {
+					}
+				}, sink, ip, ip, 2018, 2016, config);
+		final MessageView view = new MessageView();
+		SenderProtocol sender = new SenderProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length)
+					throws IOException {
+				assertEquals(MessageView.OK, view.decode(ByteBuffer.wrap(
+						buffer, offset, length)));
+				receiver.onMessage(view, true);
+			}
+		}, ip, ip, 2015, 2017, config, new RttEstimator(config));
+
+		MappedFileSource source = new MappedFileSource(this.input.toPath(),
+				config.getPayloadSize());
+		ByteBuffer payload;
+		while ((payload = source.next()) != null) {
+			sender.send(ReliableTransportMessage.DATA, payload, 0);
+			// no ACKs are fed back, so slide the window by hand
+			sender.onResponse(ReliableTransportMessage.ACK,
+					receiver.getLastSeqNo(), 0);
+		}
+		source.close();
+		assertEquals("allocated ahead", FileSink.PREALLOCATE
+				+ config.getPayloadSize(), this.output.length());
+		sink.close();
+
+		assertEquals(this.contents.length, sink.getPosition());
+		assertTrue(Arrays.equals(this.contents,
+				Files.readAllBytes(this.output.toPath())));
+	}
+
+}
@@ -0,0 +1,163 @@
+package transport;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the receive window the receiver advertises and the sender stopping
+ * at it, probing it while closed and resuming on a window update
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class FlowControlTest extends TestCase {
+
+	private static final long MS = ProtocolPair.MS;
+
+	private ProtocolPair pair;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.pair = unread(ProtocolPair.config(TransportMode.GO_BACK_N, 8));
+	}
+
+	/**
+	 * A pair whose receiving application reads nothing
+	 */
+	private static ProtocolPair unread(TransportConfig config)
+			throws IOException {
+		return new ProtocolPair(config) {
+			@Override
+			void onDeliver(MessageView message) throws IOException {
+				super.onDeliver(message);
+				// the application reads nothing
+				this.receiver.setBacklog(this.delivered.size());
+			}
+		};
+	}
+
+	private int fillWindow(long now) throws IOException {
+		int sent = 0;
+		while (this.pair.sender.isWindowOpen()) {
+			this.pair.sender.send(ReliableTransportMessage.DATA, "x", now);
+			sent++;
+		}
+		return sent;
+	}
+
+	/**
+	 * A closed window stops the sender, which probes it with backoff until
+	 * the receiver announces it open again
+	 */
+	public void testZeroWindow() throws IOException {
+		long now = 0;
+		assertEquals("whole window", 8, fillWindow(now));
+		this.pair.deliverPackets();
+		assertEquals("nothing read", 0, this.pair.receiver.getWindow());
+
+		now = 5 * MS;
+		this.pair.deliverAcks(now);
+		assertTrue(this.pair.sender.isIdle());
+		assertEquals(0, this.pair.sender.getPeerWindow());
+		assertFalse("window closed", this.pair.sender.isWindowOpen());
+		long persist = this.pair.sender.getRttEstimator().getRto();
+		assertEquals("persist timer", now + persist,
+				this.pair.sender.getDeadline());
+
+		assertFalse(this.pair.sender
+				.onTimer(this.pair.sender.getDeadline() - 1));
+		assertFalse(this.pair.sender.isWindowOpen());
+		now = this.pair.sender.getDeadline();
+		this.pair.sender.onTimer(now);
+		assertEquals("one probe", 1, fillWindow(now));
+		assertEquals(1, this.pair.sender.getMetrics().getWindowProbes());
+
+		this.pair.deliverPackets();
+		now += MS;
+		this.pair.deliverAcks(now);
+		assertEquals("still closed", 0, this.pair.sender.getPeerWindow());
+		assertEquals("backed off", now + 2 * persist,
+				this.pair.sender.getDeadline());
+
+		// the application catches up: the update is sent unprompted
+		this.pair.delivered.clear();
+		this.pair.receiver.setBacklog(0);
+		assertEquals("window update", 1, this.pair.acks.size());
+		this.pair.deliverAcks(now);
+		assertEquals(8, this.pair.sender.getPeerWindow());
+		assertEquals(SenderProtocol.NO_DEADLINE,
+				this.pair.sender.getDeadline());
+		assertEquals("window reopened", 8, fillWindow(now));
+	}
+
+	/**
+	 * Probes lost while the window stays closed past several RTOs are
+	 * resent on the backed off persist timer, without backing off the RTO,
+	 * cutting the congestion window or counting towards giving up
+	 */
+	public void testLostProbes() throws IOException {
+		TransportConfig config = ProtocolPair.config(
+				TransportMode.SELECTIVE_REPEAT, 8);
+		config.setCongestionControl(true);
+		this.pair = unread(config);
+		long now = 0;
+		while (this.pair.receiver.getWindow() > 0) {
+			fillWindow(now);
+			this.pair.deliverPackets();
+			now += MS;
+			this.pair.deliverAcks(now);
+		}
+		assertEquals(0, this.pair.sender.getPeerWindow());
+		long rto = this.pair.sender.getRttEstimator().getRto();
+		int cwnd = this.pair.sender.getCongestionController().getWindow();
+		long persist = this.pair.sender.getDeadline() - now;
+		assertEquals("persist timer", rto, persist);
+
+		now = this.pair.sender.getDeadline();
+		this.pair.sender.onTimer(now);
+		assertEquals("one probe", 1, fillWindow(now));
+		assertTrue(this.pair.sender.isProbing());
+		for (int i = 1; i <= 4; i++) {
+			assertEquals("probe " + i + " sent", 1, this.pair.packets.size());
+			this.pair.packets.clear();// lost
+			assertEquals("backed off", now + (persist << (i - 1)),
+					this.pair.sender.getDeadline());
+			now = this.pair.sender.getDeadline();
+			assertTrue(this.pair.sender.onTimer(now));
+		}
+		assertEquals(5, this.pair.sender.getMetrics().getWindowProbes());
+		assertEquals("RTO kept", rto, this.pair.sender.getRttEstimator()
+				.getRto());
+		assertEquals("cwnd kept", cwnd, this.pair.sender
+				.getCongestionController().getWindow());
+		assertEquals("no timeouts", 0,
+				this.pair.sender.getConsecutiveTimeouts());
+
+		// this copy gets through, into the receiver's backlog
+		this.pair.deliverPackets();
+		this.pair.deliverAcks(now);
+		assertFalse(this.pair.sender.isProbing());
+		assertTrue(this.pair.sender.isIdle());
+		assertEquals("still closed", 0, this.pair.sender.getPeerWindow());
+		assertEquals(now + (persist << 5), this.pair.sender.getDeadline());
+	}
+
+	/**
+	 * Opening less than half the window is not announced; opening half is
+	 */
+	public void testPartialWindow() throws IOException {
+		assertEquals(8, fillWindow(0));
+		this.pair.deliverPackets();
+		this.pair.receiver.setBacklog(5);
+		assertEquals("less than half opened", 8, this.pair.acks.size());
+		this.pair.deliverAcks(MS);
+		assertEquals(0, this.pair.sender.getPeerWindow());
+
+		this.pair.receiver.setBacklog(4);
+		assertEquals("half opened", 1, this.pair.acks.size());
+		this.pair.deliverAcks(MS);
+		assertEquals(4, this.pair.sender.getPeerWindow());
+		assertEquals(4, fillWindow(MS));
+	}
+}
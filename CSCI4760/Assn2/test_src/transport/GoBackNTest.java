@@ -0,0 +1,111 @@
+package transport;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the Go-Back-N sender and the in-order receiver: cumulative ACKs and
+ * resending the whole window after a loss
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class GoBackNTest extends TestCase {
+
+	private static final long MS = ProtocolPair.MS;
+
+	/**
+	 * The sender stops at the window, and one ACK for the last packet
+	 * acknowledges all of them
+	 */
+	public void testCumulativeAck() throws IOException {
+		ProtocolPair pair = new ProtocolPair(TransportMode.GO_BACK_N, 4);
+		pair.send(4, 0);
+		assertFalse(pair.sender.isWindowOpen());
+		try {
+			pair.sender.send(ReliableTransportMessage.DATA, "p4", 0);
+			fail("Should throw IllegalStateException");
+		} catch (IllegalStateException e) {
+		}// the window is full
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue("in order", pair.deliver(i, true));
+		}
+		assertEquals(4, pair.acks.size());
+		MessageView last = pair.ack(3);
+		assertEquals(pair.seqNo(3), last.getSequenceNo());
+		assertTrue(pair.sender.onResponse(last.getOpCode(),
+				last.getSequenceNo(), MS));
+		assertTrue(pair.sender.isIdle());
+		assertEquals(SenderProtocol.NO_DEADLINE, pair.sender.getDeadline());
+
+		MessageView first = pair.ack(0);
+		assertFalse("stale", pair.sender.onResponse(first.getOpCode(),
+				first.getSequenceNo(), MS));
+	}
+
+	/**
+	 * The receiver drops everything after a lost packet, so the timer resends
+	 * the lost packet and everything after it
+	 */
+	public void testGoBack() throws IOException {
+		ProtocolPair pair = new ProtocolPair(TransportMode.GO_BACK_N, 4);
+		pair.send(4, 0);
+		assertTrue(pair.deliver(0, true));
+		assertFalse("after the gap", pair.deliver(2, true));
+		assertFalse("after the gap", pair.deliver(3, true));
+		for (int i = 0; i < pair.acks.size(); i++) {
+			assertEquals(pair.seqNo(0), pair.ack(i).getSequenceNo());
+		}
+		pair.deliverAcks(MS);
+		assertEquals(3, pair.sender.getInFlight());
+
+		long deadline = pair.sender.getDeadline();
+		assertFalse(pair.sender.onTimer(deadline - 1));
+		assertTrue(pair.sender.onTimer(deadline));
+		assertEquals("window resent", 7, pair.packets.size());
+		for (int i = 1; i < 4; i++) {
+			assertEquals(pair.seqNo(i), pair.seqNo(3 + i));
+		}
+		assertEquals(3, pair.sender.getRetransmissions());
+
+		for (int i = 4; i < 7; i++) {
+			assertTrue(pair.deliver(i, true));
+		}
+		pair.deliverAcks(deadline + MS);
+		assertTrue(pair.sender.isIdle());
+	}
+
+	/**
+	 * A damaged packet is answered with a NAK for the last packet in order
+	 */
+	public void testNak() throws IOException {
+		ProtocolPair pair = new ProtocolPair(TransportMode.GO_BACK_N, 4);
+		pair.send(2, 0);
+		assertTrue(pair.deliver(0, true));
+		assertFalse(pair.deliver(1, false));
+		assertEquals(ReliableTransportMessage.NAK, pair.ack(1).getOpCode());
+		assertEquals(pair.seqNo(0), pair.ack(1).getSequenceNo());
+		pair.deliverAcks(MS);
+		assertEquals(1, pair.sender.getInFlight());
+	}
+
+	/**
+	 * Sequence numbers wrap around without disturbing the window
+	 */
+	public void testWrap() throws IOException {
+		ProtocolPair pair = new ProtocolPair(TransportMode.GO_BACK_N, 4);
+		for (int round = 0; round < 30; round++) {
+			pair.send(4, round * MS);
+			for (int i = 0; i < 4; i++) {
+				assertTrue(pair.deliver(4 * round + i, true));
+			}
+			pair.deliverAcks(round * MS);
+			assertTrue("round " + round, pair.sender.isIdle());
+		}
+		assertEquals(120 % ReliableTransportMessage.SEQUENCE_MODULUS,
+				pair.sender.getNextSeqNo());
+		assertEquals(pair.seqNo(119), pair.receiver.getLastSeqNo());
+	}
+}
@@ -0,0 +1,291 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the SYN / SYN-ACK exchange that settles a session's mode, window,
+ * payload size, codec and checksum
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class HandshakeTest extends TestCase {
+
+	private Throwable writeFailure;
+
+	/**
+	 * Encodes 'payload' as a SYN with 'codec' and decodes it into a view
+	 */
+	private static MessageView syn(WireCodec codec, ByteBuffer payload)
+			throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		MessageView header = new MessageView();
+		header.setSourceAddress(ip);
+		header.setDestAddress(ip);
+		header.setOpCode(ReliableTransportMessage.SYN);
+		header.setSequenceNo(0);
+		ByteBuffer datagram = ByteBuffer.allocate(codec
+				.getMaxLength(payload.remaining()));
+		header.encode(codec, payload, datagram);
+		datagram.flip();
+
+		MessageView view = new MessageView();
+		assertEquals(MessageView.OK, view.decode(datagram));
+		return view;
+	}
+
+	private static ByteBuffer encode(SessionParameters parameters) {
+		ByteBuffer payload = ByteBuffer.allocate(SessionParameters.MAX_LENGTH);
+		parameters.encode(payload);
+		payload.flip();
+		return payload;
+	}
+
+	/**
+	 * The answer takes the sender's mode, the smaller window and payload,
+	 * and the first codec and the fastest checksum both ends allow
+	 */
+	public void testNegotiation() throws IOException {
+		TransportConfig sender = new TransportConfig();
+		sender.setMode(TransportMode.SELECTIVE_REPEAT);
+		sender.setWindowSize(40);
+		sender.setPayloadSize(1400);
+		sender.setCodecs(new WireCodec[] { WireCodecs.BINARY, WireCodecs.TEXT });
+		TransportConfig receiver = new TransportConfig();
+		receiver.setWindowSize(16);
+		receiver.setCodecs(new WireCodec[] { WireCodecs.TEXT, WireCodecs.BINARY });
+
+		SessionParameters offer = new SessionParameters();
+		assertTrue(offer.decode(syn(WireCodecs.TEXT,
+				encode(SessionParameters.offer(sender)))));
+		assertEquals(TransportMode.SELECTIVE_REPEAT, offer.getMode());
+		assertEquals(40, offer.getWindowSize());
+		assertEquals(1400, offer.getPayloadSize());
+		assertEquals(2, offer.getCodecCount());
+		assertEquals(3, offer.getChecksumCount());
+
+		SessionParameters answer = new SessionParameters();
+		assertTrue(answer.decode(syn(WireCodecs.BINARY,
+				encode(offer.answer(receiver)))));
+		assertEquals(1, answer.getCodecCount());
+		assertEquals(1, answer.getChecksumCount());
+
+		TransportConfig session = answer.apply(receiver);
+		assertEquals(TransportMode.SELECTIVE_REPEAT, session.getMode());
+		assertEquals("receiver's window", 16, session.getWindowSize());
+		assertEquals("sender's payload", 1400, session.getPayloadSize());
+		assertSame(WireCodecs.BINARY, session.getCodec());
+		assertEquals(ChecksumAlgorithm.CRC32C, session.getChecksum());
+		assertEquals("original untouched", TransportMode.STOP_AND_WAIT,
+				receiver.getMode());
+	}
+
+	/**
+	 * An offer of the text codec alone gets the checksum it carries and a
+	 * window its sequence numbers allow; unknown fields are skipped
+	 */
+	public void testTextOnly() throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(64);
+		payload.put(new byte[] { 'M', 1, 2 });// Selective Repeat
+		payload.put(new byte[] { 'W', 2, 0, (byte) 200 });
+		payload.put(new byte[] { 'Z', 3, 1, 2, 3 });
+		payload.put(new byte[] { 'C', 3, 'z', 'i', 'p' });
+		payload.put(new byte[] { 'C', 4, 't', 'e', 'x', 't' });
+		payload.put(new byte[] { 'K', 1, 1, 'K', 1, 0 });
+		payload.flip();
+
+		SessionParameters offer = new SessionParameters();
+		assertTrue(offer.decode(syn(WireCodecs.TEXT, payload)));
+		assertEquals(1, offer.getCodecCount());
+		assertEquals(-1, offer.getPayloadSize());
+
+		TransportConfig receiver = new TransportConfig();
+		receiver.setWindowSize(100);
+		receiver.setPayloadSize(500);
+		TransportConfig session = offer.answer(receiver).apply(receiver);
+		assertSame(WireCodecs.TEXT, session.getCodec());
+		assertEquals(ChecksumAlgorithm.SUM, session.getChecksum());
+		assertEquals(WireCodecs.TEXT.getSequenceNumbers()
+				.getMaxWindow(), session.getWindowSize());
+		assertTrue("up to a whole datagram",
+				session.getPayloadSize() > 60000);
+	}
+
+	/**
+	 * A sender left at the text codec offers only that codec and its
+	 * checksum, and the answer keeps them even when the receiver prefers
+	 * binary
+	 */
+	public void testConfiguredCodec() throws IOException {
+		TransportConfig sender = new TransportConfig();
+		TransportConfig receiver = new TransportConfig();
+		receiver.setCodecs(new WireCodec[] { WireCodecs.BINARY, WireCodecs.TEXT });
+
+		SessionParameters offer = new SessionParameters();
+		assertTrue(offer.decode(syn(WireCodecs.TEXT,
+				encode(SessionParameters.offer(sender)))));
+		assertEquals(1, offer.getCodecCount());
+		assertEquals(1, offer.getChecksumCount());
+
+		TransportConfig session = offer.answer(receiver).apply(receiver);
+		assertSame(WireCodecs.TEXT, session.getCodec());
+		assertEquals(ChecksumAlgorithm.SUM, session.getChecksum());
+	}
+
+	/**
+	 * An offer with no codec, or no checksum, the receiver allows is
+	 * rejected
+	 */
+	public void testNothingInCommon() throws IOException {
+		TransportConfig sender = new TransportConfig();
+		sender.setCodec(WireCodecs.BINARY);
+		TransportConfig receiver = new TransportConfig();
+
+		SessionParameters offer = new SessionParameters();
+		assertTrue(offer.decode(syn(WireCodecs.BINARY,
+				encode(SessionParameters.offer(sender)))));
+		try {
+			offer.answer(receiver);
+			fail("binary offered to a text-only receiver");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+
+		sender.setChecksum(ChecksumAlgorithm.INTERNET);
+		receiver.setCodec(WireCodecs.BINARY);
+		receiver.setChecksum(ChecksumAlgorithm.CRC32C);
+		assertTrue(offer.decode(syn(WireCodecs.BINARY,
+				encode(SessionParameters.offer(sender)))));
+		try {
+			offer.answer(receiver);
+			fail("Internet checksum offered to a CRC-32C receiver");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * The answer carries how long the receiver holds back an ACK in the
+	 * agreed mode
+	 */
+	public void testAckDelay() throws IOException {
+		TransportConfig sender = new TransportConfig();
+		sender.setMode(TransportMode.SELECTIVE_REPEAT);
+		TransportConfig receiver = new TransportConfig();
+		receiver.setAckDelay(25);
+
+		SessionParameters offer = new SessionParameters();
+		assertTrue(offer.decode(syn(WireCodecs.TEXT,
+				encode(SessionParameters.offer(sender)))));
+		assertEquals("none offered", -1, offer.getAckDelay());
+
+		SessionParameters answer = new SessionParameters();
+		assertTrue(answer.decode(syn(WireCodecs.TEXT,
+				encode(offer.answer(receiver)))));
+		assertEquals("acks every packet", 0, answer.getAckDelay());
+
+		receiver.setAckEvery(3);
+		assertTrue(answer.decode(syn(WireCodecs.TEXT,
+				encode(offer.answer(receiver)))));
+		assertEquals(25, answer.getAckDelay());
+
+		sender.setMode(TransportMode.STOP_AND_WAIT);
+		assertTrue(offer.decode(syn(WireCodecs.TEXT,
+				encode(SessionParameters.offer(sender)))));
+		assertEquals("no delayed acks in stop-and-wait", 0, offer.answer(
+				receiver).getAckDelay());
+	}
+
+	/**
+	 * A field running past the end of the payload is rejected
+	 */
+	public void testMalformed() throws IOException {
+		ByteBuffer payload = ByteBuffer.wrap(new byte[] { 'W', 2, 0, 8, 'P',
+				2, 1 });
+		SessionParameters offer = new SessionParameters();
+		assertFalse(offer.decode(syn(WireCodecs.BINARY, payload)));
+		assertEquals(-1, offer.getWindowSize());
+	}
+
+	/**
+	 * A Selective Repeat sender and a receiver left at the defaults settle
+	 * on Selective Repeat over the configured text codec and transfer
+	 * through the streams; the sender allows for the receiver's delayed ACKs
+	 */
+	public void testStreams() throws Exception {
+		final byte[] data = new byte[100000];
+		new Random(11).nextBytes(data);
+
+		TransportConfig receiverConfig = config(ReliableSender.ACK_RECEIVE_PORT);
+		receiverConfig.setWindowSize(16);
+		receiverConfig.setAckEvery(2);
+		receiverConfig.setAckDelay(15);
+		ReliableInputStream in = new ReliableInputStream(receiverConfig);
+		in.setTimeout(10000);
+
+		TransportConfig senderConfig = config(ReliableSender.DATA_RECEIVE_PORT);
+		senderConfig.setMode(TransportMode.SELECTIVE_REPEAT);
+		senderConfig.setWindowSize(32);
+		senderConfig.setPayloadSize(1000);
+		final ReliableSender sender = new ReliableSender(
+				InetAddress.getByName("127.0.0.1"), senderConfig);
+		final TransportConfig[] session = new TransportConfig[1];
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					session[0] = sender.handshake();
+					ReliableOutputStream out = new ReliableOutputStream(sender);
+					out.write(data);
+					out.close();
+				} catch (Throwable e) {
+					writeFailure = e;
+					sender.disconnect();
+				}
+			}
+		});
+		writer.setDaemon(true);
+		writer.start();
+
+		byte[] read = new byte[data.length];
+		int count = 0;
+		try {
+			while (count < read.length) {
+				int n = in.read(read, count, read.length - count);
+				assertTrue("early end after " + count, n > 0);
+				count += n;
+			}
+			assertEquals("nothing after the end", -1, in.read());
+		} finally {
+			in.close();
+			writer.join(10000);
+		}
+		assertNull("writer failed: " + writeFailure, writeFailure);
+		assertEquals(data.length, count);
+		assertTrue("bytes differ", Arrays.equals(data, read));
+
+		assertEquals(TransportMode.SELECTIVE_REPEAT, session[0].getMode());
+		assertEquals(16, session[0].getWindowSize());
+		assertEquals(1000, session[0].getPayloadSize());
+		assertSame(WireCodecs.TEXT, session[0].getCodec());
+		assertEquals(1000, sender.getPayloadSize());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(15), sender
+				.getRttEstimator().getAckDelay());
+		assertEquals(1000, in.getReceiver().getPayloadSize());
+	}
+
+	private static TransportConfig config(int relayPort) {
+		TransportConfig config = new TransportConfig();
+		config.setLocal("127.0.0.1");
+		config.setRelay("127.0.0.1");
+		config.setRelayPort(relayPort);
+		config.setLogLevel(LogLevel.OFF);
+		return config;
+	}
+}
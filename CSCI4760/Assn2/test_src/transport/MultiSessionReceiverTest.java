@@ -0,0 +1,288 @@
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests several senders sharing one multi-session receiver over loopback
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class MultiSessionReceiverTest extends TestCase {
+
+	private static final int SENDERS = 3;
+
+	private static final int PACKETS = 40;
+
+	private InetAddress loopback;
+
+	private MultiSessionReceiver receiver;
+
+	private Map<Integer, ByteArrayOutputStream> received = new HashMap<Integer, ByteArrayOutputStream>();
+
+	private Map<Integer, Boolean> ended = new HashMap<Integer, Boolean>();
+
+	private int started = 0;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.loopback = InetAddress.getByName("127.0.0.1");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (this.receiver != null) {
+			this.receiver.close();
+		}
+	}
+
+	private TransportConfig config(TransportMode mode) {
+		TransportConfig config = new TransportConfig();
+		config.setMode(mode);
+		config.setWindowSize(8);
+		config.setCodec(WireCodecs.BINARY);
+		return config;
+	}
+
+	private void startReceiver(TransportConfig config) throws IOException {
+		this.receiver = new MultiSessionReceiver(new InetSocketAddress(
+				this.loopback, 0), null, config, new SessionListener() {
+			public DeliverySink sessionStarted(InetAddress srcIP, int srcPort) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				received.put(srcPort, out);
+				started++;
+				return new DeliverySink() {
+					public void deliver(MessageView message) {
+						if (message.getOpCode() == ReliableTransportMessage.DATA) {
+							out.write(message.getBuffer().array(),
+									message.getPayloadOffset(),
+									message.getPayloadLength());
+						}
+					}
+				};
+			}
+
+			public void sessionEnded(InetAddress srcIP, int srcPort,
+					boolean finished) {
+				ended.put(srcPort, finished);
+			}
+		});
+	}
+
+	private static String payload(int sender, int packet) {
+		return "sender " + sender + " packet " + packet + ";";
+	}
+
+	private void transfer(TransportConfig config) throws IOException {
+		startReceiver(config);
+		final SocketAddress target = this.receiver.getLocalAddress();
+
+		DatagramChannel[] channels = new DatagramChannel[SENDERS];
+		SenderProtocol[] senders = new SenderProtocol[SENDERS];
+		int[] sent = new int[SENDERS];
+		for (int i = 0; i < SENDERS; i++) {
+			final DatagramChannel channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().bind(new InetSocketAddress(this.loopback, 0));
+			channels[i] = channel;
+			senders[i] = new SenderProtocol(new PacketSink() {
+				public void transmit(byte[] buffer, int offset, int length)
+						throws IOException {
+					channel.send(ByteBuffer.wrap(buffer, offset, length), target);
+				}
+			}, this.loopback, this.loopback, channel.socket().getLocalPort(),
+					ReliableReceiver.DATA_RECEIVE_PORT, config,
+					new RttEstimator(config));
+		}
+
+		ByteBuffer ack = ByteBuffer.allocate(256);
+		MessageView view = new MessageView();
+		long giveUp = System.nanoTime() + 10000000000L;
+		boolean done = false;
+		while (!done && System.nanoTime() < giveUp) {
+			done = true;
+			for (int i = 0; i < SENDERS; i++) {
+				long now = System.nanoTime();
+				while (senders[i].isWindowOpen() && sent[i] <= PACKETS) {
+					if (sent[i] < PACKETS) {
+						senders[i].send(ReliableTransportMessage.DATA,
+								payload(i, sent[i]), now);
+					} else {
+						senders[i].send(ReliableTransportMessage.END, "", now);
+					}
+					sent[i]++;
+				}
+				senders[i].onTimer(now);
+				done &= sent[i] > PACKETS && senders[i].isIdle();
+			}
+
+			this.receiver.poll(5);
+
+			for (int i = 0; i < SENDERS; i++) {
+				ack.clear();
+				while (channels[i].receive(ack) != null) {
+					ack.flip();
+					if (view.decode(ack) == MessageView.OK) {
+						senders[i].onResponse(view, System.nanoTime());
+					}
+					ack.clear();
+				}
+			}
+		}
+		assertTrue("transfers did not finish", done);
+		assertEquals("sessions", SENDERS, this.receiver.getSessionCount());
+
+		for (int i = 0; i < SENDERS; i++) {
+			StringBuilder expected = new StringBuilder();
+			for (int p = 0; p < PACKETS; p++) {
+				expected.append(payload(i, p));
+			}
+			int port = channels[i].socket().getLocalPort();
+			assertEquals("sender " + i, expected.toString(), this.received
+					.get(port).toString("ISO-8859-1"));
+			channels[i].close();
+		}
+
+		this.receiver.close();
+		assertEquals("ended", SENDERS, this.ended.size());
+		assertFalse("unfinished session", this.ended.containsValue(false));
+		this.receiver = null;
+	}
+
+	/**
+	 * Go-Back-N senders keep separate sequence state
+	 */
+	public void testGoBackNSessions() throws IOException {
+		transfer(config(TransportMode.GO_BACK_N));
+	}
+
+	/**
+	 * Selective Repeat senders keep separate reassembly windows
+	 */
+	public void testSelectiveRepeatSessions() throws IOException {
+		transfer(config(TransportMode.SELECTIVE_REPEAT));
+	}
+
+	/**
+	 * Idle sessions are dropped
+	 */
+	public void testIdleTimeout() throws IOException, InterruptedException {
+		startReceiver(config(TransportMode.GO_BACK_N));
+		this.receiver.setIdleTimeout(1);
+
+		DatagramChannel channel = open();
+		send(channel, ReliableTransportMessage.DATA, 0, "x");
+
+		this.receiver.poll(1000);
+		assertEquals("session started", 1, this.receiver.getSessionCount());
+
+		long giveUp = System.currentTimeMillis() + 5000;
+		while (this.receiver.getSessionCount() > 0
+				&& System.currentTimeMillis() < giveUp) {
+			this.receiver.poll(100);
+		}
+		assertEquals("session dropped", 0, this.receiver.getSessionCount());
+		assertEquals("ended unfinished", Boolean.FALSE,
+				this.ended.get(channel.socket().getLocalPort()));
+		channel.close();
+	}
+
+	/**
+	 * Finished sessions are dropped after lingering, well before the idle
+	 * timeout
+	 */
+	public void testLinger() throws IOException {
+		startReceiver(config(TransportMode.GO_BACK_N));
+		this.receiver.setLinger(1);
+
+		DatagramChannel channel = open();
+		send(channel, ReliableTransportMessage.DATA, 0, "x");
+		send(channel, ReliableTransportMessage.END, 1, "");
+		pollUntil(2);
+		assertEquals("session open", 1, this.receiver.getSessionCount());
+
+		long giveUp = System.currentTimeMillis() + 5000;
+		while (this.receiver.getSessionCount() > 0
+				&& System.currentTimeMillis() < giveUp) {
+			this.receiver.poll(100);
+		}
+		assertEquals("session dropped", 0, this.receiver.getSessionCount());
+		assertEquals("ended finished", Boolean.TRUE,
+				this.ended.get(channel.socket().getLocalPort()));
+		channel.close();
+	}
+
+	/**
+	 * A new transfer from the port of a finished one gets a session of its
+	 * own instead of being taken for a stale duplicate
+	 */
+	public void testPortReuse() throws IOException {
+		startReceiver(config(TransportMode.GO_BACK_N));
+
+		DatagramChannel channel = open();
+		int port = channel.socket().getLocalPort();
+		send(channel, ReliableTransportMessage.DATA, 0, "first");
+		send(channel, ReliableTransportMessage.END, 1, "");
+		pollUntil(2);
+		//a resent END is still answered by the finished session
+		send(channel, ReliableTransportMessage.END, 1, "");
+		pollUntil(1);
+		assertEquals("one session", 1, this.started);
+		assertNull("still open", this.ended.get(port));
+
+		send(channel, ReliableTransportMessage.DATA, 0, "second");
+		pollUntil(1);
+		assertEquals("new session", 2, this.started);
+		assertEquals("ended finished", Boolean.TRUE, this.ended.get(port));
+		assertEquals("sessions", 1, this.receiver.getSessionCount());
+		assertEquals("second", this.received.get(port).toString("ISO-8859-1"));
+		channel.close();
+	}
+
+	private DatagramChannel open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(this.loopback, 0));
+		return channel;
+	}
+
+	/**
+	 * Sends one packet from 'channel' to the receiver
+	 */
+	private void send(DatagramChannel channel, char opCode, int seqNo,
+			String payload) throws IOException {
+		MessageView header = new MessageView();
+		header.setSourceAddress(this.loopback);
+		header.setDestAddress(this.loopback);
+		header.setSrcPort(channel.socket().getLocalPort());
+		header.setDestPort(ReliableReceiver.DATA_RECEIVE_PORT);
+		header.setOpCode(opCode);
+		header.setSequenceNo(seqNo);
+		ByteBuffer datagram = ByteBuffer.allocate(256);
+		header.encode(WireCodecs.BINARY,
+				ByteBuffer.wrap(payload.getBytes("ISO-8859-1")), datagram);
+		datagram.flip();
+		channel.send(datagram, this.receiver.getLocalAddress());
+	}
+
+	/**
+	 * Polls the receiver until it has handled 'packets' packets
+	 */
+	private void pollUntil(int packets) throws IOException {
+		long giveUp = System.currentTimeMillis() + 5000;
+		while (packets > 0 && System.currentTimeMillis() < giveUp) {
+			packets -= this.receiver.poll(100);
+		}
+		assertEquals("packets handled", 0, packets);
+	}
+
+}
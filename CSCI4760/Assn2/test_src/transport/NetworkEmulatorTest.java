@@ -0,0 +1,166 @@
+package transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the emulated link and transfers run through it
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class NetworkEmulatorTest extends TestCase {
+
+	private static final long MS = 1000000L;
+
+	private List<Integer> arrivals = new ArrayList<Integer>();
+
+	private List<Long> times = new ArrayList<Long>();
+
+	private NetworkEmulator emulator;
+
+	/**
+	 * Creates a link that records the first byte and arrival time of every
+	 * datagram
+	 */
+	private NetworkEmulator.Link link(ImpairmentProfile profile, long seed) {
+		this.emulator = new NetworkEmulator(seed);
+		return this.emulator.createLink(profile, new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+				arrivals.add((int) buffer[offset]);
+				times.add(emulator.getTime());
+			}
+		});
+	}
+
+	private void drain() throws IOException {
+		while (this.emulator.step(NetworkEmulator.NO_EVENT)) {
+		}
+	}
+
+	/**
+	 * Bandwidth spaces datagrams out, the delay is added on top and a full
+	 * queue drops the rest
+	 */
+	public void testBandwidthDelayAndQueue() throws IOException {
+		ImpairmentProfile profile = new ImpairmentProfile();
+		profile.set("bandwidth", "8");// a byte per microsecond
+		profile.set("delay", "10");
+		profile.set("queue", "2500");
+		NetworkEmulator.Link link = link(profile, 1);
+
+		for (int i = 0; i < 4; i++) {
+			link.transmit(new byte[] { (byte) i }, 0, 1);
+		}
+		link.transmit(new byte[1000], 0, 1000);
+		link.transmit(new byte[1000], 0, 1000);
+		link.transmit(new byte[1000], 0, 1000);
+		assertEquals("queue drops", 1, link.getQueueDrops());
+		drain();
+
+		assertEquals(6, this.arrivals.size());
+		assertEquals(Long.valueOf(10 * MS + 1000), this.times.get(0));
+		assertEquals(Long.valueOf(10 * MS + 4000), this.times.get(3));
+		assertEquals(Long.valueOf(10 * MS + 2004000), this.times.get(5));
+	}
+
+	/**
+	 * A held datagram arrives just after the given number of later ones
+	 */
+	public void testReorderDepth() throws IOException {
+		ImpairmentProfile profile = new ImpairmentProfile();
+		profile.setReorder(1);
+		profile.setReorderDepth(2);
+		profile.setDelay(MS);
+		NetworkEmulator.Link link = link(profile, 1);
+		link.transmit(new byte[] { 0 }, 0, 1);
+		profile.setReorder(0);
+		for (int i = 1; i < 4; i++) {
+			link.transmit(new byte[] { (byte) i }, 0, 1);
+		}
+		drain();
+
+		assertEquals("[1, 2, 0, 3]", this.arrivals.toString());
+		assertEquals(1, link.getReordered());
+	}
+
+	/**
+	 * The same seed gives the same losses, corruption and duplicates
+	 */
+	public void testDeterministic() throws IOException {
+		ImpairmentProfile profile = new ImpairmentProfile();
+		profile.set("loss", "10");
+		profile.set("duplicate", "10");
+		profile.set("corrupt", "10");
+		profile.set("jitter", "5");
+
+		String[] runs = new String[2];
+		for (int run = 0; run < runs.length; run++) {
+			this.arrivals.clear();
+			NetworkEmulator.Link link = link(profile, 42);
+			for (int i = 0; i < 1000; i++) {
+				link.transmit(new byte[] { (byte) i }, 0, 1);
+			}
+			drain();
+			assertTrue("lost", link.getLost() > 50 && link.getLost() < 150);
+			assertEquals(link.getSent() - link.getLost()
+					+ link.getDuplicated(), link.getDelivered());
+			runs[run] = this.arrivals.toString();
+		}
+		assertEquals(runs[0], runs[1]);
+	}
+
+	/**
+	 * Transfers through a hostile path deliver every byte, in order
+	 */
+	public void testTransfer() throws IOException {
+		ImpairmentProfile profile = new ImpairmentProfile();
+		profile.set("loss", "3");
+		profile.set("corrupt", "2");
+		profile.set("duplicate", "1");
+		profile.set("reorder", "2");
+		profile.set("reorder-depth", "4");
+		profile.set("delay", "5");
+		profile.set("jitter", "1");
+
+		String[][] settings = { { "--mode=saw" },
+				{ "--mode=gbn", "--window=32" },
+				{ "--mode=sr", "--window=32", "--codec=binary" },
+				{ "--mode=sr", "--window=32", "--codec=binary",
+						"--checksum=internet", "--congestion=false" } };
+		for (String[] args : settings) {
+			EmulatedTransfer transfer = new EmulatedTransfer(
+					TransportConfig.parse(args), profile, profile, 7);
+			assertTrue(args[0], transfer.run(2000, 600000 * MS));
+			assertEquals(2000, transfer.getPacketsDelivered());
+			assertEquals(0, transfer.getDeliveryErrors());
+			assertTrue(transfer.getSender().getRetransmissions() > 0);
+		}
+	}
+
+	/**
+	 * Delayed ACKs go out on the receiver's timer and cost no
+	 * retransmissions on a clean path
+	 */
+	public void testDelayedAcks() throws IOException {
+		ImpairmentProfile profile = new ImpairmentProfile();
+		profile.set("delay", "10");
+
+		for (String ackEvery : new String[] { "2", "4" }) {
+			EmulatedTransfer transfer = new EmulatedTransfer(
+					TransportConfig.parse(new String[] { "--mode=sr",
+							"--window=16", "--ack-every=" + ackEvery }),
+					profile, profile, 7);
+			assertTrue(ackEvery, transfer.run(2000, 600000 * MS));
+			assertEquals(2000, transfer.getPacketsDelivered());
+			assertEquals("retransmissions with ack-every=" + ackEvery, 0,
+					transfer.getSender().getRetransmissions());
+			assertTrue("virtual time " + transfer.getTime(),
+					transfer.getTime() < 5000 * MS);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the path MTU search against a simulated path
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class PathMtuProberTest extends TestCase {
+
+	private static final long MS = 1000000L;
+
+	private List<byte[]> echoes = new ArrayList<byte[]>();
+
+	private int sent = 0;
+
+	/**
+	 * Runs a search over a path that drops datagrams longer than 'pathLimit'
+	 */
+	private PathMtuProber search(final int pathLimit, int min, int max)
+			throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		TransportConfig config = new TransportConfig();
+		config.setCodec(WireCodecs.BINARY);
+
+		final ReceiverProtocol receiver = new ReceiverProtocol(
+				new PacketSink() {
+					public void transmit(byte[] buffer, int offset, int length) {
+						byte[] echo = new byte[length];
+						System.arraycopy(buffer, offset, echo, 0, length);
+						echoes.add(echo);
+					}
+				}, new DeliverySink() {
+					public void deliver(MessageView message) {
+						fail("probe delivered as data");
+					}
+				}, ip, ip, 2018, 2016, config);
+
+		PathMtuProber prober = new PathMtuProber(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length)
+					throws IOException {
+				sent++;
+				if (length <= pathLimit) {
+					MessageView view = new MessageView();
+					assertEquals(MessageView.OK, view.decode(ByteBuffer.wrap(
+							buffer, offset, length)));
+					receiver.onMessage(view, true);
+				}
+			}
+		}, ip, ip, 2015, 2017, WireCodecs.BINARY, new RttEstimator(10 * MS,
+				1 * MS, 100 * MS), min, max);
+
+		long now = 0;
+		prober.start(now);
+		MessageView view = new MessageView();
+		while (!prober.isDone()) {
+			if (echoes.isEmpty()) {
+				now = prober.getDeadline();
+				prober.onTimer(now);
+			} else {
+				assertEquals(MessageView.OK, view.decode(ByteBuffer
+						.wrap(echoes.remove(0))));
+				prober.onResponse(view.getOpCode(), view.getSequenceNo(), now);
+			}
+		}
+		assertEquals("receiver state untouched", -1, receiver.getLastSeqNo());
+		return prober;
+	}
+
+	/**
+	 * Finds the exact largest payload the path carries
+	 */
+	public void testFindsLimit() throws IOException {
+		int overhead = BinaryWireCodec.IPV4_OVERHEAD;
+		PathMtuProber prober = search(1472, 30, 8000);
+		assertEquals("payload", 1472 - overhead, prober.getPayloadSize());
+	}
+
+	/**
+	 * A path that carries everything ends at the upper bound
+	 */
+	public void testUnlimitedPath() throws IOException {
+		PathMtuProber prober = search(Integer.MAX_VALUE, 30, 1400);
+		assertEquals("payload", 1400, prober.getPayloadSize());
+		assertTrue("binary search", this.sent < 20);
+	}
+
+	/**
+	 * Nothing larger than the minimum gets through
+	 */
+	public void testNothingLarger() throws IOException {
+		PathMtuProber prober = search(10, 30, 1400);
+		assertEquals("payload", 30, prober.getPayloadSize());
+	}
+
+	/**
+	 * The interface bound leaves room for the headers
+	 */
+	public void testInterfaceBound() throws IOException {
+		int bound = PathMtuProber.maxPayloadFor(
+				InetAddress.getByName("127.0.0.1"), WireCodecs.TEXT);
+		assertTrue("positive", bound > 0);
+		assertTrue("fits a datagram", WireCodecs.TEXT.getMaxLength(bound) <= TransportConfig.MAX_DATAGRAM_LEN);
+	}
+
+}
@@ -0,0 +1,160 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+/**
+ * A {@link SenderProtocol} and a {@link ReceiverProtocol} joined by lists
+ * that hold the packets and ACKs each has sent until a test hands them on,
+ * drops them or reorders them
+ *
+ * @author Elliott Tanner
+ *
+ */
+class ProtocolPair {
+
+	static final long MS = 1000000L;
+
+	final List<byte[]> packets = new ArrayList<byte[]>();
+
+	final List<byte[]> acks = new ArrayList<byte[]>();
+
+	final List<String> delivered = new ArrayList<String>();
+
+	final SenderProtocol sender;
+
+	final ReceiverProtocol receiver;
+
+	ProtocolPair(TransportMode mode, int windowSize) throws IOException {
+		this(config(mode, windowSize));
+	}
+
+	ProtocolPair(TransportConfig config) throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		this.receiver = new ReceiverProtocol(copyTo(this.acks),
+				new DeliverySink() {
+					public void deliver(MessageView message)
+							throws IOException {
+						onDeliver(message);
+					}
+				}, ip, ip, 2018, 2016, config);
+		this.sender = new SenderProtocol(copyTo(this.packets), ip, ip, 2015,
+				2017, config, new RttEstimator(100 * MS, 10 * MS, 1000 * MS));
+	}
+
+	/**
+	 * Called for each message the receiver releases; records its payload
+	 */
+	void onDeliver(MessageView message) throws IOException {
+		this.delivered.add(payload(message));
+	}
+
+	static TransportConfig config(TransportMode mode, int windowSize) {
+		TransportConfig config = new TransportConfig();
+		config.setMode(mode);
+		config.setWindowSize(windowSize);
+		config.setCongestionControl(false);
+		return config;
+	}
+
+	static PacketSink copyTo(final List<byte[]> list) {
+		return new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+				byte[] copy = new byte[length];
+				System.arraycopy(buffer, offset, copy, 0, length);
+				list.add(copy);
+			}
+		};
+	}
+
+	/**
+	 * Sends 'count' DATA packets with payloads "p0", "p1", ...
+	 */
+	void send(int count, long now) throws IOException {
+		for (int i = 0; i < count; i++) {
+			this.sender.send(ReliableTransportMessage.DATA, "p" + i, now);
+		}
+	}
+
+	/**
+	 * Returns packet 'index' of those sent so far, decoded
+	 */
+	MessageView packet(int index) {
+		return decode(this.packets.get(index));
+	}
+
+	/**
+	 * Returns ACK 'index' of those sent so far, decoded
+	 */
+	MessageView ack(int index) {
+		return decode(this.acks.get(index));
+	}
+
+	private static MessageView decode(byte[] datagram) {
+		MessageView view = new MessageView();
+		Assert.assertEquals(MessageView.OK, view.decode(ByteBuffer
+				.wrap(datagram)));
+		return view;
+	}
+
+	/**
+	 * Returns the payload of 'message' without the text codec's padding
+	 */
+	static String payload(MessageView message) {
+		return new String(message.getBuffer().array(),
+				message.getPayloadOffset(), message.getPayloadLength())
+				.trim();
+	}
+
+	/**
+	 * Returns the sequence number of packet 'index' of those sent so far
+	 */
+	int seqNo(int index) {
+		return packet(index).getSequenceNo();
+	}
+
+	/**
+	 * Hands packet 'index' of those sent so far to the receiver
+	 *
+	 * @return true if the receiver accepted it (delivered or buffered)
+	 */
+	boolean deliver(int index, boolean checksumOk) throws IOException {
+		return this.receiver.onMessage(packet(index), checksumOk);
+	}
+
+	/**
+	 * Hands packet 'index' of those sent so far to the receiver at time
+	 * 'now'
+	 *
+	 * @return true if the receiver accepted it (delivered or buffered)
+	 */
+	boolean deliver(int index, boolean checksumOk, long now)
+			throws IOException {
+		return this.receiver.onMessage(packet(index), checksumOk, now);
+	}
+
+	/**
+	 * Hands every packet sent so far to the receiver, and forgets them
+	 */
+	void deliverPackets() throws IOException {
+		for (int i = 0; i < this.packets.size(); i++) {
+			deliver(i, true);
+		}
+		this.packets.clear();
+	}
+
+	/**
+	 * Hands every ACK sent so far to the sender
+	 */
+	void deliverAcks(long now) throws IOException {
+		for (int i = 0; i < this.acks.size(); i++) {
+			this.sender.onResponse(ack(i), now);
+		}
+		this.acks.clear();
+	}
+}
@@ -0,0 +1,179 @@
+package transport;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests writing through a ReliableOutputStream and reading the same bytes
+ * back from a ReliableInputStream over the loopback interface
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class ReliableStreamTest extends TestCase {
+
+	private Throwable writeFailure;
+
+	/**
+	 * Odd-sized stream and channel writes, read back in other odd sizes
+	 */
+	public void testSelectiveRepeat() throws Exception {
+		final byte[] data = new byte[200000];
+		new Random(7).nextBytes(data);
+
+		ReliableInputStream in = new ReliableInputStream(config(
+				TransportMode.SELECTIVE_REPEAT, ReliableSender.ACK_RECEIVE_PORT));
+		in.setTimeout(10000);
+		final ReliableOutputStream out = new ReliableOutputStream(config(
+				TransportMode.SELECTIVE_REPEAT, ReliableSender.DATA_RECEIVE_PORT));
+		Thread writer = start(new Runnable() {
+			public void run() {
+				try {
+					int[] sizes = { 1, 999, 1000, 3333, 17, 2500 };
+					int offset = 0;
+					for (int i = 0; offset < data.length; i++) {
+						int length = Math.min(sizes[i % sizes.length],
+								data.length - offset);
+						if (i % 2 == 0) {
+							out.write(data, offset, length);
+						} else {
+							assertEquals(length, out.write(ByteBuffer.wrap(
+									data, offset, length)));
+						}
+						offset += length;
+					}
+					out.close();
+				} catch (Throwable e) {
+					writeFailure = e;
+				}
+			}
+		});
+
+		byte[] read = new byte[data.length];
+		int count = 0;
+		try {
+			int[] sizes = { 4096, 1, 777, 1500 };
+			for (int i = 0; count < read.length; i++) {
+				int length = Math.min(sizes[i % sizes.length], read.length
+						- count);
+				int n;
+				if (i % 2 == 0) {
+					n = in.read(read, count, length);
+				} else {
+					n = in.read(ByteBuffer.wrap(read, count, length));
+				}
+				assertTrue("early end after " + count, n > 0);
+				count += n;
+			}
+			assertEquals("nothing after the end", -1, in.read());
+		} finally {
+			in.close();
+			writer.join(10000);
+		}
+		assertNull("writer failed: " + writeFailure, writeFailure);
+		assertEquals(data.length, count);
+		assertTrue("bytes differ", Arrays.equals(data, read));
+		assertFalse(in.isOpen());
+		assertFalse(out.isOpen());
+	}
+
+	/**
+	 * A byte at a time in stop-and-wait mode, with a flush in the middle
+	 */
+	public void testStopAndWait() throws Exception {
+		final String text = "hello, reliable stream";
+
+		ReliableInputStream in = new ReliableInputStream(config(
+				TransportMode.STOP_AND_WAIT, ReliableSender.ACK_RECEIVE_PORT));
+		in.setTimeout(10000);
+		final ReliableOutputStream out = new ReliableOutputStream(config(
+				TransportMode.STOP_AND_WAIT, ReliableSender.DATA_RECEIVE_PORT));
+		Thread writer = start(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < text.length(); i++) {
+						out.write(text.charAt(i));
+						if (i == 4) {
+							out.flush();
+						}
+					}
+					out.close();
+					out.close();
+				} catch (Throwable e) {
+					writeFailure = e;
+				}
+			}
+		});
+
+		StringBuilder read = new StringBuilder();
+		try {
+			int b;
+			while ((b = in.read()) >= 0) {
+				read.append((char) b);
+			}
+			assertEquals(0, in.available());
+		} finally {
+			in.close();
+			writer.join(10000);
+		}
+		assertNull("writer failed: " + writeFailure, writeFailure);
+		assertEquals(text, read.toString());
+		try {
+			out.write('x');
+			fail("wrote to a closed stream");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			in.read();
+			fail("read from a closed stream");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A relay that does not resolve fails the constructor and leaves the
+	 * receiver's ports free
+	 */
+	public void testUnknownRelay() throws Exception {
+		TransportConfig config = config(TransportMode.GO_BACK_N,
+				ReliableSender.ACK_RECEIVE_PORT);
+		config.setRelay("no-such-host.invalid");
+		try {
+			new ReliableInputStream(config);
+			fail("unresolved relay accepted");
+		} catch (UnknownHostException e) {
+			// expected
+		}
+
+		config.setRelay("127.0.0.1");
+		new ReliableInputStream(config).close();
+	}
+
+	private static TransportConfig config(TransportMode mode, int relayPort) {
+		TransportConfig config = new TransportConfig();
+		config.setMode(mode);
+		config.setCodec(WireCodecs.BINARY);
+		config.setPayloadSize(1000);
+		config.setWindowSize(16);
+		config.setLocal("127.0.0.1");
+		config.setRelay("127.0.0.1");
+		config.setRelayPort(relayPort);
+		config.setLogLevel(LogLevel.OFF);
+		config.validate();
+		return config;
+	}
+
+	private static Thread start(Runnable task) {
+		Thread thread = new Thread(task, "writer");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
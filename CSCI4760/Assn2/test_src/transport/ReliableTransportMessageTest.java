@@ -4,6 +4,7 @@ import static org.junit.Assert.assertArrayEquals;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -162,4 +163,28 @@ public class ReliableTransportMessageTest extends TestCase {
 		assertNull("reconstituted message 2 is not NULL", msg2);
 
 	}
+
+	/**
+	 * Test reconstituting a message from a receive buffer longer than the
+	 * datagram, and from the datagram length alone
+	 */
+	public void testReconstitutePadded() throws UnknownHostException {
+		InetAddress srcIP = InetAddress.getByName("172.17.152.122");
+		InetAddress destIP = InetAddress.getByName("172.17.152.124");
+		byte[] encoding = new ReliableTransportMessage(srcIP, destIP, 2200,
+				2015, ReliableTransportMessage.DATA, 7, "Hi mom!").getBuffer();
+
+		byte[] received = Arrays.copyOf(encoding, 1024);
+		ReliableTransportMessage padded = ReliableTransportMessage
+				.reconstitute(received);
+		assertNotNull("padded buffer", padded);
+		assertEquals("seq no", 7, padded.getSequenceNo());
+		assertEquals("payload", "Hi mom!", padded.getPayload().trim());
+		assertEquals(padded.getComputedChecksum(), padded.getStoredChecksum());
+
+		ReliableTransportMessage exact = ReliableTransportMessage.reconstitute(
+				received, encoding.length);
+		assertNotNull("datagram length", exact);
+		assertEquals(padded.getPayload(), exact.getPayload());
+	}
 }
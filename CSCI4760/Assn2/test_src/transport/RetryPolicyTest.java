@@ -0,0 +1,219 @@
+package transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the retry policy alone and the sender giving up on a receiver that
+ * never answers
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class RetryPolicyTest extends TestCase {
+
+	private DatagramSocket silent;
+
+	private List<String> gaveUp = new ArrayList<String>();
+
+	@Override
+	protected void setUp() throws Exception {
+		this.silent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		this.silent.setSoTimeout(1000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.silent.close();
+	}
+
+	public void testPolicy() {
+		RetryPolicy policy = new RetryPolicy(3, 0.25, new Random(42));
+		assertTrue(policy.shouldRetry(1));
+		assertTrue(policy.shouldRetry(2));
+		assertFalse("third send was the last", policy.shouldRetry(3));
+		long low = Long.MAX_VALUE;
+		long high = 0;
+		for (int i = 0; i < 1000; i++) {
+			long timeout = policy.getTimeout(1000000);
+			low = Math.min(low, timeout);
+			high = Math.max(high, timeout);
+		}
+		assertTrue("never below the RTO: " + low, low >= 1000000);
+		assertTrue("at most 25% above: " + high, high <= 1250000);
+		assertTrue("spread: " + low + "-" + high, high - low > 200000);
+
+		RetryPolicy forever = new RetryPolicy(new TransportConfig());
+		assertTrue("no limit", forever.shouldRetry(Integer.MAX_VALUE));
+		assertEquals("no jitter", 1000000, forever.getTimeout(1000000));
+
+		try {
+			new RetryPolicy(-1, 0, new Random());
+			fail("negative attempts accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			TransportConfig.parse(new String[] { "--retry-jitter=150" });
+			fail("jitter over 100% accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Stop-and-wait sends DATA and END as often as allowed, then fails the
+	 * DATA and lets the END go
+	 */
+	public void testStopAndWaitGivesUp() throws IOException {
+		ReliableSender sender = newSender(TransportMode.STOP_AND_WAIT);
+		try {
+			try {
+				sender.send("lost");
+				fail("gave up without an exception");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("after 4"));
+			}
+			assertEquals("sent", 4, drain());
+			assertEquals("resent", 3, sender.getRetransmissions());
+
+			sender.close();
+			assertEquals("END sent", 4, drain());
+			assertEquals("[D 0 4, E 0 4]", this.gaveUp.toString());
+		} finally {
+			sender.disconnect();
+		}
+	}
+
+	/**
+	 * Stop-and-wait ignores an ACK for another packet, such as a late
+	 * duplicate of the previous one, and keeps waiting for its own
+	 */
+	public void testStopAndWaitIgnoresStaleAck() throws IOException {
+		ReliableSender sender = newSender(TransportMode.STOP_AND_WAIT);
+		try {
+			sendAck(0);
+			sender.send("first");
+			assertEquals(1, drain());
+
+			sendAck(0);// a duplicate arriving late
+			try {
+				sender.send("second");
+				fail("stale ACK accepted");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("after 4"));
+			}
+			assertEquals("sent", 4, drain());
+			assertEquals("every wait timed out", 4, sender.getMetrics()
+					.getTimeouts());
+		} finally {
+			sender.disconnect();
+		}
+	}
+
+	/**
+	 * Go-Back-N stops after as many timeouts as the policy allows
+	 */
+	public void testWindowGivesUp() throws IOException {
+		ReliableSender sender = newSender(TransportMode.GO_BACK_N);
+		try {
+			sender.send("lost");
+			try {
+				sender.flush();
+				fail("gave up without an exception");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("after 4"));
+			}
+			assertEquals("sent", 4, drain());
+			assertEquals("[D 0 4]", this.gaveUp.toString());
+		} finally {
+			sender.disconnect();
+		}
+	}
+
+	/**
+	 * An unanswered handshake gives up as the policy allows, through the
+	 * retry listener
+	 */
+	public void testHandshakeGivesUp() throws IOException {
+		ReliableSender sender = newSender(TransportMode.SELECTIVE_REPEAT);
+		try {
+			try {
+				sender.handshake();
+				fail("gave up without an exception");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("after 4"));
+			}
+			assertEquals("sent", 4, drain());
+			assertEquals("[S 0 4]", this.gaveUp.toString());
+		} finally {
+			sender.disconnect();
+		}
+	}
+
+	private ReliableSender newSender(TransportMode mode) throws IOException {
+		TransportConfig config = new TransportConfig();
+		config.setMode(mode);
+		config.setLocal("127.0.0.1");
+		config.setRelay("127.0.0.1");
+		config.setRelayPort(this.silent.getLocalPort());
+		config.setInitialRto(10);
+		config.setMinRto(5);
+		config.setMaxRto(20);
+		config.setMaxAttempts(4);
+		config.setRetryJitter(50);
+		config.setLogLevel(LogLevel.OFF);
+		ReliableSender sender = new ReliableSender(
+				InetAddress.getByName(config.getRelay()), config);
+		sender.setRetryListener(new RetryListener() {
+			public void gaveUp(char opCode, int seqNo, int attempts) {
+				gaveUp.add(opCode + " " + seqNo + " " + attempts);
+			}
+		});
+		return sender;
+	}
+
+	/**
+	 * Sends the sender an empty ACK for 'seqNo', as a receiver would.
+	 */
+	private void sendAck(int seqNo) throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		MessageView header = new MessageView();
+		header.setSourceAddress(ip);
+		header.setDestAddress(ip);
+		header.setSrcPort(this.silent.getLocalPort());
+		header.setDestPort(ReliableSender.ACK_RECEIVE_PORT);
+		header.setOpCode(ReliableTransportMessage.ACK);
+		header.setSequenceNo(seqNo);
+		ByteBuffer ack = ByteBuffer.allocate(WireCodecs.TEXT.getMaxLength(0));
+		header.encode(WireCodecs.TEXT, ByteBuffer.allocate(0), ack);
+		this.silent.send(new DatagramPacket(ack.array(), ack.position(), ip,
+				ReliableSender.ACK_RECEIVE_PORT));
+	}
+
+	/**
+	 * Returns the number of datagrams that reached the silent socket.
+	 */
+	private int drain() throws IOException {
+		int count = 0;
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		this.silent.setSoTimeout(50);
+		try {
+			while (true) {
+				this.silent.receive(packet);
+				count++;
+			}
+		} catch (SocketTimeoutException e) {
+			return count;
+		}
+	}
+}
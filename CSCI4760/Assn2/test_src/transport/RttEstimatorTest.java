@@ -0,0 +1,119 @@
+package transport;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the RFC 6298 retransmission timeout calculation
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class RttEstimatorTest extends TestCase {
+
+	private static final long MS = 1000000L;
+
+	/**
+	 * Initial RTO is used until the first sample
+	 */
+	public void testInitialRto() {
+		RttEstimator rtt = new RttEstimator(1000 * MS, 20 * MS, 10000 * MS);
+		assertEquals("initial RTO", 1000 * MS, rtt.getRto());
+		assertEquals("samples", 0, rtt.getSamples());
+	}
+
+	/**
+	 * First sample sets SRTT = R and RTTVAR = R/2, so RTO = 3R
+	 */
+	public void testFirstSample() {
+		RttEstimator rtt = new RttEstimator(1000 * MS, 20 * MS, 10000 * MS);
+		rtt.sample(100 * MS);
+		assertEquals("SRTT", 100 * MS, rtt.getSrtt());
+		assertEquals("RTTVAR", 50 * MS, rtt.getRttvar());
+		assertEquals("RTO", 300 * MS, rtt.getRto());
+	}
+
+	/**
+	 * Steady round trips shrink the variation and pull the RTO towards SRTT
+	 */
+	public void testSmoothing() {
+		RttEstimator rtt = new RttEstimator(1000 * MS, 1 * MS, 10000 * MS);
+		rtt.sample(100 * MS);
+		rtt.sample(100 * MS);
+		assertEquals("SRTT", 100 * MS, rtt.getSrtt());
+		assertEquals("RTTVAR", 37500000L, rtt.getRttvar());
+		for (int i = 0; i < 100; i++) {
+			rtt.sample(100 * MS);
+		}
+		assertEquals("RTO converges to SRTT + G", 101 * MS, rtt.getRto());
+	}
+
+	/**
+	 * RTO never leaves [min, max]
+	 */
+	public void testClamp() {
+		RttEstimator rtt = new RttEstimator(1000 * MS, 20 * MS, 500 * MS);
+		rtt.sample(1 * MS);
+		assertEquals("min RTO", 20 * MS, rtt.getRto());
+		rtt.sample(1000 * MS);
+		assertEquals("max RTO", 500 * MS, rtt.getRto());
+		assertEquals("initial RTO clamped", 500 * MS,
+				new RttEstimator(1000 * MS, 20 * MS, 500 * MS).getRto());
+	}
+
+	/**
+	 * Timeouts double the RTO up to the maximum; a new sample cancels backoff
+	 */
+	public void testBackoff() {
+		RttEstimator rtt = new RttEstimator(100 * MS, 20 * MS, 1000 * MS);
+		rtt.backoff();
+		assertEquals("doubled", 200 * MS, rtt.getRto());
+		rtt.backoff();
+		rtt.backoff();
+		assertEquals("doubled twice more", 800 * MS, rtt.getRto());
+		rtt.backoff();
+		assertEquals("capped", 1000 * MS, rtt.getRto());
+		assertEquals("backoffs", 4, rtt.getBackoffs());
+
+		rtt.sample(10 * MS);
+		assertEquals("backoffs reset", 0, rtt.getBackoffs());
+		assertEquals("RTO from sample", 30 * MS, rtt.getRto());
+	}
+
+	/**
+	 * The receiver's ACK delay is added to the RTO once delayed ACKs are on
+	 */
+	public void testAckDelay() {
+		RttEstimator rtt = new RttEstimator(1000 * MS, 1 * MS, 10000 * MS,
+				10 * MS);
+		rtt.sample(100 * MS);
+		assertEquals("RTO", 310 * MS, rtt.getRto());
+
+		TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.SELECTIVE_REPEAT);
+		config.setMinRto(1);
+		config.setAckDelay(10);
+		rtt = new RttEstimator(config);
+		rtt.sample(100 * MS);
+		assertEquals("acks every packet", 300 * MS, rtt.getRto());
+		config.setAckEvery(2);
+		rtt = new RttEstimator(config);
+		rtt.sample(100 * MS);
+		assertEquals("acks every second packet", 310 * MS, rtt.getRto());
+	}
+
+	/**
+	 * The ACK delay the receiver announces replaces the configured one and
+	 * moves an RTO taken from samples
+	 */
+	public void testAnnouncedAckDelay() {
+		RttEstimator rtt = new RttEstimator(1000 * MS, 1 * MS, 10000 * MS);
+		rtt.setAckDelay(20 * MS);
+		assertEquals("no sample yet", 1000 * MS, rtt.getRto());
+		rtt.sample(100 * MS);
+		assertEquals(320 * MS, rtt.getRto());
+		rtt.setAckDelay(5 * MS);
+		assertEquals(5 * MS, rtt.getAckDelay());
+		assertEquals(305 * MS, rtt.getRto());
+	}
+
+}
@@ -0,0 +1,94 @@
+package transport;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the Selective Repeat sender and receiver: reassembly of packets
+ * received out of order, duplicates, and resending only the lost packet
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class SelectiveRepeatTest extends TestCase {
+
+	private static final long MS = ProtocolPair.MS;
+
+	private ProtocolPair pair;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.pair = new ProtocolPair(TransportMode.SELECTIVE_REPEAT, 4);
+		this.pair.send(4, 0);
+	}
+
+	/**
+	 * Packets past a gap are buffered and ACKed on their own, and released
+	 * in order once the gap is filled
+	 */
+	public void testReassembly() throws IOException {
+		assertTrue("buffered", this.pair.deliver(2, true));
+		assertTrue("buffered", this.pair.deliver(3, true));
+		assertTrue("nothing released", this.pair.delivered.isEmpty());
+		MessageView ack = this.pair.ack(1);
+		assertEquals("cumulative point", this.pair.receiver.getLastSeqNo(),
+				ack.getSequenceNo());
+		AckPayload sacks = new AckPayload();
+		assertTrue(sacks.decode(ack));
+		assertEquals(1, sacks.getSackCount());
+		assertEquals(this.pair.seqNo(2), sacks.getSackStart(0));
+		assertEquals(this.pair.seqNo(3), sacks.getSackEnd(0));
+
+		assertTrue(this.pair.deliver(0, true));
+		assertEquals(Arrays.asList("p0"), this.pair.delivered);
+		assertTrue(this.pair.deliver(1, true));
+		assertEquals(Arrays.asList("p0", "p1", "p2", "p3"),
+				this.pair.delivered);
+		assertEquals(this.pair.seqNo(3), this.pair.receiver.getLastSeqNo());
+	}
+
+	/**
+	 * A duplicate, buffered or already delivered, is ACKed again but not
+	 * released twice
+	 */
+	public void testDuplicates() throws IOException {
+		assertTrue(this.pair.deliver(2, true));
+		assertFalse("already buffered", this.pair.deliver(2, true));
+		assertTrue(this.pair.deliver(0, true));
+		assertFalse("already delivered", this.pair.deliver(0, true));
+
+		assertEquals(4, this.pair.acks.size());
+		assertEquals("re-ACKed", this.pair.ack(0).getSequenceNo(), this.pair
+				.ack(1).getSequenceNo());
+		assertEquals(this.pair.seqNo(0), this.pair.ack(3).getSequenceNo());
+		assertEquals(Arrays.asList("p0"), this.pair.delivered);
+
+		assertTrue(this.pair.deliver(1, true));
+		assertTrue(this.pair.deliver(3, true));
+		assertEquals(Arrays.asList("p0", "p1", "p2", "p3"),
+				this.pair.delivered);
+	}
+
+	/**
+	 * The timer resends only the packet that was not acknowledged
+	 */
+	public void testSelectiveResend() throws IOException {
+		this.pair.deliver(0, true);
+		this.pair.deliver(2, true);
+		this.pair.deliver(3, true);
+		this.pair.deliverAcks(MS);
+		assertFalse(this.pair.sender.isIdle());
+
+		assertTrue(this.pair.sender.onTimer(this.pair.sender.getDeadline()));
+		assertEquals("one resent", 5, this.pair.packets.size());
+		assertEquals(this.pair.seqNo(1), this.pair.seqNo(4));
+		assertEquals(1, this.pair.sender.getRetransmissions());
+
+		assertTrue(this.pair.deliver(4, true));
+		assertEquals(4, this.pair.delivered.size());
+		this.pair.deliverAcks(this.pair.sender.getDeadline());
+		assertTrue(this.pair.sender.isIdle());
+	}
+}
@@ -0,0 +1,218 @@
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests many transfers running at once through one sender engine into one
+ * multi-session receiver over loopback
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class SenderEngineTest extends TestCase {
+
+	private static final int TRANSFERS = 12;
+
+	private InetAddress loopback;
+
+	private MultiSessionReceiver receiver;
+
+	private Thread receiverThread;
+
+	private Map<Integer, ByteArrayOutputStream> received = new ConcurrentHashMap<Integer, ByteArrayOutputStream>();
+
+	@Override
+	protected void setUp() throws Exception {
+		this.loopback = InetAddress.getByName("127.0.0.1");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (this.receiver != null) {
+			this.receiver.stop();
+			this.receiverThread.join(5000);
+			this.receiver.close();
+		}
+	}
+
+	private TransportConfig config(TransportMode mode) {
+		TransportConfig config = new TransportConfig();
+		config.setMode(mode);
+		config.setWindowSize(8);
+		config.setCodec(WireCodecs.BINARY);
+		config.setPayloadSize(500);
+		config.setLocal("127.0.0.1");
+		config.setRelay("127.0.0.1");
+		config.setThreads(4);
+		config.setLogLevel(LogLevel.OFF);
+		return config;
+	}
+
+	private void startReceiver(TransportConfig config) throws IOException {
+		this.receiver = new MultiSessionReceiver(new InetSocketAddress(
+				this.loopback, 0), null, config, new SessionListener() {
+			public DeliverySink sessionStarted(InetAddress srcIP, int srcPort) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				received.put(srcPort, out);
+				return new DeliverySink() {
+					public void deliver(MessageView message) {
+						if (message.getOpCode() == ReliableTransportMessage.DATA) {
+							out.write(message.getBuffer().array(),
+									message.getPayloadOffset(),
+									message.getPayloadLength());
+						}
+					}
+				};
+			}
+
+			public void sessionEnded(InetAddress srcIP, int srcPort,
+					boolean finished) {
+			}
+		});
+		this.receiverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					receiver.run();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "receiver");
+		this.receiverThread.setDaemon(true);
+		this.receiverThread.start();
+	}
+
+	private static String contents(int transfer) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100 * (transfer + 1); i++) {
+			text.append("transfer ").append(transfer).append(" line ")
+					.append(i).append('\n');
+		}
+		return text.toString();
+	}
+
+	private void transfer(TransportConfig config) throws Exception {
+		startReceiver(config);
+		InetSocketAddress target = (InetSocketAddress) this.receiver
+				.getLocalAddress();
+
+		SenderEngine engine = new SenderEngine(config);
+		Set<String> sent = new HashSet<String>();
+		List<Future<TransportMetrics>> transfers = new ArrayList<Future<TransportMetrics>>();
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < TRANSFERS; i++) {
+			String text = contents(i);
+			sent.add(text);
+			byte[] bytes = text.getBytes("ISO-8859-1");
+			if (i % 2 == 0) {
+				transfers.add(engine.submit(ByteBuffer.wrap(bytes), target));
+			} else {
+				File file = File.createTempFile("engine", ".in");
+				files.add(file);
+				Files.write(file.toPath(), bytes);
+				transfers.add(engine.submit(file.toPath(), target));
+			}
+		}
+
+		for (Future<TransportMetrics> transfer : transfers) {
+			TransportMetrics metrics = transfer.get();
+			assertTrue("packets sent", metrics.getPacketsSent() > 0);
+		}
+		engine.close();
+		for (File file : files) {
+			file.delete();
+		}
+
+		assertEquals("sessions", TRANSFERS, this.received.size());
+		Set<String> got = new HashSet<String>();
+		for (ByteArrayOutputStream out : this.received.values()) {
+			got.add(out.toString("ISO-8859-1"));
+		}
+		assertEquals(sent, got);
+	}
+
+	/**
+	 * Stop-and-wait sessions run side by side
+	 */
+	public void testStopAndWaitSessions() throws Exception {
+		transfer(config(TransportMode.STOP_AND_WAIT));
+	}
+
+	/**
+	 * Selective Repeat sessions keep separate windows
+	 */
+	public void testSelectiveRepeatSessions() throws Exception {
+		transfer(config(TransportMode.SELECTIVE_REPEAT));
+	}
+
+	/**
+	 * Sessions whose ACKs the receiver holds back and sends together
+	 */
+	public void testDelayedAckSessions() throws Exception {
+		TransportConfig config = config(TransportMode.SELECTIVE_REPEAT);
+		config.setAckEvery(3);
+		config.setAckDelay(5);
+		transfer(config);
+	}
+
+	/**
+	 * Sessions that probe the path MTU before the handshake: the probes
+	 * start each session, and the SYN that follows still settles it
+	 */
+	public void testProbedHandshakeSessions() throws Exception {
+		TransportConfig config = config(TransportMode.SELECTIVE_REPEAT);
+		config.setProbeMtu(true);
+		config.setHandshake(true);
+		transfer(config);
+	}
+
+	/**
+	 * A transfer nobody answers fails its own future only
+	 */
+	public void testFailedTransfer() throws Exception {
+		TransportConfig config = config(TransportMode.GO_BACK_N);
+		config.setInitialRto(50);
+		config.setMaxAttempts(2);
+		startReceiver(config);
+		DatagramSocket silent = new DatagramSocket(0, this.loopback);
+
+		SenderEngine engine = new SenderEngine(config);
+		Future<TransportMetrics> lost = engine.submit(
+				ByteBuffer.wrap(contents(0).getBytes("ISO-8859-1")),
+				(InetSocketAddress) silent.getLocalSocketAddress());
+		Future<TransportMetrics> delivered = engine.submit(
+				ByteBuffer.wrap(contents(1).getBytes("ISO-8859-1")),
+				(InetSocketAddress) this.receiver.getLocalAddress());
+		try {
+			lost.get();
+			fail("transfer to a silent socket succeeded");
+		} catch (ExecutionException e) {
+			assertTrue("cause: " + e.getCause(),
+					e.getCause() instanceof IOException);
+		}
+		assertTrue(delivered.get().getPacketsSent() > 0);
+		engine.close();
+		silent.close();
+
+		assertEquals(1, this.received.size());
+		assertEquals(contents(1), this.received.values().iterator().next()
+				.toString("ISO-8859-1"));
+	}
+}
@@ -0,0 +1,117 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests wrapping sequence arithmetic and its use by the receiver
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class SequenceNumbersTest extends TestCase {
+
+	/**
+	 * Both spaces wrap back to 0, and -1 comes before 0
+	 */
+	public void testNext() {
+		assertEquals("decimal start", 0, SequenceNumbers.DECIMAL.next(-1));
+		assertEquals("decimal wrap", 0, SequenceNumbers.DECIMAL.next(99));
+		assertEquals("serial start", 0, SequenceNumbers.SERIAL_32.next(-1));
+		assertEquals("serial past MAX_VALUE", Integer.MIN_VALUE,
+				SequenceNumbers.SERIAL_32.next(Integer.MAX_VALUE));
+		assertEquals("serial wrap", 0, SequenceNumbers.SERIAL_32.next(0xFFFFFFFF));
+		assertEquals("serial add", 5, SequenceNumbers.SERIAL_32.add(-3, 8));
+	}
+
+	/**
+	 * Distances are measured forwards across the wrap
+	 */
+	public void testDistance() {
+		assertEquals("decimal", 3, SequenceNumbers.DECIMAL.distance(98, 1));
+		assertEquals("decimal behind", 99, SequenceNumbers.DECIMAL.distance(1, 0));
+		assertEquals("serial", 3,
+				SequenceNumbers.SERIAL_32.distance(0xFFFFFFFE, 1));
+		assertEquals("serial behind", 0xFFFFFFFFL,
+				SequenceNumbers.SERIAL_32.distance(1, 0));
+		assertEquals("serial from -1", 1,
+				SequenceNumbers.SERIAL_32.distance(-1, 0));
+	}
+
+	/**
+	 * Windows are limited by the codec's sequence space
+	 */
+	public void testWindowLimits() {
+		TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.SELECTIVE_REPEAT);
+		config.setWindowSize(1000);
+		try {
+			config.validate();
+			fail("text codec should not allow an SR window of 1000");
+		} catch (IllegalArgumentException e) {
+		}// OK, the two-character field is too small
+		config.setCodec(WireCodecs.BINARY);
+		config.validate();
+
+		config.setMode(TransportMode.GO_BACK_N);
+		config.setCodec(WireCodecs.TEXT);
+		config.setWindowSize(50);
+		config.validate();
+		config.setWindowSize(51);
+		try {
+			config.validate();
+			fail("text codec should not allow a GBN window of 51");
+		} catch (IllegalArgumentException e) {
+		}// OK, a late ACK from the previous lap would look current
+	}
+
+	private MessageView packet(int seqNo) throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		MessageView header = new MessageView();
+		header.setSourceAddress(ip);
+		header.setDestAddress(ip);
+		header.setOpCode(ReliableTransportMessage.DATA);
+		header.setSequenceNo(seqNo);
+		ByteBuffer datagram = ByteBuffer.allocate(128);
+		header.encode(WireCodecs.BINARY, ByteBuffer.allocate(0), datagram);
+		datagram.flip();
+		MessageView view = new MessageView();
+		assertEquals(MessageView.OK, view.decode(datagram));
+		return view;
+	}
+
+	/**
+	 * A duplicate from one lap of the decimal space ago is not taken for new
+	 * data with the 32-bit field
+	 */
+	public void testOldDuplicateRejected() throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.SELECTIVE_REPEAT);
+		config.setWindowSize(8);
+		config.setCodec(WireCodecs.BINARY);
+		final int[] delivered = new int[1];
+		ReceiverProtocol receiver = new ReceiverProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+			}
+		}, new DeliverySink() {
+			public void deliver(MessageView message) {
+				delivered[0]++;
+			}
+		}, ip, ip, 2018, 2016, config);
+
+		for (int seqNo = 0; seqNo < 150; seqNo++) {
+			assertTrue("seq " + seqNo, receiver.onMessage(packet(seqNo), true));
+		}
+		assertEquals("delivered", 150, delivered[0]);
+
+		assertFalse("duplicate of 50", receiver.onMessage(packet(50), true));
+		assertFalse("duplicate of 148", receiver.onMessage(packet(148), true));
+		assertEquals("delivered", 150, delivered[0]);
+		assertTrue("next", receiver.onMessage(packet(150), true));
+	}
+
+}
@@ -0,0 +1,62 @@
+package transport;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the latency percentiles and a small loopback sweep of the transfer
+ * benchmark
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class TransferBenchmarkTest extends TestCase {
+
+	public void testPercentiles() {
+		LatencyRecorder latency = new LatencyRecorder();
+		assertEquals("empty", 0, latency.getPercentile(0.5));
+		for (int i = 100; i >= 1; i--) {
+			latency.record(i);
+		}
+		assertEquals(100, latency.getCount());
+		assertEquals("p50", 50, latency.getPercentile(0.5));
+		assertEquals("p99", 99, latency.getPercentile(0.99));
+		assertEquals("min", 1, latency.getPercentile(0));
+		assertEquals("max", 100, latency.getMax());
+		assertEquals("mean", 50.5, latency.getMean(), 1e-9);
+
+		latency.record(1000);
+		assertEquals("re-sorted", 1000, latency.getMax());
+		latency.clear();
+		assertEquals(0, latency.getCount());
+	}
+
+	/**
+	 * A direct and a lossy relayed run both deliver the file intact
+	 */
+	public void testSweep() throws IOException {
+		TransferBenchmark benchmark = new TransferBenchmark();
+		benchmark.set("mode", "sr");
+		benchmark.set("codec", "binary");
+		benchmark.set("initial-rto", "100");
+		benchmark.set("sizes", "65536");
+		benchmark.set("payloads", "1000");
+		benchmark.set("losses", "0,5");
+		String report = benchmark.run();
+
+		assertTrue(report, report.startsWith("{\"runs\": ["));
+		assertEquals(report, 2, count(report, "\"intact\": true"));
+		assertEquals(report, 1, count(report, "\"relayed\": true"));
+		assertEquals(report, 2, count(report, "\"packets\": 66,"));
+	}
+
+	private static int count(String text, String part) {
+		int count = 0;
+		for (int at = text.indexOf(part); at >= 0; at = text.indexOf(part,
+				at + 1)) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,145 @@
+package transport;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the latency histogram, the counters the protocols keep and their JMX
+ * view
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class TransportMetricsTest extends TestCase {
+
+	private static final long MS = 1000000L;
+
+	private List<byte[]> datagrams = new ArrayList<byte[]>();
+
+	/**
+	 * Percentiles are within the bucket precision, small values exact
+	 */
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals("empty", 0, histogram.getPercentile(0.99));
+		for (long us = 1; us <= 10000; us++) {
+			histogram.record(us * 1000);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals("max", 10000000, histogram.getMax());
+		assertEquals("mean", 5000500.0, histogram.getMean(), 1e-6);
+		assertNear("p50", 5000000, histogram.getPercentile(0.5));
+		assertNear("p99", 9900000, histogram.getPercentile(0.99));
+		assertEquals("p100", 10000000, histogram.getPercentile(1));
+
+		histogram.clear();
+		histogram.record(-5);
+		histogram.record(100);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals("negative as 0", 0, histogram.getPercentile(0));
+		assertEquals("exact below 128 ns", 100, histogram.getPercentile(0.5));
+		assertEquals("clamped", LatencyHistogram.MAX_TRACKABLE,
+				histogram.getMax());
+	}
+
+	private static void assertNear(String what, long expected, long actual) {
+		assertTrue(what + ": " + actual, Math.abs(actual - expected) <= expected / 64);
+	}
+
+	/**
+	 * A Go-Back-N exchange with a lost packet, a damaged one, a NAK and a
+	 * timeout is counted on both sides
+	 */
+	public void testProtocolCounters() throws IOException {
+		InetAddress ip = InetAddress.getByName("127.0.0.1");
+		TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.GO_BACK_N);
+		config.setWindowSize(8);
+		config.setCongestionControl(false);
+		SenderProtocol sender = new SenderProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+				datagrams.add(Arrays.copyOfRange(buffer, offset, offset + length));
+			}
+		}, ip, ip, 2015, 2017, config, new RttEstimator(100 * MS, 10 * MS,
+				1000 * MS));
+		ReceiverProtocol receiver = new ReceiverProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length) {
+			}
+		}, new DeliverySink() {
+			public void deliver(MessageView message) {
+			}
+		}, ip, ip, 2018, 2016, config);
+
+		for (int i = 0; i < 4; i++) {
+			sender.send(ReliableTransportMessage.DATA, "x", 0);
+		}
+		MessageView view = new MessageView();
+		for (int i = 0; i < 4; i++) {
+			if (i != 1) {// lost
+				assertEquals(MessageView.OK,
+						view.decode(ByteBuffer.wrap(this.datagrams.get(i))));
+				receiver.onMessage(view, true);
+			}
+		}
+		receiver.onMessage(view, false);
+
+		TransportMetrics received = receiver.getMetrics();
+		assertEquals("received", 4, received.getPacketsReceived());
+		assertEquals("ACKs and NAK", 4, received.getPacketsSent());
+		assertEquals("out of order", 2, received.getOutOfOrderDrops());
+		assertEquals("damaged", 1, received.getChecksumFailures());
+		assertEquals("NAK sent", 1, received.getNaks());
+
+		sender.onResponse(ReliableTransportMessage.ACK, 0, 10 * MS);
+		sender.onResponse(ReliableTransportMessage.NAK, 0, 11 * MS);
+		assertTrue(sender.onTimer(sender.getDeadline()));
+
+		TransportMetrics sent = sender.getMetrics();
+		assertEquals("sent, resent on the NAK and on the timeout", 10,
+				sent.getPacketsSent());
+		assertEquals("responses", 2, sent.getPacketsReceived());
+		assertEquals("NAK received", 1, sent.getNaks());
+		assertEquals("timeout", 1, sent.getTimeouts());
+		assertEquals("resent", 6, sent.getRetransmits());
+		assertEquals("fast retransmit", 1, sent.getFastRetransmits());
+		assertEquals("one round trip", 1, sent.getRtt().getCount());
+		assertNear("rtt", 10 * MS, sent.getRtt().getMax());
+		assertEquals("rtt us", 10000, sent.getRttP50Micros());
+		assertEquals("ack latency", 10000, sent.getAckLatencyP99Micros());
+		assertTrue(sent.getSnapshot(),
+				sent.getSnapshot().startsWith("METRICS sender: sent=10 received=2"));
+	}
+
+	/**
+	 * Registered metrics can be read and reset over JMX
+	 */
+	public void testJmx() throws JMException {
+		TransportMetrics metrics = new TransportMetrics("jmx test");
+		metrics.countSent();
+		metrics.countSent();
+		metrics.recordRtt(2 * MS);
+		ObjectName name = metrics.register();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals("sent", 2L, server.getAttribute(name, "PacketsSent"));
+			assertEquals("rtt", 2000L, server.getAttribute(name, "RttMaxMicros"));
+			server.invoke(name, "reset", null, null);
+			assertEquals("reset", 0L, server.getAttribute(name, "PacketsSent"));
+			assertEquals("registered once", name, metrics.register());
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}
@@ -0,0 +1,264 @@
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the loopback relay: routing by header, impairments, and a whole
+ * transfer through real sockets
+ *
+ * @author Elliott Tanner
+ *
+ */
+public class UdpRelayTest extends TestCase {
+
+	private InetAddress loopback;
+
+	private UdpRelay relay;
+
+	private DatagramChannel first;
+
+	private DatagramChannel second;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.loopback = InetAddress.getByName("127.0.0.1");
+		this.first = open();
+		this.second = open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (this.relay != null) {
+			this.relay.close();
+		}
+		this.first.close();
+		this.second.close();
+	}
+
+	private DatagramChannel open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().bind(new InetSocketAddress(this.loopback, 0));
+		return channel;
+	}
+
+	private void startRelay(ImpairmentProfile profile) throws IOException {
+		this.relay = new UdpRelay(new InetSocketAddress(this.loopback, 0),
+				profile, 42);
+	}
+
+	/**
+	 * Sends a DATA datagram from 'from', addressed to 'to', via the relay.
+	 */
+	private void send(DatagramChannel from, DatagramChannel to, int sequenceNo)
+			throws IOException {
+		MessageView header = new MessageView();
+		header.setSourceAddress(this.loopback);
+		header.setDestAddress(this.loopback);
+		header.setSrcPort(from.socket().getLocalPort());
+		header.setDestPort(to.socket().getLocalPort());
+		header.setOpCode(ReliableTransportMessage.DATA);
+		header.setSequenceNo(sequenceNo);
+		ByteBuffer datagram = ByteBuffer.allocate(256);
+		header.encode(WireCodecs.BINARY,
+				ByteBuffer.wrap(("packet " + sequenceNo).getBytes()), datagram);
+		datagram.flip();
+		from.send(datagram, this.relay.getLocalAddress());
+	}
+
+	/**
+	 * Polls the relay until it has received 'count' datagrams and has none
+	 * left to send on.
+	 */
+	private void relayUntilReceived(long count) throws IOException {
+		long giveUp = System.currentTimeMillis() + 5000;
+		while ((this.relay.getReceived() < count || this.relay.getInFlight() > 0)
+				&& System.currentTimeMillis() < giveUp) {
+			this.relay.poll(10);
+		}
+		assertEquals("received", count, this.relay.getReceived());
+	}
+
+	public void testForwardsByHeader() throws IOException {
+		startRelay(ImpairmentProfile.forName("perfect"));
+		send(this.first, this.second, 1);
+		send(this.second, this.first, 2);
+		relayUntilReceived(2);
+
+		MessageView view = new MessageView();
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		SocketAddress from = receive(this.second, buffer);
+		assertEquals("from the relay", this.relay.getLocalAddress(), from);
+		assertEquals("decodes", MessageView.OK, view.decode(buffer));
+		assertEquals("to second", 1, view.getSequenceNo());
+
+		buffer.clear();
+		receive(this.first, buffer);
+		assertEquals("decodes", MessageView.OK, view.decode(buffer));
+		assertEquals("to first", 2, view.getSequenceNo());
+		assertEquals("forwarded", 2, this.relay.getForwarded());
+	}
+
+	public void testDropsUnroutable() throws IOException {
+		startRelay(new ImpairmentProfile());
+		this.first.send(ByteBuffer.wrap("not a packet".getBytes()),
+				this.relay.getLocalAddress());
+		relayUntilReceived(1);
+		assertEquals("unroutable", 1, this.relay.getUnroutable());
+		assertEquals("forwarded", 0, this.relay.getForwarded());
+	}
+
+	public void testAppliesProfile() throws IOException {
+		ImpairmentProfile profile = new ImpairmentProfile();
+		profile.set("loss", "100");
+		startRelay(profile);
+		for (int i = 0; i < 10; i++) {
+			send(this.first, this.second, i);
+		}
+		relayUntilReceived(10);
+		assertEquals("dropped", 10, this.relay.getDropped());
+		assertNull("nothing arrives",
+				this.second.receive(ByteBuffer.allocate(256)));
+
+		profile.set("profile", "reliable");
+		assertEquals("loss reset", 0.0, profile.getLoss());
+		long sent = System.nanoTime();
+		send(this.first, this.second, 10);
+		relayUntilReceived(11);
+		assertTrue("delayed", System.nanoTime() - sent >= profile.getDelay());
+		assertEquals("forwarded", 1, this.relay.getForwarded());
+	}
+
+	public void testNamedProfiles() {
+		for (String name : ImpairmentProfile.PROFILES) {
+			assertNotNull(name, ImpairmentProfile.forName(name));
+		}
+		assertTrue("worse",
+				ImpairmentProfile.forName("unreliable").getLoss() > ImpairmentProfile
+						.forName("semi-reliable").getLoss());
+		try {
+			ImpairmentProfile.forName("lossy");
+			fail("unknown profile accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A Selective Repeat transfer through an unreliable relay delivers every
+	 * payload once and in order.
+	 */
+	public void testTransferThroughUnreliableRelay() throws IOException {
+		ImpairmentProfile profile = ImpairmentProfile.forName("unreliable");
+		profile.set("delay", "1");
+		profile.set("jitter", "1");
+		startRelay(profile);
+		final SocketAddress target = this.relay.getLocalAddress();
+
+		TransportConfig config = new TransportConfig();
+		config.setMode(TransportMode.SELECTIVE_REPEAT);
+		config.setWindowSize(16);
+		config.setCodec(WireCodecs.BINARY);
+		config.setInitialRto(50);
+
+		final DatagramChannel senderChannel = this.first;
+		final DatagramChannel receiverChannel = this.second;
+		SenderProtocol sender = new SenderProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length)
+					throws IOException {
+				senderChannel.send(ByteBuffer.wrap(buffer, offset, length), target);
+			}
+		}, this.loopback, this.loopback, senderChannel.socket().getLocalPort(),
+				receiverChannel.socket().getLocalPort(), config,
+				new RttEstimator(config));
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		ReceiverProtocol receiver = new ReceiverProtocol(new PacketSink() {
+			public void transmit(byte[] buffer, int offset, int length)
+					throws IOException {
+				receiverChannel.send(ByteBuffer.wrap(buffer, offset, length), target);
+			}
+		}, new DeliverySink() {
+			public void deliver(MessageView message) {
+				if (message.getOpCode() == ReliableTransportMessage.DATA) {
+					received.write(message.getBuffer().array(),
+							message.getPayloadOffset(),
+							message.getPayloadLength());
+				}
+			}
+		}, this.loopback, this.loopback, receiverChannel.socket().getLocalPort(),
+				senderChannel.socket().getLocalPort(), config);
+
+		StringBuilder expected = new StringBuilder();
+		ByteBuffer buffer = ByteBuffer.allocate(TransportConfig.MAX_DATAGRAM_LEN);
+		MessageView view = new MessageView();
+		int packets = 300;
+		int sent = 0;
+		long giveUp = System.nanoTime() + 20000000000L;
+		while (!(sent > packets && sender.isIdle())
+				&& System.nanoTime() < giveUp) {
+			long now = System.nanoTime();
+			while (sender.isWindowOpen() && sent <= packets
+					&& now >= sender.getSendTime()) {
+				if (sent < packets) {
+					String payload = "payload " + sent + ";";
+					expected.append(payload);
+					sender.send(ReliableTransportMessage.DATA, payload, now);
+				} else {
+					sender.send(ReliableTransportMessage.END, "", now);
+				}
+				sent++;
+			}
+			sender.onTimer(now);
+
+			this.relay.poll(1);
+
+			buffer.clear();
+			while (receiverChannel.receive(buffer) != null) {
+				buffer.flip();
+				int result = view.decode(buffer);
+				if (result == MessageView.OK
+						|| result == MessageView.BAD_CHECKSUM) {
+					receiver.onMessage(view, result == MessageView.OK);
+				}
+				buffer.clear();
+			}
+			while (senderChannel.receive(buffer) != null) {
+				buffer.flip();
+				if (view.decode(buffer) == MessageView.OK) {
+					sender.onResponse(view, System.nanoTime());
+				}
+				buffer.clear();
+			}
+		}
+
+		assertTrue("transfer did not finish", sent > packets && sender.isIdle());
+		assertTrue("receiver finished", receiver.isFinished());
+		assertEquals("payload", expected.toString(), received.toString());
+		assertTrue("impaired", this.relay.getDropped() > 0);
+		assertTrue("corrupted", this.relay.getCorrupted() > 0);
+	}
+
+	/**
+	 * Waits for a datagram on a non-blocking channel.
+	 */
+	private static SocketAddress receive(DatagramChannel channel,
+			ByteBuffer buffer) throws IOException {
+		long giveUp = System.currentTimeMillis() + 2000;
+		SocketAddress from;
+		while ((from = channel.receive(buffer)) == null
+				&& System.currentTimeMillis() < giveUp) {
+			Thread.yield();
+		}
+		assertNotNull("nothing arrived", from);
+		buffer.flip();
+		return from;
+	}
+}
@@ -0,0 +1,215 @@
+package transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the text and binary wire codecs
+ * 
+ * @author Elliott Tanner
+ * 
+ */
+public class WireCodecTest extends TestCase {
+
+	private ReliableTransportMessage sample() throws UnknownHostException {
+		InetAddress srcIP = InetAddress.getByName("172.17.152.122");
+		InetAddress destIP = InetAddress.getByName("172.17.152.17");
+		return new ReliableTransportMessage(srcIP, destIP, 53200, 2017,
+				ReliableTransportMessage.DATA, 42, "TCP, the Queen of Protocols!");
+	}
+
+	private void assertSameFields(ReliableTransportMessage expected,
+			ReliableTransportMessage actual) {
+		assertNotNull("decoded message is NULL", actual);
+		assertEquals("Source IP", expected.getSourceIP(), actual.getSourceIP());
+		assertEquals("Dest IP", expected.getDestIP(), actual.getDestIP());
+		assertEquals("Source port", expected.getSrcPort(), actual.getSrcPort());
+		assertEquals("Dest port", expected.getDestPort(), actual.getDestPort());
+		assertEquals("Op code", expected.getOpCode(), actual.getOpCode());
+		assertEquals("seq no", expected.getSequenceNo(), actual.getSequenceNo());
+		assertEquals("Payload", expected.getPayload(), actual.getPayload());
+		assertEquals("checksum", actual.getComputedChecksum(),
+				actual.getStoredChecksum());
+	}
+
+	/**
+	 * Text codec produces the original encoding
+	 */
+	public void testTextRoundTrip() throws UnknownHostException {
+		ReliableTransportMessage msg = sample();
+		byte[] encoded = WireCodecs.TEXT.encode(msg);
+		assertEquals("text length", ReliableTransportMessage.BUFFER_LEN,
+				encoded.length);
+		assertSameFields(msg, WireCodecs.decode(encoded, 0, encoded.length));
+	}
+
+	/**
+	 * Binary codec is smaller and decodes to the same fields
+	 */
+	public void testBinaryRoundTrip() throws UnknownHostException {
+		ReliableTransportMessage msg = sample();
+		byte[] encoded = WireCodecs.BINARY.encode(msg);
+		assertEquals("binary length", BinaryWireCodec.IPV4_OVERHEAD
+				+ ReliableTransportMessage.PAYLOAD_LEN, encoded.length);
+		assertSame("detected codec", WireCodecs.BINARY,
+				WireCodecs.detect(encoded, 0, encoded.length));
+		assertSameFields(msg, WireCodecs.decode(encoded, 0, encoded.length));
+	}
+
+	/**
+	 * Binary codec carries IPv6 addresses
+	 */
+	public void testBinaryIPv6() throws UnknownHostException {
+		InetAddress srcIP = InetAddress.getByName("::1");
+		InetAddress destIP = InetAddress.getByName("fe80::1");
+		ReliableTransportMessage msg = new ReliableTransportMessage(srcIP,
+				destIP, 2015, 2017, ReliableTransportMessage.ACK, 7, "");
+		byte[] encoded = WireCodecs.BINARY.encode(msg);
+		assertSameFields(msg, WireCodecs.decode(encoded, 0, encoded.length));
+	}
+
+	/**
+	 * Damaged or truncated binary datagrams are rejected
+	 */
+	public void testBinaryCorruption() throws UnknownHostException {
+		byte[] encoded = WireCodecs.BINARY.encode(sample());
+		encoded[20] ^= 0x10;
+		assertNull("flipped bit", WireCodecs.decode(encoded, 0, encoded.length));
+		encoded[20] ^= 0x10;
+		assertNull("truncated",
+				WireCodecs.decode(encoded, 0, encoded.length - 1));
+	}
+
+	/**
+	 * A MessageView encodes and decodes both formats in caller buffers
+	 */
+	public void testViewRoundTrip() throws UnknownHostException {
+		ReliableTransportMessage msg = sample();
+		ByteBuffer payload = ByteBuffer.wrap("Hi Mom!".getBytes());
+		ByteBuffer datagram = ByteBuffer.allocate(128);
+		MessageView header = new MessageView();
+		header.setHeader(msg);
+		MessageView view = new MessageView();
+
+		for (WireCodec codec : new WireCodec[] { WireCodecs.TEXT,
+				WireCodecs.BINARY }) {
+			datagram.clear();
+			header.encode(codec, payload, datagram);
+			datagram.flip();
+			assertEquals(codec.getName() + " payload not consumed", 7,
+					payload.remaining());
+			assertEquals(codec.getName() + " result", MessageView.OK,
+					view.decode(datagram));
+			assertSame("codec", codec, view.getCodec());
+			assertEquals("seq no", 42, view.getSequenceNo());
+			assertEquals("Op code", ReliableTransportMessage.DATA,
+					view.getOpCode());
+			assertEquals("Source port", 53200, view.getSrcPort());
+			assertEquals("Dest port", 2017, view.getDestPort());
+			assertEquals("payload", "Hi Mom!", new String(datagram.array(),
+					view.getPayloadOffset(), 7));
+			ReliableTransportMessage decoded = view.toMessage();
+			assertEquals("Source IP", msg.getSourceIP(), decoded.getSourceIP());
+			assertEquals("Dest IP", msg.getDestIP(), decoded.getDestIP());
+		}
+	}
+
+	/**
+	 * The text view encoding matches the original encoding byte for byte
+	 */
+	public void testViewMatchesTextEncoding() throws UnknownHostException {
+		ReliableTransportMessage msg = sample();
+		MessageView header = new MessageView();
+		header.setHeader(msg);
+		ByteBuffer datagram = ByteBuffer.allocate(ReliableTransportMessage.BUFFER_LEN);
+		header.encode(WireCodecs.TEXT,
+				ByteBuffer.wrap(msg.getPayload().getBytes()), datagram);
+		assertEquals("encoding", new String(msg.getBuffer()), new String(
+				datagram.array()));
+	}
+
+	/**
+	 * Damaged datagrams are reported with result codes
+	 */
+	public void testViewResultCodes() throws UnknownHostException {
+		MessageView view = new MessageView();
+		byte[] text = WireCodecs.TEXT.encode(sample());
+		assertEquals("short text", MessageView.TRUNCATED,
+				view.decode(ByteBuffer.wrap(text, 0, 40)));
+		text[50] = 'x';
+		assertEquals("damaged text", MessageView.BAD_CHECKSUM,
+				view.decode(ByteBuffer.wrap(text)));
+
+		byte[] binary = WireCodecs.BINARY.encode(sample());
+		assertEquals("short binary", MessageView.TRUNCATED,
+				view.decode(ByteBuffer.wrap(binary, 0, 10)));
+		binary[30] ^= 0x01;
+		assertEquals("damaged binary", MessageView.BAD_CHECKSUM,
+				view.decode(ByteBuffer.wrap(binary)));
+	}
+
+	/**
+	 * View encodings are exactly as long as their payload needs
+	 */
+	public void testExactLengthFraming() throws UnknownHostException {
+		MessageView header = new MessageView();
+		header.setHeader(sample());
+		MessageView view = new MessageView();
+		ByteBuffer datagram = ByteBuffer.allocate(4096);
+
+		for (WireCodec codec : new WireCodec[] { WireCodecs.TEXT,
+				WireCodecs.BINARY }) {
+			for (int length : new int[] { 0, 7, 30, 1400 }) {
+				byte[] body = new byte[length];
+				for (int i = 0; i < length; i++) {
+					body[i] = (byte) ('a' + i % 26);
+				}
+				datagram.clear();
+				header.encode(codec, ByteBuffer.wrap(body), datagram);
+				datagram.flip();
+				int overhead = codec == WireCodecs.TEXT ? TextWireCodec.OVERHEAD
+						: BinaryWireCodec.IPV4_OVERHEAD;
+				assertEquals(codec.getName() + " length " + length, overhead
+						+ length, datagram.remaining());
+				assertEquals(codec.getName() + " result " + length,
+						MessageView.OK, view.decode(datagram));
+				assertEquals("payload length", length, view.getPayloadLength());
+				for (int i = 0; i < length; i++) {
+					assertEquals("payload byte " + i, body[i],
+							datagram.get(view.getPayloadOffset() + i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Long payloads are carried whole by the message object too
+	 */
+	public void testLongTextPayload() throws UnknownHostException {
+		StringBuilder payload = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			payload.append("Abandon all hope, ye who enter here. ");
+		}
+		ReliableTransportMessage msg = new ReliableTransportMessage(
+				sample().getSourceIP(), sample().getDestIP(), 53200, 2017,
+				ReliableTransportMessage.DATA, 42, payload.toString());
+		assertEquals("not truncated", payload.toString(), msg.getPayload());
+
+		byte[] encoded = WireCodecs.TEXT.encode(msg);
+		assertEquals("text length", TextWireCodec.OVERHEAD
+				+ payload.length(), encoded.length);
+		assertTrue("checksum folded", msg.getComputedChecksum() < 100000);
+		assertSameFields(msg, WireCodecs.decode(encoded, 0, encoded.length));
+
+		MessageView header = new MessageView();
+		header.setHeader(msg);
+		ByteBuffer datagram = ByteBuffer.allocate(encoded.length);
+		header.encode(WireCodecs.TEXT, ByteBuffer.wrap(payload.toString()
+				.getBytes()), datagram);
+		assertEquals("view encoding", new String(encoded), new String(
+				datagram.array()));
+	}
+}